@@ -0,0 +1,45 @@
+package org.hardboiled;
+
+import lombok.val;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps nothing beyond the store, so the benchmarks measure the manager and the store rather than
+ * the database or the disk
+ */
+class BenchmarkDealPersistence implements DealPersistence {
+
+    private final DealStore dealStore;
+    private final AtomicLong lastId = new AtomicLong();
+
+    BenchmarkDealPersistence(final DealStore dealStore) {
+        this.dealStore = dealStore;
+    }
+
+    @Override
+    public boolean isTransactional() {
+        return false;
+    }
+
+    @Override
+    public void load(final DealStore dealStore) {
+    }
+
+    @Override
+    public void insert(final DealTracker dealTracker) {
+        dealTracker.id = lastId.incrementAndGet();
+    }
+
+    @Override
+    public DealTracker update(final DealTracker held, final DealTracker changes) {
+        val updated = held.toBuilder().build();
+        DealPersistence.mergeTimes(updated, changes);
+        return updated;
+    }
+
+    @Override
+    public boolean delete(final Long id) {
+        return dealStore.findById(id).isPresent();
+    }
+}
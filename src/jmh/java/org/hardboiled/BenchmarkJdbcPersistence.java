@@ -0,0 +1,185 @@
+package org.hardboiled;
+
+import lombok.val;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Keeps the deals in an in-memory H2 dealtracker table shaped like the entity's, issuing the
+ * statements Hibernate would for each change: insert, select then versioned update, delete. Each
+ * statement commits on its own, as there's no JTA outside the app, so the score is the manager,
+ * the store and a database round trip per change without the transaction's flush and commit.
+ */
+class BenchmarkJdbcPersistence implements DealPersistence {
+
+    private static final String URL = "jdbc:h2:mem:benchmark;DB_CLOSE_DELAY=-1";
+    private static final String COLUMNS = "dealReference, chain, chainNumber, arrivalTime, sentTime, vestCompleteTime,"
+            + " appCompleteTime, stage";
+
+    /**
+     * One each for the setup and benchmark threads, left open until the fork exits
+     */
+    private final ThreadLocal<Connection> connection = ThreadLocal.withInitial(BenchmarkJdbcPersistence::connect);
+
+    BenchmarkJdbcPersistence() throws SQLException {
+        try (val statement = connection.get().createStatement()) {
+            statement.execute("drop table if exists dealtracker");
+            statement.execute("drop sequence if exists dealtracker_seq");
+            statement.execute("create sequence dealtracker_seq start with 1 increment by 1");
+            statement.execute("create table dealtracker (id bigint primary key, dealReference varchar(255),"
+                    + " chain varchar(255), chainNumber integer not null, arrivalTime timestamp(6),"
+                    + " sentTime timestamp(6), vestCompleteTime timestamp(6), appCompleteTime timestamp(6),"
+                    + " stage varchar(255), version bigint)");
+            statement.execute("create unique index dealtracker_dealreference_idx on dealtracker (dealReference)");
+            statement.execute("create index dealtracker_stage_chain_idx on dealtracker (stage, chain, chainNumber)");
+        }
+    }
+
+    @Override
+    public boolean isTransactional() {
+        return false;
+    }
+
+    @Override
+    public void load(final DealStore dealStore) {
+    }
+
+    @Override
+    public void insert(final DealTracker dealTracker) {
+        try (val statement = connection.get().prepareStatement("insert into dealtracker (id, " + COLUMNS
+                + ", version) values (next value for dealtracker_seq, ?, ?, ?, ?, ?, ?, ?, ?, 0)", new String[]{"id"})) {
+            bind(statement, dealTracker, 1);
+            statement.executeUpdate();
+            try (val keys = statement.getGeneratedKeys()) {
+                keys.next();
+                dealTracker.id = keys.getLong(1);
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not insert " + dealTracker.dealReference, e);
+        }
+    }
+
+    /**
+     * Insert the deals in batches, for setting up the live deals before a trial
+     */
+    void insertAll(final List<DealTracker> deals) throws SQLException {
+        try (val statement = connection.get().prepareStatement("insert into dealtracker (id, " + COLUMNS
+                + ", version) values (?, ?, ?, ?, ?, ?, ?, ?, ?, 0)")) {
+            long id = 0;
+            for (DealTracker dealTracker : deals) {
+                dealTracker.id = ++id;
+                statement.setLong(1, dealTracker.id);
+                bind(statement, dealTracker, 2);
+                statement.addBatch();
+                if (id % 1000 == 0) {
+                    statement.executeBatch();
+                }
+            }
+            statement.executeBatch();
+            try (val restart = connection.get().createStatement()) {
+                restart.execute("alter sequence dealtracker_seq restart with " + (id + 1));
+            }
+        }
+    }
+
+    @Override
+    public DealTracker update(final DealTracker held, final DealTracker changes) {
+        try {
+            val saved = find(held.id);
+            if (saved == null) {
+                return null;
+            }
+            if (DealPersistence.mergeTimes(saved, changes)) {
+                try (val statement = connection.get().prepareStatement("update dealtracker set arrivalTime = ?,"
+                        + " sentTime = ?, vestCompleteTime = ?, appCompleteTime = ?, stage = ?, version = ?"
+                        + " where id = ? and version = ?")) {
+                    setTime(statement, 1, saved.arrivalTime);
+                    setTime(statement, 2, saved.sentTime);
+                    setTime(statement, 3, saved.vestCompleteTime);
+                    setTime(statement, 4, saved.appCompleteTime);
+                    statement.setString(5, Stage.of(saved).name());
+                    statement.setLong(6, saved.version + 1);
+                    statement.setLong(7, saved.id);
+                    statement.setLong(8, saved.version);
+                    if (statement.executeUpdate() == 0) {
+                        throw new IllegalStateException("Deal " + saved.id + " was changed by another writer");
+                    }
+                    saved.version++;
+                }
+            }
+            return saved;
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not update deal " + held.id, e);
+        }
+    }
+
+    @Override
+    public boolean delete(final Long id) {
+        try (val statement = connection.get().prepareStatement("delete from dealtracker where id = ?")) {
+            statement.setLong(1, id);
+            return statement.executeUpdate() > 0;
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not delete deal " + id, e);
+        }
+    }
+
+    private DealTracker find(final Long id) throws SQLException {
+        try (val statement = connection.get().prepareStatement("select " + COLUMNS
+                + ", version from dealtracker where id = ?")) {
+            statement.setLong(1, id);
+            try (val row = statement.executeQuery()) {
+                if (!row.next()) {
+                    return null;
+                }
+                return DealTracker.builder()
+                        .id(id)
+                        .dealReference(row.getString(1))
+                        .chain(row.getString(2))
+                        .chainNumber(row.getInt(3))
+                        .arrivalTime(row.getObject(4, LocalDateTime.class))
+                        .sentTime(row.getObject(5, LocalDateTime.class))
+                        .vestCompleteTime(row.getObject(6, LocalDateTime.class))
+                        .appCompleteTime(row.getObject(7, LocalDateTime.class))
+                        .stage(Stage.valueOf(row.getString(8)))
+                        .version(row.getLong(9))
+                        .build();
+            }
+        }
+    }
+
+    private static void bind(final PreparedStatement statement, final DealTracker dealTracker, final int first)
+            throws SQLException {
+        statement.setString(first, dealTracker.dealReference);
+        statement.setString(first + 1, dealTracker.chain);
+        statement.setInt(first + 2, dealTracker.chainNumber);
+        setTime(statement, first + 3, dealTracker.arrivalTime);
+        setTime(statement, first + 4, dealTracker.sentTime);
+        setTime(statement, first + 5, dealTracker.vestCompleteTime);
+        setTime(statement, first + 6, dealTracker.appCompleteTime);
+        statement.setString(first + 7, Stage.of(dealTracker).name());
+    }
+
+    private static void setTime(final PreparedStatement statement, final int index, final LocalDateTime time)
+            throws SQLException {
+        if (time == null) {
+            statement.setNull(index, Types.TIMESTAMP);
+        } else {
+            statement.setTimestamp(index, Timestamp.valueOf(time));
+        }
+    }
+
+    private static Connection connect() {
+        try {
+            return DriverManager.getConnection(URL);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not open the benchmark database", e);
+        }
+    }
+}
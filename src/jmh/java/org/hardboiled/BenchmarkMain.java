@@ -0,0 +1,26 @@
+package org.hardboiled;
+
+import lombok.val;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+
+/**
+ * Runs the benchmarks once for each thread count in -Dbenchmark.threads (default 1,4),
+ * passing any other arguments on to JMH as usual
+ */
+public class BenchmarkMain {
+
+    public static void main(final String[] args) throws Exception {
+        val commandLine = new CommandLineOptions(args);
+        val threadCounts = Arrays.stream(System.getProperty("benchmark.threads", "1,4").split(","))
+                .map(String::trim)
+                .mapToInt(Integer::parseInt)
+                .toArray();
+        for (int threads : threadCounts) {
+            new Runner(new OptionsBuilder().parent(commandLine).threads(threads).build()).run();
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package org.hardboiled;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.val;
+import org.jboss.logmanager.LogContext;
+import org.jboss.logmanager.configuration.PropertyLogContextConfigurator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The DealTrackerManager paths a message or a query goes through, against a store already holding
+ * liveDeals deals (half waiting, half sent). With persistence=none nothing is kept beyond the store,
+ * so the score is the manager and the store alone; with persistence=database each change also goes
+ * to an in-memory H2 table, as BenchmarkJdbcPersistence describes. Logging is set by logging.properties.
+ * Each thread only touches its own share of the deals so threads never race on one deal. Deals
+ * arrive a second apart, so the query benchmarks have an arrival range to cut.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class DealTrackerManagerBenchmark {
+
+    private static final int CHAINS = 100;
+
+    public enum Persistence {
+        NONE,
+        DATABASE
+    }
+
+    @Param({"1000", "100000", "1000000"})
+    int liveDeals;
+
+    @Param({"NONE", "DATABASE"})
+    Persistence persistence;
+
+    DealTrackerManager dealTrackerManager;
+    DealStore dealStore;
+    DealPersistence dealPersistence;
+    DealQuery chainQuery;
+    DealQuery arrivedQuery;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        // outside Quarkus the log manager just holds on to records for an app that never starts, so apply
+        // logging.properties to it
+        new PropertyLogContextConfigurator().configure(LogContext.getSystemLogContext(), null);
+        dealStore = new DealStore();
+        val deals = new ArrayList<DealTracker>(liveDeals);
+        val now = LocalDateTime.now();
+        for (int i = 0; i < liveDeals; i++) {
+            deals.add(deal(i, now.minusSeconds(liveDeals - i), i % 2 == 0 ? null : now));
+        }
+        if (persistence == Persistence.DATABASE) {
+            val database = new BenchmarkJdbcPersistence();
+            database.insertAll(deals);
+            dealPersistence = database;
+        } else {
+            dealPersistence = new BenchmarkDealPersistence(dealStore);
+            deals.forEach(dealPersistence::insert);
+        }
+        dealStore.load(deals);
+
+        val dealTrackerMetrics = new DealTrackerMetrics();
+        dealTrackerMetrics.meterRegistry = new SimpleMeterRegistry();
+        dealTrackerMetrics.dealStore = dealStore;
+        dealTrackerMetrics.ingestService = new IngestService();
+        dealTrackerMetrics.onStart(null);
+
+        dealTrackerManager = new DealTrackerManager();
+        dealTrackerManager.dealTrackerMetrics = dealTrackerMetrics;
+        dealTrackerManager.dealStore = dealStore;
+        dealTrackerManager.dealPersistence = dealPersistence;
+        dealTrackerManager.stageQuerySource = DealTrackerManager.StageQuerySource.STORE;
+        // neither started, so both stand aside
+        dealTrackerManager.completedDeals = new CompletedDeals();
+        dealTrackerManager.dealAudit = new DealAudit();
+
+        chainQuery = DealQuery.builder()
+                .chain("chain8")
+                .chainNumberFrom(liveDeals / 4)
+                .chainNumberTo(liveDeals / 2)
+                .stages(EnumSet.of(Stage.WAITING))
+                .limit(100)
+                .build();
+        arrivedQuery = DealQuery.builder()
+                .arrived(new DealQuery.TimeRange(now.minusSeconds(liveDeals / 10), null))
+                .stages(EnumSet.of(Stage.SENT))
+                .sort(DealQuery.Sort.ARRIVAL_DESC)
+                .limit(100)
+                .build();
+    }
+
+    static DealTracker deal(final int index, final LocalDateTime arrivalTime, final LocalDateTime sentTime) {
+        return new DealTracker("deal::" + index, "chain" + (index % CHAINS), index,
+                arrivalTime, sentTime, null, null);
+    }
+
+    /**
+     * One benchmark thread's share of the deals, and the new ones it has created
+     */
+    @State(Scope.Thread)
+    public static class Share {
+
+        int threadIndex;
+        int threadCount;
+        int created;
+
+        @Setup(Level.Trial)
+        public void setUp(final ThreadParams threadParams) {
+            threadIndex = threadParams.getThreadIndex();
+            threadCount = threadParams.getThreadCount();
+        }
+
+        /**
+         * Take the deals created this iteration back out so the live set stays the same size
+         */
+        @TearDown(Level.Iteration)
+        public void removeCreated(final DealTrackerManagerBenchmark benchmark) {
+            for (int i = 0; i < created; i++) {
+                benchmark.dealStore.findByDealReference(newReference(i)).ifPresent(dealTracker -> {
+                    benchmark.dealPersistence.delete(dealTracker.id);
+                    benchmark.dealStore.remove(dealTracker.id);
+                });
+            }
+            created = 0;
+        }
+
+        int pick(final int liveDeals) {
+            val index = ThreadLocalRandom.current().nextInt(Math.max(1, liveDeals / threadCount)) * threadCount + threadIndex;
+            return index < liveDeals ? index : threadIndex;
+        }
+
+        String newReference(final int i) {
+            return "new::" + threadIndex + "::" + i;
+        }
+    }
+
+    @Benchmark
+    public ProcessOutcome processCreate(final Share share) {
+        return dealTrackerManager.processDealTracker(new DealTracker(share.newReference(share.created++),
+                "chain0", 0, LocalDateTime.now(), null, null, null));
+    }
+
+    @Benchmark
+    public ProcessOutcome processUpdate(final Share share) {
+        return dealTrackerManager.processDealTracker(deal(share.pick(liveDeals), null, LocalDateTime.now()));
+    }
+
+    /**
+     * Completes a deal, which deletes it, then sends it in again as new so the live set stays the same
+     * size - the score covers both
+     */
+    @Benchmark
+    public void processCompleteDelete(final Share share, final Blackhole blackhole) {
+        val index = share.pick(liveDeals);
+        val now = LocalDateTime.now();
+        val completed = deal(index, now, now);
+        completed.vestCompleteTime = now;
+        completed.appCompleteTime = now;
+        blackhole.consume(dealTrackerManager.processDealTracker(completed));
+        blackhole.consume(dealTrackerManager.processDealTracker(deal(index, now, index % 2 == 0 ? null : now)));
+    }
+
+    @Benchmark
+    public Optional<DealTracker> getByTransactionRef(final Share share) {
+        return dealTrackerManager.getByTransactionRef("deal::" + share.pick(liveDeals));
+    }
+
+    @Benchmark
+    public List<DealTracker> getDealsWaiting() {
+        return dealTrackerManager.getDealsWaiting();
+    }
+
+    @Benchmark
+    public List<DealTracker> getDealsInProcessing() {
+        return dealTrackerManager.getDealsInProcessing();
+    }
+
+    /**
+     * One chain's waiting deals in a chainNumber range, from the chain's index
+     */
+    @Benchmark
+    public List<DealTracker> queryChain() {
+        return dealTrackerManager.query(chainQuery);
+    }
+
+    /**
+     * The same as queryChain, by filtering every deal - what the index is there to beat
+     */
+    @Benchmark
+    public List<DealTracker> queryChainByScan() {
+        return scan(chainQuery);
+    }
+
+    /**
+     * The latest sent deals of the last tenth of arrivals, from the arrival index
+     */
+    @Benchmark
+    public List<DealTracker> queryArrived() {
+        return dealTrackerManager.query(arrivedQuery);
+    }
+
+    @Benchmark
+    public List<DealTracker> queryArrivedByScan() {
+        return scan(arrivedQuery);
+    }
+
+    private List<DealTracker> scan(final DealQuery query) {
+        return dealStore.getAll().stream()
+                .filter(query::matches)
+                .sorted(query.sort().order())
+                .limit(query.limit())
+                .toList();
+    }
+}
@@ -0,0 +1,91 @@
+package org.hardboiled;
+
+import lombok.val;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies and errors for one endpoint. Latency is taken from when the request was due to be
+ * sent, not when it was, so a server that falls behind shows up in the numbers rather than
+ * quietly slowing the load down.
+ */
+class EndpointStats {
+
+    private static final long HIGHEST_TRACKABLE = TimeUnit.MINUTES.toMicros(5);
+
+    private final String name;
+    private final Recorder recorder = new Recorder(HIGHEST_TRACKABLE, 3);
+    private final Histogram total = new Histogram(HIGHEST_TRACKABLE, 3);
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private Histogram interval;
+    private long intervalErrors;
+
+    EndpointStats(final String name) {
+        this.name = name;
+    }
+
+    void recordSuccess(final long dueNanos) {
+        recorder.recordValue(micros(dueNanos));
+    }
+
+    void recordError(final long dueNanos) {
+        recorder.recordValue(micros(dueNanos));
+        errors.increment();
+    }
+
+    /**
+     * The request was never sent because too many were already waiting on the server
+     */
+    void recordDropped() {
+        dropped.increment();
+    }
+
+    /**
+     * Start counting from now, dropping whatever was recorded during the warm up
+     */
+    synchronized void reset() {
+        interval = recorder.getIntervalHistogram(interval);
+        total.reset();
+        errors.reset();
+        dropped.reset();
+        intervalErrors = 0;
+    }
+
+    synchronized void printInterval(final PrintStream out, final double seconds) {
+        interval = recorder.getIntervalHistogram(interval);
+        total.add(interval);
+        val errorCount = errors.sum();
+        out.printf("  %-10s %8.1f/s  p50 %8.2fms  p99 %8.2fms  max %8.2fms  errors %d%n",
+                name, interval.getTotalCount() / seconds,
+                millis(interval.getValueAtPercentile(50)), millis(interval.getValueAtPercentile(99)),
+                millis(interval.getMaxValue()), errorCount - intervalErrors);
+        intervalErrors = errorCount;
+    }
+
+    synchronized void printTotal(final PrintStream out, final double seconds) {
+        interval = recorder.getIntervalHistogram(interval);
+        total.add(interval);
+        out.printf("%s: %d requests (%.1f/s), %d errors, %d dropped%n",
+                name, total.getTotalCount(), total.getTotalCount() / seconds, errors.sum(), dropped.sum());
+        if (total.getTotalCount() == 0) {
+            return;
+        }
+        for (double percentile : new double[] {50, 90, 99, 99.9, 99.99}) {
+            out.printf("  p%-6s %10.2fms%n", percentile, millis(total.getValueAtPercentile(percentile)));
+        }
+        out.printf("  max     %10.2fms%n", millis(total.getMaxValue()));
+    }
+
+    private static long micros(final long dueNanos) {
+        return Math.min(HIGHEST_TRACKABLE, Math.max(0, (System.nanoTime() - dueNanos) / 1000));
+    }
+
+    private static double millis(final long micros) {
+        return micros / 1000.0;
+    }
+}
@@ -0,0 +1,241 @@
+package org.hardboiled;
+
+import lombok.val;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load against a running instance: requests go out at a fixed rate whether or not the
+ * earlier ones have come back, so when the server saturates the latencies climb instead of the
+ * load backing off. The traffic is mostly /process messages taking deals through their lifecycle,
+ * with dashboard polls of /summary and /getDealsInProcessing and the odd /get lookup.
+ * With loadtest.concurrency set it runs closed-loop instead: that many clients each send their next
+ * request as soon as the last one comes back, which finds the most the server can take at that
+ * concurrency and the latencies it gives while doing it.
+ * Everything is set with -Dloadtest.* system properties, see the README.
+ */
+public class LoadGenerator {
+
+    private static final String[] POLLS = {"/dealtracker/summary", "/dealtracker/getDealsInProcessing?limit=100"};
+    private static final int RECENT_REFERENCES = 1024;
+
+    private final String url = System.getProperty("loadtest.url", "http://localhost:8080");
+    private final double rate = Double.parseDouble(System.getProperty("loadtest.rate", "500"));
+    private final int durationSeconds = Integer.getInteger("loadtest.duration", 60);
+    private final int warmupSeconds = Integer.getInteger("loadtest.warmup", 10);
+    private final int reportSeconds = Integer.getInteger("loadtest.report-interval", 5);
+    private final int processWeight = Integer.getInteger("loadtest.process-weight", 90);
+    private final int pollWeight = Integer.getInteger("loadtest.poll-weight", 8);
+    private final int getWeight = Integer.getInteger("loadtest.get-weight", 2);
+    private final int liveDeals = Integer.getInteger("loadtest.live-deals", 1000);
+    private final double completeRatio = Double.parseDouble(System.getProperty("loadtest.complete-ratio", "0.95"));
+    private final int chains = Integer.getInteger("loadtest.chains", 50);
+    private final double chainSkew = Double.parseDouble(System.getProperty("loadtest.chain-skew", "1.0"));
+    private final int maxInFlight = Integer.getInteger("loadtest.max-in-flight", 2000);
+    private final int concurrency = Integer.getInteger("loadtest.concurrency", 0);
+
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+    private final Map<String, EndpointStats> stats = new LinkedHashMap<>();
+    private final Queue<LoadDeal> openDeals = new ConcurrentLinkedQueue<>();
+    private final AtomicReferenceArray<String> recentReferences = new AtomicReferenceArray<>(RECENT_REFERENCES);
+    private final Map<Integer, AtomicInteger> chainNumbers = new ConcurrentHashMap<>();
+    private final AtomicLong dealCount = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+    private final double[] chainWeights;
+
+    LoadGenerator() {
+        stats.put("process", new EndpointStats("process"));
+        stats.put("poll", new EndpointStats("poll"));
+        stats.put("get", new EndpointStats("get"));
+        chainWeights = new double[chains];
+        double cumulative = 0;
+        for (int i = 0; i < chains; i++) {
+            cumulative += 1 / Math.pow(i + 1, chainSkew);
+            chainWeights[i] = cumulative;
+        }
+    }
+
+    public static void main(final String[] args) throws Exception {
+        new LoadGenerator().run();
+    }
+
+    /**
+     * A deal being taken through arrival, sent, vestComplete and appComplete. Those that don't
+     * complete stop after a random stage and are left on the server.
+     */
+    private static class LoadDeal {
+
+        final String dealReference;
+        final String chain;
+        final int chainNumber;
+        final LocalDateTime[] times = new LocalDateTime[4];
+        final int lastStage;
+        int next;
+
+        LoadDeal(final String dealReference, final String chain, final int chainNumber, final int lastStage) {
+            this.dealReference = dealReference;
+            this.chain = chain;
+            this.chainNumber = chainNumber;
+            this.lastStage = lastStage;
+        }
+
+        /**
+         * @return the next message for this deal, carrying every timestamp so far
+         */
+        String advance() {
+            times[next++] = LocalDateTime.now().truncatedTo(ChronoUnit.MICROS);
+            return "{\"dealReference\":\"" + dealReference + "\",\"chain\":\"" + chain + "\",\"chainNumber\":" + chainNumber
+                    + ",\"arrivalTime\":" + json(times[0]) + ",\"sentTime\":" + json(times[1])
+                    + ",\"vestCompleteTime\":" + json(times[2]) + ",\"appCompleteTime\":" + json(times[3]) + "}";
+        }
+
+        boolean isFinished() {
+            return next > lastStage;
+        }
+
+        private static String json(final LocalDateTime time) {
+            return time == null ? "null" : "\"" + time + "\"";
+        }
+    }
+
+    void run() throws InterruptedException {
+        if (concurrency > 0) {
+            System.out.printf("Sending from %d clients at once to %s for %ds after a %ds warm up (process:poll:get %d:%d:%d)%n",
+                    concurrency, url, durationSeconds, warmupSeconds, processWeight, pollWeight, getWeight);
+        } else {
+            System.out.printf("Sending %.0f requests/s to %s for %ds after a %ds warm up (process:poll:get %d:%d:%d)%n",
+                    rate, url, durationSeconds, warmupSeconds, processWeight, pollWeight, getWeight);
+        }
+        val reporter = Executors.newSingleThreadScheduledExecutor();
+        val start = System.nanoTime();
+        val measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        val end = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+        reporter.schedule(() -> stats.values().forEach(EndpointStats::reset), warmupSeconds, TimeUnit.SECONDS);
+        reporter.scheduleAtFixedRate(() -> {
+            System.out.printf("%ds, %d in flight%n", TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), inFlight.get());
+            stats.values().forEach(endpoint -> endpoint.printInterval(System.out, reportSeconds));
+        }, warmupSeconds + reportSeconds, reportSeconds, TimeUnit.SECONDS);
+
+        if (concurrency > 0) {
+            for (int i = 0; i < concurrency; i++) {
+                client(end);
+            }
+            Thread.sleep(TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()));
+        } else {
+            val period = 1_000_000_000.0 / rate;
+            for (long i = 0; ; i++) {
+                val due = start + (long) (i * period);
+                if (due >= end) {
+                    break;
+                }
+                val wait = due - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                dispatch(due);
+            }
+        }
+
+        val drainUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (inFlight.get() > 0 && System.nanoTime() < drainUntil) {
+            Thread.sleep(10);
+        }
+        reporter.shutdownNow();
+        System.out.printf("%nAfter %ds (%d deals started, %d requests still in flight):%n",
+                durationSeconds, dealCount.get(), inFlight.get());
+        stats.values().forEach(endpoint -> endpoint.printTotal(System.out, durationSeconds));
+    }
+
+    /**
+     * One closed-loop client, sending its next request as soon as the last one completes
+     */
+    private void client(final long end) {
+        if (System.nanoTime() < end) {
+            dispatch(System.nanoTime()).whenComplete((ignored, failure) -> client(end));
+        }
+    }
+
+    private CompletableFuture<?> dispatch(final long due) {
+        val random = ThreadLocalRandom.current();
+        val pick = random.nextInt(processWeight + pollWeight + getWeight);
+        if (pick < processWeight) {
+            return send("process", due, HttpRequest.newBuilder(URI.create(url + "/dealtracker/process"))
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(nextMessage())));
+        } else if (pick < processWeight + pollWeight) {
+            return send("poll", due, HttpRequest.newBuilder(URI.create(url + POLLS[random.nextInt(POLLS.length)])));
+        } else {
+            val dealReference = recentReferences.get(random.nextInt(RECENT_REFERENCES));
+            return send("get", due, HttpRequest.newBuilder(URI.create(url + "/dealtracker/get/"
+                    + (dealReference == null ? "none" : dealReference))));
+        }
+    }
+
+    /**
+     * Start a new deal while there are fewer than live-deals open, otherwise move the oldest one on
+     */
+    private String nextMessage() {
+        var deal = openDeals.size() < liveDeals ? null : openDeals.poll();
+        if (deal == null) {
+            deal = newDeal();
+        }
+        val message = deal.advance();
+        if (!deal.isFinished()) {
+            openDeals.offer(deal);
+        }
+        return message;
+    }
+
+    private LoadDeal newDeal() {
+        val random = ThreadLocalRandom.current();
+        val chain = Math.abs(Arrays.binarySearch(chainWeights, random.nextDouble(chainWeights[chains - 1])) + 1) % chains;
+        val chainNumber = chainNumbers.computeIfAbsent(chain, key -> new AtomicInteger()).incrementAndGet();
+        val count = dealCount.incrementAndGet();
+        val dealReference = "load-" + runId + "-" + count + "::" + chainNumber;
+        recentReferences.set((int) (count % RECENT_REFERENCES), dealReference);
+        val lastStage = random.nextDouble() < completeRatio ? 3 : random.nextInt(3);
+        return new LoadDeal(dealReference, "loadChain" + chain, chainNumber, lastStage);
+    }
+
+    private CompletableFuture<?> send(final String endpoint, final long due, final HttpRequest.Builder request) {
+        val endpointStats = stats.get(endpoint);
+        if (inFlight.incrementAndGet() > maxInFlight && concurrency == 0) {
+            inFlight.decrementAndGet();
+            endpointStats.recordDropped();
+            return CompletableFuture.completedFuture(null);
+        }
+        return client.sendAsync(request.timeout(Duration.ofSeconds(30)).build(), HttpResponse.BodyHandlers.discarding())
+                .whenComplete((response, failure) -> {
+                    inFlight.decrementAndGet();
+                    if (failure != null || response.statusCode() >= 400) {
+                        endpointStats.recordError(due);
+                    } else {
+                        endpointStats.recordSuccess(due);
+                    }
+                });
+    }
+}
@@ -0,0 +1,264 @@
+package org.hardboiled;
+
+import lombok.val;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Lets at most limit pieces of work run at once, queues up to queueCapacity more and turns away
+ * the rest. The limit follows the latency of the work as it finishes: while latency holds near
+ * its long-run average the limit creeps up, and when it climbs above that - work queueing inside
+ * for the pool or the lanes - the limit is cut in proportion. So it settles near the concurrency
+ * the work actually gets through, rather than a fixed guess.
+ */
+final class AdmissionLimiter {
+
+    /**
+     * How far above the long-run latency a sample can be before the limit comes down
+     */
+    private static final double TOLERANCE = 1.5;
+    /**
+     * Samples the long-run latency averages over
+     */
+    private static final int LONG_WINDOW = 500;
+    /**
+     * How much of each new limit is taken, so one slow sample doesn't halve it
+     */
+    private static final double SMOOTHING = 0.2;
+
+    public enum Reason {
+        /** the queue was full when the work arrived */
+        QUEUE_FULL,
+        /** the work waited in the queue longer than maxWait */
+        TIMEOUT
+    }
+
+    /**
+     * Work turned away, with how long to leave it before trying again
+     */
+    static final class Rejected extends RuntimeException {
+
+        private final Reason reason;
+        private final long retryAfterSeconds;
+
+        Rejected(final String name, final Reason reason, final long retryAfterSeconds) {
+            super(name + " work " + (reason == Reason.QUEUE_FULL ? "queue is full" : "waited too long to start"),
+                    null, false, false);
+            this.reason = reason;
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        Reason getReason() {
+            return reason;
+        }
+
+        long getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+    }
+
+    /**
+     * A place to run work, to be released once the work is done however it ended
+     */
+    final class Permit {
+
+        private final long admittedNanos;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(final long admittedNanos) {
+            this.admittedNanos = admittedNanos;
+        }
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                AdmissionLimiter.this.release(nanoClock.getAsLong() - admittedNanos);
+            }
+        }
+    }
+
+    private record Waiter(CompletableFuture<Permit> permit, long queuedNanos) {
+    }
+
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+    private final int queueCapacity;
+    private final long maxWaitNanos;
+    private final LongSupplier nanoClock;
+    private final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+    private final AtomicLong queueFull = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private double limit;
+    private double longLatency;
+    private int inFlight;
+
+    /**
+     * @param name what the work is, for messages
+     * @param maxWaitNanos how long work can wait in the queue before it's turned away
+     * @param nanoClock System::nanoTime, or a fake one for tests
+     */
+    AdmissionLimiter(final String name, final int initialLimit, final int minLimit, final int maxLimit,
+                     final int queueCapacity, final long maxWaitNanos, final LongSupplier nanoClock) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Need 1 <= min-limit <= max-limit for " + name);
+        }
+        this.name = name;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.queueCapacity = queueCapacity;
+        this.maxWaitNanos = maxWaitNanos;
+        this.nanoClock = nanoClock;
+        this.limit = Math.clamp(initialLimit, minLimit, maxLimit);
+    }
+
+    /**
+     * @return a permit - straight away if there's room, once work ahead finishes if it's queued, or
+     * failed with Rejected if the queue is full or it waits longer than maxWait. Cancelling it while
+     * it's queued gives up its place.
+     */
+    CompletableFuture<Permit> acquire() {
+        val now = nanoClock.getAsLong();
+        final Rejected rejected;
+        synchronized (this) {
+            if (inFlight < (int) limit && queue.isEmpty()) {
+                inFlight++;
+                return CompletableFuture.completedFuture(new Permit(now));
+            }
+            if (queue.size() < queueCapacity) {
+                val waiter = new Waiter(new CompletableFuture<>(), now);
+                queue.add(waiter);
+                waiter.permit().whenComplete((permit, failure) -> {
+                    if (waiter.permit().isCancelled()) {
+                        leave(waiter);
+                    }
+                });
+                return waiter.permit();
+            }
+            queueFull.incrementAndGet();
+            rejected = new Rejected(name, Reason.QUEUE_FULL, retryAfterSeconds());
+        }
+        return CompletableFuture.failedFuture(rejected);
+    }
+
+    /**
+     * Turn away the queued work that has waited longer than maxWait, called every so often as
+     * nothing else would notice while the work ahead of it is slow to finish
+     * @return how many were turned away
+     */
+    int expire() {
+        val expired = new ArrayList<Waiter>();
+        final long retryAfter;
+        synchronized (this) {
+            val now = nanoClock.getAsLong();
+            while (!queue.isEmpty() && now - queue.peek().queuedNanos() > maxWaitNanos) {
+                expired.add(queue.poll());
+            }
+            timedOut.addAndGet(expired.size());
+            retryAfter = retryAfterSeconds();
+        }
+        expired.forEach(waiter -> waiter.permit().completeExceptionally(new Rejected(name, Reason.TIMEOUT, retryAfter)));
+        return expired.size();
+    }
+
+    private synchronized void leave(final Waiter waiter) {
+        queue.remove(waiter);
+    }
+
+    private void release(final long latencyNanos) {
+        synchronized (this) {
+            inFlight--;
+            adapt(Math.max(1, latencyNanos));
+        }
+        admitQueued();
+    }
+
+    /**
+     * Let in as much of the queue as the limit now has room for
+     */
+    private void admitQueued() {
+        val admitted = new ArrayList<Waiter>();
+        val expired = new ArrayList<Waiter>();
+        final long retryAfter;
+        val now = nanoClock.getAsLong();
+        synchronized (this) {
+            while (!queue.isEmpty() && inFlight < (int) limit) {
+                val waiter = queue.poll();
+                if (now - waiter.queuedNanos() > maxWaitNanos) {
+                    expired.add(waiter);
+                } else {
+                    inFlight++;
+                    admitted.add(waiter);
+                }
+            }
+            timedOut.addAndGet(expired.size());
+            retryAfter = retryAfterSeconds();
+        }
+        // completed outside the lock as the work may carry on on this thread
+        expired.forEach(waiter -> waiter.permit().completeExceptionally(new Rejected(name, Reason.TIMEOUT, retryAfter)));
+        boolean unclaimed = false;
+        for (Waiter waiter : admitted) {
+            // cancelled since it was taken off the queue, so its place goes to the next in line
+            if (!waiter.permit().complete(new Permit(now))) {
+                synchronized (this) {
+                    inFlight--;
+                }
+                unclaimed = true;
+            }
+        }
+        if (unclaimed) {
+            admitQueued();
+        }
+    }
+
+    /**
+     * The gradient between the long-run latency and this sample scales the limit, with a little
+     * headroom on top so it can keep growing while latency holds
+     */
+    private void adapt(final long latencyNanos) {
+        if (longLatency == 0) {
+            longLatency = latencyNanos;
+        } else {
+            longLatency += (latencyNanos - longLatency) / LONG_WINDOW;
+            // after a long slow spell let the baseline come back down faster than the window would
+            if (longLatency > 2 * latencyNanos) {
+                longLatency *= 0.95;
+            }
+        }
+        val gradient = Math.clamp(TOLERANCE * longLatency / latencyNanos, 0.5, 1.0);
+        var newLimit = limit * gradient + Math.sqrt(limit);
+        // only grow when the limit is what's holding the work back
+        if (inFlight + 1 < limit / 2) {
+            newLimit = Math.min(newLimit, limit);
+        }
+        limit = Math.clamp(limit * (1 - SMOOTHING) + newLimit * SMOOTHING, minLimit, maxLimit);
+    }
+
+    /**
+     * Roughly how long until the queue ahead has been worked through, at least a second
+     */
+    private long retryAfterSeconds() {
+        val seconds = (queue.size() + 1) * longLatency / limit / 1e9;
+        return Math.max(1, (long) Math.ceil(seconds));
+    }
+
+    synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    synchronized int getQueued() {
+        return queue.size();
+    }
+
+    long getShed(final Reason reason) {
+        return reason == Reason.QUEUE_FULL ? queueFull.get() : timedOut.get();
+    }
+}
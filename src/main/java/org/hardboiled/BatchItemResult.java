@@ -0,0 +1,13 @@
+package org.hardboiled;
+
+/**
+ * The outcome of one deal message within a processBatch request, in the order it was sent.
+ */
+public record BatchItemResult(String dealReference, Long id, ProcessOutcome outcome) {
+
+    static BatchItemResult of(final DealTracker dealTracker, final ProcessOutcome outcome) {
+        return new BatchItemResult(dealTracker.dealReference,
+                outcome == ProcessOutcome.FAILED ? null : dealTracker.id,
+                outcome);
+    }
+}
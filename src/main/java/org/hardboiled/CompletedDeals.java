@@ -0,0 +1,295 @@
+package org.hardboiled;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The dealReferences of recently completed deals, so a duplicate or late message for one isn't
+ * taken as a new deal once the completed one has been deleted. The most recent completions are
+ * held exactly, and a rotating Bloom filter remembers them for longer in a fixed amount of memory.
+ * An exact match is dropped (or just flagged, if so configured). A Bloom filter match can be a
+ * false positive so it is only flagged. Both can survive a restart through a snapshot file.
+ */
+@Slf4j
+@ApplicationScoped
+public class CompletedDeals {
+
+    private static final int MAGIC = 0x44544353;
+    private static final int VERSION = 1;
+
+    public enum Match {
+        NONE,
+        /**
+         * in the Bloom filter but not the exact set - most likely completed, possibly a false positive
+         */
+        PROBABLE,
+        EXACT
+    }
+
+    public enum Action {
+        DROP,
+        FLAG
+    }
+
+    @Inject
+    DealStore dealStore;
+
+    @Inject
+    MeterRegistry meterRegistry;
+
+    @ConfigProperty(name = "dealtracker.completed.enabled", defaultValue = "true")
+    boolean enabled;
+
+    @ConfigProperty(name = "dealtracker.completed.action", defaultValue = "drop")
+    Action action;
+
+    @ConfigProperty(name = "dealtracker.completed.recent", defaultValue = "100000")
+    int recentSize;
+
+    @ConfigProperty(name = "dealtracker.completed.generations", defaultValue = "4")
+    int generationCount;
+
+    @ConfigProperty(name = "dealtracker.completed.rotation", defaultValue = "6h")
+    Duration rotation;
+
+    @ConfigProperty(name = "dealtracker.completed.expected-per-generation", defaultValue = "1000000")
+    long expectedPerGeneration;
+
+    @ConfigProperty(name = "dealtracker.completed.false-positive-rate", defaultValue = "0.01")
+    double falsePositiveRate;
+
+    @ConfigProperty(name = "dealtracker.completed.file", defaultValue = "dealtracker-completed.bin")
+    String file;
+
+    @ConfigProperty(name = "dealtracker.completed.snapshot-interval", defaultValue = "0")
+    Duration snapshotInterval;
+
+    private final Set<String> recent = ConcurrentHashMap.newKeySet();
+    private final ConcurrentLinkedQueue<String> recentOrder = new ConcurrentLinkedQueue<>();
+    private RotatingBloomFilter bloomFilter;
+    private volatile long lastRotationMillis;
+    private ScheduledExecutorService scheduler;
+    private Counter exactHits;
+    private Counter probableHits;
+    private Counter dropped;
+
+    void onStart(@Observes StartupEvent ev) {
+        if (!enabled) {
+            return;
+        }
+        open(System.currentTimeMillis());
+        dealStore.addListener(transition -> {
+            if (transition.removed() && transition.newStage() == Stage.APP_COMPLETE) {
+                add(transition.dealReference());
+            }
+        });
+        exactHits = Counter.builder(DealTrackerMetrics.PREFIX + "completed.hits").tag("match", "exact")
+                .description("Messages for deals that had already completed").register(meterRegistry);
+        probableHits = Counter.builder(DealTrackerMetrics.PREFIX + "completed.hits").tag("match", "probable")
+                .register(meterRegistry);
+        dropped = Counter.builder(DealTrackerMetrics.PREFIX + "completed.dropped").register(meterRegistry);
+        Gauge.builder(DealTrackerMetrics.PREFIX + "completed.recent", recent, Set::size)
+                .description("Completed dealReferences held exactly").register(meterRegistry);
+        Gauge.builder(DealTrackerMetrics.PREFIX + "completed.bloom.fill", this, completed -> completed.bloomFilter.fillRatio())
+                .description("Share of the current Bloom filter generation's bits set").register(meterRegistry);
+        scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("completed-deals").daemon()
+                .factory());
+        scheduler.scheduleWithFixedDelay(this::rotateIfDue, 1, 1, TimeUnit.MINUTES);
+        if (!snapshotInterval.isZero()) {
+            scheduler.scheduleWithFixedDelay(this::save, snapshotInterval.toMillis(), snapshotInterval.toMillis(),
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            save();
+        }
+    }
+
+    /**
+     * Size the filter and load the last snapshot, catching up on the rotations missed while down
+     */
+    void open(final long nowMillis) {
+        bloomFilter = new RotatingBloomFilter(generationCount, expectedPerGeneration, falsePositiveRate);
+        lastRotationMillis = nowMillis;
+        val path = Path.of(file);
+        if (!snapshotInterval.isZero() && Files.exists(path)) {
+            try {
+                load(path, nowMillis);
+            } catch (IOException | RuntimeException e) {
+                log.warn("Ignoring unreadable completed deals snapshot {}", path, e);
+                recent.clear();
+                recentOrder.clear();
+                bloomFilter = new RotatingBloomFilter(generationCount, expectedPerGeneration, falsePositiveRate);
+            }
+        }
+        log.info("Remembering completed deals in {} bits x {} generations rotated every {}, {} held exactly",
+                bloomFilter.getBits(), bloomFilter.getGenerationCount(), rotation, recent.size());
+    }
+
+    void add(final String dealReference) {
+        if (dealReference == null) {
+            return;
+        }
+        bloomFilter.add(dealReference);
+        if (recent.add(dealReference)) {
+            recentOrder.add(dealReference);
+            while (recent.size() > recentSize) {
+                val oldest = recentOrder.poll();
+                if (oldest == null) {
+                    break;
+                }
+                recent.remove(oldest);
+            }
+        }
+    }
+
+    public Match check(final String dealReference) {
+        if (dealReference == null || bloomFilter == null) {
+            return Match.NONE;
+        }
+        if (recent.contains(dealReference)) {
+            return Match.EXACT;
+        }
+        return bloomFilter.mightContain(dealReference) ? Match.PROBABLE : Match.NONE;
+    }
+
+    /**
+     * Called for a message that isn't for a live deal
+     * @return whether to drop it as being for a deal that has already completed
+     */
+    public boolean shouldDrop(final String dealReference) {
+        val match = check(dealReference);
+        if (match == Match.NONE) {
+            return false;
+        }
+        if (match == Match.EXACT) {
+            exactHits.increment();
+            if (action == Action.DROP) {
+                dropped.increment();
+                log.debug("  Dropping message for completed deal -> {}", dealReference);
+                return true;
+            }
+        } else {
+            probableHits.increment();
+        }
+        log.warn("  Message for a deal that has probably completed ({}) -> {}", match, dealReference);
+        return false;
+    }
+
+    /**
+     * Rotate once for each rotation period gone by since the last one
+     */
+    void rotateIfDue() {
+        rotateIfDue(System.currentTimeMillis());
+    }
+
+    void rotateIfDue(final long nowMillis) {
+        val due = (nowMillis - lastRotationMillis) / rotation.toMillis();
+        // past generations rotations everything has been forgotten, so there's no need to keep going
+        for (int i = 0; i < Math.min(due, generationCount); i++) {
+            bloomFilter.rotate();
+        }
+        lastRotationMillis += due * rotation.toMillis();
+    }
+
+    /**
+     * Write the exact set and the filter to the snapshot file, via a temporary file so a crash
+     * never leaves a partial one. File layout is [magic][version][last rotation][filter]
+     * [recent count][recent dealReferences, oldest first] then a CRC32C over everything before it.
+     * Nothing is saved or loaded with a zero snapshot interval.
+     */
+    synchronized void save() {
+        if (bloomFilter == null || snapshotInterval.isZero()) {
+            return;
+        }
+        val path = Path.of(file).toAbsolutePath();
+        val temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(path.getParent());
+            val crc = new CRC32C();
+            try (val out = new DataOutputStream(new CheckedOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temporary)), crc))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(lastRotationMillis);
+                bloomFilter.write(out);
+                val references = new ArrayList<>(recentOrder);
+                out.writeInt(references.size());
+                for (String dealReference : references) {
+                    out.writeUTF(dealReference);
+                }
+                out.flush();
+                out.writeInt((int) crc.getValue());
+            }
+            Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            log.error("Could not save completed deals to {}", path, e);
+        }
+    }
+
+    private void load(final Path path, final long nowMillis) throws IOException {
+        val crc = new CRC32C();
+        try (val checked = new CheckedInputStream(new BufferedInputStream(Files.newInputStream(path)), crc);
+             val in = new DataInputStream(checked)) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a completed deals snapshot");
+            }
+            val savedRotationMillis = in.readLong();
+            val filterLoaded = bloomFilter.read(in);
+            val count = in.readInt();
+            val references = new ArrayList<String>(count);
+            for (int i = 0; i < count; i++) {
+                references.add(in.readUTF());
+            }
+            val expected = (int) crc.getValue();
+            if (in.readInt() != expected) {
+                throw new IOException("Completed deals snapshot checksum doesn't match");
+            }
+            references.forEach(dealReference -> {
+                if (recent.add(dealReference)) {
+                    recentOrder.add(dealReference);
+                }
+            });
+            if (!filterLoaded) {
+                // sized differently, so all that's left to remember is what's held exactly
+                log.info("Completed deals filter settings changed, rebuilding it from the {} held exactly", count);
+                references.forEach(bloomFilter::add);
+            }
+            lastRotationMillis = savedRotationMillis;
+        }
+        rotateIfDue(nowMillis);
+    }
+}
@@ -0,0 +1,55 @@
+package org.hardboiled;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import lombok.val;
+
+import java.util.List;
+
+/**
+ * Keeps the deals in the dealtracker table through Hibernate. Expects to be called inside the
+ * manager's transaction. Rows carry a version, so of two transactions updating one deal at once the
+ * second to commit fails and is retried by the manager against the first's row.
+ */
+@ApplicationScoped
+public class DatabaseDealPersistence implements DealPersistence {
+
+    @Override
+    public boolean isTransactional() {
+        return true;
+    }
+
+    @Override
+    public void load(final DealStore dealStore) {
+        DealTracker.<DealTracker>streamAll().forEach(dealStore::put);
+    }
+
+    @Override
+    public void prefetch(final List<Long> ids) {
+        // pull them into the session with one query rather than one each
+        if (!ids.isEmpty()) {
+            DealTracker.list("id in ?1", ids);
+        }
+    }
+
+    @Override
+    public void insert(final DealTracker dealTracker) {
+        dealTracker.persist();
+    }
+
+    @Override
+    public DealTracker update(final DealTracker held, final DealTracker changes) {
+        val savedDeal = DealTracker.<DealTracker>findById(held.id);
+        if (savedDeal == null) {
+            return null;
+        }
+        if (DealPersistence.mergeTimes(savedDeal, changes)) {
+            savedDeal.persist();
+        }
+        return savedDeal;
+    }
+
+    @Override
+    public boolean delete(final Long id) {
+        return DealTracker.deleteById(id);
+    }
+}
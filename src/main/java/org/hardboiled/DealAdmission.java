@@ -0,0 +1,228 @@
+package org.hardboiled;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.smallrye.mutiny.Uni;
+import io.vertx.ext.web.RoutingContext;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.NameBinding;
+import jakarta.ws.rs.ServiceUnavailableException;
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.container.ResourceInfo;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.Response;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.resteasy.reactive.server.ServerRequestFilter;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admission control for the REST endpoints. Ingest (process, processBatch, delete) and queries
+ * each get their own AdmissionLimiter, so a burst of ingest queues and is shed on its own limit
+ * while the dashboards' queries still find room. Work turned away because its queue is full gets
+ * a 429, work that waited too long in the queue a 503, both with a Retry-After.
+ */
+@Slf4j
+@ApplicationScoped
+public class DealAdmission {
+
+    public enum Workload {
+        INGEST,
+        QUERY
+    }
+
+    /**
+     * On a blocking endpoint that holds its place for longer than one call, such as a stream: it's
+     * let in, as a query unless it says otherwise, before it's invoked, so a 429 or 503 can still be
+     * sent, and no thread is held while it's queued. Its permit is released when the response ends,
+     * or sooner with release(permit(..)).
+     */
+    @NameBinding
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.METHOD)
+    public @interface AdmittedFirst {
+        Workload value() default Workload.QUERY;
+    }
+
+    private static final String PERMIT = DealAdmission.class.getName() + ".permit";
+
+    @Inject
+    MeterRegistry meterRegistry;
+
+    @ConfigProperty(name = "dealtracker.admission.enabled", defaultValue = "true")
+    boolean enabled;
+
+    /**
+     * Ingest starts out allowed as many requests at once as there are database connections
+     */
+    @ConfigProperty(name = "dealtracker.admission.ingest.initial-limit", defaultValue = "16")
+    int ingestInitialLimit;
+
+    @ConfigProperty(name = "dealtracker.admission.ingest.min-limit", defaultValue = "2")
+    int ingestMinLimit;
+
+    @ConfigProperty(name = "dealtracker.admission.ingest.max-limit", defaultValue = "64")
+    int ingestMaxLimit;
+
+    @ConfigProperty(name = "dealtracker.admission.ingest.queue", defaultValue = "1000")
+    int ingestQueue;
+
+    @ConfigProperty(name = "dealtracker.admission.ingest.max-wait", defaultValue = "2s")
+    Duration ingestMaxWait;
+
+    @ConfigProperty(name = "dealtracker.admission.query.initial-limit", defaultValue = "32")
+    int queryInitialLimit;
+
+    @ConfigProperty(name = "dealtracker.admission.query.min-limit", defaultValue = "4")
+    int queryMinLimit;
+
+    @ConfigProperty(name = "dealtracker.admission.query.max-limit", defaultValue = "256")
+    int queryMaxLimit;
+
+    @ConfigProperty(name = "dealtracker.admission.query.queue", defaultValue = "500")
+    int queryQueue;
+
+    @ConfigProperty(name = "dealtracker.admission.query.max-wait", defaultValue = "1s")
+    Duration queryMaxWait;
+
+    private final Map<Workload, AdmissionLimiter> limiters = new EnumMap<>(Workload.class);
+    private ScheduledExecutorService expiry;
+
+    @PostConstruct
+    void start() {
+        if (!enabled) {
+            return;
+        }
+        limiters.put(Workload.INGEST, new AdmissionLimiter("ingest", ingestInitialLimit, ingestMinLimit,
+                ingestMaxLimit, ingestQueue, ingestMaxWait.toNanos(), System::nanoTime));
+        limiters.put(Workload.QUERY, new AdmissionLimiter("query", queryInitialLimit, queryMinLimit,
+                queryMaxLimit, queryQueue, queryMaxWait.toNanos(), System::nanoTime));
+        limiters.forEach((workload, limiter) -> register(workload.name().toLowerCase(Locale.ROOT), limiter));
+        // a quarter of the shorter wait, so nothing sits much past it
+        val sweepMillis = Math.max(10, Math.min(ingestMaxWait.toMillis(), queryMaxWait.toMillis()) / 4);
+        expiry = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("admission-expiry").daemon()
+                .factory());
+        expiry.scheduleWithFixedDelay(() -> limiters.values().forEach(AdmissionLimiter::expire),
+                sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void register(final String workload, final AdmissionLimiter limiter) {
+        Gauge.builder(DealTrackerMetrics.PREFIX + "admission.limit", limiter, AdmissionLimiter::getLimit)
+                .description("Requests allowed in progress at once, adapted to their latency")
+                .tag("workload", workload).register(meterRegistry);
+        Gauge.builder(DealTrackerMetrics.PREFIX + "admission.in.flight", limiter, AdmissionLimiter::getInFlight)
+                .tag("workload", workload).register(meterRegistry);
+        Gauge.builder(DealTrackerMetrics.PREFIX + "admission.queued", limiter, AdmissionLimiter::getQueued)
+                .description("Requests waiting to be let in")
+                .tag("workload", workload).register(meterRegistry);
+        for (AdmissionLimiter.Reason reason : AdmissionLimiter.Reason.values()) {
+            FunctionCounter.builder(DealTrackerMetrics.PREFIX + "admission.shed", limiter,
+                            shedLimiter -> shedLimiter.getShed(reason))
+                    .description("Requests turned away, because the queue was full or they waited too long")
+                    .tag("workload", workload)
+                    .tag("reason", reason.name().toLowerCase(Locale.ROOT).replace('_', '-'))
+                    .register(meterRegistry);
+        }
+    }
+
+    @PreDestroy
+    void stop() {
+        if (expiry != null) {
+            expiry.shutdownNow();
+        }
+    }
+
+    /**
+     * @return a permit for the workload, once it's let in - failed with the 429 or 503 to send
+     * back if it's turned away. Give it up with cancel if the work is no longer wanted.
+     */
+    public CompletableFuture<AdmissionLimiter.Permit> acquire(final Workload workload) {
+        if (!enabled) {
+            return CompletableFuture.completedFuture(null);
+        }
+        val permit = limiters.get(workload).acquire();
+        val admitted = permit.exceptionallyCompose(failure -> {
+            val cause = failure instanceof CompletionException ? failure.getCause() : failure;
+            return CompletableFuture.failedFuture(cause instanceof AdmissionLimiter.Rejected rejected
+                    ? toResponse(workload, rejected)
+                    : cause);
+        });
+        // cancelling the future handed out has to reach the limiter's, to take it off the queue
+        admitted.whenComplete((ignored, failure) -> {
+            if (admitted.isCancelled()) {
+                cancel(permit);
+            }
+        });
+        return admitted;
+    }
+
+    /**
+     * Give up on a permit from acquire: off the queue if it's still waiting, released if it has
+     * been let in
+     */
+    public static void cancel(final CompletableFuture<AdmissionLimiter.Permit> permit) {
+        if (!permit.cancel(false)) {
+            permit.thenAccept(DealAdmission::release);
+        }
+    }
+
+    /**
+     * @return the permit an AdmittedFirst endpoint was let in with
+     */
+    public static AdmissionLimiter.Permit permit(final RoutingContext routingContext) {
+        return routingContext.get(PERMIT);
+    }
+
+    @AdmittedFirst
+    @ServerRequestFilter
+    Uni<Response> admitFirst(final ResourceInfo resourceInfo, final RoutingContext routingContext) {
+        val admitted = acquire(resourceInfo.getResourceMethod().getAnnotation(AdmittedFirst.class).value());
+        // however the response ends, as the endpoint never runs if the client goes while it's queued
+        routingContext.addEndHandler(ended -> cancel(admitted));
+        return Uni.createFrom().completionStage(admitted)
+                .onItem().transform(permit -> {
+                    routingContext.put(PERMIT, permit);
+                    return (Response) null;
+                })
+                .onFailure(WebApplicationException.class)
+                .recoverWithItem(rejected -> ((WebApplicationException) rejected).getResponse());
+    }
+
+    /**
+     * Release a permit from acquire or an AdmittedFirst endpoint, which is null when admission is off
+     */
+    public static void release(final AdmissionLimiter.Permit permit) {
+        if (permit != null) {
+            permit.release();
+        }
+    }
+
+    private static WebApplicationException toResponse(final Workload workload, final AdmissionLimiter.Rejected rejected) {
+        log.debug("Shedding {} request: {}", workload, rejected.getMessage());
+        if (rejected.getReason() == AdmissionLimiter.Reason.TIMEOUT) {
+            return new ServiceUnavailableException(rejected.getMessage(), rejected.getRetryAfterSeconds());
+        }
+        return new WebApplicationException(rejected.getMessage(), Response.status(Response.Status.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, rejected.getRetryAfterSeconds())
+                .entity(rejected.getMessage())
+                .build());
+    }
+}
@@ -0,0 +1,310 @@
+package org.hardboiled;
+
+import io.quarkus.runtime.StartupEvent;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps completed deals after they leave the store, in compressed column segments under one
+ * directory per time partition of appCompleteTime. Completions are queued from the store listener
+ * and written by a single background thread once a partition has segment-rows of them or
+ * flush-interval has passed. Each segment's time range and chains are held in memory so a query
+ * only opens the segments that could match, and reads those in parallel.
+ */
+@Slf4j
+@ApplicationScoped
+public class DealArchive {
+
+    /**
+     * The order queries return deals in, earliest completed first
+     */
+    static final Comparator<DealTracker> COMPLETED_ORDER = Comparator.comparing(DealTracker::getAppCompleteTime)
+            .thenComparing(DealTracker::getId);
+    private static final DateTimeFormatter PARTITION_NAME = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmm");
+    /**
+     * Longest the writer waits for a completion before checking whether it's been stopped
+     */
+    private static final long POLL_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    @Inject
+    DealStore dealStore;
+
+    @ConfigProperty(name = "dealtracker.archive.enabled", defaultValue = "false")
+    boolean enabled;
+
+    @ConfigProperty(name = "dealtracker.archive.directory", defaultValue = "dealtracker-archive")
+    String directory;
+
+    @ConfigProperty(name = "dealtracker.archive.partition", defaultValue = "1d")
+    Duration partition;
+
+    @ConfigProperty(name = "dealtracker.archive.segment-rows", defaultValue = "50000")
+    int segmentRows;
+
+    @ConfigProperty(name = "dealtracker.archive.flush-interval", defaultValue = "1m")
+    Duration flushInterval;
+
+    @ConfigProperty(name = "dealtracker.archive.retain", defaultValue = "90d")
+    Duration retain;
+
+    @ConfigProperty(name = "dealtracker.archive.queue-capacity", defaultValue = "100000")
+    int queueCapacity;
+
+    /**
+     * 0 for one per processor
+     */
+    @ConfigProperty(name = "dealtracker.archive.query-threads", defaultValue = "0")
+    int queryThreads;
+
+    private final List<DealArchiveSegment.Index> segments = new CopyOnWriteArrayList<>();
+    private final Map<Long, List<DealTracker>> partitions = new HashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private BlockingQueue<DealTracker> pending;
+    private ExecutorService queryPool;
+    private Thread writer;
+    private volatile boolean running;
+
+    void onStart(@Observes StartupEvent ev) throws IOException {
+        if (enabled) {
+            open();
+            startWriter();
+        }
+    }
+
+    /**
+     * Start archiving the deals the store sees complete, once the archive is open
+     */
+    void startWriter() {
+        dealStore.addListener(this::onTransition);
+        running = true;
+        writer = Thread.ofPlatform().name("deal-archive").daemon().start(this::writeLoop);
+    }
+
+    /**
+     * Load the segment indexes already on disk and drop any partitions past retention
+     */
+    void open() throws IOException {
+        val root = Path.of(directory);
+        Files.createDirectories(root);
+        try (val files = Files.walk(root, 2)) {
+            for (Path path : files.filter(file -> file.toString().endsWith(DealArchiveSegment.SUFFIX)).toList()) {
+                segments.add(DealArchiveSegment.readIndex(path));
+                val name = path.getFileName().toString();
+                sequence.accumulateAndGet(Long.parseUnsignedLong(
+                        name.substring(0, name.length() - DealArchiveSegment.SUFFIX.length()), 16), Math::max);
+            }
+        }
+        pending = new ArrayBlockingQueue<>(queueCapacity);
+        queryPool = Executors.newFixedThreadPool(
+                queryThreads > 0 ? queryThreads : Runtime.getRuntime().availableProcessors(),
+                Thread.ofPlatform().name("archive-query-", 0).daemon().factory());
+        dropExpired();
+        log.info("Deal archive in {} has {} segments", directory, segments.size());
+    }
+
+    @PreDestroy
+    void stop() {
+        running = false;
+        if (writer != null) {
+            try {
+                writer.join(TimeUnit.SECONDS.toMillis(30));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (queryPool != null) {
+            queryPool.shutdownNow();
+        }
+    }
+
+    /**
+     * Queue a completed deal, waiting for room if the writer has fallen behind. Only committed
+     * completions get here, as the store holds back transitions until their transaction commits.
+     */
+    private void onTransition(final DealTransition transition) {
+        if (!transition.removed() || transition.newStage() != Stage.APP_COMPLETE) {
+            return;
+        }
+        val dealTracker = DealTracker.builder()
+                .id(transition.id())
+                .dealReference(transition.dealReference())
+                .chain(transition.chain())
+                .chainNumber(transition.chainNumber())
+                .arrivalTime(transition.arrivalTime())
+                .sentTime(transition.sentTime())
+                .vestCompleteTime(transition.vestCompleteTime())
+                .appCompleteTime(transition.appCompleteTime())
+                .build();
+        try {
+            pending.put(dealTracker);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted archiving {}", transition.dealReference());
+        }
+    }
+
+    private void writeLoop() {
+        long nextFlush = System.nanoTime() + flushInterval.toNanos();
+        while (running || !pending.isEmpty()) {
+            try {
+                // in short slices rather than up to the flush, so a stop is noticed straight away
+                val dealTracker = pending.poll(Math.clamp(nextFlush - System.nanoTime(), 0, POLL_SLICE_NANOS),
+                        TimeUnit.NANOSECONDS);
+                if (dealTracker != null) {
+                    append(dealTracker);
+                }
+                if (System.nanoTime() >= nextFlush) {
+                    flush();
+                    nextFlush = System.nanoTime() + flushInterval.toNanos();
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                log.error("Deal archive writer failed", e);
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Add a completed deal to its partition, writing the partition out once it has a full segment
+     */
+    synchronized void append(final DealTracker dealTracker) {
+        val partitionStart = partitionOf(DealRecordCodec.toMicros(dealTracker.appCompleteTime));
+        val rows = partitions.computeIfAbsent(partitionStart, key -> new ArrayList<>());
+        rows.add(dealTracker);
+        if (rows.size() >= segmentRows) {
+            partitions.remove(partitionStart);
+            writeSegment(partitionStart, rows);
+        }
+    }
+
+    /**
+     * Write out everything buffered so far
+     */
+    synchronized void flush() {
+        partitions.forEach(this::writeSegment);
+        partitions.clear();
+        dropExpired();
+    }
+
+    /**
+     * @param from completed at or after this, or from the start of the archive if null
+     * @param to completed before this, or up to now if null
+     * @param chain just this chain, or every chain if null
+     * @param dealReference just this deal, or every deal if null
+     * @param limit the most to return
+     * @return the archived deals, earliest completed first
+     */
+    public List<DealTracker> query(final LocalDateTime from, final LocalDateTime to, final String chain,
+                                   final String dealReference, final int limit) {
+        val fromMicros = from == null ? Long.MIN_VALUE + 1 : DealRecordCodec.toMicros(from);
+        val toMicros = to == null ? Long.MAX_VALUE : DealRecordCodec.toMicros(to);
+        val reads = new ArrayList<Callable<List<DealTracker>>>();
+        for (DealArchiveSegment.Index index : segments) {
+            if (index.overlaps(fromMicros, toMicros) && index.mayHold(chain)) {
+                reads.add(() -> DealArchiveSegment.read(index, fromMicros, toMicros, chain, dealReference, limit));
+            }
+        }
+        val deals = new ArrayList<DealTracker>();
+        try {
+            for (Future<List<DealTracker>> read : queryPool.invokeAll(reads)) {
+                deals.addAll(read.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted reading the deal archive", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io
+                    ? new UncheckedIOException("Could not read the deal archive", io)
+                    : new IllegalStateException("Could not read the deal archive", e.getCause());
+        }
+        deals.sort(COMPLETED_ORDER);
+        return deals.size() > limit ? List.copyOf(deals.subList(0, limit)) : deals;
+    }
+
+    /**
+     * @return how many segments there are, for tests and the startup log
+     */
+    int getSegmentCount() {
+        return segments.size();
+    }
+
+    private void writeSegment(final long partitionStart, final List<DealTracker> rows) {
+        if (rows.isEmpty()) {
+            return;
+        }
+        val path = partitionDirectory(partitionStart)
+                .resolve(String.format("%016x%s", sequence.incrementAndGet(), DealArchiveSegment.SUFFIX));
+        try {
+            segments.add(DealArchiveSegment.write(path, rows));
+            log.debug("Archived {} deals to {}", rows.size(), path);
+        } catch (IOException e) {
+            log.error("Could not archive {} deals to {}", rows.size(), path, e);
+        }
+    }
+
+    /**
+     * Delete partitions that ended more than retain ago
+     */
+    private void dropExpired() {
+        val cutoff = DealRecordCodec.toMicros(LocalDateTime.now().minus(retain));
+        val partitionMicros = partitionMicros();
+        for (DealArchiveSegment.Index index : segments) {
+            if (partitionOf(index.maxTime()) + partitionMicros > cutoff) {
+                continue;
+            }
+            segments.remove(index);
+            try {
+                Files.deleteIfExists(index.path());
+                try (val left = Files.list(index.path().getParent())) {
+                    if (left.findAny().isEmpty()) {
+                        Files.delete(index.path().getParent());
+                    }
+                }
+            } catch (IOException e) {
+                log.warn("Could not delete expired archive segment {}", index.path(), e);
+            }
+        }
+    }
+
+    private long partitionOf(final long micros) {
+        return Math.floorDiv(micros, partitionMicros()) * partitionMicros();
+    }
+
+    private long partitionMicros() {
+        return Math.max(1, TimeUnit.NANOSECONDS.toMicros(partition.toNanos()));
+    }
+
+    private Path partitionDirectory(final long partitionStart) {
+        return Path.of(directory, PARTITION_NAME.format(DealRecordCodec.fromMicros(partitionStart)));
+    }
+}
@@ -0,0 +1,370 @@
+package org.hardboiled;
+
+import lombok.val;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * One immutable file of completed deals, stored a column at a time with each column deflated.
+ * Rows are sorted by appCompleteTime, which is stored as the gap from the row before, and the
+ * other timestamps as the gap back from appCompleteTime, all as variable length integers -
+ * so most values take a byte or two before compression. Chains are replaced by their position
+ * in the segment's chain list.
+ * File layout is [magic][version][header length][header] then the columns, where the header holds
+ * the row count, the min and max appCompleteTime, the chains and each column's compressed length.
+ */
+final class DealArchiveSegment {
+
+    private static final int MAGIC = 0x44544152;
+    private static final int VERSION = 1;
+    static final String SUFFIX = ".arc";
+
+    private enum Column {
+        APP_COMPLETE,
+        CHAIN,
+        ID,
+        REFERENCE,
+        CHAIN_NUMBER,
+        ARRIVAL,
+        SENT,
+        VEST_COMPLETE
+    }
+
+    /**
+     * What a query needs to know to skip a segment without opening it
+     * @param minTime the earliest appCompleteTime, as DealRecordCodec micros
+     * @param maxTime the latest appCompleteTime, as DealRecordCodec micros
+     */
+    record Index(Path path, int rows, long minTime, long maxTime, List<String> chains, long[] columnOffsets,
+                 int[] columnLengths) {
+
+        boolean overlaps(final long from, final long to) {
+            return maxTime >= from && minTime < to;
+        }
+
+        boolean mayHold(final String chain) {
+            return chain == null || chains.contains(chain);
+        }
+    }
+
+    private DealArchiveSegment() {
+    }
+
+    /**
+     * Write the completed deals to a new segment, via a temporary file so a crash never leaves a partial one
+     */
+    static Index write(final Path path, final List<DealTracker> deals) throws IOException {
+        val rows = deals.stream().sorted(Comparator.comparing(DealTracker::getAppCompleteTime)).toList();
+        val chains = new ArrayList<>(new TreeSet<>(rows.stream()
+                .map(DealTracker::getChain).filter(Objects::nonNull).toList()));
+        Map<String, Integer> chainCodes = new HashMap<>();
+        for (int i = 0; i < chains.size(); i++) {
+            chainCodes.put(chains.get(i), i + 1);
+        }
+        val columns = new ColumnWriter[Column.values().length];
+        Arrays.setAll(columns, i -> new ColumnWriter());
+        val minTime = DealRecordCodec.toMicros(rows.getFirst().appCompleteTime);
+        val maxTime = DealRecordCodec.toMicros(rows.getLast().appCompleteTime);
+        long previousTime = minTime;
+        long previousId = 0;
+        for (DealTracker dealTracker : rows) {
+            val appComplete = DealRecordCodec.toMicros(dealTracker.appCompleteTime);
+            columns[Column.APP_COMPLETE.ordinal()].writeSigned(appComplete - previousTime);
+            previousTime = appComplete;
+            columns[Column.CHAIN.ordinal()].writeUnsigned(dealTracker.chain == null ? 0 : chainCodes.get(dealTracker.chain));
+            val id = Objects.requireNonNullElse(dealTracker.id, 0L);
+            columns[Column.ID.ordinal()].writeSigned(id - previousId);
+            previousId = id;
+            columns[Column.REFERENCE.ordinal()].writeString(dealTracker.dealReference);
+            columns[Column.CHAIN_NUMBER.ordinal()].writeSigned(dealTracker.chainNumber);
+            columns[Column.ARRIVAL.ordinal()].writeTimeBefore(appComplete, dealTracker.arrivalTime);
+            columns[Column.SENT.ordinal()].writeTimeBefore(appComplete, dealTracker.sentTime);
+            columns[Column.VEST_COMPLETE.ordinal()].writeTimeBefore(appComplete, dealTracker.vestCompleteTime);
+        }
+
+        val compressed = new byte[columns.length][];
+        for (int i = 0; i < columns.length; i++) {
+            compressed[i] = deflate(columns[i].toByteArray());
+        }
+        val header = new ByteArrayOutputStream();
+        try (val out = new DataOutputStream(header)) {
+            out.writeInt(rows.size());
+            out.writeLong(minTime);
+            out.writeLong(maxTime);
+            out.writeInt(chains.size());
+            for (String chain : chains) {
+                out.writeUTF(chain);
+            }
+            for (byte[] column : compressed) {
+                out.writeInt(column.length);
+            }
+        }
+
+        Files.createDirectories(path.getParent());
+        val temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (val channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            val start = ByteBuffer.allocate(3 * Integer.BYTES + header.size());
+            start.putInt(MAGIC).putInt(VERSION).putInt(header.size()).put(header.toByteArray()).flip();
+            writeFully(channel, start);
+            for (byte[] column : compressed) {
+                writeFully(channel, ByteBuffer.wrap(column));
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return readIndex(path);
+    }
+
+    static Index readIndex(final Path path) throws IOException {
+        try (val in = new DataInputStream(Files.newInputStream(path))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a deal archive segment: " + path);
+            }
+            val headerLength = in.readInt();
+            val rows = in.readInt();
+            val minTime = in.readLong();
+            val maxTime = in.readLong();
+            val chains = new ArrayList<String>();
+            val chainCount = in.readInt();
+            for (int i = 0; i < chainCount; i++) {
+                chains.add(in.readUTF());
+            }
+            val offsets = new long[Column.values().length];
+            val lengths = new int[Column.values().length];
+            long offset = 3L * Integer.BYTES + headerLength;
+            for (int i = 0; i < lengths.length; i++) {
+                lengths[i] = in.readInt();
+                offsets[i] = offset;
+                offset += lengths[i];
+            }
+            return new Index(path, rows, minTime, maxTime, List.copyOf(chains), offsets, lengths);
+        }
+    }
+
+    /**
+     * Read the first deals completed in [from, to) on the chain (any chain if null). The time and chain
+     * columns are decoded first and the rest only if some rows match.
+     */
+    static List<DealTracker> read(final Index index, final long from, final long to, final String chain,
+                                  final String dealReference, final int limit) throws IOException {
+        if (!index.mayHold(chain)) {
+            return List.of();
+        }
+        try (val channel = FileChannel.open(index.path(), StandardOpenOption.READ)) {
+            val times = new long[index.rows()];
+            val appCompleteColumn = column(channel, index, Column.APP_COMPLETE);
+            long time = index.minTime();
+            for (int row = 0; row < times.length; row++) {
+                time += appCompleteColumn.readSigned();
+                times[row] = time;
+            }
+            val chainCode = chain == null ? -1 : index.chains().indexOf(chain) + 1;
+            val chainColumn = column(channel, index, Column.CHAIN);
+            val chainCodes = new int[index.rows()];
+            val matches = new BitSet(index.rows());
+            for (int row = 0; row < times.length; row++) {
+                chainCodes[row] = (int) chainColumn.readUnsigned();
+                if (times[row] >= from && times[row] < to && (chainCode < 0 || chainCodes[row] == chainCode)) {
+                    matches.set(row);
+                }
+            }
+            if (matches.isEmpty()) {
+                return List.of();
+            }
+
+            val ids = column(channel, index, Column.ID);
+            val references = column(channel, index, Column.REFERENCE);
+            val chainNumbers = column(channel, index, Column.CHAIN_NUMBER);
+            val arrivals = column(channel, index, Column.ARRIVAL);
+            val sents = column(channel, index, Column.SENT);
+            val vestCompletes = column(channel, index, Column.VEST_COMPLETE);
+            val deals = new ArrayList<DealTracker>(matches.cardinality());
+            long id = 0;
+            for (int row = 0; row < times.length && deals.size() < limit; row++) {
+                id += ids.readSigned();
+                val reference = references.readString();
+                val chainNumber = (int) chainNumbers.readSigned();
+                val arrival = arrivals.readTimeBefore(times[row]);
+                val sent = sents.readTimeBefore(times[row]);
+                val vestComplete = vestCompletes.readTimeBefore(times[row]);
+                if (!matches.get(row) || (dealReference != null && !dealReference.equals(reference))) {
+                    continue;
+                }
+                val dealTracker = DealTracker.builder()
+                        .id(id)
+                        .dealReference(reference)
+                        .chain(chainCodes[row] == 0 ? null : index.chains().get(chainCodes[row] - 1))
+                        .chainNumber(chainNumber)
+                        .arrivalTime(DealRecordCodec.fromMicros(arrival))
+                        .sentTime(DealRecordCodec.fromMicros(sent))
+                        .vestCompleteTime(DealRecordCodec.fromMicros(vestComplete))
+                        .appCompleteTime(DealRecordCodec.fromMicros(times[row]))
+                        .build();
+                dealTracker.stage = Stage.APP_COMPLETE;
+                deals.add(dealTracker);
+            }
+            return deals;
+        }
+    }
+
+    private static ColumnReader column(final FileChannel channel, final Index index, final Column column)
+            throws IOException {
+        val buffer = ByteBuffer.allocate(index.columnLengths()[column.ordinal()]);
+        long position = index.columnOffsets()[column.ordinal()];
+        while (buffer.hasRemaining()) {
+            val read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Deal archive segment is truncated: " + index.path());
+            }
+            position += read;
+        }
+        return new ColumnReader(inflate(buffer.array()));
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static byte[] deflate(final byte[] raw) {
+        val deflater = new Deflater();
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            val out = new ByteArrayOutputStream(Math.max(64, raw.length / 4));
+            val chunk = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static ByteBuffer inflate(final byte[] compressed) throws IOException {
+        val inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            val out = new ByteArrayOutputStream(compressed.length * 4);
+            val chunk = new byte[8192];
+            while (!inflater.finished()) {
+                val inflated = inflater.inflate(chunk);
+                if (inflated == 0 && inflater.needsInput()) {
+                    throw new IOException("Deal archive column is truncated");
+                }
+                out.write(chunk, 0, inflated);
+            }
+            return ByteBuffer.wrap(out.toByteArray());
+        } catch (DataFormatException e) {
+            throw new IOException("Deal archive column is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Variable length integers, 7 bits a byte, with signed values zigzag encoded so small
+     * negative numbers stay small
+     */
+    private static final class ColumnWriter extends ByteArrayOutputStream {
+
+        void writeUnsigned(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void writeSigned(final long value) {
+            writeUnsigned((value << 1) ^ (value >> 63));
+        }
+
+        /**
+         * 0 for null, otherwise one more than the encoded gap back from the row's appCompleteTime
+         */
+        void writeTimeBefore(final long appComplete, final LocalDateTime time) {
+            if (time == null) {
+                writeUnsigned(0);
+                return;
+            }
+            val gap = appComplete - DealRecordCodec.toMicros(time);
+            writeUnsigned(((gap << 1) ^ (gap >> 63)) + 1);
+        }
+
+        void writeString(final String value) {
+            if (value == null) {
+                writeUnsigned(0);
+                return;
+            }
+            val bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeUnsigned(bytes.length + 1L);
+            write(bytes, 0, bytes.length);
+        }
+    }
+
+    private record ColumnReader(ByteBuffer buffer) {
+
+        long readUnsigned() {
+            long value = 0;
+            int shift = 0;
+            byte next;
+            do {
+                next = buffer.get();
+                value |= (long) (next & 0x7F) << shift;
+                shift += 7;
+            } while (next < 0);
+            return value;
+        }
+
+        long readSigned() {
+            val value = readUnsigned();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        long readTimeBefore(final long appComplete) {
+            val encoded = readUnsigned();
+            if (encoded == 0) {
+                return Long.MIN_VALUE;
+            }
+            val gap = ((encoded - 1) >>> 1) ^ -((encoded - 1) & 1);
+            return appComplete - gap;
+        }
+
+        String readString() {
+            val length = (int) readUnsigned();
+            if (length == 0) {
+                return null;
+            }
+            val bytes = new byte[length - 1];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package org.hardboiled;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.runtime.StartupEvent;
+import io.quarkus.runtime.configuration.MemorySize;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * What happened to each deal - every message processed, with the deal's stage before and after and
+ * the outcome, and every delete - kept in a ring of binary records rather than logged line by line.
+ * A background thread drains the ring to rolling files of at most file-size, keeping the last
+ * files of them, and indexes the records so a deal's recent history can be looked up.
+ */
+@Slf4j
+@ApplicationScoped
+public class DealAudit {
+
+    static final Comparator<DealAuditRing.Entry> OLDEST_FIRST = Comparator.comparing(DealAuditRing.Entry::recordedAt)
+            .thenComparingLong(DealAuditRing.Entry::sequence);
+    private static final String FILE_SUFFIX = ".audit";
+    private static final int DRAIN_BATCH = 4096;
+    private static final Duration MAX_BACKOFF = Duration.ofSeconds(30);
+
+    @Inject
+    MeterRegistry meterRegistry;
+
+    @ConfigProperty(name = "dealtracker.audit.enabled", defaultValue = "false")
+    boolean enabled;
+
+    @ConfigProperty(name = "dealtracker.audit.capacity", defaultValue = "65536")
+    int capacity;
+
+    @ConfigProperty(name = "dealtracker.audit.directory", defaultValue = "dealtracker-audit")
+    String directory;
+
+    @ConfigProperty(name = "dealtracker.audit.file-size", defaultValue = "64M")
+    MemorySize fileSize;
+
+    @ConfigProperty(name = "dealtracker.audit.files", defaultValue = "8")
+    int files;
+
+    @ConfigProperty(name = "dealtracker.audit.drain-interval", defaultValue = "100ms")
+    Duration drainInterval;
+
+    private volatile DealAuditRing ring;
+    private DataOutputStream out;
+    private long fileIndex;
+    private Thread drainer;
+    private volatile boolean running;
+
+    void onStart(@Observes StartupEvent ev) throws IOException {
+        if (!enabled) {
+            return;
+        }
+        open();
+        FunctionCounter.builder(DealTrackerMetrics.PREFIX + "audit.dropped", ring, DealAuditRing::getDropped)
+                .description("Audit records dropped because the ring was full").register(meterRegistry);
+        Gauge.builder(DealTrackerMetrics.PREFIX + "audit.backlog", ring, DealAuditRing::getBacklog)
+                .description("Audit records waiting to be written").register(meterRegistry);
+        running = true;
+        drainer = Thread.ofPlatform().name("deal-audit").daemon().start(this::drainLoop);
+    }
+
+    /**
+     * Create the ring and start a new file after any already there
+     */
+    void open() throws IOException {
+        val root = Path.of(directory);
+        Files.createDirectories(root);
+        fileIndex = existingFiles(root).stream().mapToLong(DealAudit::indexOf).max().orElse(-1) + 1;
+        ring = new DealAuditRing(capacity);
+        openFile();
+        log.info("Auditing deals to {} through a ring of {} records", directory, ring.getCapacity());
+    }
+
+    @PreDestroy
+    void stop() {
+        running = false;
+        if (drainer != null) {
+            // woken rather than interrupted, which would close the file under a write in progress
+            LockSupport.unpark(drainer);
+            try {
+                drainer.join(TimeUnit.SECONDS.toMillis(30));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        closeFile();
+    }
+
+    public boolean isEnabled() {
+        return ring != null;
+    }
+
+    /**
+     * @param deal the message processed, or the deal deleted
+     * @param oldStage the deal's stage before, null if it wasn't held
+     * @param newStage its stage after, null if it's no longer held without having completed
+     */
+    public void record(final DealTracker deal, final Stage oldStage, final Stage newStage, final ProcessOutcome outcome) {
+        val current = ring;
+        if (current != null) {
+            current.record(System.currentTimeMillis(), deal, oldStage, newStage, outcome);
+        }
+    }
+
+    /**
+     * @return the deal's most recent records, oldest first - only those still in the ring
+     */
+    public List<DealAuditRing.Entry> find(final String dealReference, final int limit) {
+        val current = ring;
+        return current == null ? List.of() : current.find(dealReference, limit);
+    }
+
+    private void drainLoop() {
+        long backoff = drainInterval.toNanos();
+        while (running) {
+            try {
+                if (drain() == 0) {
+                    LockSupport.parkNanos(drainInterval.toNanos());
+                }
+                backoff = drainInterval.toNanos();
+            } catch (IOException | RuntimeException e) {
+                // the records stay in the ring, and once it fills new ones are dropped and counted
+                log.error("Deal audit drainer failed, retrying in {} ms", TimeUnit.NANOSECONDS.toMillis(backoff), e);
+                LockSupport.parkNanos(backoff);
+                backoff = Math.min(backoff * 2, MAX_BACKOFF.toNanos());
+            }
+        }
+        try {
+            drain();
+        } catch (IOException | RuntimeException e) {
+            log.error("Could not write the last audit records", e);
+        }
+    }
+
+    /**
+     * Write out what's in the ring, starting a new file once this one is full, or after a write to
+     * it failed
+     * @return how many records were written
+     */
+    synchronized int drain() throws IOException {
+        if (out == null) {
+            openFile();
+        }
+        int drained = 0;
+        try {
+            int count;
+            do {
+                count = ring.drain(out, DRAIN_BATCH);
+                drained += count;
+                if (out.size() >= fileSize.asLongValue()) {
+                    closeFile();
+                    fileIndex++;
+                    openFile();
+                }
+            } while (count == DRAIN_BATCH);
+            if (drained > 0) {
+                out.flush();
+            }
+        } catch (IOException e) {
+            // the file may end in part of a record, so carry on in the next one
+            closeFile();
+            fileIndex++;
+            throw e;
+        }
+        return drained;
+    }
+
+    private void openFile() throws IOException {
+        val root = Path.of(directory);
+        out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(root.resolve(String.format("%016x%s", fileIndex, FILE_SUFFIX))), 1 << 16));
+        for (Path old : existingFiles(root)) {
+            if (indexOf(old) <= fileIndex - files) {
+                Files.deleteIfExists(old);
+            }
+        }
+    }
+
+    private synchronized void closeFile() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            log.warn("Could not close audit file", e);
+        }
+        out = null;
+    }
+
+    private static List<Path> existingFiles(final Path root) throws IOException {
+        try (val paths = Files.list(root)) {
+            return paths.filter(path -> path.getFileName().toString().endsWith(FILE_SUFFIX)).toList();
+        }
+    }
+
+    private static long indexOf(final Path path) {
+        val name = path.getFileName().toString();
+        return Long.parseUnsignedLong(name.substring(0, name.length() - FILE_SUFFIX.length()), 16);
+    }
+}
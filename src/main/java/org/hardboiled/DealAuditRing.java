@@ -0,0 +1,292 @@
+package org.hardboiled;
+
+import lombok.val;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed ring of audit records, one per message processed or deal deleted. Recording claims the
+ * next sequence with a CAS and fills that slot's preallocated fields in place - no lock and nothing
+ * allocated - and is dropped (and counted) rather than waiting if the drainer has fallen a whole
+ * ring behind. A single drainer takes the records in sequence order, writing them out and
+ * indexing them by dealReference: the index points at a deal's latest record, and each record at
+ * the deal's one before, so looking a deal up walks just its own records while they're still in
+ * the ring.
+ */
+final class DealAuditRing {
+
+    /**
+     * @param oldStage the deal's stage before, null if it wasn't held
+     * @param newStage the deal's stage after, null if it isn't held any more without having completed
+     */
+    public record Entry(long sequence,
+                        Instant recordedAt,
+                        Long id,
+                        String dealReference,
+                        String chain,
+                        Stage oldStage,
+                        Stage newStage,
+                        ProcessOutcome outcome,
+                        LocalDateTime arrivalTime,
+                        LocalDateTime sentTime,
+                        LocalDateTime vestCompleteTime,
+                        LocalDateTime appCompleteTime) {
+    }
+
+    private static final int RECORDED_AT = 0;
+    private static final int ID = 1;
+    private static final int CODES = 2;
+    private static final int ARRIVAL = 3;
+    private static final int SENT = 4;
+    private static final int VEST_COMPLETE = 5;
+    private static final int APP_COMPLETE = 6;
+    private static final int FIELDS = 7;
+    private static final long NO_ID = Long.MIN_VALUE;
+    private static final long WRITING = -1;
+    private static final Stage[] STAGES = Stage.values();
+    private static final ProcessOutcome[] OUTCOMES = ProcessOutcome.values();
+
+    private final int capacity;
+    private final int mask;
+    private final long[] fields;
+    private final String[] dealReferences;
+    private final String[] chains;
+    /**
+     * The sequence each slot holds, WRITING while it's being filled
+     */
+    private final AtomicLongArray published;
+    private final AtomicLong next = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private volatile long drained;
+
+    // written by the drainer only
+    private final long[] previous;
+    private final String[] indexed;
+    private final Map<String, Long> latest = new ConcurrentHashMap<>();
+
+    /**
+     * @param capacity how many records to hold, rounded up to a power of two
+     */
+    DealAuditRing(final int capacity) {
+        this.capacity = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        this.mask = this.capacity - 1;
+        this.fields = new long[this.capacity * FIELDS];
+        this.dealReferences = new String[this.capacity];
+        this.chains = new String[this.capacity];
+        this.published = new AtomicLongArray(this.capacity);
+        this.previous = new long[this.capacity];
+        this.indexed = new String[this.capacity];
+        for (int i = 0; i < this.capacity; i++) {
+            published.set(i, WRITING);
+        }
+    }
+
+    /**
+     * @return false if the ring was full, so nothing was recorded
+     */
+    boolean record(final long recordedAtMillis, final DealTracker deal, final Stage oldStage, final Stage newStage,
+                   final ProcessOutcome outcome) {
+        long sequence;
+        do {
+            sequence = next.get();
+            if (sequence - drained >= capacity) {
+                dropped.increment();
+                return false;
+            }
+        } while (!next.compareAndSet(sequence, sequence + 1));
+
+        val slot = (int) (sequence & mask);
+        // lookups still reading the slot's last record see this and give up on it
+        published.set(slot, WRITING);
+        VarHandle.storeStoreFence();
+        val base = slot * FIELDS;
+        fields[base + RECORDED_AT] = recordedAtMillis;
+        fields[base + ID] = deal.id == null ? NO_ID : deal.id;
+        fields[base + CODES] = code(oldStage) | code(newStage) << 8 | (long) (outcome.ordinal() + 1) << 16;
+        fields[base + ARRIVAL] = DealRecordCodec.toMicros(deal.arrivalTime);
+        fields[base + SENT] = DealRecordCodec.toMicros(deal.sentTime);
+        fields[base + VEST_COMPLETE] = DealRecordCodec.toMicros(deal.vestCompleteTime);
+        fields[base + APP_COMPLETE] = DealRecordCodec.toMicros(deal.appCompleteTime);
+        dealReferences[slot] = deal.dealReference;
+        chains[slot] = deal.chain;
+        published.setRelease(slot, sequence);
+        return true;
+    }
+
+    /**
+     * Take up to max records in sequence order, writing them all to out and then indexing each.
+     * If a write fails none of them are taken, so they're written again by the next drain. Only
+     * one thread may drain.
+     * @param out where to write the records, or null to just index them
+     * @return how many records were drained
+     */
+    int drain(final DataOutputStream out, final int max) throws IOException {
+        val from = drained;
+        long to = from;
+        // published records stay put until drained moves past them, so they can be read twice
+        while (to - from < max && published.getAcquire((int) (to & mask)) == to) {
+            if (out != null) {
+                write(out, to, (int) (to & mask));
+            }
+            to++;
+        }
+        for (long sequence = from; sequence < to; sequence++) {
+            val slot = (int) (sequence & mask);
+            val dealReference = dealReferences[slot];
+            // the record this slot held before has left the ring - unless the deal has had one since, forget it
+            val evicted = indexed[slot];
+            if (evicted != null) {
+                latest.remove(evicted, sequence - capacity);
+            }
+            indexed[slot] = dealReference;
+            if (dealReference != null) {
+                val before = latest.get(dealReference);
+                previous[slot] = before == null ? -1 : before;
+                latest.put(dealReference, sequence);
+            }
+        }
+        drained = to;
+        return (int) (to - from);
+    }
+
+    /**
+     * @return the deal's records still in the ring, oldest first - the latest limit of them
+     */
+    List<Entry> find(final String dealReference, final int limit) {
+        val found = new ArrayList<Entry>();
+        // those not drained yet aren't indexed, so look through them
+        val drainedTo = drained;
+        for (long sequence = next.get() - 1; sequence >= drainedTo && found.size() < limit; sequence--) {
+            val entry = read(sequence);
+            if (entry != null && dealReference.equals(entry.dealReference())) {
+                found.add(entry);
+            }
+        }
+        val head = latest.get(dealReference);
+        long sequence = head == null ? -1 : head;
+        while (sequence >= 0 && found.size() < limit) {
+            val slot = (int) (sequence & mask);
+            val entry = read(sequence);
+            val before = previous[slot];
+            VarHandle.loadLoadFence();
+            if (entry == null || published.get(slot) != sequence || !dealReference.equals(entry.dealReference())) {
+                break;
+            }
+            // drained since the look through those that weren't, so already found
+            if (sequence < drainedTo) {
+                found.add(entry);
+            }
+            sequence = before;
+        }
+        Collections.reverse(found);
+        return found;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return records waiting to be drained
+     */
+    long getBacklog() {
+        return next.get() - drained;
+    }
+
+    /**
+     * @return the record with this sequence, or null if it has been overwritten or isn't there yet
+     */
+    private Entry read(final long sequence) {
+        val slot = (int) (sequence & mask);
+        if (published.getAcquire(slot) != sequence) {
+            return null;
+        }
+        val base = slot * FIELDS;
+        val entry = entry(sequence, fields[base + RECORDED_AT], fields[base + ID], fields[base + CODES],
+                dealReferences[slot], chains[slot], fields[base + ARRIVAL], fields[base + SENT],
+                fields[base + VEST_COMPLETE], fields[base + APP_COMPLETE]);
+        // a record written over it while reading could have torn it
+        VarHandle.loadLoadFence();
+        return published.get(slot) == sequence ? entry : null;
+    }
+
+    /**
+     * Each record is [sequence][recorded at][id][stages and outcome][four times][dealReference][chain]
+     * with the times in micros and the strings written as by writeUTF, after a flag for null
+     */
+    private void write(final DataOutputStream out, final long sequence, final int slot) throws IOException {
+        val base = slot * FIELDS;
+        out.writeLong(sequence);
+        for (int field = 0; field < FIELDS; field++) {
+            out.writeLong(fields[base + field]);
+        }
+        writeString(out, dealReferences[slot]);
+        writeString(out, chains[slot]);
+    }
+
+    /**
+     * @return the next record written by drain
+     */
+    static Entry read(final DataInputStream in) throws IOException {
+        val sequence = in.readLong();
+        val values = new long[FIELDS];
+        for (int field = 0; field < FIELDS; field++) {
+            values[field] = in.readLong();
+        }
+        return entry(sequence, values[RECORDED_AT], values[ID], values[CODES], readString(in), readString(in),
+                values[ARRIVAL], values[SENT], values[VEST_COMPLETE], values[APP_COMPLETE]);
+    }
+
+    private static Entry entry(final long sequence, final long recordedAt, final long id, final long codes,
+                               final String dealReference, final String chain, final long arrival, final long sent,
+                               final long vestComplete, final long appComplete) {
+        return new Entry(sequence,
+                Instant.ofEpochMilli(recordedAt),
+                id == NO_ID ? null : id,
+                dealReference,
+                chain,
+                stage((int) (codes & 0xff)),
+                stage((int) (codes >>> 8 & 0xff)),
+                OUTCOMES[(int) (codes >>> 16 & 0xff) - 1],
+                DealRecordCodec.fromMicros(arrival),
+                DealRecordCodec.fromMicros(sent),
+                DealRecordCodec.fromMicros(vestComplete),
+                DealRecordCodec.fromMicros(appComplete));
+    }
+
+    private static long code(final Stage stage) {
+        return stage == null ? 0 : stage.ordinal() + 1;
+    }
+
+    private static Stage stage(final int code) {
+        return code == 0 ? null : STAGES[code - 1];
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,56 @@
+package org.hardboiled;
+
+import jakarta.ws.rs.BadRequestException;
+import lombok.val;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Position in the chain/chainNumber/dealReference ordering, handed to clients as an opaque string
+ * so the next page can carry on from the last deal they were given.
+ */
+public record DealCursor(String chain, int chainNumber, String dealReference) {
+
+    private static final String SEPARATOR = "\u0001";
+    private static final String NULL = "\u0000";
+
+    public static DealCursor after(final DealTracker dealTracker) {
+        return new DealCursor(dealTracker.chain, dealTracker.chainNumber, dealTracker.dealReference);
+    }
+
+    public String encode() {
+        val value = String.join(SEPARATOR, nullSafe(chain), Integer.toString(chainNumber), nullSafe(dealReference));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static DealCursor decode(final String cursor) {
+        try {
+            val parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8)
+                    .split(SEPARATOR, -1);
+            return new DealCursor(fromNullSafe(parts[0]), Integer.parseInt(parts[1]), fromNullSafe(parts[2]));
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            throw new BadRequestException("Invalid cursor " + cursor);
+        }
+    }
+
+    /**
+     * @return a deal that sorts after every deal at or before this position, for searching the store's ordered sets
+     */
+    DealTracker probe() {
+        return DealTracker.builder()
+                .id(Long.MAX_VALUE)
+                .chain(chain)
+                .chainNumber(chainNumber)
+                .dealReference(dealReference)
+                .build();
+    }
+
+    private static String nullSafe(final String value) {
+        return value == null ? NULL : value;
+    }
+
+    private static String fromNullSafe(final String value) {
+        return NULL.equals(value) ? null : value;
+    }
+}
@@ -0,0 +1,27 @@
+package org.hardboiled;
+
+import java.time.Duration;
+
+/**
+ * Somewhere the ingest pipeline can pull deal messages from, e.g. a broker consumer, a file
+ * being replayed or an in-memory queue for load testing.
+ */
+public interface DealEventSource extends AutoCloseable {
+
+    /**
+     * @param timeout how long to wait for a deal to arrive
+     * @return the next deal, or null if none arrived within the timeout
+     */
+    DealTracker poll(Duration timeout) throws Exception;
+
+    /**
+     * @return true once the source will never produce anything more
+     */
+    default boolean isFinished() {
+        return false;
+    }
+
+    @Override
+    default void close() throws Exception {
+    }
+}
@@ -0,0 +1,110 @@
+package org.hardboiled;
+
+import io.smallrye.mutiny.Uni;
+import io.smallrye.mutiny.infrastructure.Infrastructure;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Where the REST endpoints' blocking work runs. The endpoints themselves return straight away
+ * from the event loop and complete when the work does, so which threads carry the work can be
+ * picked by configuration rather than being fixed by each method's signature. Work is only handed
+ * to a thread once DealAdmission lets it in, so what's queued or shed never holds one.
+ */
+@Slf4j
+@ApplicationScoped
+public class DealExecution {
+
+    public enum Mode {
+        /**
+         * On the shared worker pool, so at most quarkus.thread-pool.max-threads requests are in
+         * progress and the rest queue for a worker
+         */
+        WORKER,
+        /**
+         * A virtual thread per request, so requests queue where the real limits are - the deal
+         * lanes and the database connection pool - rather than for a thread
+         */
+        VIRTUAL
+    }
+
+    @ConfigProperty(name = "dealtracker.rest.execution", defaultValue = "worker")
+    Mode mode;
+
+    @Inject
+    DealAdmission dealAdmission;
+
+    private ExecutorService virtualThreads;
+    private Executor executor;
+
+    @PostConstruct
+    void start() {
+        if (mode == Mode.VIRTUAL) {
+            virtualThreads = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("rest-", 0).factory());
+            executor = virtualThreads;
+        } else {
+            executor = Infrastructure.getDefaultWorkerPool();
+        }
+        log.info("REST endpoints run their work on {} threads", mode);
+    }
+
+    @PreDestroy
+    void stop() {
+        if (virtualThreads != null) {
+            virtualThreads.shutdown();
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return the work's result, computed on a thread for this mode once subscribed to and let in
+     * for the workload - or failed with the 429/503 to send back if it's turned away. Cancelled
+     * before the work starts, as when the client goes away while it's queued, the permit is given up.
+     */
+    public <T> Uni<T> call(final DealAdmission.Workload workload, final Supplier<T> work) {
+        return Uni.createFrom().deferred(() -> {
+            val admitted = dealAdmission.acquire(workload);
+            // whichever of the work and a cancel gets here first looks after the permit
+            val claimed = new AtomicBoolean();
+            return Uni.createFrom().completionStage(admitted)
+                    .emitOn(executor)
+                    .map(permit -> {
+                        if (!claimed.compareAndSet(false, true)) {
+                            throw new CancellationException();
+                        }
+                        try {
+                            return work.get();
+                        } finally {
+                            DealAdmission.release(permit);
+                        }
+                    })
+                    .onCancellation().invoke(() -> {
+                        if (claimed.compareAndSet(false, true)) {
+                            DealAdmission.cancel(admitted);
+                        }
+                    });
+        });
+    }
+
+    public Uni<Void> run(final DealAdmission.Workload workload, final Runnable work) {
+        return call(workload, () -> {
+            work.run();
+            return null;
+        });
+    }
+}
@@ -0,0 +1,153 @@
+package org.hardboiled;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Every change to a deal runs on the lane its dealReference hashes to. Each lane is a single
+ * thread, so messages for one deal are applied one at a time in the order they were handed over,
+ * while different deals are applied in parallel on the other lanes.
+ */
+@Slf4j
+@ApplicationScoped
+public class DealLanes {
+
+    private static final ThreadLocal<Integer> CURRENT_LANE = new ThreadLocal<>();
+
+    @Inject
+    DealTrackerManager dealTrackerManager;
+
+    /**
+     * How many lanes, 0 for one per available processor
+     */
+    @ConfigProperty(name = "dealtracker.lanes", defaultValue = "0")
+    int laneCount;
+
+    @ConfigProperty(name = "dealtracker.batch.chunk-size", defaultValue = "500")
+    int batchChunkSize;
+
+    private final List<ExecutorService> lanes = new ArrayList<>();
+
+    @PostConstruct
+    void start() {
+        val count = laneCount > 0 ? laneCount : Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i < count; i++) {
+            val lane = i;
+            lanes.add(Executors.newSingleThreadExecutor(Thread.ofPlatform().name("deal-lane-" + lane).daemon()
+                    .factory()));
+            lanes.get(lane).execute(() -> CURRENT_LANE.set(lane));
+        }
+        log.info("Started {} deal lanes", count);
+    }
+
+    @PreDestroy
+    void stop() throws InterruptedException {
+        lanes.forEach(ExecutorService::shutdown);
+        for (ExecutorService lane : lanes) {
+            lane.awaitTermination(30, TimeUnit.SECONDS);
+        }
+    }
+
+    public int getLaneCount() {
+        return lanes.size();
+    }
+
+    /**
+     * Run the work on the deal's lane after anything already queued for it, and wait for it to finish
+     */
+    public <T> T run(final String dealReference, final Supplier<T> work) {
+        return join(submit(laneOf(dealReference), work));
+    }
+
+    public ProcessOutcome process(final DealTracker dealTracker) {
+        return run(dealTracker.dealReference, () -> dealTrackerManager.processDealTracker(dealTracker));
+    }
+
+    /**
+     * Split each chunk of deals by lane and process the lanes' shares in parallel, each share with
+     * DealTrackerManager.processBatch. Only one chunk is held at a time.
+     * @return the outcome for each deal, in the order they were read
+     */
+    public List<BatchItemResult> processBatch(final Iterator<DealTracker> deals) {
+        val results = new ArrayList<BatchItemResult>();
+        val chunk = new ArrayList<DealTracker>(batchChunkSize);
+        while (deals.hasNext()) {
+            chunk.add(deals.next());
+            if (chunk.size() >= batchChunkSize || !deals.hasNext()) {
+                results.addAll(processChunk(chunk));
+                chunk.clear();
+            }
+        }
+        return results;
+    }
+
+    private List<BatchItemResult> processChunk(final List<DealTracker> chunk) {
+        val shares = new ArrayList<List<Integer>>(lanes.size());
+        for (int i = 0; i < lanes.size(); i++) {
+            shares.add(new ArrayList<>());
+        }
+        for (int i = 0; i < chunk.size(); i++) {
+            shares.get(laneOf(chunk.get(i).dealReference)).add(i);
+        }
+        val results = new BatchItemResult[chunk.size()];
+        val pending = new ArrayList<CompletableFuture<Void>>();
+        for (int lane = 0; lane < shares.size(); lane++) {
+            val share = shares.get(lane);
+            if (share.isEmpty()) {
+                continue;
+            }
+            pending.add(submit(lane, () -> {
+                val shareResults = dealTrackerManager.processBatch(share.stream().map(chunk::get).iterator());
+                for (int i = 0; i < share.size(); i++) {
+                    results[share.get(i)] = shareResults.get(i);
+                }
+                return null;
+            }));
+        }
+        pending.forEach(DealLanes::join);
+        return Arrays.asList(results);
+    }
+
+    int laneOf(final String dealReference) {
+        return Math.floorMod(Objects.hashCode(dealReference), lanes.size());
+    }
+
+    /**
+     * Work submitted from the lane it belongs on runs straight away, as queueing it behind
+     * the caller would never finish
+     */
+    private <T> CompletableFuture<T> submit(final int lane, final Supplier<T> work) {
+        if (Objects.equals(CURRENT_LANE.get(), lane)) {
+            return CompletableFuture.completedFuture(work.get());
+        }
+        return CompletableFuture.supplyAsync(work, lanes.get(lane));
+    }
+
+    private static <T> T join(final CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package org.hardboiled;
+
+import io.quarkus.runtime.StartupEvent;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import lombok.val;
+import org.HdrHistogram.Histogram;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How long deals spend between stages, per chain, over a rolling window. Each time is recorded
+ * as the deal reaches the later stage, so nothing is lost when a completed deal is deleted and
+ * nothing has to be rescanned to answer a query.
+ */
+@ApplicationScoped
+public class DealLatencies {
+
+    static final long HIGHEST_TRACKABLE_MILLIS = TimeUnit.DAYS.toMillis(31);
+
+    /**
+     * The first three are from one stage to the next, in Stage order
+     */
+    public enum Segment {
+        ARRIVAL_TO_SENT,
+        SENT_TO_VEST_COMPLETE,
+        VEST_COMPLETE_TO_APP_COMPLETE,
+        END_TO_END
+    }
+
+    /**
+     * @param windowSeconds how far back the percentiles go
+     * @param all every chain merged together
+     * @param chains each chain on its own
+     */
+    public record Report(long windowSeconds,
+                         Map<Segment, LatencyPercentiles> all,
+                         Map<String, Map<Segment, LatencyPercentiles>> chains) {
+    }
+
+    @Inject
+    DealStore dealStore;
+
+    @ConfigProperty(name = "dealtracker.latencies.window", defaultValue = "1h")
+    Duration window;
+
+    @ConfigProperty(name = "dealtracker.latencies.slices", defaultValue = "12")
+    int sliceCount;
+
+    @ConfigProperty(name = "dealtracker.latencies.precision", defaultValue = "2")
+    int precision;
+
+    private final Map<String, Map<Segment, DwellWindow>> byChain = new ConcurrentHashMap<>();
+    private final AtomicLong sweptSlice = new AtomicLong();
+
+    void onStart(@Observes StartupEvent ev) {
+        dealStore.addListener(transition -> record(transition, System.currentTimeMillis()));
+    }
+
+    /**
+     * Record the dwell time of every stage the deal has just moved past
+     */
+    void record(final DealTransition transition, final long nowMillis) {
+        val from = transition.oldStage() == null ? 0 : transition.oldStage().ordinal();
+        val to = transition.newStage().ordinal();
+        if (transition.oldStage() != null && to <= from) {
+            return;
+        }
+        val times = new LocalDateTime[] {transition.arrivalTime(), transition.sentTime(),
+                transition.vestCompleteTime(), transition.appCompleteTime()};
+        val chain = Objects.requireNonNullElse(transition.chain(), "");
+        for (int stage = from; stage < to; stage++) {
+            record(chain, Segment.values()[stage], times[stage], times[stage + 1], nowMillis);
+        }
+        if (transition.newStage() == Stage.APP_COMPLETE) {
+            record(chain, Segment.END_TO_END, times[0], times[3], nowMillis);
+        }
+    }
+
+    /**
+     * @param chain just this chain, or every chain if null
+     * @param requested how far back to go, or null for the whole window. Rounded up to whole slices.
+     */
+    public Report report(final String chain, final Duration requested) {
+        val sliceMillis = sliceMillis();
+        val slices = requested == null
+                ? sliceCount
+                : (int) Math.max(1, Math.min(sliceCount, (requested.toMillis() + sliceMillis - 1) / sliceMillis));
+        val now = System.currentTimeMillis();
+        Map<Segment, Histogram> all = new EnumMap<>(Segment.class);
+        Map<String, Map<Segment, LatencyPercentiles>> chains = new TreeMap<>();
+        byChain.forEach((dealChain, segments) -> {
+            if (chain != null && !chain.equals(dealChain)) {
+                return;
+            }
+            Map<Segment, LatencyPercentiles> percentiles = new EnumMap<>(Segment.class);
+            segments.forEach((segment, dwellWindow) -> {
+                val histogram = new Histogram(HIGHEST_TRACKABLE_MILLIS, precision);
+                dwellWindow.addTo(histogram, now, slices);
+                percentiles.put(segment, LatencyPercentiles.of(histogram));
+                all.computeIfAbsent(segment, key -> new Histogram(HIGHEST_TRACKABLE_MILLIS, precision)).add(histogram);
+            });
+            chains.put(dealChain, percentiles);
+        });
+        Map<Segment, LatencyPercentiles> allPercentiles = new EnumMap<>(Segment.class);
+        all.forEach((segment, histogram) -> allPercentiles.put(segment, LatencyPercentiles.of(histogram)));
+        return new Report(TimeUnit.MILLISECONDS.toSeconds(sliceMillis * slices), allPercentiles, chains);
+    }
+
+    private void record(final String chain, final Segment segment,
+                        final LocalDateTime start, final LocalDateTime end, final long nowMillis) {
+        if (start == null || end == null) {
+            return;
+        }
+        val millis = Duration.between(start, end).toMillis();
+        if (millis < 0) {
+            return;
+        }
+        val slice = nowMillis / sliceMillis();
+        val swept = sweptSlice.get();
+        if (slice > swept && sweptSlice.compareAndSet(swept, slice)) {
+            evictIdle(nowMillis);
+        }
+        byChain.compute(chain, (key, segments) -> {
+            Map<Segment, DwellWindow> held = segments == null ? new ConcurrentHashMap<>() : segments;
+            held.computeIfAbsent(segment, dwellSegment -> new DwellWindow(sliceMillis(), sliceCount,
+                    HIGHEST_TRACKABLE_MILLIS, precision)).record(millis, nowMillis);
+            return held;
+        });
+    }
+
+    /**
+     * Forget the chains with nothing left in the window, once each slice, so they don't pile up as chains come
+     * and go. Done under the same lock as recording to a chain, so nothing recorded meanwhile is lost.
+     */
+    private void evictIdle(final long nowMillis) {
+        for (String chain : byChain.keySet()) {
+            byChain.computeIfPresent(chain, (key, segments) -> segments.values().stream()
+                    .allMatch(dwellWindow -> dwellWindow.isEmpty(nowMillis)) ? null : segments);
+        }
+    }
+
+    private long sliceMillis() {
+        return Math.max(1, window.toMillis() / sliceCount);
+    }
+}
@@ -0,0 +1,344 @@
+package org.hardboiled;
+
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only log of deal changes split over numbered segment files.
+ * Each record is [length][type][payload][crc] where a PUT carries the whole deal and a REMOVE just
+ * the id, so replaying the records in order rebuilds the live deals.
+ * Appends from many threads are gathered up by a single writer thread and written (and fsynced,
+ * depending on the policy) together, so the cost of a force is shared by everything in the group.
+ */
+@Slf4j
+public class DealLog implements AutoCloseable {
+
+    public enum FsyncPolicy {
+        /** force every group before the appenders are released */
+        ALWAYS,
+        /** force at most once per interval - a crash can lose up to the interval's changes */
+        INTERVAL,
+        /** leave it to the operating system */
+        NEVER
+    }
+
+    /**
+     * Receives the records as the log is replayed
+     */
+    public interface Replay {
+
+        void put(DealTracker dealTracker);
+
+        void remove(Long id);
+    }
+
+    static final byte PUT = 1;
+    static final byte REMOVE = 2;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int HEADER = Integer.BYTES + 1;
+    private static final int TRAILER = Integer.BYTES;
+
+    private record PendingWrite(ByteBuffer record, CompletableFuture<Void> written) {
+    }
+
+    private final Path directory;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalNanos;
+    private final long segmentSize;
+    private final LinkedBlockingQueue<PendingWrite> pending = new LinkedBlockingQueue<>();
+
+    private final Object channelLock = new Object();
+    private FileChannel channel;
+    private long segmentIndex;
+    private long lastForce = System.nanoTime();
+    private boolean unforced;
+    private Thread writer;
+    private volatile boolean running;
+
+    public DealLog(final Path directory, final FsyncPolicy fsyncPolicy, final Duration fsyncInterval, final long segmentSize) {
+        this.directory = directory;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalNanos = fsyncInterval.toNanos();
+        this.segmentSize = segmentSize;
+    }
+
+    public long open(final Replay replay) throws IOException {
+        return open(replay, 0);
+    }
+
+    /**
+     * Replay the log from the given segment onwards, then open the last segment for appending.
+     * A torn record at the end of the log (from a crash mid-write) is cut off.
+     * @param replay receives every record in the order it was written
+     * @param fromSegment the first segment to replay, earlier ones are already covered by a snapshot
+     * @return how many records were replayed
+     */
+    public long open(final Replay replay, final long fromSegment) throws IOException {
+        Files.createDirectories(directory);
+        long records = 0;
+        val segments = segments();
+        for (long segment : segments) {
+            if (segment >= fromSegment) {
+                records += replaySegment(segment, replay);
+            }
+        }
+        segmentIndex = segments.isEmpty() ? fromSegment : Math.max(fromSegment, segments.getLast());
+        openSegment(segmentIndex);
+        running = true;
+        writer = Thread.ofPlatform().name("deal-log-writer").daemon().start(this::runWriter);
+        log.info("Opened deal log {} at segment {} after replaying {} records", directory, segmentIndex, records);
+        return records;
+    }
+
+    public void appendPut(final DealTracker dealTracker) {
+        val buffer = allocate(DealRecordCodec.size(dealTracker), PUT);
+        DealRecordCodec.write(buffer, dealTracker);
+        append(buffer);
+    }
+
+    public void appendRemove(final Long id) {
+        val buffer = allocate(Long.BYTES, REMOVE);
+        buffer.putLong(id);
+        append(buffer);
+    }
+
+    /**
+     * Finish the current segment and start appending to a new one, unless nothing has been
+     * written to the current one yet
+     * @return the segment that every later append will go to (or a segment after it)
+     */
+    public long roll() throws IOException {
+        synchronized (channelLock) {
+            if (!channel.isOpen() || channel.position() > 0) {
+                nextSegment();
+            }
+            return segmentIndex;
+        }
+    }
+
+    /**
+     * Delete the segments before the given one, once a snapshot has made them redundant
+     */
+    public void deleteSegmentsBefore(final long index) throws IOException {
+        for (long segment : segments()) {
+            if (segment < index) {
+                Files.deleteIfExists(segmentPath(segment));
+            }
+        }
+    }
+
+    /**
+     * @return the numbers of the segment files currently in the log, oldest first
+     */
+    List<Long> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.endsWith(SEGMENT_SUFFIX))
+                    .map(name -> Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    Path segmentPath(final long index) {
+        return directory.resolve(String.format("%020d%s", index, SEGMENT_SUFFIX));
+    }
+
+    private ByteBuffer allocate(final int payloadSize, final byte type) {
+        val buffer = ByteBuffer.allocate(HEADER + payloadSize + TRAILER);
+        buffer.putInt(1 + payloadSize);
+        buffer.put(type);
+        return buffer;
+    }
+
+    /**
+     * Queue the record for the writer and wait until it's been written (and forced, if the policy says so)
+     */
+    private void append(final ByteBuffer record) {
+        val crc = new CRC32C();
+        crc.update(record.array(), Integer.BYTES, record.position() - Integer.BYTES);
+        record.putInt((int) crc.getValue());
+        record.flip();
+        if (!running) {
+            throw new IllegalStateException("Deal log " + directory + " is not open");
+        }
+        val written = new CompletableFuture<Void>();
+        pending.add(new PendingWrite(record, written));
+        try {
+            written.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof IOException io ? new UncheckedIOException(io) : e;
+        }
+    }
+
+    private void runWriter() {
+        val group = new ArrayList<PendingWrite>();
+        while (running || !pending.isEmpty()) {
+            try {
+                val first = pending.poll(Math.max(fsyncIntervalNanos, TimeUnit.MILLISECONDS.toNanos(10)), TimeUnit.NANOSECONDS);
+                if (first != null) {
+                    group.add(first);
+                    pending.drainTo(group);
+                    writeGroup(group);
+                } else if (unforced && fsyncPolicy == FsyncPolicy.INTERVAL) {
+                    synchronized (channelLock) {
+                        force();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException e) {
+                log.error("Failed writing {} records to the deal log", group.size(), e);
+                group.forEach(write -> write.written().completeExceptionally(e));
+            }
+            group.clear();
+        }
+    }
+
+    private void writeGroup(final List<PendingWrite> group) throws IOException {
+        val buffers = group.stream().map(PendingWrite::record).toArray(ByteBuffer[]::new);
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        synchronized (channelLock) {
+            // rolled before the group rather than after, so a failure to roll fails it with nothing written
+            if (!channel.isOpen() || channel.position() >= segmentSize) {
+                nextSegment();
+            }
+            val start = channel.position();
+            try {
+                while (remaining > 0) {
+                    remaining -= channel.write(buffers);
+                }
+                unforced = true;
+                if (fsyncPolicy == FsyncPolicy.ALWAYS
+                        || (fsyncPolicy == FsyncPolicy.INTERVAL && System.nanoTime() - lastForce >= fsyncIntervalNanos)) {
+                    force();
+                }
+            } catch (IOException e) {
+                discardFrom(start, e);
+                throw e;
+            }
+        }
+        group.forEach(write -> write.written().complete(null));
+    }
+
+    /**
+     * Cut a group that failed part way - torn by a short write, or written but not forced - back off
+     * the segment. Otherwise replay would stop at the torn bytes and lose every later append, and
+     * records the appenders were told had failed could come back. If even that fails the segment is
+     * closed, so the next group starts a new one and replay only cuts this one short.
+     */
+    private void discardFrom(final long start, final IOException failure) {
+        try {
+            channel.truncate(start);
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+            try {
+                channel.close();
+            } catch (IOException closing) {
+                failure.addSuppressed(closing);
+            }
+        }
+    }
+
+    private void nextSegment() throws IOException {
+        if (channel.isOpen()) {
+            force();
+            channel.close();
+        }
+        openSegment(++segmentIndex);
+    }
+
+    private void force() throws IOException {
+        channel.force(false);
+        lastForce = System.nanoTime();
+        unforced = false;
+    }
+
+    private void openSegment(final long index) throws IOException {
+        channel = FileChannel.open(segmentPath(index),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * @return how many records were replayed from the segment
+     */
+    private long replaySegment(final long index, final Replay replay) throws IOException {
+        val path = segmentPath(index);
+        long records = 0;
+        try (val segment = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            val buffer = segment.map(FileChannel.MapMode.READ_ONLY, 0, segment.size());
+            while (buffer.hasRemaining()) {
+                val start = buffer.position();
+                if (buffer.remaining() < HEADER) {
+                    truncate(segment, path, start);
+                    break;
+                }
+                val length = buffer.getInt();
+                if (length < 1 || buffer.remaining() < length + TRAILER) {
+                    truncate(segment, path, start);
+                    break;
+                }
+                val crc = new CRC32C();
+                crc.update(buffer.slice(start + Integer.BYTES, length));
+                val type = buffer.get();
+                val payload = buffer.slice(buffer.position(), length - 1);
+                buffer.position(buffer.position() + length - 1);
+                if ((int) crc.getValue() != buffer.getInt()) {
+                    truncate(segment, path, start);
+                    break;
+                }
+                if (type == PUT) {
+                    replay.put(DealRecordCodec.read(payload));
+                } else if (type == REMOVE) {
+                    replay.remove(payload.getLong());
+                }
+                records++;
+            }
+        }
+        return records;
+    }
+
+    private void truncate(final FileChannel segment, final Path path, final long position) throws IOException {
+        log.warn("Discarding torn record at {} in {}", position, path);
+        segment.truncate(position);
+    }
+
+    /**
+     * Write out and force anything still queued then close the current segment
+     */
+    @Override
+    public void close() throws Exception {
+        if (!running) {
+            return;
+        }
+        running = false;
+        writer.join();
+        synchronized (channelLock) {
+            if (channel.isOpen()) {
+                force();
+                channel.close();
+            }
+        }
+    }
+}
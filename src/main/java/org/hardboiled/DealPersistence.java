@@ -0,0 +1,96 @@
+package org.hardboiled;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Where the DealTrackerManager makes deal changes durable. The store is always updated by the
+ * manager, this only has to record the change.
+ */
+public interface DealPersistence {
+
+    /**
+     * @return true if changes only become durable when the surrounding transaction commits,
+     * false if they are durable as soon as the call returns
+     */
+    boolean isTransactional();
+
+    /**
+     * Fill the store with every live deal, used on startup
+     */
+    void load(DealStore dealStore);
+
+    /**
+     * Run one change (the persistence call and the store update that follows it) as a unit
+     */
+    default <T> T change(final Supplier<T> change) {
+        return change.get();
+    }
+
+    /**
+     * Check a deal can be kept before it's taken on, so the caller can be told it's bad
+     * @throws IllegalArgumentException if it can't be
+     */
+    default void check(final DealTracker dealTracker) {
+    }
+
+    /**
+     * A hint that the deals with these ids are about to be updated
+     */
+    default void prefetch(final List<Long> ids) {
+    }
+
+    /**
+     * Record a new deal, assigning its id
+     */
+    void insert(DealTracker dealTracker);
+
+    /**
+     * Merge the timestamps from changes into the deal, as mergeTimes does
+     * @param held the store's copy of the deal the changes are for, which the caller swaps for what's
+     * returned unless another writer has replaced it first - when it calls again with the new copy
+     * @return the updated deal, or null if there is no deal with that id
+     */
+    DealTracker update(DealTracker held, DealTracker changes);
+
+    /**
+     * @return true if there was a deal with that id to delete
+     */
+    boolean delete(Long id);
+
+    /**
+     * Copy over the timestamps the source has set that are later than the target's, or that the
+     * target doesn't have yet. A time only ever goes from unset to set or forward, so a late or
+     * out-of-order message can't move a deal back a stage, and merging two writers' changes gives
+     * the same deal whichever goes first.
+     * @return true if any of the target's times changed
+     */
+    static boolean mergeTimes(final DealTracker target, final DealTracker source) {
+        boolean changed = false;
+        if (isLater(source.getArrivalTime(), target.getArrivalTime())) {
+            target.setArrivalTime(source.getArrivalTime());
+            changed = true;
+        }
+        if (isLater(source.getSentTime(), target.getSentTime())) {
+            target.setSentTime(source.getSentTime());
+            changed = true;
+        }
+        if (isLater(source.getVestCompleteTime(), target.getVestCompleteTime())) {
+            target.setVestCompleteTime(source.getVestCompleteTime());
+            changed = true;
+        }
+        if (isLater(source.getAppCompleteTime(), target.getAppCompleteTime())) {
+            target.setAppCompleteTime(source.getAppCompleteTime());
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * @return true if time is set and either current isn't or time is after it
+     */
+    static boolean isLater(final LocalDateTime time, final LocalDateTime current) {
+        return time != null && (current == null || time.isAfter(current));
+    }
+}
@@ -0,0 +1,89 @@
+package org.hardboiled;
+
+import lombok.Builder;
+
+import java.time.LocalDateTime;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * A filter over the live deals, for /dealtracker/query. Every condition given has to hold. The
+ * chainNumber range includes both ends, time ranges include from but not to, and a deal without
+ * the time never matches a range on it.
+ * @param chain just this chain, or null for any
+ * @param stages the stages to include, all of them if null or empty
+ * @param sort the order to return the deals in, chain order if null
+ * @param limit the most deals to return
+ */
+@Builder
+public record DealQuery(String chain,
+                        Integer chainNumberFrom,
+                        Integer chainNumberTo,
+                        Set<Stage> stages,
+                        TimeRange arrived,
+                        TimeRange sent,
+                        TimeRange vestCompleted,
+                        Sort sort,
+                        int limit) {
+
+    public enum Sort {
+        /** chain, chainNumber then dealReference */
+        CHAIN(DealStore.CHAIN_ORDER),
+        /** earliest arrival first */
+        ARRIVAL(DealStore.ARRIVAL_ORDER),
+        /** latest arrival first */
+        ARRIVAL_DESC(DealStore.ARRIVAL_ORDER.reversed());
+
+        private final Comparator<DealTracker> order;
+
+        Sort(final Comparator<DealTracker> order) {
+            this.order = order;
+        }
+
+        public Comparator<DealTracker> order() {
+            return order;
+        }
+    }
+
+    /**
+     * @param from at or after this, unbounded if null
+     * @param to before this, unbounded if null
+     */
+    public record TimeRange(LocalDateTime from, LocalDateTime to) {
+
+        public static final TimeRange ANY = new TimeRange(null, null);
+
+        public boolean isAny() {
+            return from == null && to == null;
+        }
+
+        boolean contains(final LocalDateTime time) {
+            if (isAny()) {
+                return true;
+            }
+            return time != null && (from == null || !time.isBefore(from)) && (to == null || time.isBefore(to));
+        }
+    }
+
+    public DealQuery {
+        stages = stages == null || stages.isEmpty() ? EnumSet.allOf(Stage.class) : EnumSet.copyOf(stages);
+        arrived = arrived == null ? TimeRange.ANY : arrived;
+        sent = sent == null ? TimeRange.ANY : sent;
+        vestCompleted = vestCompleted == null ? TimeRange.ANY : vestCompleted;
+        sort = sort == null ? Sort.CHAIN : sort;
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be at least 1");
+        }
+    }
+
+    boolean matches(final DealTracker dealTracker) {
+        return (chain == null || chain.equals(dealTracker.chain))
+                && (chainNumberFrom == null || dealTracker.chainNumber >= chainNumberFrom)
+                && (chainNumberTo == null || dealTracker.chainNumber <= chainNumberTo)
+                && stages.contains(dealTracker.stage)
+                && arrived.contains(dealTracker.arrivalTime)
+                && sent.contains(dealTracker.sentTime)
+                && vestCompleted.contains(dealTracker.vestCompleteTime);
+    }
+}
@@ -0,0 +1,130 @@
+package org.hardboiled;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import lombok.val;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * The JSON of whole-list query results, kept until the store's version moves on. However many
+ * dashboards poll, each result is built and serialised at most once per version, and a poll that
+ * sends back the ETag it already has costs one version comparison.
+ */
+@ApplicationScoped
+public class DealQueryCache {
+
+    /**
+     * Tells this run's ETags apart from the last one's, whose versions started from the same place
+     */
+    private static final String EPOCH = Long.toString(System.currentTimeMillis(), 36);
+
+    /**
+     * @param version the store version the json was built at
+     * @param json the serialised result
+     */
+    public record Entry(long version, String etag, byte[] json) {
+    }
+
+    @Inject
+    DealStore dealStore;
+
+    @Inject
+    ObjectMapper objectMapper;
+
+    @Inject
+    MeterRegistry meterRegistry;
+
+    @ConfigProperty(name = "dealtracker.query-cache.enabled", defaultValue = "true")
+    boolean enabled;
+
+    private final Map<String, Slot> slots = new ConcurrentHashMap<>();
+
+    /**
+     * One query's latest result. Whoever finds it out of date rebuilds it while anyone else asking
+     * for the same version waits for that rather than building their own.
+     */
+    private final class Slot {
+
+        private final Counter hits;
+        private final Counter builds;
+        /**
+         * Not synchronized, which would pin a virtual thread to its carrier while the result is built
+         */
+        private final ReentrantLock lock = new ReentrantLock();
+        private volatile Entry entry;
+
+        Slot(final String query) {
+            hits = Counter.builder(DealTrackerMetrics.PREFIX + "query.cache")
+                    .tag("query", query).tag("result", "hit").register(meterRegistry);
+            builds = Counter.builder(DealTrackerMetrics.PREFIX + "query.cache")
+                    .tag("query", query).tag("result", "build").register(meterRegistry);
+        }
+
+        Entry get(final Supplier<?> result) {
+            val current = entry;
+            val version = dealStore.version();
+            if (current != null && current.version() == version) {
+                hits.increment();
+                return current;
+            }
+            lock.lock();
+            try {
+                val latest = entry;
+                val versionNow = dealStore.version();
+                if (latest != null && latest.version() == versionNow) {
+                    hits.increment();
+                    return latest;
+                }
+                // read the version before building, so a change made while building forces another build
+                val built = new Entry(versionNow, etag(versionNow), serialise(result.get()));
+                builds.increment();
+                entry = built;
+                return built;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the ETag the result of any cached query has right now, without building anything
+     */
+    public String currentEtag() {
+        return etag(dealStore.version());
+    }
+
+    /**
+     * @param query names the result, e.g. waiting
+     * @param result builds the result when the cached one is out of date
+     * @return the result as JSON, built at the current store version or later
+     */
+    public Entry get(final String query, final Supplier<?> result) {
+        return slots.computeIfAbsent(query, Slot::new).get(result);
+    }
+
+    private static String etag(final long version) {
+        return EPOCH + "-" + version;
+    }
+
+    private byte[] serialise(final Object result) {
+        try {
+            return objectMapper.writeValueAsBytes(result);
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package org.hardboiled;
+
+import lombok.val;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * Compact binary form of a deal used by the deal log and snapshots. Timestamps are held as
+ * microseconds since the epoch (the precision H2 keeps), with Long.MIN_VALUE for "not set".
+ */
+final class DealRecordCodec {
+
+    private static final long NOT_SET = Long.MIN_VALUE;
+    private static final long MICROS_PER_SECOND = 1_000_000L;
+
+    private DealRecordCodec() {
+    }
+
+    static int size(final DealTracker dealTracker) {
+        return Long.BYTES
+                + stringSize(dealTracker.dealReference)
+                + stringSize(dealTracker.chain)
+                + Integer.BYTES
+                + 4 * Long.BYTES;
+    }
+
+    static void write(final ByteBuffer buffer, final DealTracker dealTracker) {
+        buffer.putLong(dealTracker.id);
+        putString(buffer, dealTracker.dealReference);
+        putString(buffer, dealTracker.chain);
+        buffer.putInt(dealTracker.chainNumber);
+        buffer.putLong(toMicros(dealTracker.arrivalTime));
+        buffer.putLong(toMicros(dealTracker.sentTime));
+        buffer.putLong(toMicros(dealTracker.vestCompleteTime));
+        buffer.putLong(toMicros(dealTracker.appCompleteTime));
+    }
+
+    static DealTracker read(final ByteBuffer buffer) {
+        return DealTracker.builder()
+                .id(buffer.getLong())
+                .dealReference(getString(buffer))
+                .chain(getString(buffer))
+                .chainNumber(buffer.getInt())
+                .arrivalTime(fromMicros(buffer.getLong()))
+                .sentTime(fromMicros(buffer.getLong()))
+                .vestCompleteTime(fromMicros(buffer.getLong()))
+                .appCompleteTime(fromMicros(buffer.getLong()))
+                .build();
+    }
+
+    static long toMicros(final LocalDateTime time) {
+        if (time == null) {
+            return NOT_SET;
+        }
+        return time.toEpochSecond(ZoneOffset.UTC) * MICROS_PER_SECOND + time.getNano() / 1_000;
+    }
+
+    static LocalDateTime fromMicros(final long micros) {
+        if (micros == NOT_SET) {
+            return null;
+        }
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(micros, MICROS_PER_SECOND),
+                (int) Math.floorMod(micros, MICROS_PER_SECOND) * 1_000, ZoneOffset.UTC);
+    }
+
+    private static int stringSize(final String value) {
+        return Integer.BYTES + (value == null ? 0 : value.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    private static void putString(final ByteBuffer buffer, final String value) {
+        if (value == null) {
+            buffer.putInt(-1);
+            return;
+        }
+        val bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(final ByteBuffer buffer) {
+        val length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        val bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
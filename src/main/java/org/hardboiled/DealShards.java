@@ -0,0 +1,454 @@
+package org.hardboiled;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.quarkus.runtime.Startup;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.Response;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+
+/**
+ * Splits the deals across several instances, each owning the deals whose chain (or dealReference)
+ * hashes to it on a ShardRing over dealtracker.shard.members. Messages for deals owned elsewhere are
+ * forwarded to the owner, and the list and summary queries ask every member for its share and merge
+ * them. Requests one member sends another carry the FORWARDED header, which tells the receiver to
+ * answer from its own deals rather than route or gather again. Callers can send it too, to ask one
+ * member for just its own share - the only way to get the feed and latencies, which can't be merged.
+ */
+@Slf4j
+@Startup
+@ApplicationScoped
+public class DealShards {
+
+    static final String FORWARDED = "X-Dealtracker-Forwarded";
+    private static final TypeReference<List<DealTracker>> DEALS = new TypeReference<>() {
+    };
+    private static final TypeReference<List<BatchItemResult>> BATCH_RESULTS = new TypeReference<>() {
+    };
+
+    public enum ShardKey {
+        CHAIN,
+        DEAL_REFERENCE
+    }
+
+    @Inject
+    DealLanes dealLanes;
+
+    @Inject
+    ObjectMapper objectMapper;
+
+    /**
+     * Base URL of every instance, this one included - empty for a single unsharded instance
+     */
+    @ConfigProperty(name = "dealtracker.shard.members")
+    Optional<List<String>> members;
+
+    /**
+     * This instance's entry in dealtracker.shard.members
+     */
+    @ConfigProperty(name = "dealtracker.shard.self")
+    Optional<String> self;
+
+    @ConfigProperty(name = "dealtracker.shard.key", defaultValue = "chain")
+    ShardKey shardKey;
+
+    @ConfigProperty(name = "dealtracker.shard.points-per-member", defaultValue = "128")
+    int pointsPerMember;
+
+    @ConfigProperty(name = "dealtracker.shard.timeout", defaultValue = "10s")
+    Duration timeout;
+
+    @ConfigProperty(name = "dealtracker.batch.chunk-size", defaultValue = "500")
+    int batchChunkSize;
+
+    private ShardRing ring;
+    private String selfUrl;
+    private HttpClient client;
+
+    @PostConstruct
+    void start() {
+        val urls = members.orElse(List.of()).stream().map(DealShards::trimSlash).distinct().toList();
+        if (urls.isEmpty()) {
+            return;
+        }
+        selfUrl = self.map(DealShards::trimSlash).orElseThrow(() ->
+                new IllegalStateException("dealtracker.shard.self must be set when dealtracker.shard.members is"));
+        if (!urls.contains(selfUrl)) {
+            throw new IllegalStateException("dealtracker.shard.self " + selfUrl + " is not one of the shard members "
+                    + urls);
+        }
+        ring = new ShardRing(urls, pointsPerMember);
+        client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(timeout)
+                .build();
+        log.info("Sharding deals by {} across {} as {}", shardKey, urls, selfUrl);
+    }
+
+    public boolean isEnabled() {
+        return ring != null;
+    }
+
+    /**
+     * @return whether a request should be routed or gathered here, rather than answered from this
+     * instance's own deals
+     */
+    public boolean isCoordinating(final String forwarded) {
+        return isEnabled() && forwarded == null;
+    }
+
+    public String ownerOf(final DealTracker dealTracker) {
+        return ring.ownerOf(shardKey == ShardKey.CHAIN ? dealTracker.chain : dealTracker.dealReference);
+    }
+
+    /**
+     * @return the deal's owner, when the shard key is the dealReference so it can be worked out
+     */
+    public Optional<String> ownerOfReference(final String dealReference) {
+        return shardKey == ShardKey.DEAL_REFERENCE ? Optional.of(ring.ownerOf(dealReference)) : Optional.empty();
+    }
+
+    public boolean isSelf(final String member) {
+        return selfUrl.equals(member);
+    }
+
+    public List<String> getOthers() {
+        return ring.getMembers().stream().filter(member -> !isSelf(member)).toList();
+    }
+
+    public void forwardProcess(final String member, final DealTracker dealTracker) {
+        join(send(member, request(member, "/dealtracker/process")
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(json(dealTracker)))));
+    }
+
+    public void forwardDelete(final String member, final String dealReference) {
+        join(send(member, request(member, "/dealtracker/delete/" + encode(dealReference)).DELETE()));
+    }
+
+    /**
+     * @return the deal from the first other member that has it
+     */
+    public Optional<DealTracker> findElsewhere(final String dealReference) {
+        for (String member : getOthers()) {
+            val found = find(member, dealReference);
+            if (found.isPresent()) {
+                return found;
+            }
+        }
+        return Optional.empty();
+    }
+
+    public Optional<DealTracker> find(final String member, final String dealReference) {
+        val response = join(send(member, request(member, "/dealtracker/get/" + encode(dealReference)).GET()));
+        return response.statusCode() == 200 && response.body().length > 0
+                ? Optional.ofNullable(read(response.body(), DealTracker.class))
+                : Optional.empty();
+    }
+
+    /**
+     * Process each chunk of deals by owner, the local share on the deal lanes and the others'
+     * shares sent to them as newline delimited JSON at the same time. A member that fails fails
+     * just its own share.
+     * @return the outcome for each deal, in the order they were read
+     */
+    public List<BatchItemResult> processBatch(final Iterator<DealTracker> deals) {
+        val results = new ArrayList<BatchItemResult>();
+        val chunk = new ArrayList<DealTracker>(batchChunkSize);
+        while (deals.hasNext()) {
+            chunk.add(deals.next());
+            if (chunk.size() >= batchChunkSize || !deals.hasNext()) {
+                results.addAll(processChunk(chunk));
+                chunk.clear();
+            }
+        }
+        return results;
+    }
+
+    private List<BatchItemResult> processChunk(final List<DealTracker> chunk) {
+        Map<String, List<Integer>> shares = new LinkedHashMap<>();
+        for (int i = 0; i < chunk.size(); i++) {
+            shares.computeIfAbsent(ownerOf(chunk.get(i)), key -> new ArrayList<>()).add(i);
+        }
+        val results = new BatchItemResult[chunk.size()];
+        Map<String, CompletableFuture<HttpResponse<byte[]>>> remote = new HashMap<>();
+        shares.forEach((member, share) -> {
+            if (!isSelf(member)) {
+                remote.put(member, send(member, request(member, "/dealtracker/processBatch")
+                        .header("Content-Type", DealTrackerResource.NDJSON)
+                        .POST(HttpRequest.BodyPublishers.ofByteArray(ndjson(share.stream().map(chunk::get).toList())))));
+            }
+        });
+        shares.forEach((member, share) -> {
+            if (isSelf(member)) {
+                fill(results, share, dealLanes.processBatch(share.stream().map(chunk::get).iterator()));
+            }
+        });
+        remote.forEach((member, response) -> fill(results, shares.get(member), remoteResults(response,
+                shares.get(member).stream().map(chunk::get).toList())));
+        return Arrays.asList(results);
+    }
+
+    /**
+     * @return the member's results, or every deal in its share failed if it couldn't be reached or
+     * errored - the rest of the chunk's results stand
+     */
+    private List<BatchItemResult> remoteResults(final CompletableFuture<HttpResponse<byte[]>> response,
+                                                final List<DealTracker> share) {
+        try {
+            return read(join(response).body(), BATCH_RESULTS);
+        } catch (RuntimeException e) {
+            log.warn("Failing the {} deals sent to a shard that didn't process them: {}", share.size(), e.getMessage());
+            return share.stream().map(dealTracker -> BatchItemResult.of(dealTracker, ProcessOutcome.FAILED)).toList();
+        }
+    }
+
+    /**
+     * Ask every other member for the same list and merge their answers with this one's
+     * @param pathAndQuery the list endpoint, with its query string
+     * @param local this instance's answer, in chain/chainNumber/dealReference order
+     * @param limit the most deals to return
+     * @return every member's deals in chain/chainNumber/dealReference order
+     */
+    public List<DealTracker> gatherDeals(final String pathAndQuery, final List<DealTracker> local, final int limit) {
+        return gatherDeals(pathAndQuery, local, DealStore.CHAIN_ORDER, limit);
+    }
+
+    /**
+     * As gatherDeals, for a list in some other order
+     * @param order the order every member's answer is in
+     */
+    public List<DealTracker> gatherDeals(final String pathAndQuery, final List<DealTracker> local,
+                                         final Comparator<DealTracker> order, final int limit) {
+        return gatherList(pathAndQuery, local, DEALS, order, limit);
+    }
+
+    /**
+     * As gatherDeals, for a list of something other than deals
+     * @param type how to read the other members' answers
+     */
+    public <T> List<T> gatherList(final String pathAndQuery, final List<T> local, final TypeReference<List<T>> type,
+                                  final Comparator<? super T> order, final int limit) {
+        val lists = new ArrayList<List<T>>();
+        lists.add(local);
+        gather(pathAndQuery).forEach(body -> lists.add(read(body, type)));
+        return merge(lists, order, limit);
+    }
+
+    /**
+     * Ask every other member for the same newline delimited JSON stream, handing on each deal as
+     * it's read - one member after another, with no order across them
+     */
+    public void gatherStream(final String path, final Consumer<DealTracker> each) {
+        val responses = getOthers().stream()
+                .map(member -> send(member, request(member, path).GET(), HttpResponse.BodyHandlers.ofInputStream()))
+                .toList();
+        for (CompletableFuture<HttpResponse<InputStream>> response : responses) {
+            try (InputStream body = join(response).body();
+                 MappingIterator<DealTracker> deals = objectMapper.readerFor(DealTracker.class).readValues(body)) {
+                deals.forEachRemaining(each);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * @return the counts summed and the oldest arrival times across every member
+     */
+    public DealSummary gatherSummary(final DealSummary local) {
+        val summaries = new ArrayList<DealSummary>();
+        summaries.add(local);
+        gather("/dealtracker/summary").forEach(body -> summaries.add(read(body, DealSummary.class)));
+        return combine(summaries);
+    }
+
+    /**
+     * Merge lists already in chain order, stopping once there are limit deals
+     */
+    static List<DealTracker> merge(final List<List<DealTracker>> lists, final int limit) {
+        return merge(lists, DealStore.CHAIN_ORDER, limit);
+    }
+
+    /**
+     * Merge lists already in the given order, stopping once there are limit deals
+     */
+    static <T> List<T> merge(final List<List<T>> lists, final Comparator<? super T> order, final int limit) {
+        record Head<T>(T value, Iterator<T> rest) {
+        }
+        val heads = new PriorityQueue<Head<T>>((a, b) -> order.compare(a.value(), b.value()));
+        for (List<T> list : lists) {
+            val iterator = list.iterator();
+            if (iterator.hasNext()) {
+                heads.add(new Head<>(iterator.next(), iterator));
+            }
+        }
+        val merged = new ArrayList<T>();
+        while (!heads.isEmpty() && merged.size() < limit) {
+            val head = heads.poll();
+            merged.add(head.value());
+            if (head.rest().hasNext()) {
+                heads.add(new Head<>(head.rest().next(), head.rest()));
+            }
+        }
+        return merged;
+    }
+
+    static DealSummary combine(final List<DealSummary> summaries) {
+        Map<Stage, Long> stages = new EnumMap<>(Stage.class);
+        Map<Stage, LocalDateTime> oldestArrivalTime = new EnumMap<>(Stage.class);
+        Map<String, Map<Stage, Long>> chainStages = new TreeMap<>();
+        for (DealSummary summary : summaries) {
+            summary.stages().forEach((stage, count) -> stages.merge(stage, count, Long::sum));
+            summary.oldestArrivalTime().forEach((stage, arrivalTime) ->
+                    oldestArrivalTime.merge(stage, arrivalTime, (a, b) -> a.isBefore(b) ? a : b));
+            summary.chains().forEach((chain, chainSummary) -> chainSummary.stages().forEach((stage, count) ->
+                    chainStages.computeIfAbsent(chain, key -> new EnumMap<>(Stage.class)).merge(stage, count, Long::sum)));
+        }
+        Map<String, DealSummary.ChainSummary> chains = new LinkedHashMap<>();
+        chainStages.forEach((chain, counts) -> chains.put(chain, DealSummary.ChainSummary.of(counts)));
+        return new DealSummary(DealSummary.countWaiting(stages), DealSummary.countInProcessing(stages),
+                stages, oldestArrivalTime, chains);
+    }
+
+    private List<byte[]> gather(final String pathAndQuery) {
+        val responses = getOthers().stream()
+                .map(member -> send(member, request(member, pathAndQuery).GET()))
+                .toList();
+        return responses.stream().map(response -> join(response).body()).toList();
+    }
+
+    private HttpRequest.Builder request(final String member, final String pathAndQuery) {
+        return HttpRequest.newBuilder(URI.create(member + pathAndQuery))
+                .timeout(timeout)
+                .header(FORWARDED, selfUrl);
+    }
+
+    /**
+     * @return the response, failing with 502 Bad Gateway if the member can't be reached or errors
+     */
+    private CompletableFuture<HttpResponse<byte[]>> send(final String member, final HttpRequest.Builder request) {
+        return send(member, request, HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    private <T> CompletableFuture<HttpResponse<T>> send(final String member, final HttpRequest.Builder request,
+                                                        final HttpResponse.BodyHandler<T> bodyHandler) {
+        val built = request.build();
+        return client.sendAsync(built, bodyHandler)
+                .handle((response, failure) -> {
+                    if (failure != null || response.statusCode() >= 400) {
+                        if (response != null && response.body() instanceof Closeable body) {
+                            closeQuietly(body);
+                        }
+                        val reason = failure != null ? failure.toString() : "status " + response.statusCode();
+                        log.warn("Shard {} failed {} {}: {}", member, built.method(), built.uri(), reason);
+                        throw new WebApplicationException("Shard " + member + " failed: " + reason,
+                                Response.Status.BAD_GATEWAY);
+                    }
+                    return response;
+                });
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            log.debug("Could not close a failed shard response", e);
+        }
+    }
+
+    private static <T> T join(final CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    private static void fill(final BatchItemResult[] results, final List<Integer> share,
+                             final List<BatchItemResult> shareResults) {
+        for (int i = 0; i < share.size(); i++) {
+            results[share.get(i)] = shareResults.get(i);
+        }
+    }
+
+    private byte[] json(final Object value) {
+        try {
+            return objectMapper.writeValueAsBytes(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private byte[] ndjson(final List<DealTracker> deals) {
+        val out = new ByteArrayOutputStream();
+        for (DealTracker dealTracker : deals) {
+            out.writeBytes(json(dealTracker));
+            out.write('\n');
+        }
+        return out.toByteArray();
+    }
+
+    private <T> T read(final byte[] body, final Class<T> type) {
+        try {
+            return objectMapper.readValue(body, type);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private <T> T read(final byte[] body, final TypeReference<T> type) {
+        try {
+            return objectMapper.readValue(body, type);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static String encode(final String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8).replace("+", "%20");
+    }
+
+    private static String trimSlash(final String url) {
+        val trimmed = url.trim();
+        return trimmed.endsWith("/") ? trimmed.substring(0, trimmed.length() - 1) : trimmed;
+    }
+}
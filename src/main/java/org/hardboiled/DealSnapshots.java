@@ -0,0 +1,177 @@
+package org.hardboiled;
+
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Point in time copies of the live deals, written as the deal log's binary records.
+ * A snapshot is named after the log segment that replay has to start from to bring it up to date.
+ * File layout is [magic][version][segment][lastId] then [length][deal] per deal, a -1 length,
+ * the number of deals and a CRC32C over everything before it.
+ */
+@Slf4j
+public class DealSnapshots {
+
+    private static final int MAGIC = 0x4454534e;
+    private static final int VERSION = 1;
+    private static final int END = -1;
+    private static final String SUFFIX = ".snap";
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * @param segment the log segment to replay from
+     * @param lastId the highest id handed out when the snapshot was started
+     * @param deals how many deals the snapshot holds
+     */
+    public record Snapshot(long segment, long lastId, long deals) {
+    }
+
+    private final Path directory;
+
+    public DealSnapshots(final Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Write the deals to a new snapshot, via a temporary file so a crash never leaves a partial one
+     */
+    public Snapshot write(final long segment, final long lastId, final Iterable<DealTracker> deals) throws IOException {
+        Files.createDirectories(directory);
+        val path = snapshotPath(segment);
+        val temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        val crc = new CRC32C();
+        long count = 0;
+        try (val channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            val buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(segment).putLong(lastId);
+            for (DealTracker dealTracker : deals) {
+                val size = DealRecordCodec.size(dealTracker);
+                if (buffer.remaining() < Integer.BYTES + size) {
+                    flush(channel, buffer, crc);
+                }
+                buffer.putInt(size);
+                DealRecordCodec.write(buffer, dealTracker);
+                count++;
+            }
+            if (buffer.remaining() < Integer.BYTES + Long.BYTES + Integer.BYTES) {
+                flush(channel, buffer, crc);
+            }
+            buffer.putInt(END).putLong(count);
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            buffer.position(buffer.limit()).limit(buffer.capacity());
+            buffer.putInt((int) crc.getValue());
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return new Snapshot(segment, lastId, count);
+    }
+
+    /**
+     * Load the newest snapshot that reads back cleanly, falling back to older ones if it doesn't
+     * @param consumer receives the deals, it may see some from a damaged snapshot before the fallback
+     * @return the snapshot loaded, or empty if there isn't a usable one
+     */
+    public Optional<Snapshot> loadNewest(final Consumer<DealTracker> consumer, final Runnable reset) throws IOException {
+        val snapshots = snapshots();
+        for (int i = snapshots.size() - 1; i >= 0; i--) {
+            val path = snapshotPath(snapshots.get(i));
+            try {
+                return Optional.of(read(path, consumer));
+            } catch (IOException | RuntimeException e) {
+                log.warn("Ignoring unreadable snapshot {}", path, e);
+                reset.run();
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Keep the newest snapshots, deleting the rest
+     * @return the oldest snapshot kept, if any
+     */
+    public Optional<Long> retain(final int count) throws IOException {
+        val snapshots = snapshots();
+        val kept = snapshots.size() - Math.max(1, count);
+        for (int i = 0; i < kept; i++) {
+            Files.deleteIfExists(snapshotPath(snapshots.get(i)));
+        }
+        return snapshots.stream().skip(Math.max(0, kept)).findFirst();
+    }
+
+    /**
+     * @return the segments of the snapshots on disk, oldest first
+     */
+    List<Long> snapshots() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.startsWith("snapshot-") && name.endsWith(SUFFIX))
+                    .map(name -> Long.parseLong(name.substring("snapshot-".length(), name.length() - SUFFIX.length())))
+                    .sorted(Comparator.naturalOrder())
+                    .toList();
+        }
+    }
+
+    Path snapshotPath(final long segment) {
+        return directory.resolve(String.format("snapshot-%020d%s", segment, SUFFIX));
+    }
+
+    private Snapshot read(final Path path, final Consumer<DealTracker> consumer) throws IOException {
+        try (val channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            val buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Not a deal snapshot");
+            }
+            val segment = buffer.getLong();
+            val lastId = buffer.getLong();
+            long count = 0;
+            int size;
+            while ((size = buffer.getInt()) != END) {
+                val record = buffer.slice(buffer.position(), size);
+                buffer.position(buffer.position() + size);
+                consumer.accept(DealRecordCodec.read(record));
+                count++;
+            }
+            if (buffer.getLong() != count) {
+                throw new IOException("Snapshot holds a different number of deals than it says");
+            }
+            val crc = new CRC32C();
+            crc.update(buffer.slice(0, buffer.position()));
+            if ((int) crc.getValue() != buffer.getInt()) {
+                throw new IOException("Snapshot checksum doesn't match");
+            }
+            return new Snapshot(segment, lastId, count);
+        }
+    }
+
+    private static void flush(final FileChannel channel, final ByteBuffer buffer, final CRC32C crc) throws IOException {
+        buffer.flip();
+        crc.update(buffer.duplicate());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,813 @@
+package org.hardboiled;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * In-memory view of the live deals, indexed by id and by dealReference, with the
+ * waiting and in-processing sets kept in chain/chainNumber/dealReference order.
+ * Secondary indexes by arrival, by time at the current stage and by chain and stage serve the
+ * other queries without looking at every deal.
+ * The store keeps its own copies so callers mutating an entity can't bypass the indexes.
+ * <p>
+ * Once holdIn hands it a MappedDealFile the store holds no deals itself: every lookup, list, page
+ * and query reads the file's records, and only the stage counters stay on the heap.
+ */
+@Slf4j
+@ApplicationScoped
+public class DealStore {
+
+    static final Comparator<DealTracker> CHAIN_ORDER = Comparator
+            .comparing(DealTracker::getChain, Comparator.nullsFirst(Comparator.naturalOrder()))
+            .thenComparingInt(DealTracker::getChainNumber)
+            .thenComparing(DealTracker::getDealReference, Comparator.nullsFirst(Comparator.naturalOrder()))
+            .thenComparing(DealTracker::getId, Comparator.nullsFirst(Comparator.naturalOrder()));
+
+    static final Comparator<DealTracker> ARRIVAL_ORDER = Comparator
+            .comparing(DealTracker::getArrivalTime, Comparator.nullsLast(Comparator.naturalOrder()))
+            .thenComparing(DealTracker::getId);
+
+    /**
+     * By when the deal reached its current stage. The same as ARRIVAL_ORDER for waiting deals.
+     */
+    static final Comparator<DealTracker> STAGE_TIME_ORDER = Comparator
+            .comparing((DealTracker dealTracker) -> dealTracker.stage.enteredAt(dealTracker),
+                    Comparator.nullsLast(Comparator.naturalOrder()))
+            .thenComparing(DealTracker::getId);
+
+    private final ConcurrentHashMap<Long, DealTracker> byId = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, DealTracker> byReference = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<DealTracker> waiting = new ConcurrentSkipListSet<>(CHAIN_ORDER);
+    private final ConcurrentSkipListSet<DealTracker> inProcessing = new ConcurrentSkipListSet<>(CHAIN_ORDER);
+    private final EnumMap<Stage, ConcurrentSkipListSet<DealTracker>> byArrival = new EnumMap<>(Stage.class);
+    /**
+     * Only the in-processing stages - for waiting deals byArrival is already in this order
+     */
+    private final EnumMap<Stage, ConcurrentSkipListSet<DealTracker>> byStageTime = new EnumMap<>(Stage.class);
+    /**
+     * Each chain's deals at each stage in chainNumber/dealReference order, so a chain and stage
+     * query reads just the deals it returns
+     */
+    private final ConcurrentHashMap<String, EnumMap<Stage, ConcurrentSkipListSet<DealTracker>>> byChain =
+            new ConcurrentHashMap<>();
+    private final StageCounters stageCounters = new StageCounters();
+    private final List<Consumer<DealTransition>> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong version = new AtomicLong();
+    /**
+     * Where the deals are held instead of the maps and sets above, if anywhere
+     */
+    private volatile MappedDealFile records;
+
+    private static final Set<Stage> WAITING_STAGES = EnumSet.of(Stage.WAITING);
+    private static final Set<Stage> IN_PROCESSING_STAGES = EnumSet.complementOf(EnumSet.of(Stage.WAITING));
+    private static final Set<Stage> ALL_STAGES = EnumSet.allOf(Stage.class);
+
+    public DealStore() {
+        for (Stage stage : Stage.values()) {
+            byArrival.put(stage, new ConcurrentSkipListSet<>(ARRIVAL_ORDER));
+            if (stage.isInProcessing()) {
+                byStageTime.put(stage, new ConcurrentSkipListSet<>(STAGE_TIME_ORDER));
+            }
+        }
+    }
+
+    /**
+     * Have the listener told about every change to a deal after the indexes have been updated - on
+     * the thread that made it, once its transaction has committed if it was made in one. Listeners
+     * need to be quick as they hold up the writer.
+     */
+    public void addListener(final Consumer<DealTransition> listener) {
+        listeners.add(listener);
+    }
+
+    public Optional<DealTracker> findById(final Long id) {
+        val current = records;
+        if (current != null) {
+            return current.findById(id);
+        }
+        return id == null ? Optional.empty() : Optional.ofNullable(byId.get(id));
+    }
+
+    public Optional<DealTracker> findByDealReference(final String dealReference) {
+        val current = records;
+        if (current != null) {
+            return current.findByDealReference(dealReference);
+        }
+        return dealReference == null ? Optional.empty() : Optional.ofNullable(byReference.get(dealReference));
+    }
+
+    public List<DealTracker> getAll() {
+        val current = records;
+        if (current != null) {
+            val deals = new ArrayList<DealTracker>(current.size());
+            current.forEach(deals::add);
+            return deals;
+        }
+        return new ArrayList<>(byId.values());
+    }
+
+    public List<DealTracker> getWaiting() {
+        val current = records;
+        if (current != null) {
+            return read(current, current.select(current.atStages(WAITING_STAGES), MappedDealFile.Order.CHAIN,
+                    Integer.MAX_VALUE));
+        }
+        return new ArrayList<>(waiting);
+    }
+
+    public List<DealTracker> getInProcessing() {
+        val current = records;
+        if (current != null) {
+            return read(current, current.select(current.atStages(IN_PROCESSING_STAGES), MappedDealFile.Order.CHAIN,
+                    Integer.MAX_VALUE));
+        }
+        return new ArrayList<>(inProcessing);
+    }
+
+    /**
+     * Walk the deals matching the filter in chain/chainNumber/dealReference order, without copying them
+     * @param after only return deals after this position, or from the start if null
+     */
+    public Iterator<DealTracker> iterator(final StageFilter filter, final DealCursor after) {
+        val current = records;
+        if (current != null) {
+            return new SelectedIterator(current, select(current, filter, after, Integer.MAX_VALUE));
+        }
+        return switch (filter) {
+            case WAITING -> tail(waiting, after).iterator();
+            case IN_PROCESSING -> tail(inProcessing, after).iterator();
+            case ALL -> new MergingIterator(tail(waiting, after).iterator(), tail(inProcessing, after).iterator());
+        };
+    }
+
+    /**
+     * @return up to limit deals matching the filter that come after the cursor
+     */
+    public List<DealTracker> page(final StageFilter filter, final DealCursor after, final int limit) {
+        val current = records;
+        if (current != null) {
+            return read(current, select(current, filter, after, limit));
+        }
+        val page = new ArrayList<DealTracker>(Math.min(limit, 1024));
+        val deals = iterator(filter, after);
+        while (page.size() < limit && deals.hasNext()) {
+            page.add(deals.next());
+        }
+        return page;
+    }
+
+    /**
+     * Walk the deals that reached the stage before the cutoff, oldest first, without looking at any others
+     */
+    public Iterator<DealTracker> enteredBefore(final Stage stage, final LocalDateTime cutoff) {
+        val current = records;
+        if (current != null) {
+            return new SelectedIterator(current, current.select(current.enteredBefore(stage, cutoff),
+                    MappedDealFile.Order.STAGE_TIME, Integer.MAX_VALUE));
+        }
+        val probe = DealTracker.builder()
+                .id(Long.MIN_VALUE)
+                .arrivalTime(cutoff)
+                .sentTime(cutoff)
+                .vestCompleteTime(cutoff)
+                .appCompleteTime(cutoff)
+                .build();
+        probe.stage = stage;
+        val index = stage.isWaiting() ? byArrival.get(stage) : byStageTime.get(stage);
+        return index.headSet(probe).iterator();
+    }
+
+    /**
+     * The deals matching the query, in its order, up to its limit. Read from the narrowest index
+     * the query allows - the chain's per-stage sets cut to the chainNumber range, else the
+     * per-stage arrival indexes cut to the arrival range, else the stage sets - with the other
+     * conditions checked on each deal they give. Where that index is already in the query's order
+     * this stops at the limit, otherwise the first limit in order are kept as it goes. Held in a
+     * MappedDealFile, the query is checked on each record in place instead.
+     */
+    public List<DealTracker> query(final DealQuery query) {
+        val current = records;
+        if (current != null) {
+            val order = switch (query.sort()) {
+                case CHAIN -> MappedDealFile.Order.CHAIN;
+                case ARRIVAL -> MappedDealFile.Order.ARRIVAL;
+                case ARRIVAL_DESC -> MappedDealFile.Order.ARRIVAL_DESC;
+            };
+            return read(current, current.select(current.matching(query), order, query.limit()));
+        }
+        val sources = new ArrayList<Iterator<DealTracker>>();
+        final DealQuery.Sort indexOrder;
+        if (query.chain() != null) {
+            indexOrder = DealQuery.Sort.CHAIN;
+            val chainSets = byChain.get(query.chain());
+            if (chainSets != null) {
+                for (Stage stage : query.stages()) {
+                    sources.add(chainNumberRange(chainSets.get(stage), query).iterator());
+                }
+            }
+        } else if (!query.arrived().isAny() || query.sort() != DealQuery.Sort.CHAIN) {
+            indexOrder = query.sort() == DealQuery.Sort.ARRIVAL_DESC ? DealQuery.Sort.ARRIVAL_DESC : DealQuery.Sort.ARRIVAL;
+            for (Stage stage : query.stages()) {
+                val arrived = arrivalRange(byArrival.get(stage), query.arrived());
+                sources.add(indexOrder == DealQuery.Sort.ARRIVAL_DESC ? arrived.descendingIterator() : arrived.iterator());
+            }
+        } else {
+            indexOrder = DealQuery.Sort.CHAIN;
+            if (query.stages().contains(Stage.WAITING)) {
+                sources.add(waiting.iterator());
+            }
+            if (query.stages().stream().anyMatch(Stage::isInProcessing)) {
+                sources.add(inProcessing.iterator());
+            }
+        }
+        val deals = new MergingIterator(indexOrder.order(), sources);
+        val order = query.sort().order();
+        if (indexOrder == query.sort()) {
+            val matching = new ArrayList<DealTracker>(Math.min(query.limit(), 1024));
+            while (matching.size() < query.limit() && deals.hasNext()) {
+                val dealTracker = deals.next();
+                if (query.matches(dealTracker)) {
+                    matching.add(dealTracker);
+                }
+            }
+            return matching;
+        }
+        // the last of the best so far on top, so it can be dropped when something better comes along
+        val best = new PriorityQueue<DealTracker>(order.reversed());
+        while (deals.hasNext()) {
+            val dealTracker = deals.next();
+            if (query.matches(dealTracker)) {
+                best.add(dealTracker);
+                if (best.size() > query.limit()) {
+                    best.poll();
+                }
+            }
+        }
+        val matching = new ArrayList<>(best);
+        matching.sort(order);
+        return matching;
+    }
+
+    /**
+     * @return a number that goes up after every change to the deals held, so anything built from
+     * the store at one version is still right for as long as the version stays the same
+     */
+    public long version() {
+        return version.get();
+    }
+
+    public int size() {
+        val current = records;
+        return current != null ? current.size() : byId.size();
+    }
+
+    /**
+     * @return how many live deals are at the stage, from the running counters
+     */
+    public long count(final Stage stage) {
+        return stageCounters.total(stage);
+    }
+
+    /**
+     * @return how many live deals on the chain are at the stage, from the running counters
+     */
+    public long count(final String chain, final Stage stage) {
+        return stageCounters.count(chain, stage);
+    }
+
+    /**
+     * @return how many live deals are on the chain, from the running counters
+     */
+    public long count(final String chain) {
+        return stageCounters.count(chain);
+    }
+
+    /**
+     * @return every chain with a live deal
+     */
+    public Set<String> getChains() {
+        return stageCounters.chains();
+    }
+
+    /**
+     * Built from the running counters and the first entry of each arrival index, so the cost
+     * doesn't depend on how many deals are live - except held in a MappedDealFile, where the oldest
+     * arrivals take a pass over the records
+     */
+    public DealSummary summary() {
+        val stages = stageCounters.totals();
+        val current = records;
+        Map<Stage, LocalDateTime> oldestArrivalTime = new EnumMap<>(Stage.class);
+        if (current != null) {
+            oldestArrivalTime.putAll(current.oldestArrivals());
+        }
+        byArrival.forEach((stage, deals) -> deals.stream().findFirst()
+                .map(DealTracker::getArrivalTime)
+                .ifPresent(arrivalTime -> oldestArrivalTime.put(stage, arrivalTime)));
+        Map<String, DealSummary.ChainSummary> chains = new LinkedHashMap<>();
+        stageCounters.byChain().forEach((chain, counts) -> chains.put(chain, DealSummary.ChainSummary.of(counts)));
+        return new DealSummary(DealSummary.countWaiting(stages), DealSummary.countInProcessing(stages),
+                stages, oldestArrivalTime, chains);
+    }
+
+    /**
+     * Store (or replace) a copy of the deal and re-index it. Held in a MappedDealFile, the deal has
+     * already been written to its record, so this only counts it and tells the listeners.
+     * @param dealTracker the deal to store, which must already have an id
+     * @return the copy previously held for that id, or null if there wasn't one
+     */
+    public DealTracker put(final DealTracker dealTracker) {
+        return put(dealTracker, null);
+    }
+
+    /**
+     * Like put, with the change made in a transaction
+     * @param transaction the transaction making the change, which tells the listeners once it
+     * commits and puts back the previous copy if it doesn't - or null to tell them now
+     */
+    DealTracker put(final DealTracker dealTracker, final DealStoreTransaction transaction) {
+        val copy = dealTracker.toBuilder().build();
+        copy.stage = Stage.of(copy);
+        if (records != null) {
+            stageCounters.increment(copy);
+            version.incrementAndGet();
+            changed(transaction, copy.id, null, copy, copy, false);
+            return null;
+        }
+        val previous = new DealTracker[1];
+        byId.compute(copy.id, (id, existing) -> {
+            unindex(existing);
+            index(copy);
+            previous[0] = existing;
+            return copy;
+        });
+        version.incrementAndGet();
+        changed(transaction, copy.id, previous[0], copy, copy, false);
+        return previous[0];
+    }
+
+    /**
+     * Swap the copy held for a deal for a copy of the given one, but only if the held copy is still
+     * expected - a compare-and-set, so of two writers that read the same copy the second finds it
+     * gone and has to merge its change into the first's and try again
+     * @param expected the copy the change was made from, as returned by findById
+     * @param dealTracker the changed deal, with the same id
+     * @return true if it was swapped, false if the deal has changed or gone since expected was read
+     */
+    public boolean replace(final DealTracker expected, final DealTracker dealTracker) {
+        return replace(expected, dealTracker, null);
+    }
+
+    /**
+     * Like replace, with the change made in a transaction as for put
+     */
+    boolean replace(final DealTracker expected, final DealTracker dealTracker,
+                    final DealStoreTransaction transaction) {
+        val copy = dealTracker.toBuilder().build();
+        copy.stage = Stage.of(copy);
+        val current = records;
+        if (current != null) {
+            // the record is compared by value, as each read is a new copy
+            if (!current.replace(expected, copy)) {
+                return false;
+            }
+            stageCounters.decrement(expected);
+            stageCounters.increment(copy);
+        } else {
+            val replaced = new boolean[1];
+            byId.computeIfPresent(copy.id, (id, existing) -> {
+                if (existing != expected) {
+                    return existing;
+                }
+                unindex(existing);
+                index(copy);
+                replaced[0] = true;
+                return copy;
+            });
+            if (!replaced[0]) {
+                return false;
+            }
+        }
+        version.incrementAndGet();
+        changed(transaction, copy.id, expected, copy, copy, false);
+        return true;
+    }
+
+    /**
+     * Fill an empty store in one go, as when starting up from a snapshot. Each ordered index is
+     * sorted first and then filled in order, which is several times quicker than random inserts.
+     * Listeners aren't told about deals loaded this way.
+     * @param deals the deals to store, which must all have ids
+     */
+    public void load(final Collection<DealTracker> deals) {
+        if (!byId.isEmpty() || records != null) {
+            throw new IllegalStateException("The store can only be bulk loaded when it is empty");
+        }
+        val copies = new DealTracker[deals.size()];
+        int i = 0;
+        for (DealTracker dealTracker : deals) {
+            val copy = dealTracker.toBuilder().build();
+            copy.stage = Stage.of(copy);
+            copies[i++] = copy;
+            byId.put(copy.id, copy);
+            if (copy.dealReference != null) {
+                byReference.put(copy.dealReference, copy);
+            }
+            stageCounters.increment(copy);
+        }
+        Arrays.parallelSort(copies, CHAIN_ORDER);
+        for (DealTracker copy : copies) {
+            (copy.stage.isWaiting() ? waiting : inProcessing).add(copy);
+            chainSet(copy).add(copy);
+        }
+        Arrays.parallelSort(copies, ARRIVAL_ORDER);
+        for (DealTracker copy : copies) {
+            byArrival.get(copy.stage).add(copy);
+        }
+        Arrays.parallelSort(copies, STAGE_TIME_ORDER);
+        for (DealTracker copy : copies) {
+            if (copy.stage.isInProcessing()) {
+                byStageTime.get(copy.stage).add(copy);
+            }
+        }
+        version.incrementAndGet();
+    }
+
+    /**
+     * Hold the deals in the file's records from now on, instead of in the store, starting with
+     * those already there. MappedDealPersistence writes new deals to the file before they're put,
+     * while replace, remove and complete change or free the records themselves.
+     */
+    void holdIn(final MappedDealFile records) {
+        if (!byId.isEmpty() || this.records != null) {
+            throw new IllegalStateException("The store can only hold its deals in a file when it is empty");
+        }
+        records.forEach(stageCounters::increment);
+        this.records = records;
+        version.incrementAndGet();
+    }
+
+    /**
+     * Remove the deal with the given id
+     * @param id the id of the deal to remove
+     * @return the copy that was removed, or null if there wasn't one
+     */
+    public DealTracker remove(final Long id) {
+        return remove(id, null);
+    }
+
+    /**
+     * Like remove, with the change made in a transaction as for put
+     */
+    DealTracker remove(final Long id, final DealStoreTransaction transaction) {
+        val previous = removeQuietly(id);
+        if (previous != null) {
+            changed(transaction, id, previous, null, previous, true);
+        }
+        return previous;
+    }
+
+    /**
+     * Remove a deal because it has completed, telling the listeners about its final timestamps
+     * @param completed the completing message, whose timestamps are merged into the stored ones
+     * @return the copy that was removed, or null if there wasn't one
+     */
+    public DealTracker complete(final DealTracker completed) {
+        return complete(completed, null);
+    }
+
+    /**
+     * Like complete, with the change made in a transaction as for put
+     */
+    DealTracker complete(final DealTracker completed, final DealStoreTransaction transaction) {
+        val previous = removeQuietly(completed.id);
+        if (previous != null) {
+            val last = previous.toBuilder().build();
+            DealPersistence.mergeTimes(last, completed);
+            last.stage = Stage.of(last);
+            changed(transaction, completed.id, previous, null, last, true);
+        }
+        return previous;
+    }
+
+    private DealTracker removeQuietly(final Long id) {
+        val current = records;
+        if (current != null) {
+            val removed = current.remove(id);
+            if (removed != null) {
+                stageCounters.decrement(removed);
+                version.incrementAndGet();
+            }
+            return removed;
+        }
+        val previous = new DealTracker[1];
+        byId.computeIfPresent(id, (key, existing) -> {
+            unindex(existing);
+            previous[0] = existing;
+            return null;
+        });
+        if (previous[0] != null) {
+            version.incrementAndGet();
+        }
+        return previous[0];
+    }
+
+    /**
+     * @param held the copy the change left in the store, null if it took the deal out
+     * @param current the deal after the change, as the listeners are to see it
+     */
+    private void changed(final DealStoreTransaction transaction, final Long id, final DealTracker previous,
+                         final DealTracker held, final DealTracker current, final boolean removed) {
+        val transition = listeners.isEmpty() ? null : DealTransition.of(previous, current, removed);
+        if (transaction != null) {
+            transaction.record(id, previous, held, transition);
+        } else if (transition != null) {
+            publish(transition);
+        }
+    }
+
+    /**
+     * Tell the listeners about a change that has been made
+     */
+    void publish(final DealTransition transition) {
+        for (Consumer<DealTransition> listener : listeners) {
+            try {
+                listener.accept(transition);
+            } catch (RuntimeException e) {
+                log.error("Deal store listener failed for {}", transition.dealReference(), e);
+            }
+        }
+    }
+
+    /**
+     * Put back the state held before a change, used when the transaction behind it rolls back - but
+     * only if the store still holds what the change left. If another transaction has changed the
+     * deal since, its copy was merged from this one and stays, as undoing would lose its change.
+     * Listeners aren't told, as they only ever heard of changes that committed.
+     * @param id the id of the deal that changed
+     * @param held the copy the change left in the store, or null if it took the deal out
+     * @param previous the copy held before the change, or null if the deal didn't exist
+     * @return true if it was put back
+     */
+    public boolean restore(final Long id, final DealTracker held, final DealTracker previous) {
+        val restored = new boolean[1];
+        byId.compute(id, (key, existing) -> {
+            if (existing != held) {
+                return existing;
+            }
+            unindex(existing);
+            if (previous != null) {
+                index(previous);
+            }
+            restored[0] = true;
+            return previous;
+        });
+        if (restored[0]) {
+            version.incrementAndGet();
+        }
+        return restored[0];
+    }
+
+    public void clear() {
+        records = null;
+        byId.clear();
+        byReference.clear();
+        waiting.clear();
+        inProcessing.clear();
+        byArrival.values().forEach(ConcurrentSkipListSet::clear);
+        byStageTime.values().forEach(ConcurrentSkipListSet::clear);
+        byChain.clear();
+        stageCounters.clear();
+        version.incrementAndGet();
+    }
+
+    private static long[] select(final MappedDealFile records, final StageFilter filter, final DealCursor after,
+                                 final int limit) {
+        val stages = switch (filter) {
+            case WAITING -> WAITING_STAGES;
+            case IN_PROCESSING -> IN_PROCESSING_STAGES;
+            case ALL -> ALL_STAGES;
+        };
+        return records.select(records.atStages(stages).and(records.after(after)), MappedDealFile.Order.CHAIN, limit);
+    }
+
+    /**
+     * @return the deals with these ids still held, in the same order
+     */
+    private static List<DealTracker> read(final MappedDealFile records, final long[] ids) {
+        val deals = new ArrayList<DealTracker>(ids.length);
+        for (long id : ids) {
+            val dealTracker = records.get(id);
+            if (dealTracker != null) {
+                deals.add(dealTracker);
+            }
+        }
+        return deals;
+    }
+
+    private static NavigableSet<DealTracker> tail(final NavigableSet<DealTracker> deals, final DealCursor after) {
+        return after == null ? deals : deals.tailSet(after.probe(), false);
+    }
+
+    /**
+     * @return the deals in the set whose chainNumber is in the query's range
+     */
+    private static NavigableSet<DealTracker> chainNumberRange(final NavigableSet<DealTracker> deals,
+                                                              final DealQuery query) {
+        val from = query.chainNumberFrom();
+        val to = query.chainNumberTo();
+        if (from == null && to == null) {
+            return deals;
+        }
+        // null dealReference and id sort first, so a probe at a chainNumber comes before all of its deals
+        val fromProbe = from == null ? null : DealTracker.builder().chain(query.chain()).chainNumber(from).build();
+        val toProbe = to == null || to == Integer.MAX_VALUE
+                ? null
+                : DealTracker.builder().chain(query.chain()).chainNumber(to + 1).build();
+        if (fromProbe == null) {
+            return deals.headSet(toProbe, false);
+        }
+        return toProbe == null ? deals.tailSet(fromProbe, true) : deals.subSet(fromProbe, true, toProbe, false);
+    }
+
+    /**
+     * @return the deals in the arrival ordered set that arrived in the range
+     */
+    private static NavigableSet<DealTracker> arrivalRange(final NavigableSet<DealTracker> deals,
+                                                          final DealQuery.TimeRange range) {
+        if (range.isAny()) {
+            return deals;
+        }
+        // the lowest id, so a probe at a time comes before every deal that arrived then
+        val fromProbe = range.from() == null
+                ? null
+                : DealTracker.builder().id(Long.MIN_VALUE).arrivalTime(range.from()).build();
+        val toProbe = range.to() == null
+                ? null
+                : DealTracker.builder().id(Long.MIN_VALUE).arrivalTime(range.to()).build();
+        if (fromProbe == null) {
+            return deals.headSet(toProbe, false);
+        }
+        return toProbe == null ? deals.tailSet(fromProbe, true) : deals.subSet(fromProbe, true, toProbe, false);
+    }
+
+    /**
+     * Merges iterators that are each in the same order into one
+     */
+    private static class MergingIterator implements Iterator<DealTracker> {
+
+        private final Comparator<DealTracker> order;
+        private final Iterator<DealTracker>[] sources;
+        private final DealTracker[] heads;
+
+        MergingIterator(final Iterator<DealTracker> left, final Iterator<DealTracker> right) {
+            this(CHAIN_ORDER, List.of(left, right));
+        }
+
+        @SuppressWarnings("unchecked")
+        MergingIterator(final Comparator<DealTracker> order, final List<Iterator<DealTracker>> sources) {
+            this.order = order;
+            this.sources = sources.toArray(new Iterator[0]);
+            this.heads = new DealTracker[this.sources.length];
+            for (int i = 0; i < heads.length; i++) {
+                heads[i] = this.sources[i].hasNext() ? this.sources[i].next() : null;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            for (DealTracker head : heads) {
+                if (head != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public DealTracker next() {
+            // only ever a few sources, one per stage at most, so a scan beats a heap
+            int first = -1;
+            for (int i = 0; i < heads.length; i++) {
+                if (heads[i] != null && (first < 0 || order.compare(heads[i], heads[first]) < 0)) {
+                    first = i;
+                }
+            }
+            if (first < 0) {
+                throw new NoSuchElementException();
+            }
+            val next = heads[first];
+            heads[first] = sources[first].hasNext() ? sources[first].next() : null;
+            return next;
+        }
+    }
+
+    /**
+     * Reads the deals a select picked out of the records as it goes, passing over any that have gone since
+     */
+    private static class SelectedIterator implements Iterator<DealTracker> {
+
+        private final MappedDealFile records;
+        private final long[] ids;
+        private int position;
+        private DealTracker next;
+
+        SelectedIterator(final MappedDealFile records, final long[] ids) {
+            this.records = records;
+            this.ids = ids;
+            this.next = advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public DealTracker next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            val current = next;
+            next = advance();
+            return current;
+        }
+
+        private DealTracker advance() {
+            while (position < ids.length) {
+                val dealTracker = records.get(ids[position++]);
+                if (dealTracker != null) {
+                    return dealTracker;
+                }
+            }
+            return null;
+        }
+    }
+
+    private ConcurrentSkipListSet<DealTracker> chainSet(final DealTracker dealTracker) {
+        return byChain.computeIfAbsent(StageCounters.chainKey(dealTracker), chain -> {
+            val stages = new EnumMap<Stage, ConcurrentSkipListSet<DealTracker>>(Stage.class);
+            for (Stage stage : Stage.values()) {
+                stages.put(stage, new ConcurrentSkipListSet<>(CHAIN_ORDER));
+            }
+            return stages;
+        }).get(dealTracker.stage);
+    }
+
+    private void index(final DealTracker dealTracker) {
+        if (dealTracker.dealReference != null) {
+            byReference.put(dealTracker.dealReference, dealTracker);
+        }
+        if (dealTracker.stage.isWaiting()) {
+            waiting.add(dealTracker);
+        } else {
+            inProcessing.add(dealTracker);
+        }
+        byArrival.get(dealTracker.stage).add(dealTracker);
+        if (dealTracker.stage.isInProcessing()) {
+            byStageTime.get(dealTracker.stage).add(dealTracker);
+        }
+        chainSet(dealTracker).add(dealTracker);
+        stageCounters.increment(dealTracker);
+    }
+
+    private void unindex(final DealTracker dealTracker) {
+        if (dealTracker == null) {
+            return;
+        }
+        if (dealTracker.dealReference != null) {
+            byReference.remove(dealTracker.dealReference, dealTracker);
+        }
+        waiting.remove(dealTracker);
+        inProcessing.remove(dealTracker);
+        byArrival.get(dealTracker.stage).remove(dealTracker);
+        if (dealTracker.stage.isInProcessing()) {
+            byStageTime.get(dealTracker.stage).remove(dealTracker);
+        }
+        chainSet(dealTracker).remove(dealTracker);
+        stageCounters.decrement(dealTracker);
+    }
+}
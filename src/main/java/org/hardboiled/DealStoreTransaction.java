@@ -0,0 +1,65 @@
+package org.hardboiled;
+
+import jakarta.transaction.Status;
+import jakarta.transaction.Synchronization;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * The store changes made inside one transaction. Registered once per transaction by the manager:
+ * the transitions are held back and only handed to the store's listeners once the transaction
+ * commits, along with anything else that should only happen then, and the state replaced is put
+ * back if it doesn't.
+ */
+@Slf4j
+@RequiredArgsConstructor
+class DealStoreTransaction implements Synchronization {
+
+    private record Change(Long id, DealTracker previous, DealTracker held) {
+    }
+
+    private final DealStore dealStore;
+    private final Deque<Change> changes = new ArrayDeque<>();
+    private final List<Runnable> onCommit = new ArrayList<>();
+
+    /**
+     * @param previous the copy held before the change, null if the deal is new
+     * @param held the copy the change left in the store, null if it took the deal out
+     */
+    void record(final Long id, final DealTracker previous, final DealTracker held, final DealTransition transition) {
+        changes.push(new Change(id, previous, held));
+        if (transition != null) {
+            onCommit.add(() -> dealStore.publish(transition));
+        }
+    }
+
+    /**
+     * Run the action once the transaction commits, in order with the transitions, or not at all
+     * if it doesn't
+     */
+    void afterCommit(final Runnable action) {
+        onCommit.add(action);
+    }
+
+    @Override
+    public void beforeCompletion() {
+    }
+
+    @Override
+    public void afterCompletion(final int status) {
+        if (status == Status.STATUS_COMMITTED) {
+            onCommit.forEach(Runnable::run);
+            return;
+        }
+        while (!changes.isEmpty()) {
+            val change = changes.pop();
+            dealStore.restore(change.id(), change.held(), change.previous());
+        }
+    }
+}
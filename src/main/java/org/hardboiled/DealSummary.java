@@ -0,0 +1,33 @@
+package org.hardboiled;
+
+import java.time.LocalDateTime;
+import java.util.Map;
+
+/**
+ * How many deals are waiting and in processing, overall and per chain, plus the oldest
+ * arrivalTime still held at each stage.
+ */
+public record DealSummary(long waiting,
+                          long inProcessing,
+                          Map<Stage, Long> stages,
+                          Map<Stage, LocalDateTime> oldestArrivalTime,
+                          Map<String, ChainSummary> chains) {
+
+    public record ChainSummary(long waiting, long inProcessing, Map<Stage, Long> stages) {
+
+        static ChainSummary of(final Map<Stage, Long> stages) {
+            return new ChainSummary(countWaiting(stages), countInProcessing(stages), stages);
+        }
+    }
+
+    static long countWaiting(final Map<Stage, Long> stages) {
+        return stages.getOrDefault(Stage.WAITING, 0L);
+    }
+
+    static long countInProcessing(final Map<Stage, Long> stages) {
+        return stages.entrySet().stream()
+                .filter(stage -> stage.getKey().isInProcessing())
+                .mapToLong(Map.Entry::getValue)
+                .sum();
+    }
+}
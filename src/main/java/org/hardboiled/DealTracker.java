@@ -1,29 +1,51 @@
 package org.hardboiled;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import io.quarkus.hibernate.orm.panache.PanacheEntityBase;
+import io.quarkus.hibernate.orm.panache.PanacheQuery;
+import io.quarkus.panache.common.Parameters;
+import io.quarkus.panache.common.Sort;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
 import lombok.ToString;
+import lombok.val;
 
 import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
 import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.PrePersist;
+import jakarta.persistence.PreUpdate;
+import jakarta.persistence.SequenceGenerator;
 import jakarta.persistence.Table;
+import jakarta.persistence.Version;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
 
 @Getter
 @Entity
-@Table(name = "dealtracker")
-@Builder
+@Table(name = "dealtracker", indexes = {
+        @Index(name = "dealtracker_dealreference_idx", columnList = "dealReference", unique = true),
+        @Index(name = "dealtracker_stage_chain_idx", columnList = "stage, chain, chainNumber")
+})
+@Builder(toBuilder = true)
 @NoArgsConstructor
 @AllArgsConstructor
 @ToString
 public class DealTracker extends PanacheEntityBase {
 
+    static final Sort CHAIN_ORDER = Sort.by("chain", Sort.Direction.Ascending, Sort.NullPrecedence.NULLS_FIRST)
+            .and("chainNumber")
+            .and("dealReference", Sort.Direction.Ascending, Sort.NullPrecedence.NULLS_FIRST);
+
     public DealTracker(
             final String dealReference,
             final String chain,
@@ -42,7 +64,8 @@ public class DealTracker extends PanacheEntityBase {
     }
 
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "dealtracker_seq")
+    @SequenceGenerator(name = "dealtracker_seq", sequenceName = "dealtracker_seq", allocationSize = 50)
     Long id;
             String dealReference;
             String chain;
@@ -55,4 +78,75 @@ public class DealTracker extends PanacheEntityBase {
     LocalDateTime vestCompleteTime;
     @Setter
     LocalDateTime appCompleteTime;
-}
\ No newline at end of file
+    @Enumerated(EnumType.STRING)
+    Stage stage;
+    /**
+     * Bumped by Hibernate on every update, so a transaction that read the row before another changed
+     * it fails to commit rather than writing over that change
+     */
+    @Version
+    @JsonIgnore
+    Long version;
+
+    @PrePersist
+    @PreUpdate
+    void updateStage() {
+        stage = Stage.of(this);
+    }
+
+    public static List<DealTracker> listWaiting() {
+        return list("stage", CHAIN_ORDER, Stage.WAITING);
+    }
+
+    public static List<DealTracker> listInProcessing() {
+        return list("stage in ?1", CHAIN_ORDER, EnumSet.complementOf(EnumSet.of(Stage.WAITING)));
+    }
+
+    /**
+     * Keyset query for the deals matching the filter that come after the cursor, in chain order
+     * @param after the position to carry on from, or null to start at the beginning
+     */
+    public static PanacheQuery<DealTracker> findAfter(final StageFilter filter, final DealCursor after) {
+        val conditions = new ArrayList<String>();
+        val parameters = new Parameters();
+        switch (filter) {
+            case WAITING -> {
+                conditions.add("stage = :waiting");
+                parameters.and("waiting", Stage.WAITING);
+            }
+            case IN_PROCESSING -> {
+                conditions.add("stage in :processing");
+                parameters.and("processing", EnumSet.complementOf(EnumSet.of(Stage.WAITING)));
+            }
+            case ALL -> {
+            }
+        }
+        if (after != null) {
+            conditions.add("(" + isAfter("chain", after.chain()) + " or (" + isSame("chain", after.chain())
+                    + " and (chainNumber > :chainNumber or (chainNumber = :chainNumber and "
+                    + isAfter("dealReference", after.dealReference()) + "))))");
+            parameters.and("chainNumber", after.chainNumber());
+            if (after.chain() != null) {
+                parameters.and("chain", after.chain());
+            }
+            if (after.dealReference() != null) {
+                parameters.and("dealReference", after.dealReference());
+            }
+        }
+        return conditions.isEmpty()
+                ? findAll(CHAIN_ORDER)
+                : find(String.join(" and ", conditions), CHAIN_ORDER, parameters);
+    }
+
+    /**
+     * Nulls come first in CHAIN_ORDER, so everything but null is after a null and nothing is after
+     * a value but greater values
+     */
+    private static String isAfter(final String column, final String value) {
+        return value == null ? column + " is not null" : column + " > :" + column;
+    }
+
+    private static String isSame(final String column, final String value) {
+        return value == null ? column + " is null" : column + " = :" + column;
+    }
+}
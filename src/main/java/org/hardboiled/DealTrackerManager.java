@@ -1,112 +1,326 @@
 package org.hardboiled;
 
+import io.quarkus.narayana.jta.QuarkusTransaction;
 import io.quarkus.runtime.Startup;
 import io.quarkus.runtime.StartupEvent;
+import jakarta.annotation.Priority;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.interceptor.Interceptor;
+import jakarta.persistence.OptimisticLockException;
+import jakarta.transaction.TransactionSynchronizationRegistry;
 import jakarta.transaction.Transactional;
 import java.time.LocalDateTime;
 import java.time.Month;
-import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
-import io.quarkus.hibernate.orm.panache.PanacheEntityBase;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.hibernate.StaleStateException;
+import org.hibernate.exception.ConstraintViolationException;
 
 @Slf4j
 @ApplicationScoped
 public class DealTrackerManager {
 
-    @Transactional()
-    public List<DealTracker> getAll() {
-        return DealTracker.findAll().list();
+    @Inject
+    DealStore dealStore;
+
+    @Inject
+    TransactionSynchronizationRegistry transactionSynchronizationRegistry;
+
+    @Inject
+    DatabaseDealPersistence databaseDealPersistence;
+
+    @Inject
+    LogDealPersistence logDealPersistence;
+
+    @Inject
+    MappedDealPersistence mappedDealPersistence;
+
+    @Inject
+    DealTrackerMetrics dealTrackerMetrics;
+
+    @Inject
+    CompletedDeals completedDeals;
+
+    @Inject
+    DealAudit dealAudit;
+
+    /**
+     * How deal changes are made durable - in the database, in an append-only log on local disk
+     * which keeps Hibernate/H2 out of the ingest path (the store is then the only queryable copy),
+     * or in place in a memory-mapped file of fixed-width records
+     */
+    @ConfigProperty(name = "dealtracker.persistence", defaultValue = "database")
+    PersistenceMode persistenceMode;
+
+    public enum PersistenceMode {
+        DATABASE,
+        LOG,
+        MAPPED
+    }
+
+    DealPersistence dealPersistence;
+
+    /**
+     * Where the waiting and in-processing lists come from - the local store, or the database
+     * when several instances share it and the local store only sees this instance's updates
+     */
+    @ConfigProperty(name = "dealtracker.stage-queries", defaultValue = "store")
+    StageQuerySource stageQuerySource;
+
+    public enum StageQuerySource {
+        STORE,
+        DATABASE
     }
 
-    Comparator<DealTracker> chainAndNumberAndTransactionRefSorter
-            = Comparator
-                .comparing(DealTracker::getChain)
-                .thenComparing(DealTracker::getChainNumber)
-                .thenComparing(DealTracker::getDealReference);
+    @ConfigProperty(name = "dealtracker.batch.chunk-size", defaultValue = "500")
+    int batchChunkSize;
+
+    /**
+     * How many times a transaction is tried before giving up when it keeps losing to other
+     * transactions changing the same deals
+     */
+    @ConfigProperty(name = "dealtracker.conflict.attempts", defaultValue = "5")
+    int conflictAttempts;
+
+    /**
+     * Load whatever is already in the database into the store so reads can be served from memory.
+     * Before anything else starts up, so the store listeners are added to a loaded store and the
+     * ingest sources only start once there's somewhere to apply their deals.
+     */
+    @Transactional
+    void loadStore(@Observes @Priority(Interceptor.Priority.LIBRARY_BEFORE) StartupEvent ev) {
+        dealPersistence = switch (persistenceMode) {
+            case DATABASE -> databaseDealPersistence;
+            case LOG -> logDealPersistence;
+            case MAPPED -> mappedDealPersistence;
+        };
+        dealStore.clear();
+        dealPersistence.load(dealStore);
+        log.info("Loaded {} deals into the store from the {}", dealStore.size(), persistenceMode);
+    }
+
+    public List<DealTracker> getAll() {
+        return recordQuery("all", StageQuerySource.STORE, dealStore.getAll());
+    }
 
     /**
      * We will take in a dealtracker item
      * If it doesn't exist then we will create it and store it (updating the Id)
      * If it does exist then we will update it where appCompleteTime is not set
      * and we will delete it where the appCompleteTime is set
+     * Runs in a transaction of its own, started again from the message as it came in if another
+     * transaction changing the same deal commits first
      * @param dealToProcess the deal to process
+     * @return what was done with the deal
      */
-    @Transactional
-    public void processDealTracker(DealTracker dealToProcess) {
-        log.info("Processing deal -> {}", dealToProcess.dealReference);
+    public ProcessOutcome processDealTracker(DealTracker dealToProcess) {
+        val id = dealToProcess.id;
+        return retryingConflicts(() -> {
+            dealToProcess.id = id;
+            return apply(dealToProcess);
+        });
+    }
+
+    /**
+     * Apply the same rules as processDealTracker to a sequence of deals, committing every
+     * dealtracker.batch.chunk-size deals so the inserts and updates go to the database in JDBC batches.
+     * If a chunk fails to commit then every deal in it is reported as FAILED and we carry on. When
+     * changes are durable without a transaction only the deal that failed is reported as FAILED, as
+     * those before it in the chunk are already kept.
+     * @param deals the deals to process, in order
+     * @return the outcome for each deal, in the same order
+     */
+    public List<BatchItemResult> processBatch(final Iterator<DealTracker> deals) {
+        val results = new ArrayList<BatchItemResult>();
+        val chunk = new ArrayList<DealTracker>(batchChunkSize);
+        while (deals.hasNext()) {
+            chunk.add(deals.next());
+            if (chunk.size() >= batchChunkSize) {
+                results.addAll(processChunk(chunk));
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            results.addAll(processChunk(chunk));
+        }
+        log.info("Processed batch of {} deals", results.size());
+        return results;
+    }
+
+    /**
+     * Check a deal can be kept before it's processed
+     * @throws IllegalArgumentException if it can't be, such as a dealReference too long for the mapped file
+     */
+    public void check(final DealTracker dealTracker) {
+        dealPersistence.check(dealTracker);
+    }
+
+    private List<BatchItemResult> processChunk(final List<DealTracker> chunk) {
+        // each change is durable as soon as it's made, so a failure can only fail its own deal
+        if (!dealPersistence.isTransactional()) {
+            return chunk.stream().map(this::applyOrFail).toList();
+        }
+        val ids = chunk.stream().map(DealTracker::getId).toList();
+        try {
+            return retryingConflicts(() -> {
+                for (int i = 0; i < chunk.size(); i++) {
+                    chunk.get(i).id = ids.get(i);
+                }
+                dealPersistence.prefetch(ids.stream().filter(Objects::nonNull).toList());
+                return chunk.stream()
+                        .map(dealTracker -> BatchItemResult.of(dealTracker, apply(dealTracker)))
+                        .toList();
+            });
+        } catch (RuntimeException e) {
+            log.error("Failed to process chunk of {} deals", chunk.size(), e);
+            return chunk.stream()
+                    .map(dealTracker -> BatchItemResult.of(dealTracker, ProcessOutcome.FAILED))
+                    .toList();
+        }
+    }
+
+    private BatchItemResult applyOrFail(final DealTracker dealTracker) {
+        try {
+            return BatchItemResult.of(dealTracker, apply(dealTracker));
+        } catch (RuntimeException e) {
+            log.error("Failed to process deal -> {}", dealTracker.dealReference, e);
+            return BatchItemResult.of(dealTracker, ProcessOutcome.FAILED);
+        }
+    }
+
+    private ProcessOutcome apply(final DealTracker dealToProcess) {
+        val start = System.nanoTime();
+        if (!dealAudit.isEnabled()) {
+            val outcome = applyMessage(dealToProcess);
+            dealTrackerMetrics.recordProcess(outcome, System.nanoTime() - start);
+            return outcome;
+        }
+        val oldStage = heldStage(dealToProcess.dealReference);
+        val outcome = applyMessage(dealToProcess);
+        dealTrackerMetrics.recordProcess(outcome, System.nanoTime() - start);
+        audit(dealToProcess, oldStage,
+                outcome == ProcessOutcome.DELETED ? Stage.APP_COMPLETE : heldStage(dealToProcess.dealReference), outcome);
+        return outcome;
+    }
+
+    private Stage heldStage(final String dealReference) {
+        return dealStore.findByDealReference(dealReference).map(held -> held.stage).orElse(null);
+    }
+
+    private ProcessOutcome applyMessage(final DealTracker dealToProcess) {
+        log.debug("Processing deal -> {}", dealToProcess.dealReference);
+        // no id but we already hold the reference - so treat it as an update to that deal
+        if (dealToProcess.id == null) {
+            dealStore.findByDealReference(dealToProcess.dealReference)
+                    .ifPresent(existing -> dealToProcess.id = existing.id);
+        }
+        // still no id - so if the deal has already completed this is a duplicate or late message for it
+        if (dealToProcess.id == null && completedDeals.shouldDrop(dealToProcess.dealReference)) {
+            return ProcessOutcome.DUPLICATE;
+        }
         // no id - so we assume it's new and needs persisting
         if (dealToProcess.id == null
           && dealToProcess.appCompleteTime == null) {
-            log.info("Persisting new DealTracker -> {}", dealToProcess.dealReference);
-            dealToProcess.persist();
-            return;
+            log.debug("Persisting new DealTracker -> {}", dealToProcess.dealReference);
+            insert(dealToProcess);
+            return ProcessOutcome.PERSISTED;
         }
         // If we got here then deal has already been persisted - so try and find it
-        val savedDealOptional = DealTracker
-                .<DealTracker>findAll()
-                .stream()
-                .filter(dealTracker -> dealTracker.id.equals(dealToProcess.id)).findFirst();
-
-        if (savedDealOptional.isEmpty()) {
+        if (dealStore.findById(dealToProcess.id).isEmpty()) {
             log.error("Could not find DealTracker id -> {}", dealToProcess.id);
-            return;
+            return ProcessOutcome.NOT_FOUND;
         }
 
-        // Optional will have a value or it would have returned in section above
-        val savedDeal = savedDealOptional.get();
-
-        // if we find the deal in the db but the new version is app complete then delete
+        // if we find the deal in the store but the new version is app complete then delete
         if (dealToProcess.appCompleteTime != null) {
-            log.info("  Deleting deal -> {}", savedDeal.dealReference);
-            savedDeal.delete();
-            return;
+            log.debug("  Deleting deal -> {}", dealToProcess.dealReference);
+            complete(dealToProcess);
+            return ProcessOutcome.DELETED;
         }
 
         // else update it
-        savedDeal.setArrivalTime(dealToProcess.getArrivalTime());
-        savedDeal.setSentTime(dealToProcess.getSentTime());
-        savedDeal.setVestCompleteTime(dealToProcess.getVestCompleteTime());
-        savedDeal.setAppCompleteTime(dealToProcess.getAppCompleteTime());
-        savedDeal.persist();
-        log.info("  Updating deal -> {}", savedDeal.dealReference);
+        val savedDeal = updateTimes(dealToProcess.id, dealToProcess);
+        if (savedDeal == null) {
+            log.error("Could not find DealTracker id -> {}", dealToProcess.id);
+            return ProcessOutcome.NOT_FOUND;
+        }
+        log.debug("  Updating deal -> {}", savedDeal.dealReference);
+        return ProcessOutcome.UPDATED;
     }
 
     @Transactional
     public List<DealTracker> getDealsInProcessing() {
-        log.info("In getDealsInProcessing");
-        return DealTracker
-                .<DealTracker>findAll()
-                .stream()
-                .filter(dealTrackerItem -> !(dealTrackerItem.sentTime == null
-                        && dealTrackerItem.vestCompleteTime == null
-                        && dealTrackerItem.appCompleteTime == null))
-                .sorted(chainAndNumberAndTransactionRefSorter)
-                .peek(dealTrackerItem -> log.info("  tracking deal -> {} {} {} {} {}", dealTrackerItem.dealReference,
-                        dealTrackerItem.arrivalTime, dealTrackerItem.sentTime, dealTrackerItem.vestCompleteTime,
-                        dealTrackerItem.appCompleteTime))
-                .toList();
+        log.debug("In getDealsInProcessing");
+        return recordQuery("inProcessing", stageQuerySource, stageQuerySource == StageQuerySource.DATABASE
+                ? DealTracker.listInProcessing()
+                : dealStore.getInProcessing());
     }
 
     @Transactional
     public List<DealTracker> getDealsWaiting() {
-        log.info("In getDealsWaiting");
-        return DealTracker
-                .<DealTracker>findAll()
-                .stream()
-                .filter(dealTrackerItem -> dealTrackerItem.sentTime == null
-                        && dealTrackerItem.vestCompleteTime == null
-                        && dealTrackerItem.appCompleteTime == null)
-                .sorted(chainAndNumberAndTransactionRefSorter)
-                .peek(dealTrackerItem -> log.info("  tracking deal -> {} {} {} {} {}", dealTrackerItem.dealReference,
-                        dealTrackerItem.arrivalTime, dealTrackerItem.sentTime, dealTrackerItem.vestCompleteTime,
-                        dealTrackerItem.appCompleteTime))
-                .toList();
+        log.debug("In getDealsWaiting");
+        return recordQuery("waiting", stageQuerySource, stageQuerySource == StageQuerySource.DATABASE
+                ? DealTracker.listWaiting()
+                : dealStore.getWaiting());
+    }
+
+    /**
+     * @param filter which deals to return
+     * @param after carry on from this position, or null to start at the beginning
+     * @param limit the most deals to return
+     * @return the next page of deals in chain/chainNumber/dealReference order
+     */
+    @Transactional
+    public List<DealTracker> getPage(final StageFilter filter, final DealCursor after, final int limit) {
+        return recordQuery("page", stageQuerySource, stageQuerySource == StageQuerySource.DATABASE
+                ? DealTracker.findAfter(filter, after).page(0, limit).list()
+                : dealStore.page(filter, after, limit));
+    }
+
+    /**
+     * Always from the store, which has secondary indexes for this that the database doesn't
+     * @return the deals matching the query, in its order
+     */
+    public List<DealTracker> query(final DealQuery query) {
+        return recordQuery("query", StageQuerySource.STORE, dealStore.query(query));
+    }
+
+    /**
+     * Hand each matching deal to the consumer in chain/chainNumber/dealReference order, one at a time.
+     * From the database this scrolls the query and detaches each entity once it's been handled, so
+     * nothing builds up however many deals there are.
+     */
+    @Transactional
+    public void forEach(final StageFilter filter, final Consumer<DealTracker> consumer) {
+        if (stageQuerySource == StageQuerySource.DATABASE) {
+            try (val deals = DealTracker.findAfter(filter, null).stream()) {
+                deals.forEach(dealTracker -> {
+                    consumer.accept(dealTracker);
+                    DealTracker.getEntityManager().detach(dealTracker);
+                });
+            }
+        } else {
+            dealStore.iterator(filter, null).forEachRemaining(consumer);
+        }
+    }
+
+    public StageQuerySource getStageQuerySource() {
+        return stageQuerySource;
+    }
+
+    public DealSummary getSummary() {
+        return dealStore.summary();
     }
 
     @Transactional
@@ -126,21 +340,23 @@ public class DealTrackerManager {
                 .vestCompleteTime(vestCompleteTime)
                 .appCompleteTime(appCompleteTime)
                 .build();
-        newDealTrackerItem.persist();
-        log.info("Created deal instance for -> {}", newDealTrackerItem.dealReference);
+        insert(newDealTrackerItem);
+        audit(newDealTrackerItem, null, heldStage(newDealTrackerItem.dealReference), ProcessOutcome.PERSISTED);
+        log.debug("Created deal instance for -> {}", newDealTrackerItem.dealReference);
         return newDealTrackerItem;
     }
 
-    @Transactional
     public void update(final DealTracker dealTrackerItem) {
-        val prevDealTrackerItem = DealTracker.<DealTracker>findById(dealTrackerItem.id);
+        val prevDealTrackerItem = retryingConflicts(() -> {
+            val oldStage = dealStore.findById(dealTrackerItem.id).map(held -> held.stage).orElse(null);
+            val savedDeal = updateTimes(dealTrackerItem.id, dealTrackerItem);
+            if (savedDeal != null) {
+                audit(savedDeal, oldStage, heldStage(savedDeal.dealReference), ProcessOutcome.UPDATED);
+            }
+            return savedDeal;
+        });
         if (prevDealTrackerItem != null) {
-            prevDealTrackerItem.setArrivalTime(dealTrackerItem.arrivalTime);
-            prevDealTrackerItem.setSentTime(dealTrackerItem.sentTime);
-            prevDealTrackerItem.setVestCompleteTime(dealTrackerItem.vestCompleteTime);
-            prevDealTrackerItem.setAppCompleteTime(dealTrackerItem.appCompleteTime);
-            prevDealTrackerItem.persist();
-            log.info("updated deal -> {}", prevDealTrackerItem.dealReference );
+            log.debug("updated deal -> {}", prevDealTrackerItem.dealReference );
         } else {
             log.error("Could not update DealTracker entity -> {}", dealTrackerItem.id);
         }
@@ -148,11 +364,8 @@ public class DealTrackerManager {
 
     @Transactional
     public void delete(final DealTracker dealTrackerItem) {
-        val prevDealTrackerItem = DealTracker.<DealTracker>findById(dealTrackerItem.id);
-
-        if (prevDealTrackerItem != null) {
-            prevDealTrackerItem.delete();
-            log.info("Deleted by entity -> {}", dealTrackerItem.id);
+        if (remove(dealTrackerItem.id)) {
+            log.debug("Deleted by entity -> {}", dealTrackerItem.id);
         } else {
             log.error("Could not delete DealTracker entity -> {}", dealTrackerItem.id);
         }
@@ -160,19 +373,182 @@ public class DealTrackerManager {
 
     @Transactional
     public void deleteByTransactionRef(final String transactionRef) {
-        val dealToDelete = DealTracker.<DealTracker>findAll()
-                .stream()
-                .filter(dealTracker -> dealTracker.dealReference.equals(transactionRef))
-                .findFirst();
-
-        dealToDelete.ifPresent(PanacheEntityBase::delete);
-        log.info("Deleted by transactionRef -> {}", transactionRef);
+        if (dealStore.findByDealReference(transactionRef).map(dealToDelete -> remove(dealToDelete.id)).orElse(false)) {
+            log.debug("Deleted by transactionRef -> {}", transactionRef);
+        }
     }
 
+    /**
+     * Remove a deal the stuck sweep has given up on, unless it has moved on a stage since
+     * @return true if it was removed
+     */
     @Transactional
+    public boolean expire(final Long id, final Stage stage) {
+        val current = dealStore.findById(id);
+        if (current.isEmpty() || current.get().stage != stage) {
+            return false;
+        }
+        log.debug("Expiring stuck deal -> {} at {}", current.get().dealReference, stage);
+        return remove(id);
+    }
+
     public Optional<DealTracker> getByTransactionRef(final String transactionRef) {
-        log.info("Getting by transRef -> {}", transactionRef);
-        return getAll().stream().filter(dealTracker -> dealTracker.dealReference.equals(transactionRef)).findFirst();
+        log.debug("Getting by transRef -> {}", transactionRef);
+        return dealStore.findByDealReference(transactionRef);
+    }
+
+    private List<DealTracker> recordQuery(final String query, final StageQuerySource source, final List<DealTracker> deals) {
+        dealTrackerMetrics.recordQuery(query, source, deals.size());
+        return deals;
+    }
+
+    private void insert(final DealTracker dealTracker) {
+        dealPersistence.change(() -> {
+            dealPersistence.insert(dealTracker);
+            storePut(dealTracker);
+            return dealTracker;
+        });
+    }
+
+    /**
+     * Merge the changes into the deal without taking a lock: the store's copy is swapped for the
+     * merged one with a compare-and-set, and if another writer swapped it first the changes are
+     * merged into theirs and tried again. Since times only move forward the order doesn't matter.
+     * @return the updated deal, or null if there's no deal with that id
+     */
+    private DealTracker updateTimes(final Long id, final DealTracker changes) {
+        return dealPersistence.change(() -> {
+            while (true) {
+                val held = dealStore.findById(id).orElse(null);
+                if (held == null) {
+                    return null;
+                }
+                val savedDeal = dealPersistence.update(held, changes);
+                if (savedDeal == null) {
+                    return null;
+                }
+                // a database row read before another transaction committed can be behind the store,
+                // keep what the store has - the row's version fails this transaction's commit anyway
+                val merged = held.toBuilder().build();
+                DealPersistence.mergeTimes(merged, savedDeal);
+                if (dealStore.replace(held, merged, storeTransaction())) {
+                    return savedDeal;
+                }
+                dealTrackerMetrics.recordConflict("store");
+            }
+        });
+    }
+
+    /**
+     * Run the work in a new transaction, and again from the start in another if it fails to commit
+     * because a transaction changing the same deal committed first - up to dealtracker.conflict.attempts
+     * times. When changes are durable without a transaction the work just runs, as the store's
+     * compare-and-set is all that's needed.
+     */
+    private <T> T retryingConflicts(final Supplier<T> work) {
+        if (!dealPersistence.isTransactional()) {
+            return work.get();
+        }
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return QuarkusTransaction.requiringNew().call(work::get);
+            } catch (RuntimeException e) {
+                if (attempt >= conflictAttempts || !isConflict(e)) {
+                    throw e;
+                }
+                dealTrackerMetrics.recordConflict("transaction");
+                log.debug("Retrying after a conflicting change, attempt {}", attempt + 1, e);
+            }
+        }
+    }
+
+    /**
+     * @return true if the failure, or anything behind it, is an update to a row whose version had
+     * moved on, or an insert of a dealReference another transaction has just inserted
+     */
+    static boolean isConflict(final Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof OptimisticLockException
+                    || cause instanceof StaleStateException
+                    || cause instanceof ConstraintViolationException) {
+                return true;
+            }
+            for (Throwable suppressed : cause.getSuppressed()) {
+                if (isConflict(suppressed)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if there was a deal with that id to remove
+     */
+    private boolean remove(final Long id) {
+        val held = dealStore.findById(id);
+        val removed = dealPersistence.change(() -> {
+            if (!dealPersistence.delete(id)) {
+                return false;
+            }
+            storeRemove(id);
+            return true;
+        });
+        if (removed) {
+            held.ifPresent(deal -> audit(deal, deal.stage, null, ProcessOutcome.DELETED));
+        }
+        return removed;
+    }
+
+    /**
+     * Add to the audit once the change commits, so attempts that roll back leave nothing behind
+     */
+    private void audit(final DealTracker deal, final Stage oldStage, final Stage newStage, final ProcessOutcome outcome) {
+        if (!dealAudit.isEnabled()) {
+            return;
+        }
+        val transaction = storeTransaction();
+        if (transaction == null) {
+            dealAudit.record(deal, oldStage, newStage, outcome);
+        } else {
+            transaction.afterCommit(() -> dealAudit.record(deal, oldStage, newStage, outcome));
+        }
+    }
+
+    private void complete(final DealTracker completed) {
+        dealPersistence.change(() -> {
+            if (dealPersistence.delete(completed.id)) {
+                dealStore.complete(completed, storeTransaction());
+            }
+            return null;
+        });
+    }
+
+    private void storePut(final DealTracker dealTracker) {
+        dealStore.put(dealTracker, storeTransaction());
+    }
+
+    private void storeRemove(final Long id) {
+        dealStore.remove(id, storeTransaction());
+    }
+
+    /**
+     * The store is updated as the entities change so later steps in the same transaction see them,
+     * this keeps hold of what was replaced so a rollback can put it back, and holds back the
+     * listeners until the changes commit.
+     * Null when the persistence isn't transactional - the change is already durable.
+     */
+    private DealStoreTransaction storeTransaction() {
+        if (!dealPersistence.isTransactional()) {
+            return null;
+        }
+        var transaction = (DealStoreTransaction) transactionSynchronizationRegistry.getResource(DealStoreTransaction.class);
+        if (transaction == null) {
+            transaction = new DealStoreTransaction(dealStore);
+            transactionSynchronizationRegistry.putResource(DealStoreTransaction.class, transaction);
+            transactionSynchronizationRegistry.registerInterposedSynchronization(transaction);
+        }
+        return transaction;
     }
 
     // uncomment to create an entry on start up - useful for then doing a get on so you can see the json produced
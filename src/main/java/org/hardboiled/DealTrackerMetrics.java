@@ -0,0 +1,170 @@
+package org.hardboiled;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.config.MeterFilter;
+import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.annotation.Priority;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.enterprise.inject.Produces;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import jakarta.interceptor.Interceptor;
+import lombok.val;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The dealtracker.* meters, exported with the rest at /q/metrics. HTTP endpoint timers come from
+ * Quarkus and Hibernate's own statistics from quarkus.hibernate-orm.metrics.enabled, both
+ * with percentile histograms switched on here.
+ */
+@ApplicationScoped
+public class DealTrackerMetrics {
+
+    static final String PREFIX = "dealtracker.";
+
+    @Inject
+    MeterRegistry meterRegistry;
+
+    @Inject
+    DealStore dealStore;
+
+    @Inject
+    IngestService ingestService;
+
+    /**
+     * A pair of gauges per chain can add up with a lot of chains
+     */
+    @ConfigProperty(name = "dealtracker.metrics.chain-gauges", defaultValue = "true")
+    boolean chainGauges;
+
+    private final Map<ProcessOutcome, Timer> processTimers = new EnumMap<>(ProcessOutcome.class);
+    private final Map<String, DistributionSummary> queryResults = new ConcurrentHashMap<>();
+    private final Map<String, Counter> conflicts = new ConcurrentHashMap<>();
+    private final Map<String, List<Gauge>> gaugedChains = new ConcurrentHashMap<>();
+
+    /**
+     * Percentile histograms for every timer here, the endpoints and the Hibernate/JDBC timings
+     */
+    @Produces
+    @Singleton
+    MeterFilter histograms() {
+        return new MeterFilter() {
+            @Override
+            public DistributionStatisticConfig configure(final Meter.Id id, final DistributionStatisticConfig config) {
+                if (id.getName().startsWith(PREFIX) || id.getName().startsWith("http.server.requests")) {
+                    return DistributionStatisticConfig.builder().percentilesHistogram(true).build().merge(config);
+                }
+                return config;
+            }
+        };
+    }
+
+    /**
+     * After the store has been loaded so the chain gauges start off with every chain
+     */
+    void onStart(@Observes @Priority(Interceptor.Priority.LIBRARY_AFTER) StartupEvent ev) {
+        for (ProcessOutcome outcome : ProcessOutcome.values()) {
+            processTimers.put(outcome, Timer.builder(PREFIX + "process")
+                    .description("Time to apply one deal message, by what was done with it")
+                    .tag("outcome", outcome.name().toLowerCase())
+                    .register(meterRegistry));
+        }
+        for (Stage stage : Stage.values()) {
+            Gauge.builder(PREFIX + "deals", dealStore, store -> store.count(stage))
+                    .description("Live deals at each stage")
+                    .tag("stage", stage.name().toLowerCase())
+                    .register(meterRegistry);
+        }
+        if (chainGauges) {
+            dealStore.getChains().forEach(this::updateChainGauges);
+            dealStore.addListener(transition -> updateChainGauges(Objects.requireNonNullElse(transition.chain(), "")));
+        }
+        ingestService.getPipeline().ifPresent(pipeline -> {
+            FunctionCounter.builder(PREFIX + "ingest.processed", pipeline, IngestPipeline::getProcessedCount)
+                    .register(meterRegistry);
+            FunctionCounter.builder(PREFIX + "ingest.failed", pipeline, IngestPipeline::getFailedCount)
+                    .register(meterRegistry);
+            Gauge.builder(PREFIX + "ingest.queued", pipeline, IngestPipeline::getQueueDepth)
+                    .register(meterRegistry);
+        });
+    }
+
+    public void recordProcess(final ProcessOutcome outcome, final long nanos) {
+        val timer = processTimers.get(outcome);
+        if (timer != null) {
+            timer.record(nanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * @param query which list was asked for
+     * @param source store or database
+     * @param count how many deals it returned
+     */
+    public void recordQuery(final String query, final DealTrackerManager.StageQuerySource source, final int count) {
+        queryResults.computeIfAbsent(query + "/" + source, key -> DistributionSummary.builder(PREFIX + "query.results")
+                .description("Deals returned per query")
+                .tag("query", query)
+                .tag("source", source.name().toLowerCase())
+                .register(meterRegistry)).record(count);
+    }
+
+    /**
+     * @param scope store for a compare-and-set on the store lost to another writer, transaction for a
+     * transaction that failed to commit over another's change and was retried
+     */
+    public void recordConflict(final String scope) {
+        conflicts.computeIfAbsent(scope, key -> Counter.builder(PREFIX + "update.conflicts")
+                .description("Deal updates that lost to a concurrent change and were merged and retried")
+                .tag("scope", scope)
+                .register(meterRegistry)).increment();
+    }
+
+    /**
+     * Gauge a chain while it has live deals and take its gauges away once it has none. Called after
+     * every change to the chain, so whichever call comes last sees how it ended up.
+     */
+    private void updateChainGauges(final String chain) {
+        if (dealStore.count(chain) > 0 == gaugedChains.containsKey(chain)) {
+            return;
+        }
+        synchronized (gaugedChains) {
+            if (dealStore.count(chain) > 0) {
+                gaugedChains.computeIfAbsent(chain, this::gaugeChain);
+            } else {
+                val gauges = gaugedChains.remove(chain);
+                if (gauges != null) {
+                    gauges.forEach(meterRegistry::remove);
+                }
+            }
+        }
+    }
+
+    private List<Gauge> gaugeChain(final String chain) {
+        val gauges = new ArrayList<Gauge>();
+        for (Stage stage : Stage.values()) {
+            gauges.add(Gauge.builder(PREFIX + "chain.deals", dealStore, store -> store.count(chain, stage))
+                    .description("Live deals at each stage on each chain")
+                    .tag("chain", chain)
+                    .tag("stage", stage.name().toLowerCase())
+                    .register(meterRegistry));
+        }
+        return gauges;
+    }
+}
@@ -1,6 +1,17 @@
 package org.hardboiled;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SequenceWriter;
+import io.quarkus.runtime.configuration.DurationConverter;
+import io.smallrye.common.annotation.Blocking;
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import io.vertx.ext.web.RoutingContext;
 import jakarta.inject.Inject;
+import jakarta.ws.rs.BadRequestException;
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.DELETE;
 import jakarta.ws.rs.GET;
@@ -8,11 +19,36 @@ import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.PathParam;
 import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.EntityTag;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Request;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+import jakarta.ws.rs.core.UriInfo;
+import jakarta.ws.rs.sse.OutboundSseEvent;
+import jakarta.ws.rs.sse.Sse;
 import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.jboss.resteasy.reactive.RestHeader;
+import org.jboss.resteasy.reactive.RestQuery;
+import org.jboss.resteasy.reactive.RestResponse;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 @Slf4j
 @Path("/dealtracker")
@@ -20,44 +56,513 @@ import java.util.Optional;
 @Consumes(MediaType.APPLICATION_JSON)
 public class DealTrackerResource {
 
+    static final String NDJSON = "application/x-ndjson";
+    static final String NEXT_CURSOR = "X-Next-Cursor";
+    static final int DEFAULT_PAGE_SIZE = 100;
+    private static final TypeReference<List<StuckDeals.StuckDeal>> STUCK_DEALS = new TypeReference<>() {
+    };
+    private static final TypeReference<List<DealTracker>> DEALS = new TypeReference<>() {
+    };
+    private static final TypeReference<List<DealAuditRing.Entry>> AUDIT_ENTRIES = new TypeReference<>() {
+    };
+
     @Inject
     DealTrackerManager dealTrackerManager;
 
+    @Inject
+    DealLanes dealLanes;
+
+    @Inject
+    DealTransitionFeed dealTransitionFeed;
+
+    @Inject
+    DealLatencies dealLatencies;
+
+    @Inject
+    StuckDeals stuckDeals;
+
+    @Inject
+    DealArchive dealArchive;
+
+    @Inject
+    DealQueryCache dealQueryCache;
+
+    @Inject
+    DealExecution dealExecution;
+
+    @Inject
+    DealShards dealShards;
+
+    @Inject
+    DealAudit dealAudit;
+
+    @Inject
+    ObjectMapper objectMapper;
+
     @GET
     @Path("/getAll")
-    public List<DealTracker> getAll() {
-        return dealTrackerManager.getAll();
+    public Uni<RestResponse<List<DealTracker>>> getAll(@RestQuery Integer limit, @RestQuery String cursor,
+                                                       @RestHeader(DealShards.FORWARDED) String forwarded) {
+        return dealExecution.call(DealAdmission.Workload.QUERY, () -> {
+            if (limit == null && cursor == null) {
+                if (!dealShards.isEnabled()) {
+                    return RestResponse.ok(dealTrackerManager.getAll());
+                }
+                // the members' answers are merged, so each has to be in chain order
+                val all = dealTrackerManager.getPage(StageFilter.ALL, null, Integer.MAX_VALUE);
+                return dealShards.isCoordinating(forwarded)
+                        ? RestResponse.ok(dealShards.gatherDeals("/dealtracker/getAll", all, Integer.MAX_VALUE))
+                        : RestResponse.ok(all);
+            }
+            return page(StageFilter.ALL, "/dealtracker/getAll", limit, cursor, forwarded);
+        });
     }
 
     @GET
     @Path("/get/{transactionRef}")
-    public Optional<DealTracker> getByTransactionRef(@PathParam("transactionRef") String transactionRef) {
-        return dealTrackerManager.getByTransactionRef(transactionRef);
+    public Uni<Optional<DealTracker>> getByTransactionRef(@PathParam("transactionRef") String transactionRef,
+                                                         @RestHeader(DealShards.FORWARDED) String forwarded) {
+        return dealExecution.call(DealAdmission.Workload.QUERY, () -> {
+            if (!dealShards.isCoordinating(forwarded)) {
+                return dealTrackerManager.getByTransactionRef(transactionRef);
+            }
+            val owner = dealShards.ownerOfReference(transactionRef);
+            if (owner.isPresent() && !dealShards.isSelf(owner.get())) {
+                return dealShards.find(owner.get(), transactionRef);
+            }
+            val local = dealTrackerManager.getByTransactionRef(transactionRef);
+            return local.isPresent() || owner.isPresent() ? local : dealShards.findElsewhere(transactionRef);
+        });
     }
 
     @GET
     @Path("/getDealsWaiting")
-    public List<DealTracker> getDealsWaiting() {
-        return dealTrackerManager.getDealsWaiting();
+    public Uni<RestResponse<?>> getDealsWaiting(@RestQuery Integer limit, @RestQuery String cursor,
+                                                @RestHeader(DealShards.FORWARDED) String forwarded,
+                                                @Context Request request) {
+        return dealExecution.call(DealAdmission.Workload.QUERY, () -> {
+            if (limit == null && cursor == null) {
+                if (dealShards.isCoordinating(forwarded)) {
+                    return RestResponse.ok(dealShards.gatherDeals("/dealtracker/getDealsWaiting",
+                            dealTrackerManager.getDealsWaiting(), Integer.MAX_VALUE));
+                }
+                return stageQueriesCacheable()
+                        ? cached("waiting", dealTrackerManager::getDealsWaiting, request)
+                        : RestResponse.ok(dealTrackerManager.getDealsWaiting());
+            }
+            return page(StageFilter.WAITING, "/dealtracker/getDealsWaiting", limit, cursor, forwarded);
+        });
     }
 
     @GET
     @Path("/getDealsInProcessing")
-    public List<DealTracker> getDealsInProcessing() {
-        return dealTrackerManager.getDealsInProcessing();
+    public Uni<RestResponse<?>> getDealsInProcessing(@RestQuery Integer limit, @RestQuery String cursor,
+                                                     @RestHeader(DealShards.FORWARDED) String forwarded,
+                                                     @Context Request request) {
+        return dealExecution.call(DealAdmission.Workload.QUERY, () -> {
+            if (limit == null && cursor == null) {
+                if (dealShards.isCoordinating(forwarded)) {
+                    return RestResponse.ok(dealShards.gatherDeals("/dealtracker/getDealsInProcessing",
+                            dealTrackerManager.getDealsInProcessing(), Integer.MAX_VALUE));
+                }
+                return stageQueriesCacheable()
+                        ? cached("inProcessing", dealTrackerManager::getDealsInProcessing, request)
+                        : RestResponse.ok(dealTrackerManager.getDealsInProcessing());
+            }
+            return page(StageFilter.IN_PROCESSING, "/dealtracker/getDealsInProcessing", limit, cursor, forwarded);
+        });
+    }
+
+    /**
+     * Live deals matching every filter given, from the store's secondary indexes. When sharded every member
+     * is asked the same query and the first limit of their merged answers are returned.
+     * @param chainNumberFrom with chainNumberTo, the chainNumber range - both ends included
+     * @param stage comma separated stages, e.g. sent,vest_complete
+     * @param arrivedFrom with arrivedTo, sentFrom/To and vestCompletedFrom/To, time ranges including from but not to
+     * @param arrivedWithin arrived in this long up to now, e.g. 1h - instead of arrivedFrom
+     * @param sort chain (the default), arrival or arrival-desc
+     */
+    @GET
+    @Path("/query")
+    public Uni<List<DealTracker>> query(@RestQuery String chain,
+                                        @RestQuery Integer chainNumberFrom, @RestQuery Integer chainNumberTo,
+                                        @RestQuery String stage,
+                                        @RestQuery LocalDateTime arrivedFrom, @RestQuery LocalDateTime arrivedTo,
+                                        @RestQuery String arrivedWithin,
+                                        @RestQuery LocalDateTime sentFrom, @RestQuery LocalDateTime sentTo,
+                                        @RestQuery LocalDateTime vestCompletedFrom,
+                                        @RestQuery LocalDateTime vestCompletedTo,
+                                        @RestQuery String sort, @RestQuery Integer limit,
+                                        @RestHeader(DealShards.FORWARDED) String forwarded,
+                                        @Context UriInfo uriInfo) {
+        val maxDeals = limit == null ? DEFAULT_PAGE_SIZE : limit;
+        if (maxDeals < 1) {
+            throw new BadRequestException("limit must be at least 1");
+        }
+        val within = parseDuration("arrivedWithin", arrivedWithin);
+        if (within != null && arrivedFrom != null) {
+            throw new BadRequestException("give arrivedFrom or arrivedWithin, not both");
+        }
+        val query = DealQuery.builder()
+                .chain(chain)
+                .chainNumberFrom(chainNumberFrom)
+                .chainNumberTo(chainNumberTo)
+                .stages(parseStages(stage))
+                .arrived(new DealQuery.TimeRange(within == null ? arrivedFrom : LocalDateTime.now().minus(within),
+                        arrivedTo))
+                .sent(new DealQuery.TimeRange(sentFrom, sentTo))
+                .vestCompleted(new DealQuery.TimeRange(vestCompletedFrom, vestCompletedTo))
+                .sort(parseEnum("sort", DealQuery.Sort.class, sort))
+                .limit(maxDeals)
+                .build();
+        return dealExecution.call(DealAdmission.Workload.QUERY, () -> {
+            val local = dealTrackerManager.query(query);
+            if (!dealShards.isCoordinating(forwarded)) {
+                return local;
+            }
+            // every member works out arrivedWithin from its own clock, close enough for a window of minutes or more
+            return dealShards.gatherDeals("/dealtracker/query?" + uriInfo.getRequestUri().getRawQuery(), local,
+                    query.sort().order(), maxDeals);
+        });
+    }
+
+    /**
+     * Writes every matching deal as newline delimited JSON as it's read, rather than building the whole list first.
+     * Let in as a query before it's invoked, and holds its place until the response ends.
+     * When sharded this instance's deals come first, then each other member's in turn.
+     * @param filter all, waiting or in_processing
+     */
+    @GET
+    @Path("/stream/{filter}")
+    @Produces(NDJSON)
+    @DealAdmission.AdmittedFirst
+    public StreamingOutput stream(@PathParam("filter") StageFilter filter,
+                                  @RestHeader(DealShards.FORWARDED) String forwarded,
+                                  @Context RoutingContext routingContext) {
+        val permit = DealAdmission.permit(routingContext);
+        return output -> {
+            try (SequenceWriter writer = objectMapper.writer()
+                    .without(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+                    .withRootValueSeparator("\n")
+                    .writeValues(output)) {
+                final Consumer<DealTracker> write = dealTracker -> {
+                    try {
+                        writer.write(dealTracker);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                };
+                dealTrackerManager.forEach(filter, write);
+                if (dealShards.isCoordinating(forwarded)) {
+                    dealShards.gatherStream("/dealtracker/stream/" + filter.name(), write);
+                }
+            } finally {
+                DealAdmission.release(permit);
+            }
+        };
+    }
+
+    /**
+     * Server sent events: a snapshot event for each current deal, then a transition event whenever a deal
+     * changes stage or leaves. A resync event means some changes were dropped and a fresh snapshot follows.
+     * Let in as a query before it's invoked, as the stream's headers go out as soon as it returns and a 429 or
+     * 503 can't follow them, holding its place while the snapshot is sent but not for the changes after. When
+     * sharded it's only this instance's deals, so it's turned away with 501 unless the caller subscribes to
+     * each member with the X-Dealtracker-Forwarded header.
+     * @param chain only send deals on this chain
+     */
+    @GET
+    @Path("/feed")
+    @Produces(MediaType.SERVER_SENT_EVENTS)
+    @Blocking
+    @DealAdmission.AdmittedFirst
+    public Multi<OutboundSseEvent> feed(@RestQuery String chain, @RestHeader(DealShards.FORWARDED) String forwarded,
+                                        @Context Sse sse, @Context RoutingContext routingContext) {
+        rejectWhenCoordinating("feed", forwarded);
+        val permit = DealAdmission.permit(routingContext);
+        return dealTransitionFeed.events(chain, () -> DealAdmission.release(permit),
+                        (name, transition) -> transition == null
+                                ? sse.newEventBuilder().name(name).data("").build()
+                                : sse.newEventBuilder()
+                                        .name(name)
+                                        .mediaType(MediaType.APPLICATION_JSON_TYPE)
+                                        .data(DealTransition.class, transition)
+                                        .build())
+                .onTermination().invoke(() -> DealAdmission.release(permit));
+    }
+
+    @GET
+    @Path("/summary")
+    public Uni<RestResponse<?>> getSummary(@RestHeader(DealShards.FORWARDED) String forwarded,
+                                           @Context Request request) {
+        return dealExecution.call(DealAdmission.Workload.QUERY, () -> {
+            if (dealShards.isCoordinating(forwarded)) {
+                return RestResponse.ok(dealShards.gatherSummary(dealTrackerManager.getSummary()));
+            }
+            return dealQueryCache.isEnabled()
+                    ? cached("summary", dealTrackerManager::getSummary, request)
+                    : RestResponse.ok(dealTrackerManager.getSummary());
+        });
+    }
+
+    /**
+     * Percentiles of the time deals spend between stages, and end to end, for each chain and overall. When sharded
+     * they can't be merged from each member's, so it's turned away with 501 unless the caller asks each member with
+     * the X-Dealtracker-Forwarded header.
+     * @param chain just this chain
+     * @param window how far back to go, e.g. 15m - up to dealtracker.latencies.window, which is the default
+     */
+    @GET
+    @Path("/latencies")
+    public Uni<DealLatencies.Report> getLatencies(@RestQuery String chain, @RestQuery String window,
+                                             @RestHeader(DealShards.FORWARDED) String forwarded) {
+        rejectWhenCoordinating("latencies", forwarded);
+        val within = parseDuration("window", window);
+        return dealExecution.call(DealAdmission.Workload.QUERY, () -> dealLatencies.report(chain, within));
+    }
+
+    /**
+     * Deals that have been at their current stage too long, longest first - from every member when sharded
+     * @param olderThan how long counts as too long, e.g. 10m - without it each chain's dealtracker.stuck threshold is used
+     * @param chain just this chain
+     */
+    @GET
+    @Path("/stuck")
+    public Uni<List<StuckDeals.StuckDeal>> getStuck(@RestQuery String olderThan, @RestQuery String chain,
+                                              @RestQuery Integer limit,
+                                              @RestHeader(DealShards.FORWARDED) String forwarded,
+                                              @Context UriInfo uriInfo) {
+        val maxDeals = limit == null ? DEFAULT_PAGE_SIZE : limit;
+        if (maxDeals < 1) {
+            throw new BadRequestException("limit must be at least 1");
+        }
+        val age = parseDuration("olderThan", olderThan);
+        return dealExecution.call(DealAdmission.Workload.QUERY, () -> {
+            val local = age == null
+                    ? stuckDeals.pastThreshold(chain, maxDeals)
+                    : stuckDeals.olderThan(age, chain, maxDeals);
+            return dealShards.isCoordinating(forwarded)
+                    ? dealShards.gatherList(withQuery("/dealtracker/stuck", uriInfo), local, STUCK_DEALS,
+                            StuckDeals.LONGEST_FIRST, maxDeals)
+                    : local;
+        });
+    }
+
+    /**
+     * Completed deals from the archive, earliest completed first - from every member's archive when sharded
+     * @param from completed at or after this, e.g. 2024-06-01T00:00
+     * @param to completed before this
+     * @param chain just this chain
+     * @param dealReference just this deal
+     */
+    @GET
+    @Path("/archive")
+    public Uni<List<DealTracker>> getArchive(@RestQuery LocalDateTime from, @RestQuery LocalDateTime to,
+                                        @RestQuery String chain, @RestQuery String dealReference,
+                                        @RestQuery Integer limit,
+                                        @RestHeader(DealShards.FORWARDED) String forwarded,
+                                        @Context UriInfo uriInfo) {
+        val maxDeals = limit == null ? DEFAULT_PAGE_SIZE : limit;
+        if (maxDeals < 1) {
+            throw new BadRequestException("limit must be at least 1");
+        }
+        return dealExecution.call(DealAdmission.Workload.QUERY, () -> {
+            val local = dealArchive.query(from, to, chain, dealReference, maxDeals);
+            return dealShards.isCoordinating(forwarded)
+                    ? dealShards.gatherList(withQuery("/dealtracker/archive", uriInfo), local, DEALS,
+                            DealArchive.COMPLETED_ORDER, maxDeals)
+                    : local;
+        });
+    }
+
+    /**
+     * What has happened to a deal recently - each message processed for it and its deletion, oldest first.
+     * Only as far back as the audit ring goes, older records are in the dealtracker.audit files. When sharded
+     * every member's records for the deal are merged, as the deal may have been on more than one.
+     * @param limit the most records to return, the latest ones
+     */
+    @GET
+    @Path("/audit/{transactionRef}")
+    public Uni<List<DealAuditRing.Entry>> getAudit(@PathParam("transactionRef") String transactionRef,
+                                              @RestQuery Integer limit,
+                                              @RestHeader(DealShards.FORWARDED) String forwarded) {
+        val maxRecords = limit == null ? DEFAULT_PAGE_SIZE : limit;
+        if (maxRecords < 1) {
+            throw new BadRequestException("limit must be at least 1");
+        }
+        return dealExecution.call(DealAdmission.Workload.QUERY, () -> {
+            val local = dealAudit.find(transactionRef, maxRecords);
+            if (!dealShards.isCoordinating(forwarded)) {
+                return local;
+            }
+            val merged = dealShards.gatherList("/dealtracker/audit/" + DealShards.encode(transactionRef)
+                    + "?limit=" + maxRecords, local, AUDIT_ENTRIES, DealAudit.OLDEST_FIRST, Integer.MAX_VALUE);
+            return merged.subList(Math.max(0, merged.size() - maxRecords), merged.size());
+        });
     }
 
     @POST
     @Path("/process")
-    public void processDealTrackerMessage(DealTracker dealTracker) {
-        log.info("Process called for deal -> {}", dealTracker);
-        dealTrackerManager.processDealTracker(dealTracker);
+    public Uni<Void> processDealTrackerMessage(DealTracker dealTracker,
+                                              @RestHeader(DealShards.FORWARDED) String forwarded) {
+        log.debug("Process called for deal -> {}", dealTracker);
+        if (dealShards.isCoordinating(forwarded)) {
+            val owner = dealShards.ownerOf(dealTracker);
+            if (!dealShards.isSelf(owner)) {
+                return dealExecution.run(DealAdmission.Workload.INGEST,
+                        () -> dealShards.forwardProcess(owner, dealTracker));
+            }
+        }
+        try {
+            dealTrackerManager.check(dealTracker);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        }
+        return dealExecution.run(DealAdmission.Workload.INGEST, () -> dealLanes.process(dealTracker));
+    }
+
+    /**
+     * Takes either newline delimited JSON deals or a JSON array of them, reading them as they arrive
+     */
+    @POST
+    @Path("/processBatch")
+    @Consumes({NDJSON, MediaType.APPLICATION_JSON})
+    @DealAdmission.AdmittedFirst(DealAdmission.Workload.INGEST)
+    public List<BatchItemResult> processBatch(InputStream body, @RestHeader(DealShards.FORWARDED) String forwarded,
+                                              @Context RoutingContext routingContext) throws IOException {
+        // counts as one piece of ingest however many deals it holds
+        val permit = DealAdmission.permit(routingContext);
+        try (MappingIterator<DealTracker> deals = objectMapper.readerFor(DealTracker.class).readValues(body)) {
+            return dealShards.isCoordinating(forwarded) ? dealShards.processBatch(deals) : dealLanes.processBatch(deals);
+        } finally {
+            DealAdmission.release(permit);
+        }
     }
 
     @DELETE
     @Path("/delete/{transactionRef}")
-    public void deleteByTransactionRef(@PathParam("transactionRef") String transactionRef) {
-        dealTrackerManager.deleteByTransactionRef(transactionRef);
+    public Uni<Void> deleteByTransactionRef(@PathParam("transactionRef") String transactionRef,
+                                            @RestHeader(DealShards.FORWARDED) String forwarded) {
+        return dealExecution.run(DealAdmission.Workload.INGEST, () -> {
+            if (dealShards.isCoordinating(forwarded)) {
+                // without the owner from the dealReference every member is told, and those without the deal ignore it
+                val owner = dealShards.ownerOfReference(transactionRef);
+                for (String member : owner.map(List::of).orElseGet(dealShards::getOthers)) {
+                    if (!dealShards.isSelf(member)) {
+                        dealShards.forwardDelete(member, transactionRef);
+                    }
+                }
+                if (owner.isPresent() && !dealShards.isSelf(owner.get())) {
+                    return;
+                }
+            }
+            dealLanes.run(transactionRef, () -> {
+                dealTrackerManager.deleteByTransactionRef(transactionRef);
+                return null;
+            });
+        });
+    }
+
+    /**
+     * Turn away a request that can only be answered per member, when it would have to be gathered
+     */
+    private void rejectWhenCoordinating(final String what, final String forwarded) {
+        if (dealShards.isCoordinating(forwarded)) {
+            throw new WebApplicationException("The " + what + " can't be merged across shard members, ask each member"
+                    + " with the " + DealShards.FORWARDED + " header", Response.Status.NOT_IMPLEMENTED);
+        }
+    }
+
+    private static String withQuery(final String path, final UriInfo uriInfo) {
+        val query = uriInfo.getRequestUri().getRawQuery();
+        return query == null ? path : path + "?" + query;
+    }
+
+    private static Set<Stage> parseStages(final String stages) {
+        if (stages == null || stages.isBlank()) {
+            return null;
+        }
+        val parsed = EnumSet.noneOf(Stage.class);
+        for (String stage : stages.split(",")) {
+            parsed.add(parseEnum("stage", Stage.class, stage));
+        }
+        return parsed;
+    }
+
+    /**
+     * @return the constant named by the value, ignoring case and reading - as _, or null if there's no value
+     */
+    private static <E extends Enum<E>> E parseEnum(final String name, final Class<E> type, final String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Enum.valueOf(type, value.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(name + " must be one of " + Arrays.stream(type.getEnumConstants())
+                    .map(constant -> constant.name().toLowerCase(Locale.ROOT).replace('_', '-'))
+                    .toList());
+        }
+    }
+
+    private static Duration parseDuration(final String name, final String value) {
+        try {
+            return value == null ? null : DurationConverter.parseDuration(value);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(name + " must be a duration such as 15m or PT15M");
+        }
+    }
+
+    /**
+     * The lists can only be cached when they come from the store, as the database also has other
+     * instances' changes which don't move the store's version on
+     */
+    private boolean stageQueriesCacheable() {
+        return dealQueryCache.isEnabled()
+                && dealTrackerManager.getStageQuerySource() == DealTrackerManager.StageQuerySource.STORE;
+    }
+
+    /**
+     * The query's cached JSON with its ETag, or just 304 Not Modified when the caller already has it
+     */
+    private RestResponse<?> cached(final String query, final Supplier<?> result, final Request request) {
+        val notModified = request.evaluatePreconditions(
+                new EntityTag(dealQueryCache.currentEtag()));
+        if (notModified != null) {
+            return RestResponse.ResponseBuilder.create(RestResponse.Status.NOT_MODIFIED)
+                    .tag(dealQueryCache.currentEtag())
+                    .header(HttpHeaders.CACHE_CONTROL, "no-cache")
+                    .build();
+        }
+        val entry = dealQueryCache.get(query, result);
+        return RestResponse.ResponseBuilder.ok(entry.json(), MediaType.APPLICATION_JSON_TYPE)
+                .tag(entry.etag())
+                .header(HttpHeaders.CACHE_CONTROL, "no-cache")
+                .build();
+    }
+
+    /**
+     * One page of deals in chain/chainNumber/dealReference order, with the cursor for the next page
+     * in the X-Next-Cursor header when there may be more. When sharded each member is asked for the
+     * same page and the first pageSize of their merged answers are returned.
+     */
+    private RestResponse<List<DealTracker>> page(final StageFilter filter, final String path, final Integer limit,
+                                                 final String cursor, final String forwarded) {
+        val pageSize = limit == null ? DEFAULT_PAGE_SIZE : limit;
+        if (pageSize < 1) {
+            throw new BadRequestException("limit must be at least 1");
+        }
+        val local = dealTrackerManager.getPage(filter,
+                cursor == null ? null : DealCursor.decode(cursor), pageSize);
+        val deals = dealShards.isCoordinating(forwarded)
+                ? dealShards.gatherDeals(path + "?limit=" + pageSize
+                        + (cursor == null ? "" : "&cursor=" + DealShards.encode(cursor)), local, pageSize)
+                : local;
+        val response = RestResponse.ResponseBuilder.ok(deals);
+        if (deals.size() == pageSize) {
+            response.header(NEXT_CURSOR, DealCursor.after(deals.getLast()).encode());
+        }
+        return response.build();
     }
 
 }
@@ -0,0 +1,48 @@
+package org.hardboiled;
+
+import java.time.LocalDateTime;
+
+/**
+ * A change to one live deal as seen by the store: the stage it was at (null if it's new), the stage
+ * it's at now, its timestamps after the change and whether it has left the store.
+ * A deal completed by processDealTracker leaves with newStage APP_COMPLETE, one deleted directly
+ * leaves at the stage it had reached.
+ */
+public record DealTransition(Long id,
+                             String dealReference,
+                             String chain,
+                             int chainNumber,
+                             Stage oldStage,
+                             Stage newStage,
+                             LocalDateTime arrivalTime,
+                             LocalDateTime sentTime,
+                             LocalDateTime vestCompleteTime,
+                             LocalDateTime appCompleteTime,
+                             boolean removed) {
+
+    /**
+     * @param previous the deal before the change, or null if it's new
+     * @param current the deal after the change
+     * @param removed true if the change took the deal out of the store
+     */
+    static DealTransition of(final DealTracker previous, final DealTracker current, final boolean removed) {
+        return new DealTransition(current.id, current.dealReference, current.chain, current.chainNumber,
+                previous == null ? null : previous.stage, current.stage,
+                current.arrivalTime, current.sentTime, current.vestCompleteTime, current.appCompleteTime,
+                removed);
+    }
+
+    public boolean isStageChange() {
+        return removed || oldStage != newStage;
+    }
+
+    /**
+     * @return this transition followed by the later one, as a single transition
+     */
+    DealTransition then(final DealTransition later) {
+        return new DealTransition(later.id, later.dealReference, later.chain, later.chainNumber,
+                oldStage, later.newStage,
+                later.arrivalTime, later.sentTime, later.vestCompleteTime, later.appCompleteTime,
+                later.removed);
+    }
+}
@@ -0,0 +1,180 @@
+package org.hardboiled;
+
+import io.quarkus.runtime.StartupEvent;
+import io.smallrye.mutiny.Multi;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+
+/**
+ * Fans deal stage changes out to subscribers such as SSE clients. Each subscriber gets the
+ * current deals first, then the changes since. Changes wait in a per-subscriber buffer that
+ * keeps one entry per deal, so a slow subscriber sees the net change rather than every step.
+ * If that buffer fills the subscriber is told to resync and sent the current deals again.
+ */
+@Slf4j
+@ApplicationScoped
+public class DealTransitionFeed {
+
+    static final String SNAPSHOT = "snapshot";
+    static final String TRANSITION = "transition";
+    static final String RESYNC = "resync";
+
+    @Inject
+    DealStore dealStore;
+
+    @ConfigProperty(name = "dealtracker.feed.interval", defaultValue = "250ms")
+    Duration interval;
+
+    @ConfigProperty(name = "dealtracker.feed.buffer", defaultValue = "10000")
+    int bufferSize;
+
+    private final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+
+    void onStart(@Observes StartupEvent ev) {
+        dealStore.addListener(this::publish);
+    }
+
+    /**
+     * Changes for one subscriber that haven't been sent yet, at most one per deal
+     */
+    static class Subscription {
+
+        private final String chain;
+        private final int capacity;
+        private final Map<Long, DealTransition> pending = new LinkedHashMap<>();
+        private boolean overflowed;
+
+        Subscription(final String chain, final int capacity) {
+            this.chain = chain;
+            this.capacity = capacity;
+        }
+
+        boolean accepts(final String dealChain) {
+            return chain == null || chain.equals(dealChain);
+        }
+
+        synchronized void offer(final DealTransition transition) {
+            if (overflowed) {
+                return;
+            }
+            val earlier = pending.remove(transition.id());
+            if (earlier == null && pending.size() >= capacity) {
+                overflowed = true;
+                pending.clear();
+                return;
+            }
+            pending.put(transition.id(), earlier == null ? transition : earlier.then(transition));
+        }
+
+        /**
+         * @return the changes waiting to be sent, or null if the subscriber fell too far behind and needs to resync
+         */
+        synchronized List<DealTransition> drain() {
+            if (overflowed) {
+                overflowed = false;
+                return null;
+            }
+            val transitions = new ArrayList<>(pending.values());
+            pending.clear();
+            return transitions;
+        }
+    }
+
+    /**
+     * @param chain only send deals on this chain, or every chain if null
+     * @param snapshotSent called once the current deals have been sent, the costly part
+     * @param toEvent builds an event from its name (snapshot, transition or resync) and the deal
+     */
+    public <E> Multi<E> events(final String chain, final Runnable snapshotSent,
+                               final BiFunction<String, DealTransition, E> toEvent) {
+        return Multi.createFrom().deferred(() -> {
+            val subscription = subscribe(chain);
+            val snapshot = Multi.createFrom().iterable(() -> snapshot(chain))
+                    .map(transition -> toEvent.apply(SNAPSHOT, transition))
+                    .onCompletion().invoke(snapshotSent);
+            val changes = Multi.createFrom().ticks().every(interval)
+                    .onOverflow().drop()
+                    .onItem().transformToIterable(tick -> drain(subscription, chain, toEvent));
+            return Multi.createBy().concatenating().streams(snapshot, changes)
+                    .onTermination().invoke(() -> subscriptions.remove(subscription));
+        });
+    }
+
+    Subscription subscribe(final String chain) {
+        val subscription = new Subscription(chain, bufferSize);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    int subscriberCount() {
+        return subscriptions.size();
+    }
+
+    private void publish(final DealTransition transition) {
+        if (!transition.isStageChange()) {
+            return;
+        }
+        for (Subscription subscription : subscriptions) {
+            if (subscription.accepts(transition.chain())) {
+                subscription.offer(transition);
+            }
+        }
+    }
+
+    private <E> List<E> drain(final Subscription subscription, final String chain,
+                              final BiFunction<String, DealTransition, E> toEvent) {
+        val transitions = subscription.drain();
+        if (transitions != null) {
+            return transitions.stream().map(transition -> toEvent.apply(TRANSITION, transition)).toList();
+        }
+        log.warn("Feed subscriber for chain {} fell behind, resending the current deals", chain);
+        val events = new ArrayList<E>();
+        events.add(toEvent.apply(RESYNC, null));
+        snapshot(chain).forEachRemaining(transition -> events.add(toEvent.apply(SNAPSHOT, transition)));
+        return events;
+    }
+
+    private Iterator<DealTransition> snapshot(final String chain) {
+        val deals = dealStore.iterator(StageFilter.ALL, null);
+        return new Iterator<>() {
+            private DealTracker next = advance();
+
+            private DealTracker advance() {
+                while (deals.hasNext()) {
+                    val dealTracker = deals.next();
+                    if (chain == null || Objects.equals(chain, dealTracker.chain)) {
+                        return dealTracker;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public DealTransition next() {
+                val current = next;
+                next = advance();
+                return DealTransition.of(null, current, false);
+            }
+        };
+    }
+}
@@ -0,0 +1,70 @@
+package org.hardboiled;
+
+import lombok.val;
+import org.HdrHistogram.AbstractHistogram;
+import org.HdrHistogram.PackedHistogram;
+
+import java.util.Arrays;
+
+/**
+ * Dwell times for one chain and stage over a rolling window, kept as a ring of histograms that
+ * each cover one slice of the window. Recording only touches the current slice and reading merges
+ * the slices still in the window, so the memory used doesn't grow with the number of deals.
+ */
+class DwellWindow {
+
+    private final long sliceMillis;
+    private final long[] sliceIds;
+    private final PackedHistogram[] slices;
+
+    /**
+     * @param sliceMillis how much time each slice covers
+     * @param sliceCount how many slices make up the window
+     * @param highestTrackableMillis the longest dwell time kept exactly, longer ones are counted as this
+     * @param precision significant digits kept for each value
+     */
+    DwellWindow(final long sliceMillis, final int sliceCount, final long highestTrackableMillis, final int precision) {
+        this.sliceMillis = sliceMillis;
+        this.sliceIds = new long[sliceCount];
+        this.slices = new PackedHistogram[sliceCount];
+        Arrays.fill(sliceIds, -1);
+        for (int i = 0; i < sliceCount; i++) {
+            slices[i] = new PackedHistogram(highestTrackableMillis, precision);
+        }
+    }
+
+    synchronized void record(final long millis, final long nowMillis) {
+        val sliceId = nowMillis / sliceMillis;
+        val slot = (int) (sliceId % slices.length);
+        if (sliceIds[slot] != sliceId) {
+            slices[slot].reset();
+            sliceIds[slot] = sliceId;
+        }
+        slices[slot].recordValue(Math.min(millis, slices[slot].getHighestTrackableValue()));
+    }
+
+    /**
+     * Add the newest sliceCount slices (the current one included) into the target
+     */
+    synchronized void addTo(final AbstractHistogram target, final long nowMillis, final int sliceCount) {
+        val current = nowMillis / sliceMillis;
+        for (int i = 0; i < slices.length; i++) {
+            if (sliceIds[i] <= current && sliceIds[i] > current - sliceCount) {
+                target.add(slices[i]);
+            }
+        }
+    }
+
+    /**
+     * @return whether every slice has left the window
+     */
+    synchronized boolean isEmpty(final long nowMillis) {
+        val oldest = nowMillis / sliceMillis - slices.length;
+        for (long sliceId : sliceIds) {
+            if (sliceId > oldest) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,51 @@
+package org.hardboiled;
+
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * Replays deals from a file of newline delimited JSON (or a JSON array), once, in file order.
+ */
+@Slf4j
+public class FileDealEventSource implements DealEventSource {
+
+    private final MappingIterator<DealTracker> deals;
+    private boolean finished;
+
+    public FileDealEventSource(final Path path, final ObjectMapper objectMapper) throws IOException {
+        log.info("Replaying deals from {}", path);
+        val in = Files.newInputStream(path);
+        try {
+            this.deals = objectMapper.readerFor(DealTracker.class).readValues(in);
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public DealTracker poll(final Duration timeout) throws IOException {
+        if (!finished && deals.hasNextValue()) {
+            return deals.nextValue();
+        }
+        finished = true;
+        return null;
+    }
+
+    @Override
+    public boolean isFinished() {
+        return finished;
+    }
+
+    @Override
+    public void close() throws IOException {
+        deals.close();
+    }
+}
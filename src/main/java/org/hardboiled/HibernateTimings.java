@@ -0,0 +1,62 @@
+package org.hardboiled;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.quarkus.runtime.annotations.RegisterForReflection;
+import org.hibernate.SessionEventListener;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times the JDBC work Hibernate does for each session - single statements, batches and flushes - as
+ * dealtracker.hibernate timers. Hibernate creates one per session from hibernate.session.events.auto
+ * so it uses the global registry rather than injection.
+ */
+@RegisterForReflection
+public class HibernateTimings implements SessionEventListener {
+
+    private static final Timer STATEMENT = timer("statement");
+    private static final Timer BATCH = timer("batch");
+    private static final Timer FLUSH = timer("flush");
+
+    private long statementStart;
+    private long batchStart;
+    private long flushStart;
+
+    private static Timer timer(final String phase) {
+        return Timer.builder(DealTrackerMetrics.PREFIX + "hibernate")
+                .description("Time spent in JDBC by Hibernate")
+                .tag("phase", phase)
+                .register(Metrics.globalRegistry);
+    }
+
+    @Override
+    public void jdbcExecuteStatementStart() {
+        statementStart = System.nanoTime();
+    }
+
+    @Override
+    public void jdbcExecuteStatementEnd() {
+        STATEMENT.record(System.nanoTime() - statementStart, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void jdbcExecuteBatchStart() {
+        batchStart = System.nanoTime();
+    }
+
+    @Override
+    public void jdbcExecuteBatchEnd() {
+        BATCH.record(System.nanoTime() - batchStart, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void flushStart() {
+        flushStart = System.nanoTime();
+    }
+
+    @Override
+    public void flushEnd(final int numberOfEntities, final int numberOfCollections) {
+        FLUSH.record(System.nanoTime() - flushStart, TimeUnit.NANOSECONDS);
+    }
+}
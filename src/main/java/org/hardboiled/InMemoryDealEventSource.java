@@ -0,0 +1,37 @@
+package org.hardboiled;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded in-memory queue of deals, used to drive the ingest pipeline without a broker.
+ * Publishers block once the queue is full so they can't outrun the pipeline.
+ */
+@ApplicationScoped
+public class InMemoryDealEventSource implements DealEventSource {
+
+    private final BlockingQueue<DealTracker> queue;
+
+    public InMemoryDealEventSource(@ConfigProperty(name = "dealtracker.ingest.memory.capacity", defaultValue = "10000")
+                                   final int capacity) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    public void publish(final DealTracker dealTracker) throws InterruptedException {
+        queue.put(dealTracker);
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    @Override
+    public DealTracker poll(final Duration timeout) throws InterruptedException {
+        return queue.poll(timeout.toNanos(), TimeUnit.NANOSECONDS);
+    }
+}
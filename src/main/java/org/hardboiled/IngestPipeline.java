@@ -0,0 +1,155 @@
+package org.hardboiled;
+
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToIntFunction;
+
+/**
+ * Pulls deals from a source and hands them to a sink in micro-batches.
+ * Deals are spread over a fixed number of lanes by dealReference so messages for one deal stay
+ * in order while different deals are processed in parallel. Each lane has a bounded queue and
+ * the reader blocks when one fills up, so a slow sink stops us pulling from the source.
+ */
+@Slf4j
+public class IngestPipeline implements AutoCloseable {
+
+    private final DealEventSource source;
+    private final ToIntFunction<List<DealTracker>> sink;
+    private final int batchSize;
+    private final Duration maxWait;
+    private final List<BlockingQueue<DealTracker>> lanes = new ArrayList<>();
+    private final List<Thread> laneThreads = new ArrayList<>();
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private Thread reader;
+    private volatile boolean reading;
+    private volatile boolean running;
+
+    /**
+     * @param source where to pull the deals from
+     * @param sink what to do with each batch, returning how many of its deals failed
+     * @param concurrency how many lanes, i.e. batches in flight at once
+     * @param batchSize the most deals handed to the sink at once
+     * @param maxWait how long a lane waits to fill a batch before handing over what it has
+     * @param laneCapacity how many deals can queue on a lane before the reader blocks
+     */
+    public IngestPipeline(final DealEventSource source,
+                          final ToIntFunction<List<DealTracker>> sink,
+                          final int concurrency,
+                          final int batchSize,
+                          final Duration maxWait,
+                          final int laneCapacity) {
+        this.source = source;
+        this.sink = sink;
+        this.batchSize = batchSize;
+        this.maxWait = maxWait;
+        for (int i = 0; i < concurrency; i++) {
+            lanes.add(new ArrayBlockingQueue<>(laneCapacity));
+        }
+    }
+
+    public void start() {
+        running = true;
+        reading = true;
+        for (int i = 0; i < lanes.size(); i++) {
+            val lane = lanes.get(i);
+            laneThreads.add(Thread.ofPlatform().name("ingest-lane-" + i).daemon().start(() -> runLane(lane)));
+        }
+        reader = Thread.ofPlatform().name("ingest-reader").daemon().start(this::runReader);
+    }
+
+    public long getProcessedCount() {
+        return processed.sum();
+    }
+
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    public int getQueueDepth() {
+        return lanes.stream().mapToInt(BlockingQueue::size).sum();
+    }
+
+    private void runReader() {
+        try {
+            while (reading && !source.isFinished()) {
+                val dealTracker = source.poll(maxWait);
+                if (dealTracker != null) {
+                    laneFor(dealTracker).put(dealTracker);
+                }
+            }
+            log.info("Ingest source finished");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("Ingest source failed, no more deals will be read", e);
+        }
+    }
+
+    private void runLane(final BlockingQueue<DealTracker> lane) {
+        val batch = new ArrayList<DealTracker>(batchSize);
+        try {
+            while (running || !lane.isEmpty()) {
+                val first = lane.poll(maxWait.toNanos(), TimeUnit.NANOSECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                val deadline = System.nanoTime() + maxWait.toNanos();
+                while (batch.size() < batchSize) {
+                    val next = lane.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                process(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void process(final List<DealTracker> batch) {
+        try {
+            val failedDeals = sink.applyAsInt(batch);
+            processed.add(batch.size() - failedDeals);
+            failed.add(failedDeals);
+        } catch (RuntimeException e) {
+            failed.add(batch.size());
+            log.error("Failed to process batch of {} deals", batch.size(), e);
+        }
+    }
+
+    private BlockingQueue<DealTracker> laneFor(final DealTracker dealTracker) {
+        return lanes.get(Math.floorMod(Objects.hashCode(dealTracker.dealReference), lanes.size()));
+    }
+
+    /**
+     * Stop reading, let the lanes finish what they've already queued then close the source. The
+     * reader is stopped first as it can be waiting for room on a lane with a deal it has already
+     * taken from the source, which the lanes have to still be there to take.
+     */
+    @Override
+    public void close() throws Exception {
+        reading = false;
+        if (reader != null) {
+            reader.join();
+        }
+        running = false;
+        for (Thread thread : laneThreads) {
+            thread.join();
+        }
+        source.close();
+    }
+}
@@ -0,0 +1,101 @@
+package org.hardboiled;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.annotation.Priority;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.interceptor.Interceptor;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Optional;
+
+/**
+ * Starts the ingest pipeline in front of the deal lanes when dealtracker.ingest.source is set.
+ */
+@Slf4j
+@ApplicationScoped
+public class IngestService {
+
+    public enum SourceType {
+        NONE,
+        MEMORY,
+        FILE
+    }
+
+    @Inject
+    DealLanes dealLanes;
+
+    @Inject
+    DealShards dealShards;
+
+    @Inject
+    InMemoryDealEventSource inMemoryDealEventSource;
+
+    @Inject
+    ObjectMapper objectMapper;
+
+    @ConfigProperty(name = "dealtracker.ingest.source", defaultValue = "none")
+    SourceType sourceType;
+
+    @ConfigProperty(name = "dealtracker.ingest.file")
+    Optional<String> file;
+
+    @ConfigProperty(name = "dealtracker.ingest.concurrency", defaultValue = "4")
+    int concurrency;
+
+    @ConfigProperty(name = "dealtracker.ingest.batch-size", defaultValue = "500")
+    int batchSize;
+
+    @ConfigProperty(name = "dealtracker.ingest.max-wait", defaultValue = "50ms")
+    Duration maxWait;
+
+    @ConfigProperty(name = "dealtracker.ingest.lane-capacity", defaultValue = "10000")
+    int laneCapacity;
+
+    IngestPipeline pipeline;
+
+    /**
+     * Last, once the store has been loaded and its listeners added, so no deal is applied before then
+     */
+    void onStart(@Observes @Priority(Interceptor.Priority.LIBRARY_AFTER) StartupEvent ev) throws Exception {
+        final DealEventSource source = switch (sourceType) {
+            case NONE -> null;
+            case MEMORY -> inMemoryDealEventSource;
+            case FILE -> new FileDealEventSource(file.map(Path::of).orElseThrow(() ->
+                    new IllegalStateException("dealtracker.ingest.file must be set for the file source")), objectMapper);
+        };
+        if (source == null) {
+            return;
+        }
+        pipeline = new IngestPipeline(source,
+                batch -> {
+                    val results = dealShards.isEnabled()
+                            ? dealShards.processBatch(batch.iterator())
+                            : dealLanes.processBatch(batch.iterator());
+                    return (int) results.stream()
+                            .filter(result -> result.outcome() == ProcessOutcome.FAILED)
+                            .count();
+                },
+                concurrency, batchSize, maxWait, laneCapacity);
+        pipeline.start();
+        log.info("Started {} ingest with {} lanes, batches of up to {} every {}",
+                sourceType, concurrency, batchSize, maxWait);
+    }
+
+    void onStop(@Observes ShutdownEvent ev) throws Exception {
+        if (pipeline != null) {
+            pipeline.close();
+        }
+    }
+
+    public Optional<IngestPipeline> getPipeline() {
+        return Optional.ofNullable(pipeline);
+    }
+}
@@ -0,0 +1,22 @@
+package org.hardboiled;
+
+import org.HdrHistogram.AbstractHistogram;
+
+/**
+ * Percentiles of a set of dwell times, in milliseconds
+ */
+public record LatencyPercentiles(long count, long p50, long p90, long p95, long p99, long p999, long max) {
+
+    static LatencyPercentiles of(final AbstractHistogram histogram) {
+        if (histogram.getTotalCount() == 0) {
+            return new LatencyPercentiles(0, 0, 0, 0, 0, 0, 0);
+        }
+        return new LatencyPercentiles(histogram.getTotalCount(),
+                histogram.getValueAtPercentile(50),
+                histogram.getValueAtPercentile(90),
+                histogram.getValueAtPercentile(95),
+                histogram.getValueAtPercentile(99),
+                histogram.getValueAtPercentile(99.9),
+                histogram.getMaxValue());
+    }
+}
@@ -0,0 +1,189 @@
+package org.hardboiled;
+
+import io.quarkus.runtime.configuration.MemorySize;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the deals in an append-only DealLog instead of the database. The store is the only copy
+ * of the live state in memory. On startup it is rebuilt from the newest snapshot plus the log
+ * segments written since, and snapshots are taken in the background so that tail stays short.
+ */
+@Slf4j
+@ApplicationScoped
+public class LogDealPersistence implements DealPersistence {
+
+    @Inject
+    DealStore dealStore;
+
+    @ConfigProperty(name = "dealtracker.log.directory", defaultValue = "dealtracker-log")
+    String directory;
+
+    @ConfigProperty(name = "dealtracker.log.fsync", defaultValue = "always")
+    DealLog.FsyncPolicy fsyncPolicy;
+
+    @ConfigProperty(name = "dealtracker.log.fsync-interval", defaultValue = "100ms")
+    Duration fsyncInterval;
+
+    @ConfigProperty(name = "dealtracker.log.segment-size", defaultValue = "64M")
+    MemorySize segmentSize;
+
+    @ConfigProperty(name = "dealtracker.snapshot.interval", defaultValue = "5m")
+    Duration snapshotInterval;
+
+    @ConfigProperty(name = "dealtracker.snapshot.retain", defaultValue = "2")
+    int snapshotRetain;
+
+    private final AtomicLong lastId = new AtomicLong();
+    /**
+     * Changes hold the read side from appending to the log until the store has them, a snapshot
+     * takes the write side just long enough to start a new segment. That way every change is
+     * either already in the store when the snapshot starts or in a segment replayed after it.
+     */
+    private final ReentrantReadWriteLock snapshotBarrier = new ReentrantReadWriteLock();
+    private DealLog dealLog;
+    private DealSnapshots dealSnapshots;
+    private ScheduledExecutorService snapshotScheduler;
+
+    @Override
+    public boolean isTransactional() {
+        return false;
+    }
+
+    @Override
+    public <T> T change(final Supplier<T> change) {
+        snapshotBarrier.readLock().lock();
+        try {
+            return change.get();
+        } finally {
+            snapshotBarrier.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void load(final DealStore dealStore) {
+        val path = Path.of(directory);
+        dealLog = new DealLog(path, fsyncPolicy, fsyncInterval, segmentSize.asLongValue());
+        dealSnapshots = new DealSnapshots(path);
+        try {
+            val started = System.nanoTime();
+            val snapshotDeals = new ArrayList<DealTracker>();
+            val snapshot = dealSnapshots.loadNewest(snapshotDeals::add, snapshotDeals::clear);
+            dealStore.load(snapshotDeals);
+            snapshotDeals.clear();
+            val snapshotLoaded = System.nanoTime();
+            snapshot.ifPresent(loaded -> lastId.set(loaded.lastId()));
+            val records = dealLog.open(new DealLog.Replay() {
+                @Override
+                public void put(final DealTracker dealTracker) {
+                    lastId.accumulateAndGet(dealTracker.id, Math::max);
+                    dealStore.put(dealTracker);
+                }
+
+                @Override
+                public void remove(final Long id) {
+                    dealStore.remove(id);
+                }
+            }, snapshot.map(DealSnapshots.Snapshot::segment).orElse(0L));
+            log.info("Ready with {} deals in {} ms - {} from snapshot in {} ms, then {} log records in {} ms",
+                    dealStore.size(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started),
+                    snapshot.map(DealSnapshots.Snapshot::deals).orElse(0L),
+                    TimeUnit.NANOSECONDS.toMillis(snapshotLoaded - started),
+                    records,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - snapshotLoaded));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open the deal log in " + directory, e);
+        }
+        if (!snapshotInterval.isZero()) {
+            snapshotScheduler = Executors.newSingleThreadScheduledExecutor(
+                    Thread.ofPlatform().name("deal-snapshot").daemon().factory());
+            snapshotScheduler.scheduleWithFixedDelay(this::snapshotQuietly,
+                    snapshotInterval.toMillis(), snapshotInterval.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Write the live deals to a new snapshot then drop the snapshots and log segments no longer needed.
+     * Ingest is only held up while the log moves to a new segment, not while the deals are written.
+     */
+    public DealSnapshots.Snapshot snapshot() throws IOException {
+        val started = System.nanoTime();
+        final long segment;
+        final long snapshotLastId;
+        snapshotBarrier.writeLock().lock();
+        try {
+            segment = dealLog.roll();
+            snapshotLastId = lastId.get();
+        } finally {
+            snapshotBarrier.writeLock().unlock();
+        }
+        val snapshot = dealSnapshots.write(segment, snapshotLastId, dealStore.getAll());
+        val oldestKept = dealSnapshots.retain(snapshotRetain);
+        if (oldestKept.isPresent()) {
+            dealLog.deleteSegmentsBefore(oldestKept.get());
+        }
+        log.info("Snapshot of {} deals at segment {} took {} ms", snapshot.deals(), segment,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+        return snapshot;
+    }
+
+    private void snapshotQuietly() {
+        try {
+            snapshot();
+        } catch (IOException | RuntimeException e) {
+            log.error("Failed to snapshot the deal store", e);
+        }
+    }
+
+    @Override
+    public void insert(final DealTracker dealTracker) {
+        dealTracker.id = lastId.incrementAndGet();
+        dealLog.appendPut(dealTracker);
+    }
+
+    @Override
+    public DealTracker update(final DealTracker held, final DealTracker changes) {
+        val updated = held.toBuilder().build();
+        // already has every time in changes, nothing to log
+        if (DealPersistence.mergeTimes(updated, changes)) {
+            dealLog.appendPut(updated);
+        }
+        return updated;
+    }
+
+    @Override
+    public boolean delete(final Long id) {
+        if (dealStore.findById(id).isEmpty()) {
+            return false;
+        }
+        dealLog.appendRemove(id);
+        return true;
+    }
+
+    @PreDestroy
+    void close() throws Exception {
+        if (snapshotScheduler != null) {
+            snapshotScheduler.shutdownNow();
+        }
+        if (dealLog != null) {
+            dealLog.close();
+        }
+    }
+}
@@ -0,0 +1,906 @@
+package org.hardboiled;
+
+import lombok.val;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+
+/**
+ * Live deals as fixed-width records in a memory-mapped file, outside the heap. In mapped mode the
+ * records are the deals: the DealStore looks deals up, lists and queries them here, and a deal only
+ * becomes a DealTracker object when it's handed to a caller. A record holds the id, the chain as a
+ * number from a dictionary kept beside the file, the chainNumber, the four times as epoch micros
+ * and up to referenceBytes of the dealReference in UTF-8. A deal's id carries its record number so
+ * it's found by id with arithmetic, and an open-addressing table of record numbers finds it by
+ * dealReference. Freed records are reused, with a generation in the id so an old id never finds
+ * the deal that took its place.
+ * <p>
+ * Inserts, frees and lookups by dealReference are serialised, as they share the free list and the
+ * table. A change to a deal's times only locks one of STRIPES locks, picked by its record, so
+ * changes to different deals can run at once. Other reads take no lock: a record's id is read
+ * before and after the rest of it, and a record freed or reused in between is passed over.
+ */
+final class MappedDealFile implements AutoCloseable {
+
+    private static final int MAGIC = 0x44544d44;
+    private static final int VERSION = 1;
+    private static final int HEADER = 64;
+    private static final int HEADER_RECORD_BYTES = 8;
+    private static final int HEADER_REFERENCE_BYTES = 12;
+    private static final int HEADER_RECORDS = 16;
+
+    private static final int ID = 0;
+    private static final int GENERATION = 8;
+    private static final int CHAIN = 12;
+    private static final int CHAIN_NUMBER = 16;
+    private static final int REFERENCE_LENGTH = 20;
+    private static final int ARRIVAL = 24;
+    private static final int SENT = 32;
+    private static final int VEST_COMPLETE = 40;
+    private static final int APP_COMPLETE = 48;
+    private static final int REFERENCE = 56;
+    private static final int NO_REFERENCE = -1;
+    private static final int NO_CHAIN = 0;
+    private static final Stage[] STAGES = Stage.values();
+    private static final int FREE = 0;
+    private static final int INITIAL_TABLE = 1024;
+    private static final long NOT_SET = Long.MIN_VALUE;
+    private static final int STRIPES = 64;
+    /**
+     * The id and times as whole longs, so a reader never sees half of one being written
+     */
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    /**
+     * The orders select can give the deals in, as DealStore's comparators
+     */
+    enum Order {
+        CHAIN,
+        ARRIVAL,
+        ARRIVAL_DESC,
+        STAGE_TIME
+    }
+
+    /**
+     * Compares two records in place
+     */
+    private interface RecordOrder {
+        int compare(int left, int right);
+    }
+
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final int referenceBytes;
+    private final int recordBytes;
+    private final int chunkShift;
+    private final int chunkMask;
+    private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+
+    private final Path chainsPath;
+    private final FileOutputStream chainsFile;
+    private final DataOutputStream chainsOut;
+    private final Map<String, Integer> chainIds = new HashMap<>();
+    /**
+     * Indexed by chain id, with null for no chain at NO_CHAIN
+     */
+    private volatile String[] chains = new String[]{null};
+
+    /**
+     * Record number + 1 of each deal with a dealReference, 0 for an empty position
+     */
+    private int[] table = new int[INITIAL_TABLE];
+    private int[] free = new int[64];
+    private int freeCount;
+    private volatile int records;
+    private volatile int size;
+    private final Object[] stripes = new Object[STRIPES];
+
+    /**
+     * @param path the file, created if it isn't there - the chain dictionary goes in path.chains
+     * @param referenceBytes the longest dealReference that can be held, in UTF-8 bytes
+     * @param chunkRecords records mapped at a time, rounded up to a power of two - the file grows a chunk at a time
+     */
+    MappedDealFile(final Path path, final int referenceBytes, final int chunkRecords) throws IOException {
+        this.referenceBytes = referenceBytes;
+        this.recordBytes = (REFERENCE + referenceBytes + 7) / 8 * 8;
+        val roundedChunk = Integer.highestOneBit(Math.max(1, chunkRecords) * 2 - 1);
+        if ((long) roundedChunk * recordBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("A chunk of " + roundedChunk + " records is too big to map");
+        }
+        this.chunkShift = Integer.numberOfTrailingZeros(roundedChunk);
+        this.chunkMask = roundedChunk - 1;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        val created = !Files.exists(path);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+        if (created) {
+            header.putInt(HEADER_RECORD_BYTES, recordBytes);
+            header.putInt(HEADER_REFERENCE_BYTES, referenceBytes);
+            header.putInt(HEADER_RECORDS, 0);
+            header.putInt(4, VERSION);
+            header.putInt(0, MAGIC);
+        } else if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            channel.close();
+            throw new IOException(path + " isn't a deal file");
+        } else if (header.getInt(HEADER_REFERENCE_BYTES) != referenceBytes) {
+            channel.close();
+            throw new IOException(path + " holds dealReferences of up to " + header.getInt(HEADER_REFERENCE_BYTES)
+                    + " bytes, not " + referenceBytes);
+        }
+        chainsPath = path.resolveSibling(path.getFileName() + ".chains");
+        readChains();
+        chainsFile = new FileOutputStream(chainsPath.toFile(), true);
+        chainsOut = new DataOutputStream(chainsFile);
+        recover();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the dealReference is too long to hold
+     */
+    void checkReference(final String dealReference) {
+        if (dealReference != null && dealReference.getBytes(StandardCharsets.UTF_8).length > referenceBytes) {
+            throw new IllegalArgumentException("dealReference " + dealReference + " is longer than "
+                    + referenceBytes + " bytes");
+        }
+    }
+
+    /**
+     * Write a new deal to a free record, assigning its id
+     * @throws IllegalArgumentException if its dealReference is too long to hold
+     */
+    synchronized void insert(final DealTracker dealTracker) throws IOException {
+        checkReference(dealTracker.dealReference);
+        val reference = dealTracker.dealReference == null
+                ? null
+                : dealTracker.dealReference.getBytes(StandardCharsets.UTF_8);
+        val chain = chainId(dealTracker.chain);
+        val record = freeCount > 0 ? free[--freeCount] : allocate();
+        val buffer = chunk(record);
+        val base = offset(record);
+        val generation = Math.max(1, buffer.getInt(base + GENERATION) + 1);
+        buffer.putInt(base + GENERATION, generation);
+        buffer.putInt(base + CHAIN, chain);
+        buffer.putInt(base + CHAIN_NUMBER, dealTracker.chainNumber);
+        buffer.putLong(base + ARRIVAL, DealRecordCodec.toMicros(dealTracker.arrivalTime));
+        buffer.putLong(base + SENT, DealRecordCodec.toMicros(dealTracker.sentTime));
+        buffer.putLong(base + VEST_COMPLETE, DealRecordCodec.toMicros(dealTracker.vestCompleteTime));
+        buffer.putLong(base + APP_COMPLETE, DealRecordCodec.toMicros(dealTracker.appCompleteTime));
+        buffer.putInt(base + REFERENCE_LENGTH, reference == null ? NO_REFERENCE : reference.length);
+        if (reference != null) {
+            buffer.put(base + REFERENCE, reference);
+        }
+        // the id goes last, a record without one is free
+        val id = (long) generation << 32 | record;
+        LONGS.setRelease(buffer, base + ID, id);
+        dealTracker.id = id;
+        if (reference != null) {
+            tableAdd(record, hash(reference));
+        }
+        size++;
+    }
+
+    /**
+     * Write the deal's times to its record, but only if the record still holds expected's - a
+     * compare-and-set, as times only move forward a record with the same ones hasn't changed
+     * @param expected the deal as read, with its id
+     * @param dealTracker the same deal with its times changed
+     * @return false if the deal has changed or gone since expected was read
+     */
+    boolean replace(final DealTracker expected, final DealTracker dealTracker) {
+        val record = recordOf(expected.id);
+        if (record < 0) {
+            return false;
+        }
+        val buffer = chunk(record);
+        val base = offset(record);
+        synchronized (stripe(record)) {
+            if (idAt(record) != expected.id
+                    || timeAt(buffer, base + ARRIVAL) != DealRecordCodec.toMicros(expected.arrivalTime)
+                    || timeAt(buffer, base + SENT) != DealRecordCodec.toMicros(expected.sentTime)
+                    || timeAt(buffer, base + VEST_COMPLETE) != DealRecordCodec.toMicros(expected.vestCompleteTime)
+                    || timeAt(buffer, base + APP_COMPLETE) != DealRecordCodec.toMicros(expected.appCompleteTime)) {
+                return false;
+            }
+            LONGS.setOpaque(buffer, base + ARRIVAL, DealRecordCodec.toMicros(dealTracker.arrivalTime));
+            LONGS.setOpaque(buffer, base + SENT, DealRecordCodec.toMicros(dealTracker.sentTime));
+            LONGS.setOpaque(buffer, base + VEST_COMPLETE, DealRecordCodec.toMicros(dealTracker.vestCompleteTime));
+            LONGS.setOpaque(buffer, base + APP_COMPLETE, DealRecordCodec.toMicros(dealTracker.appCompleteTime));
+            return true;
+        }
+    }
+
+    /**
+     * Free the deal's record
+     * @return the deal as it was, or null if there's no deal with that id
+     */
+    synchronized DealTracker remove(final Long id) {
+        val record = recordOf(id);
+        if (record < 0) {
+            return null;
+        }
+        final DealTracker previous;
+        synchronized (stripe(record)) {
+            previous = read(record, id);
+            if (chunk(record).getInt(offset(record) + REFERENCE_LENGTH) != NO_REFERENCE) {
+                tableRemove(record);
+            }
+            LONGS.setRelease(chunk(record), offset(record) + ID, (long) FREE);
+        }
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, free.length * 2);
+        }
+        free[freeCount++] = record;
+        size--;
+        return previous;
+    }
+
+    boolean contains(final Long id) {
+        return recordOf(id) >= 0;
+    }
+
+    Optional<DealTracker> findById(final Long id) {
+        return Optional.ofNullable(get(id));
+    }
+
+    /**
+     * @return the deal with this id, or null if there isn't one
+     */
+    DealTracker get(final Long id) {
+        val record = recordOf(id);
+        return record < 0 ? null : read(record, id);
+    }
+
+    synchronized Optional<DealTracker> findByDealReference(final String dealReference) {
+        if (dealReference == null) {
+            return Optional.empty();
+        }
+        val reference = dealReference.getBytes(StandardCharsets.UTF_8);
+        val mask = table.length - 1;
+        for (int position = hash(reference) & mask; table[position] != 0; position = (position + 1) & mask) {
+            val record = table[position] - 1;
+            if (referenceEquals(record, reference)) {
+                return Optional.ofNullable(read(record, idAt(record)));
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Hand every deal to the consumer, in record order
+     */
+    void forEach(final Consumer<DealTracker> consumer) {
+        val end = records;
+        for (int record = 0; record < end; record++) {
+            val id = idAt(record);
+            if (id != FREE) {
+                val dealTracker = read(record, id);
+                if (dealTracker != null) {
+                    consumer.accept(dealTracker);
+                }
+            }
+        }
+    }
+
+    /**
+     * Pick out the deals that match, reading each record in place, and keep the first limit of
+     * them in order as it goes - on a heap of ids, so nothing is allocated per deal
+     * @return the ids of the deals picked, in order
+     */
+    long[] select(final IntPredicate matches, final Order order, final int limit) {
+        val compare = order(order);
+        long[] heap = new long[Math.min(limit, 1024)];
+        int count = 0;
+        val end = records;
+        for (int record = 0; record < end; record++) {
+            val id = idAt(record);
+            if (id == FREE || !matches.test(record)) {
+                continue;
+            }
+            if (count < limit) {
+                if (count == heap.length) {
+                    heap = Arrays.copyOf(heap, (int) Math.min(limit, heap.length * 2L));
+                }
+                heap[count] = id;
+                siftUp(heap, count++, compare);
+            } else if (compare.compare(record, (int) heap[0]) < 0) {
+                // better than the last of those kept, which is on top
+                heap[0] = id;
+                siftDown(heap, 0, count, compare);
+            }
+        }
+        for (int last = count - 1; last > 0; last--) {
+            val top = heap[0];
+            heap[0] = heap[last];
+            heap[last] = top;
+            siftDown(heap, 0, last, compare);
+        }
+        return count == heap.length ? heap : Arrays.copyOf(heap, count);
+    }
+
+    /**
+     * @return a filter for select passing the deals at these stages
+     */
+    IntPredicate atStages(final Set<Stage> stages) {
+        return record -> stages.contains(stageAt(record));
+    }
+
+    /**
+     * @return a filter for select passing the deals after the cursor in chain order, all of them if it's null
+     */
+    IntPredicate after(final DealCursor cursor) {
+        if (cursor == null) {
+            return record -> true;
+        }
+        val reference = cursor.dealReference() == null
+                ? null
+                : cursor.dealReference().getBytes(StandardCharsets.UTF_8);
+        return record -> {
+            int compared = compareNullsFirst(chainAt(record), cursor.chain());
+            if (compared == 0) {
+                compared = Integer.compare(chainNumberAt(record), cursor.chainNumber());
+            }
+            if (compared == 0) {
+                compared = compareReference(record, reference);
+            }
+            return compared > 0;
+        };
+    }
+
+    /**
+     * @return a filter for select passing the deals that match the query, as DealQuery.matches
+     */
+    IntPredicate matching(final DealQuery query) {
+        final int chain;
+        if (query.chain() == null) {
+            chain = -1;
+        } else {
+            chain = Arrays.asList(chains).indexOf(query.chain());
+            if (chain < 0) {
+                return record -> false;
+            }
+        }
+        val arrived = TimeRange.of(query.arrived());
+        val sent = TimeRange.of(query.sent());
+        val vestCompleted = TimeRange.of(query.vestCompleted());
+        return record -> {
+            val buffer = chunk(record);
+            val base = offset(record);
+            return (chain < 0 || buffer.getInt(base + CHAIN) == chain)
+                    && (query.chainNumberFrom() == null || buffer.getInt(base + CHAIN_NUMBER) >= query.chainNumberFrom())
+                    && (query.chainNumberTo() == null || buffer.getInt(base + CHAIN_NUMBER) <= query.chainNumberTo())
+                    && query.stages().contains(stageAt(record))
+                    && arrived.contains(timeAt(buffer, base + ARRIVAL))
+                    && sent.contains(timeAt(buffer, base + SENT))
+                    && vestCompleted.contains(timeAt(buffer, base + VEST_COMPLETE));
+        };
+    }
+
+    /**
+     * @return a filter for select passing the deals that reached the stage before the cutoff
+     */
+    IntPredicate enteredBefore(final Stage stage, final LocalDateTime cutoff) {
+        val before = TimeRange.of(new DealQuery.TimeRange(null, cutoff));
+        return record -> stageAt(record) == stage && before.contains(enteredAt(record, stage));
+    }
+
+    /**
+     * @return when the first deal still at each stage arrived, for the stages with one that has an arrival time
+     */
+    Map<Stage, LocalDateTime> oldestArrivals() {
+        val oldest = new long[STAGES.length];
+        Arrays.fill(oldest, NOT_SET);
+        val end = records;
+        for (int record = 0; record < end; record++) {
+            if (idAt(record) == FREE) {
+                continue;
+            }
+            val stage = stageAt(record).ordinal();
+            val arrival = timeAt(chunk(record), offset(record) + ARRIVAL);
+            if (arrival != NOT_SET && (oldest[stage] == NOT_SET || arrival < oldest[stage])) {
+                oldest[stage] = arrival;
+            }
+        }
+        Map<Stage, LocalDateTime> arrivals = new EnumMap<>(Stage.class);
+        for (Stage stage : STAGES) {
+            if (oldest[stage.ordinal()] != NOT_SET) {
+                arrivals.put(stage, DealRecordCodec.fromMicros(oldest[stage.ordinal()]));
+            }
+        }
+        return arrivals;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int getRecordBytes() {
+        return recordBytes;
+    }
+
+    /**
+     * Write everything changed so far to the disk
+     */
+    void force() throws IOException {
+        header.force();
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+        synchronized (this) {
+            chainsOut.flush();
+            chainsFile.getFD().sync();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        chainsOut.close();
+        channel.close();
+    }
+
+    /**
+     * @return the deal in the record, or null if it no longer holds the deal with this id
+     */
+    private DealTracker read(final int record, final long id) {
+        val buffer = chunk(record);
+        val base = offset(record);
+        if (idAt(record) != id) {
+            return null;
+        }
+        val referenceLength = buffer.getInt(base + REFERENCE_LENGTH);
+        String dealReference = null;
+        if (referenceLength != NO_REFERENCE) {
+            val bytes = new byte[Math.min(Math.max(referenceLength, 0), referenceBytes)];
+            buffer.get(base + REFERENCE, bytes);
+            dealReference = new String(bytes, StandardCharsets.UTF_8);
+        }
+        val dealTracker = DealTracker.builder()
+                .id(id)
+                .dealReference(dealReference)
+                .chain(chainAt(record))
+                .chainNumber(buffer.getInt(base + CHAIN_NUMBER))
+                .arrivalTime(DealRecordCodec.fromMicros(timeAt(buffer, base + ARRIVAL)))
+                .sentTime(DealRecordCodec.fromMicros(timeAt(buffer, base + SENT)))
+                .vestCompleteTime(DealRecordCodec.fromMicros(timeAt(buffer, base + VEST_COMPLETE)))
+                .appCompleteTime(DealRecordCodec.fromMicros(timeAt(buffer, base + APP_COMPLETE)))
+                .build();
+        // freed and taken by another deal while it was read, so some of it may be that deal's
+        VarHandle.loadLoadFence();
+        if (idAt(record) != id) {
+            return null;
+        }
+        dealTracker.stage = Stage.of(dealTracker);
+        return dealTracker;
+    }
+
+    private long idAt(final int record) {
+        return (long) LONGS.getAcquire(chunk(record), offset(record) + ID);
+    }
+
+    private static long timeAt(final MappedByteBuffer buffer, final int position) {
+        return (long) LONGS.getOpaque(buffer, position);
+    }
+
+    private String chainAt(final int record) {
+        // a record being written over may name a chain the dictionary here doesn't have yet
+        val names = chains;
+        val chain = chunk(record).getInt(offset(record) + CHAIN);
+        return chain < names.length ? names[chain] : null;
+    }
+
+    private int chainNumberAt(final int record) {
+        return chunk(record).getInt(offset(record) + CHAIN_NUMBER);
+    }
+
+    /**
+     * As Stage.of, from the times in the record
+     */
+    private Stage stageAt(final int record) {
+        val buffer = chunk(record);
+        val base = offset(record);
+        if (timeAt(buffer, base + APP_COMPLETE) != NOT_SET) {
+            return Stage.APP_COMPLETE;
+        }
+        if (timeAt(buffer, base + VEST_COMPLETE) != NOT_SET) {
+            return Stage.VEST_COMPLETE;
+        }
+        return timeAt(buffer, base + SENT) != NOT_SET ? Stage.SENT : Stage.WAITING;
+    }
+
+    /**
+     * As Stage.enteredAt, from the times in the record
+     */
+    private long enteredAt(final int record, final Stage stage) {
+        val position = switch (stage) {
+            case WAITING -> ARRIVAL;
+            case SENT -> SENT;
+            case VEST_COMPLETE -> VEST_COMPLETE;
+            case APP_COMPLETE -> APP_COMPLETE;
+        };
+        return timeAt(chunk(record), offset(record) + position);
+    }
+
+    private Object stripe(final int record) {
+        return stripes[record & (STRIPES - 1)];
+    }
+
+    /**
+     * The same orders as DealStore.CHAIN_ORDER, ARRIVAL_ORDER and its reverse, and STAGE_TIME_ORDER,
+     * with dealReferences compared as UTF-8 bytes
+     */
+    private RecordOrder order(final Order order) {
+        return switch (order) {
+            case CHAIN -> (left, right) -> {
+                int compared = compareNullsFirst(chainAt(left), chainAt(right));
+                if (compared == 0) {
+                    compared = Integer.compare(chainNumberAt(left), chainNumberAt(right));
+                }
+                if (compared == 0) {
+                    compared = compareReferences(left, right);
+                }
+                return compared == 0 ? Long.compare(idAt(left), idAt(right)) : compared;
+            };
+            case ARRIVAL -> (left, right) -> compareTimes(left, right, Stage.WAITING);
+            case ARRIVAL_DESC -> (left, right) -> compareTimes(right, left, Stage.WAITING);
+            case STAGE_TIME -> (left, right) -> {
+                val leftTime = enteredAt(left, stageAt(left));
+                val rightTime = enteredAt(right, stageAt(right));
+                val compared = compareTimes(leftTime, rightTime);
+                return compared == 0 ? Long.compare(idAt(left), idAt(right)) : compared;
+            };
+        };
+    }
+
+    /**
+     * By the time at the stage, unset last, then by id
+     */
+    private int compareTimes(final int left, final int right, final Stage stage) {
+        val compared = compareTimes(enteredAt(left, stage), enteredAt(right, stage));
+        return compared == 0 ? Long.compare(idAt(left), idAt(right)) : compared;
+    }
+
+    private static int compareTimes(final long left, final long right) {
+        if (left == right) {
+            return 0;
+        }
+        if (left == NOT_SET || right == NOT_SET) {
+            return left == NOT_SET ? 1 : -1;
+        }
+        return Long.compare(left, right);
+    }
+
+    private static int compareNullsFirst(final String left, final String right) {
+        if (left == null || right == null) {
+            return left == null ? (right == null ? 0 : -1) : 1;
+        }
+        return left.compareTo(right);
+    }
+
+    private int compareReferences(final int left, final int right) {
+        val leftLength = chunk(left).getInt(offset(left) + REFERENCE_LENGTH);
+        val rightLength = chunk(right).getInt(offset(right) + REFERENCE_LENGTH);
+        if (leftLength == NO_REFERENCE || rightLength == NO_REFERENCE) {
+            return leftLength == NO_REFERENCE ? (rightLength == NO_REFERENCE ? 0 : -1) : 1;
+        }
+        val leftBuffer = chunk(left);
+        val rightBuffer = chunk(right);
+        val leftBase = offset(left) + REFERENCE;
+        val rightBase = offset(right) + REFERENCE;
+        for (int i = 0; i < Math.min(leftLength, rightLength); i++) {
+            val compared = Byte.compareUnsigned(leftBuffer.get(leftBase + i), rightBuffer.get(rightBase + i));
+            if (compared != 0) {
+                return compared;
+            }
+        }
+        return Integer.compare(leftLength, rightLength);
+    }
+
+    /**
+     * @param reference UTF-8 bytes, or null for no dealReference
+     */
+    private int compareReference(final int record, final byte[] reference) {
+        val length = chunk(record).getInt(offset(record) + REFERENCE_LENGTH);
+        if (length == NO_REFERENCE || reference == null) {
+            return length == NO_REFERENCE ? (reference == null ? 0 : -1) : 1;
+        }
+        val buffer = chunk(record);
+        val base = offset(record) + REFERENCE;
+        for (int i = 0; i < Math.min(length, reference.length); i++) {
+            val compared = Byte.compareUnsigned(buffer.get(base + i), reference[i]);
+            if (compared != 0) {
+                return compared;
+            }
+        }
+        return Integer.compare(length, reference.length);
+    }
+
+    /**
+     * Heap of ids with the last in order on top
+     */
+    private static void siftUp(final long[] heap, int position, final RecordOrder order) {
+        val id = heap[position];
+        while (position > 0) {
+            val parent = (position - 1) >>> 1;
+            if (order.compare((int) heap[parent], (int) id) >= 0) {
+                break;
+            }
+            heap[position] = heap[parent];
+            position = parent;
+        }
+        heap[position] = id;
+    }
+
+    private static void siftDown(final long[] heap, int position, final int count, final RecordOrder order) {
+        val id = heap[position];
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= count) {
+                break;
+            }
+            if (child + 1 < count && order.compare((int) heap[child + 1], (int) heap[child]) > 0) {
+                child++;
+            }
+            if (order.compare((int) id, (int) heap[child]) >= 0) {
+                break;
+            }
+            heap[position] = heap[child];
+            position = child;
+        }
+        heap[position] = id;
+    }
+
+    /**
+     * A DealQuery.TimeRange in micros. A time in micros is at or after from, and before to, just
+     * when it's at or after them rounded up to the next micro.
+     */
+    private record TimeRange(boolean any, long from, long to) {
+
+        static TimeRange of(final DealQuery.TimeRange range) {
+            return new TimeRange(range.isAny(),
+                    range.from() == null ? NOT_SET : ceilMicros(range.from()),
+                    range.to() == null ? Long.MAX_VALUE : ceilMicros(range.to()));
+        }
+
+        boolean contains(final long micros) {
+            return any || micros != NOT_SET && micros >= from && micros < to;
+        }
+
+        private static long ceilMicros(final LocalDateTime time) {
+            return DealRecordCodec.toMicros(time) + (time.getNano() % 1_000 == 0 ? 0 : 1);
+        }
+    }
+
+    /**
+     * @return the record holding the deal with this id, or -1 if there isn't one
+     */
+    private int recordOf(final Long id) {
+        if (id == null || id <= 0) {
+            return -1;
+        }
+        val record = (int) (id & 0xffffffffL);
+        if (record < 0 || record >= records) {
+            return -1;
+        }
+        return idAt(record) == id ? record : -1;
+    }
+
+    private MappedByteBuffer chunk(final int record) {
+        return chunks[record >>> chunkShift];
+    }
+
+    private int offset(final int record) {
+        return (record & chunkMask) * recordBytes;
+    }
+
+    private int allocate() throws IOException {
+        val record = records;
+        if ((record >>> chunkShift) >= chunks.length) {
+            mapChunk(chunks.length);
+        }
+        records = record + 1;
+        header.putInt(HEADER_RECORDS, records);
+        return record;
+    }
+
+    private void mapChunk(final int index) throws IOException {
+        val chunkBytes = (long) (chunkMask + 1) * recordBytes;
+        val mapped = channel.map(FileChannel.MapMode.READ_WRITE, HEADER + index * chunkBytes, chunkBytes);
+        val grown = Arrays.copyOf(chunks, index + 1);
+        grown[index] = mapped;
+        chunks = grown;
+    }
+
+    /**
+     * Map the records already written, then find the free ones and index the live ones
+     */
+    private void recover() throws IOException {
+        records = header.getInt(HEADER_RECORDS);
+        val chunkCount = records == 0 ? 0 : ((records - 1) >>> chunkShift) + 1;
+        for (int i = 0; i < chunkCount; i++) {
+            mapChunk(i);
+        }
+        while (table.length < records * 2) {
+            table = new int[table.length * 2];
+        }
+        for (int record = records - 1; record >= 0; record--) {
+            val base = offset(record);
+            if (chunk(record).getLong(base + ID) == FREE) {
+                if (freeCount == free.length) {
+                    free = Arrays.copyOf(free, free.length * 2);
+                }
+                free[freeCount++] = record;
+            } else {
+                size++;
+                if (chunk(record).getInt(base + REFERENCE_LENGTH) != NO_REFERENCE) {
+                    tableAdd(record, recordHash(record));
+                }
+            }
+        }
+    }
+
+    private int chainId(final String chain) throws IOException {
+        if (chain == null) {
+            return NO_CHAIN;
+        }
+        val known = chainIds.get(chain);
+        if (known != null) {
+            return known;
+        }
+        // written down before any record refers to it
+        chainsOut.writeUTF(chain);
+        chainsOut.flush();
+        val id = chains.length;
+        val grown = Arrays.copyOf(chains, id + 1);
+        grown[id] = chain;
+        chains = grown;
+        chainIds.put(chain, id);
+        return id;
+    }
+
+    private void readChains() throws IOException {
+        if (!Files.exists(chainsPath)) {
+            return;
+        }
+        val read = new ArrayList<String>(List.of(""));
+        try (val in = new DataInputStream(new BufferedInputStream(Files.newInputStream(chainsPath)))) {
+            while (true) {
+                read.add(in.readUTF());
+            }
+        } catch (EOFException e) {
+            // a torn last entry can't be referred to by any record, so it's dropped with the rest of the end
+        }
+        val loaded = read.toArray(new String[0]);
+        loaded[NO_CHAIN] = null;
+        for (int id = 1; id < loaded.length; id++) {
+            chainIds.put(loaded[id], id);
+        }
+        chains = loaded;
+    }
+
+    private void tableAdd(final int record, final int hash) {
+        if ((size + 1) * 2 > table.length) {
+            resize();
+        }
+        val mask = table.length - 1;
+        int position = hash & mask;
+        while (table[position] != 0) {
+            position = (position + 1) & mask;
+        }
+        table[position] = record + 1;
+    }
+
+    /**
+     * Take the record out of the table, moving back any that probed past it so lookups for them
+     * don't stop at the gap
+     */
+    private void tableRemove(final int record) {
+        val mask = table.length - 1;
+        int gap = recordHash(record) & mask;
+        while (table[gap] != record + 1) {
+            gap = (gap + 1) & mask;
+        }
+        int position = gap;
+        while (true) {
+            position = (position + 1) & mask;
+            if (table[position] == 0) {
+                break;
+            }
+            val home = recordHash(table[position] - 1) & mask;
+            // it can fill the gap unless its home is between the gap and where it is now
+            val stays = gap <= position ? gap < home && home <= position : gap < home || home <= position;
+            if (!stays) {
+                table[gap] = table[position];
+                gap = position;
+            }
+        }
+        table[gap] = 0;
+    }
+
+    private void resize() {
+        val old = table;
+        table = new int[old.length * 2];
+        val mask = table.length - 1;
+        for (int entry : old) {
+            if (entry != 0) {
+                int position = recordHash(entry - 1) & mask;
+                while (table[position] != 0) {
+                    position = (position + 1) & mask;
+                }
+                table[position] = entry;
+            }
+        }
+    }
+
+    private boolean referenceEquals(final int record, final byte[] reference) {
+        val buffer = chunk(record);
+        val base = offset(record);
+        if (buffer.getInt(base + REFERENCE_LENGTH) != reference.length) {
+            return false;
+        }
+        for (int i = 0; i < reference.length; i++) {
+            if (buffer.get(base + REFERENCE + i) != reference[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The hash of a record's dealReference, read in place
+     */
+    private int recordHash(final int record) {
+        val buffer = chunk(record);
+        val base = offset(record);
+        val length = buffer.getInt(base + REFERENCE_LENGTH);
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < length; i++) {
+            hash ^= buffer.get(base + REFERENCE + i) & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    private static int hash(final byte[] reference) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : reference) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    private static int mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        return (int) (hash ^ (hash >>> 33));
+    }
+}
@@ -0,0 +1,121 @@
+package org.hardboiled;
+
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the deals in a MappedDealFile - fixed-width records in a memory-mapped file outside the
+ * heap - and has the store hold them there too, so there's nothing to read in or replay on
+ * startup and no copy of each deal on the heap. New deals are written here; the store makes the
+ * other changes to the records itself, as its compare-and-set and its frees are made on them.
+ * The operating system writes changed pages back, and they're forced to disk every force-interval.
+ */
+@Slf4j
+@ApplicationScoped
+public class MappedDealPersistence implements DealPersistence {
+
+    /**
+     * Records mapped at a time - the file grows by this many
+     */
+    private static final int CHUNK_RECORDS = 1 << 18;
+
+    @ConfigProperty(name = "dealtracker.mapped.file", defaultValue = "dealtracker-deals.dat")
+    String file;
+
+    @ConfigProperty(name = "dealtracker.mapped.reference-bytes", defaultValue = "40")
+    int referenceBytes;
+
+    @ConfigProperty(name = "dealtracker.mapped.force-interval", defaultValue = "1s")
+    Duration forceInterval;
+
+    private MappedDealFile dealFile;
+    private ScheduledExecutorService forceScheduler;
+
+    @Override
+    public boolean isTransactional() {
+        return false;
+    }
+
+    @Override
+    public void load(final DealStore dealStore) {
+        try {
+            val started = System.nanoTime();
+            dealFile = new MappedDealFile(Path.of(file), referenceBytes, CHUNK_RECORDS);
+            dealStore.holdIn(dealFile);
+            log.info("Holding {} deals of {} bytes each in {}, opened in {} ms", dealFile.size(),
+                    dealFile.getRecordBytes(), file,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open the deal file " + file, e);
+        }
+        if (!forceInterval.isZero()) {
+            forceScheduler = Executors.newSingleThreadScheduledExecutor(
+                    Thread.ofPlatform().name("deal-file-force").daemon().factory());
+            forceScheduler.scheduleWithFixedDelay(this::forceQuietly,
+                    forceInterval.toMillis(), forceInterval.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void check(final DealTracker dealTracker) {
+        dealFile.checkReference(dealTracker.dealReference);
+    }
+
+    @Override
+    public void insert(final DealTracker dealTracker) {
+        try {
+            dealFile.insert(dealTracker);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Only merges the changes into a copy of held - the store's replace writes it to the record,
+     * if the record still holds what held does
+     */
+    @Override
+    public DealTracker update(final DealTracker held, final DealTracker changes) {
+        val merged = held.toBuilder().build();
+        DealPersistence.mergeTimes(merged, changes);
+        merged.stage = Stage.of(merged);
+        return merged;
+    }
+
+    /**
+     * The record is freed as the store takes the deal out
+     */
+    @Override
+    public boolean delete(final Long id) {
+        return dealFile.contains(id);
+    }
+
+    private void forceQuietly() {
+        try {
+            dealFile.force();
+        } catch (IOException | RuntimeException e) {
+            log.error("Failed to force the deal file to disk", e);
+        }
+    }
+
+    @PreDestroy
+    void close() throws IOException {
+        if (forceScheduler != null) {
+            forceScheduler.shutdownNow();
+        }
+        if (dealFile != null) {
+            dealFile.close();
+        }
+    }
+}
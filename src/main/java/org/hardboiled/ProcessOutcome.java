@@ -0,0 +1,17 @@
+package org.hardboiled;
+
+/**
+ * What processing a deal message did to the stored deal.
+ */
+public enum ProcessOutcome {
+
+    PERSISTED,
+    UPDATED,
+    DELETED,
+    NOT_FOUND,
+    /**
+     * for a deal that has already completed, so dropped
+     */
+    DUPLICATE,
+    FAILED
+}
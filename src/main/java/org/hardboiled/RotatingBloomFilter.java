@@ -0,0 +1,169 @@
+package org.hardboiled;
+
+import lombok.val;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter split into generations, so old entries can be forgotten: entries go into the
+ * current generation, lookups check them all, and rotating clears the oldest and makes it current.
+ * A key is remembered for between generations - 1 and generations rotations. Safe for concurrent
+ * adds and lookups; rotations need to come from one thread at a time.
+ */
+final class RotatingBloomFilter {
+
+    private final AtomicLongArray[] generations;
+    private final long bits;
+    private final int hashCount;
+    private volatile int current;
+
+    /**
+     * @param generationCount how many generations to keep
+     * @param expectedPerGeneration how many keys a generation is sized for
+     * @param falsePositiveRate the chance of a key never added appearing to be there, with each
+     *                          generation holding expectedPerGeneration keys
+     */
+    RotatingBloomFilter(final int generationCount, final long expectedPerGeneration, final double falsePositiveRate) {
+        // split the rate between the generations, as a lookup gets a false positive from any of them
+        val perGeneration = falsePositiveRate / generationCount;
+        val optimalBits = (long) Math.ceil(-expectedPerGeneration * Math.log(perGeneration) / (Math.log(2) * Math.log(2)));
+        this.bits = Math.max(64, (optimalBits + 63) / 64 * 64);
+        this.hashCount = Math.max(1, (int) Math.round((double) bits / expectedPerGeneration * Math.log(2)));
+        this.generations = new AtomicLongArray[generationCount];
+        for (int i = 0; i < generationCount; i++) {
+            generations[i] = new AtomicLongArray((int) (bits / 64));
+        }
+    }
+
+    void add(final String key) {
+        val generation = generations[current];
+        val hash = hash(key);
+        for (int i = 0; i < hashCount; i++) {
+            val bit = bit(hash, i);
+            val word = (int) (bit >>> 6);
+            val mask = 1L << bit;
+            long previous = generation.get(word);
+            while ((previous & mask) == 0 && !generation.compareAndSet(word, previous, previous | mask)) {
+                previous = generation.get(word);
+            }
+        }
+    }
+
+    boolean mightContain(final String key) {
+        val hash = hash(key);
+        for (AtomicLongArray generation : generations) {
+            if (contains(generation, hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Forget the oldest generation's keys, reusing it as the current generation
+     */
+    void rotate() {
+        val next = (current + 1) % generations.length;
+        val generation = generations[next];
+        for (int i = 0; i < generation.length(); i++) {
+            generation.set(i, 0);
+        }
+        current = next;
+    }
+
+    /**
+     * @return the share of the current generation's bits that are set - lookups start giving more
+     * false positives than planned once this is past a half
+     */
+    double fillRatio() {
+        val generation = generations[current];
+        long set = 0;
+        for (int i = 0; i < generation.length(); i++) {
+            set += Long.bitCount(generation.get(i));
+        }
+        return (double) set / bits;
+    }
+
+    long getBits() {
+        return bits;
+    }
+
+    int getHashCount() {
+        return hashCount;
+    }
+
+    int getGenerationCount() {
+        return generations.length;
+    }
+
+    void write(final DataOutputStream out) throws IOException {
+        out.writeInt(generations.length);
+        out.writeLong(bits);
+        out.writeInt(hashCount);
+        out.writeInt(current);
+        for (AtomicLongArray generation : generations) {
+            for (int i = 0; i < generation.length(); i++) {
+                out.writeLong(generation.get(i));
+            }
+        }
+    }
+
+    /**
+     * Fill this filter from one written by write
+     * @return false, leaving the filter as it was but skipping past the written one, if that was
+     * sized differently
+     */
+    boolean read(final DataInputStream in) throws IOException {
+        val writtenGenerations = in.readInt();
+        val writtenBits = in.readLong();
+        val writtenHashCount = in.readInt();
+        val writtenCurrent = in.readInt();
+        if (writtenGenerations != generations.length || writtenBits != bits || writtenHashCount != hashCount) {
+            in.skipNBytes(writtenGenerations * (writtenBits / 64) * Long.BYTES);
+            return false;
+        }
+        for (AtomicLongArray generation : generations) {
+            for (int i = 0; i < generation.length(); i++) {
+                generation.set(i, in.readLong());
+            }
+        }
+        current = writtenCurrent;
+        return true;
+    }
+
+    private boolean contains(final AtomicLongArray generation, final long hash) {
+        for (int i = 0; i < hashCount; i++) {
+            val bit = bit(hash, i);
+            if ((generation.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The i-th bit for the key, from the two halves of its hash (Kirsch and Mitzenmacher)
+     */
+    private long bit(final long hash, final int i) {
+        return Math.floorMod((int) hash + (long) i * (int) (hash >>> 32), bits);
+    }
+
+    /**
+     * 64-bit FNV-1a over the characters, then mixed so both halves are usable on their own
+     */
+    static long hash(final String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+}
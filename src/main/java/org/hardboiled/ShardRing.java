@@ -0,0 +1,58 @@
+package org.hardboiled;
+
+import lombok.val;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+/**
+ * A consistent hash ring over the shard members. Each member is placed at several points so keys
+ * spread evenly, and adding or removing one member only moves the keys next to its points. Every
+ * instance given the same members builds the same ring whatever order they're listed in.
+ */
+final class ShardRing {
+
+    private final List<String> members;
+    private final TreeMap<Integer, String> points = new TreeMap<>();
+
+    ShardRing(final List<String> members, final int pointsPerMember) {
+        if (members.isEmpty()) {
+            throw new IllegalArgumentException("A shard ring needs at least one member");
+        }
+        this.members = List.copyOf(members);
+        for (String member : members) {
+            for (int i = 0; i < pointsPerMember; i++) {
+                points.putIfAbsent(hash(member + "#" + i), member);
+            }
+        }
+    }
+
+    List<String> getMembers() {
+        return members;
+    }
+
+    /**
+     * @param key the chain or dealReference, null hashing like an empty string
+     * @return the member owning the key - the first point at or after the key's hash
+     */
+    String ownerOf(final String key) {
+        val point = points.ceilingEntry(hash(Objects.requireNonNullElse(key, "")));
+        return point == null ? points.firstEntry().getValue() : point.getValue();
+    }
+
+    private static int hash(final String value) {
+        val crc = new CRC32C();
+        crc.update(value.getBytes(StandardCharsets.UTF_8));
+        // spread the bits, as keys differing only in their last character give nearby checksums
+        int hash = (int) crc.getValue();
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,48 @@
+package org.hardboiled;
+
+import java.time.LocalDateTime;
+
+/**
+ * The stage a deal has reached, derived from which of its timestamps are populated.
+ * A deal is "waiting" until it has been sent and "in processing" from then on.
+ */
+public enum Stage {
+
+    WAITING,
+    SENT,
+    VEST_COMPLETE,
+    APP_COMPLETE;
+
+    public static Stage of(final DealTracker dealTracker) {
+        if (dealTracker.appCompleteTime != null) {
+            return APP_COMPLETE;
+        }
+        if (dealTracker.vestCompleteTime != null) {
+            return VEST_COMPLETE;
+        }
+        if (dealTracker.sentTime != null) {
+            return SENT;
+        }
+        return WAITING;
+    }
+
+    /**
+     * @return when the deal reached this stage, or null if it doesn't say
+     */
+    public LocalDateTime enteredAt(final DealTracker dealTracker) {
+        return switch (this) {
+            case WAITING -> dealTracker.arrivalTime;
+            case SENT -> dealTracker.sentTime;
+            case VEST_COMPLETE -> dealTracker.vestCompleteTime;
+            case APP_COMPLETE -> dealTracker.appCompleteTime;
+        };
+    }
+
+    public boolean isWaiting() {
+        return this == WAITING;
+    }
+
+    public boolean isInProcessing() {
+        return this != WAITING;
+    }
+}
@@ -0,0 +1,125 @@
+package org.hardboiled;
+
+import lombok.val;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Striped counters of live deals per stage, both overall and per chain. The store adjusts
+ * them as deals move between stages so a summary never has to look at the deals themselves.
+ * A chain is dropped once its last live deal goes, so chains that come and go don't pile up.
+ */
+class StageCounters {
+
+    private static final Stage[] STAGES = Stage.values();
+
+    /**
+     * One chain's counters, with its live deals counted again in one place so the last one leaving
+     * can be told apart from a deal arriving at the same time
+     */
+    private static final class ChainCounters {
+
+        private final LongAdder[] stages = newCounters();
+        /**
+         * negative once the chain has been dropped, so a deal arriving after that starts a new one
+         */
+        private final AtomicLong live = new AtomicLong();
+    }
+
+    private final LongAdder[] totals = newCounters();
+    private final ConcurrentHashMap<String, ChainCounters> byChain = new ConcurrentHashMap<>();
+
+    void increment(final DealTracker dealTracker) {
+        val stage = dealTracker.stage.ordinal();
+        totals[stage].increment();
+        val chain = chainKey(dealTracker);
+        while (true) {
+            val counters = byChain.computeIfAbsent(chain, key -> new ChainCounters());
+            if (counters.live.getAndIncrement() >= 0) {
+                counters.stages[stage].increment();
+                return;
+            }
+            // dropped as its last deal left, so make way for a new one
+            byChain.remove(chain, counters);
+        }
+    }
+
+    void decrement(final DealTracker dealTracker) {
+        val stage = dealTracker.stage.ordinal();
+        totals[stage].decrement();
+        val chain = chainKey(dealTracker);
+        val counters = byChain.get(chain);
+        if (counters == null) {
+            return;
+        }
+        counters.stages[stage].decrement();
+        if (counters.live.decrementAndGet() == 0 && counters.live.compareAndSet(0, Long.MIN_VALUE)) {
+            byChain.remove(chain, counters);
+        }
+    }
+
+    long total(final Stage stage) {
+        return totals[stage.ordinal()].sum();
+    }
+
+    long count(final String chain, final Stage stage) {
+        val counters = byChain.get(chain);
+        return counters == null ? 0 : counters.stages[stage.ordinal()].sum();
+    }
+
+    /**
+     * @return how many live deals are on the chain, at any stage
+     */
+    long count(final String chain) {
+        val counters = byChain.get(chain);
+        return counters == null ? 0 : Math.max(0, counters.live.get());
+    }
+
+    Set<String> chains() {
+        return byChain.keySet();
+    }
+
+    Map<Stage, Long> totals() {
+        return snapshot(totals);
+    }
+
+    /**
+     * @return per stage counts for each chain, in chain order
+     */
+    Map<String, Map<Stage, Long>> byChain() {
+        Map<String, Map<Stage, Long>> chains = new TreeMap<>();
+        byChain.forEach((chain, counters) -> chains.put(chain, snapshot(counters.stages)));
+        return chains;
+    }
+
+    void clear() {
+        Arrays.stream(totals).forEach(LongAdder::reset);
+        byChain.clear();
+    }
+
+    static String chainKey(final DealTracker dealTracker) {
+        return Objects.requireNonNullElse(dealTracker.chain, "");
+    }
+
+    private static LongAdder[] newCounters() {
+        val counters = new LongAdder[STAGES.length];
+        Arrays.setAll(counters, stage -> new LongAdder());
+        return counters;
+    }
+
+    private static Map<Stage, Long> snapshot(final LongAdder[] counters) {
+        Map<Stage, Long> counts = new EnumMap<>(Stage.class);
+        for (Stage stage : STAGES) {
+            counts.put(stage, counters[stage.ordinal()].sum());
+        }
+        return counts;
+    }
+}
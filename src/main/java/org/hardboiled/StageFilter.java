@@ -0,0 +1,26 @@
+package org.hardboiled;
+
+import lombok.val;
+
+/**
+ * Which of the live deals a list or stream query returns.
+ */
+public enum StageFilter {
+
+    ALL,
+    WAITING,
+    IN_PROCESSING;
+
+    /**
+     * Lets query and path parameters use waiting, inProcessing or in_processing as well as the constant names
+     */
+    public static StageFilter fromString(final String value) {
+        val normalised = value.replace("_", "");
+        for (StageFilter filter : values()) {
+            if (filter.name().replace("_", "").equalsIgnoreCase(normalised)) {
+                return filter;
+            }
+        }
+        throw new IllegalArgumentException("Unknown stage filter " + value);
+    }
+}
@@ -0,0 +1,202 @@
+package org.hardboiled;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.runtime.StartupEvent;
+import io.quarkus.runtime.configuration.DurationConverter;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Finds deals that have sat at their current stage for too long, using the store's index of when
+ * each deal reached its stage so only the stuck deals are looked at. A background sweep checks
+ * every deal against its chain's threshold and either flags the stuck ones or expires them.
+ */
+@Slf4j
+@ApplicationScoped
+public class StuckDeals {
+
+    static final Comparator<StuckDeal> LONGEST_FIRST = Comparator.comparing(StuckDeal::since);
+    private static final Stage[] LIVE_STAGES = {Stage.WAITING, Stage.SENT, Stage.VEST_COMPLETE};
+
+    /**
+     * @param since when the deal reached its stage
+     * @param stuckSeconds how long it has been there
+     */
+    public record StuckDeal(Long id, String dealReference, String chain, int chainNumber,
+                            Stage stage, LocalDateTime since, long stuckSeconds) {
+
+        static StuckDeal of(final DealTracker dealTracker, final LocalDateTime now) {
+            val since = dealTracker.stage.enteredAt(dealTracker);
+            return new StuckDeal(dealTracker.id, dealTracker.dealReference, dealTracker.chain, dealTracker.chainNumber,
+                    dealTracker.stage, since, Duration.between(since, now).toSeconds());
+        }
+    }
+
+    public enum Action {
+        FLAG,
+        EXPIRE
+    }
+
+    @Inject
+    DealStore dealStore;
+
+    @Inject
+    DealLanes dealLanes;
+
+    @Inject
+    DealTrackerManager dealTrackerManager;
+
+    @Inject
+    MeterRegistry meterRegistry;
+
+    @ConfigProperty(name = "dealtracker.stuck.threshold", defaultValue = "10m")
+    Duration threshold;
+
+    /**
+     * chain=duration pairs for chains that need a different threshold
+     */
+    @ConfigProperty(name = "dealtracker.stuck.chain-thresholds")
+    Optional<List<String>> chainThresholdConfig;
+
+    @ConfigProperty(name = "dealtracker.stuck.sweep-interval", defaultValue = "1m")
+    Duration sweepInterval;
+
+    @ConfigProperty(name = "dealtracker.stuck.action", defaultValue = "flag")
+    Action action;
+
+    private final Map<String, Duration> chainThresholds = new HashMap<>();
+    private volatile List<StuckDeal> flagged = List.of();
+    private Counter expired;
+    private ScheduledExecutorService sweeper;
+
+    void onStart(@Observes StartupEvent ev) {
+        chainThresholdConfig.orElse(List.of()).forEach(this::addChainThreshold);
+        Gauge.builder(DealTrackerMetrics.PREFIX + "stuck", this, stuckDeals -> stuckDeals.flagged.size())
+                .description("Deals past their chain's threshold at the last sweep")
+                .register(meterRegistry);
+        expired = Counter.builder(DealTrackerMetrics.PREFIX + "stuck.expired").register(meterRegistry);
+        if (!sweepInterval.isZero()) {
+            sweeper = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("stuck-sweeper").daemon()
+                    .factory());
+            sweeper.scheduleWithFixedDelay(this::sweep, sweepInterval.toMillis(), sweepInterval.toMillis(),
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    void stop() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+    }
+
+    void addChainThreshold(final String chainThreshold) {
+        val separator = chainThreshold.lastIndexOf('=');
+        if (separator < 1) {
+            throw new IllegalArgumentException("dealtracker.stuck.chain-thresholds entries must be chain=duration, not "
+                    + chainThreshold);
+        }
+        chainThresholds.put(chainThreshold.substring(0, separator).trim(),
+                DurationConverter.parseDuration(chainThreshold.substring(separator + 1).trim()));
+    }
+
+    /**
+     * @param age only deals at their stage for longer than this
+     * @param chain just this chain, or every chain if null
+     * @param limit the most to return
+     * @return the deals, longest stuck first
+     */
+    public List<StuckDeal> olderThan(final Duration age, final String chain, final int limit) {
+        val now = LocalDateTime.now();
+        return find(now.minus(age), dealTracker -> chain == null || chain.equals(dealTracker.chain), now, limit);
+    }
+
+    /**
+     * @param chain just this chain, or every chain if null
+     * @param limit the most to return
+     * @return the deals past their chain's threshold right now, longest stuck first
+     */
+    public List<StuckDeal> pastThreshold(final String chain, final int limit) {
+        val now = LocalDateTime.now();
+        return find(now.minus(shortestThreshold()),
+                dealTracker -> (chain == null || chain.equals(dealTracker.chain))
+                        && dealTracker.stage.enteredAt(dealTracker).isBefore(now.minus(thresholdFor(dealTracker.chain))),
+                now, limit);
+    }
+
+    /**
+     * @return the deals flagged by the last sweep
+     */
+    public List<StuckDeal> getFlagged() {
+        return flagged;
+    }
+
+    void sweep() {
+        try {
+            val stuck = pastThreshold(null, Integer.MAX_VALUE);
+            if (action == Action.EXPIRE) {
+                for (StuckDeal stuckDeal : stuck) {
+                    if (dealLanes.run(stuckDeal.dealReference(),
+                            () -> dealTrackerManager.expire(stuckDeal.id(), stuckDeal.stage()))) {
+                        expired.increment();
+                    }
+                }
+                flagged = List.of();
+            } else {
+                flagged = stuck;
+            }
+            if (!stuck.isEmpty()) {
+                log.warn("{} deals are stuck past their threshold, oldest {} at {} since {}", stuck.size(),
+                        stuck.getFirst().dealReference(), stuck.getFirst().stage(), stuck.getFirst().since());
+            }
+        } catch (RuntimeException e) {
+            log.error("Stuck deal sweep failed", e);
+        }
+    }
+
+    private List<StuckDeal> find(final LocalDateTime cutoff, final Predicate<DealTracker> filter,
+                                 final LocalDateTime now, final int limit) {
+        val stuck = new ArrayList<StuckDeal>();
+        for (Stage stage : LIVE_STAGES) {
+            val deals = dealStore.enteredBefore(stage, cutoff);
+            int found = 0;
+            while (found < limit && deals.hasNext()) {
+                val dealTracker = deals.next();
+                if (filter.test(dealTracker)) {
+                    stuck.add(StuckDeal.of(dealTracker, now));
+                    found++;
+                }
+            }
+        }
+        stuck.sort(LONGEST_FIRST);
+        return stuck.size() > limit ? List.copyOf(stuck.subList(0, limit)) : stuck;
+    }
+
+    private Duration thresholdFor(final String chain) {
+        return chain == null ? threshold : chainThresholds.getOrDefault(chain, threshold);
+    }
+
+    private Duration shortestThreshold() {
+        return chainThresholds.values().stream().reduce(threshold, (a, b) -> a.compareTo(b) <= 0 ? a : b);
+    }
+}
@@ -0,0 +1,118 @@
+package org.hardboiled;
+
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AdmissionLimiterTest {
+
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Ensure work past the limit queues, work past the queue is turned away, and queued work is let
+     * in as running work finishes - or turned away once it has waited too long
+     */
+    @Test
+    public void testQueueAndShed() {
+        val clock = new AtomicLong();
+        val limiter = new AdmissionLimiter("test", 2, 2, 2, 2, 100 * MILLIS, clock::get);
+
+        val first = limiter.acquire().join();
+        val second = limiter.acquire().join();
+        val queued = limiter.acquire();
+        val queuedLonger = limiter.acquire();
+        assertFalse(queued.isDone());
+        assertEquals(2, limiter.getQueued());
+
+        val shed = assertThrows(CompletionException.class, () -> limiter.acquire().join());
+        val rejected = assertInstanceOf(AdmissionLimiter.Rejected.class, shed.getCause());
+        assertEquals(AdmissionLimiter.Reason.QUEUE_FULL, rejected.getReason());
+        assertTrue(rejected.getRetryAfterSeconds() >= 1);
+        assertEquals(1, limiter.getShed(AdmissionLimiter.Reason.QUEUE_FULL));
+
+        clock.addAndGet(10 * MILLIS);
+        first.release();
+        first.release();
+        assertTrue(queued.isDone());
+        assertEquals(2, limiter.getInFlight());
+
+        clock.addAndGet(200 * MILLIS);
+        assertEquals(1, limiter.expire());
+        assertTrue(queuedLonger.isCompletedExceptionally());
+        assertEquals(1, limiter.getShed(AdmissionLimiter.Reason.TIMEOUT));
+
+        second.release();
+        queued.join().release();
+        assertEquals(0, limiter.getInFlight());
+        assertEquals(0, limiter.getQueued());
+    }
+
+    /**
+     * Ensure work cancelled while queued gives up its place, and a permit cancelled just after
+     * it was let in is given back, so neither holds a slot for good
+     */
+    @Test
+    public void testCancelGivesUpPermit() {
+        val clock = new AtomicLong();
+        val limiter = new AdmissionLimiter("test", 1, 1, 1, 2, 100 * MILLIS, clock::get);
+
+        val first = limiter.acquire().join();
+        val cancelled = limiter.acquire();
+        val queued = limiter.acquire();
+        DealAdmission.cancel(cancelled);
+        assertTrue(cancelled.isCancelled());
+        assertEquals(1, limiter.getQueued());
+
+        first.release();
+        assertTrue(queued.isDone());
+        assertEquals(1, limiter.getInFlight());
+        assertEquals(0, limiter.getQueued());
+
+        DealAdmission.cancel(queued);
+        assertEquals(0, limiter.getInFlight());
+        assertTrue(limiter.acquire().isDone());
+    }
+
+    /**
+     * Ensure the limit grows while latency holds steady and the limit is full, and comes down when
+     * latency climbs, staying within min and max
+     */
+    @Test
+    public void testLimitFollowsLatency() {
+        val clock = new AtomicLong();
+        val limiter = new AdmissionLimiter("test", 10, 2, 50, 1000, TimeUnit.SECONDS.toNanos(10), clock::get);
+
+        for (int round = 0; round < 20; round++) {
+            fillAndRelease(limiter, clock, 10 * MILLIS);
+        }
+        val grown = limiter.getLimit();
+        assertTrue(grown > 10, "grew to " + grown);
+        assertTrue(grown <= 50);
+
+        for (int round = 0; round < 20; round++) {
+            fillAndRelease(limiter, clock, 100 * MILLIS);
+        }
+        val cut = limiter.getLimit();
+        assertTrue(cut < grown, "cut to " + cut);
+        assertTrue(cut >= 2);
+    }
+
+    private static void fillAndRelease(final AdmissionLimiter limiter, final AtomicLong clock, final long latency) {
+        val permits = new ArrayList<AdmissionLimiter.Permit>();
+        for (int i = limiter.getLimit(); i > 0; i--) {
+            permits.add(limiter.acquire().join());
+        }
+        clock.addAndGet(latency);
+        permits.forEach(AdmissionLimiter.Permit::release);
+    }
+}
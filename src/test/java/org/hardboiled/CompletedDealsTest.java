@@ -0,0 +1,90 @@
+package org.hardboiled;
+
+import lombok.val;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CompletedDealsTest {
+
+    private static final long NOW = 1_725_000_000_000L;
+
+    private static CompletedDeals completedDeals(final Path file, final int generations) {
+        val completedDeals = new CompletedDeals();
+        completedDeals.recentSize = 2;
+        completedDeals.generationCount = generations;
+        completedDeals.rotation = Duration.ofHours(1);
+        completedDeals.expectedPerGeneration = 1000;
+        completedDeals.falsePositiveRate = 0.01;
+        completedDeals.file = file.toString();
+        completedDeals.snapshotInterval = Duration.ofMinutes(1);
+        completedDeals.open(NOW);
+        return completedDeals;
+    }
+
+    /**
+     * Ensure the latest completions are matched exactly, older ones only probably, until rotated away
+     */
+    @Test
+    public void testExactThenProbableThenForgotten(@TempDir Path directory) {
+        val completedDeals = completedDeals(directory.resolve("completed.bin"), 2);
+        completedDeals.add("DT-1");
+        completedDeals.add("DT-2");
+        completedDeals.add("DT-3");
+        assertEquals(CompletedDeals.Match.PROBABLE, completedDeals.check("DT-1"));
+        assertEquals(CompletedDeals.Match.EXACT, completedDeals.check("DT-2"));
+        assertEquals(CompletedDeals.Match.EXACT, completedDeals.check("DT-3"));
+        assertEquals(CompletedDeals.Match.NONE, completedDeals.check("DT-4"));
+
+        // still in the older generation after one rotation, gone after two
+        completedDeals.rotateIfDue(NOW + Duration.ofMinutes(70).toMillis());
+        assertEquals(CompletedDeals.Match.PROBABLE, completedDeals.check("DT-1"));
+        completedDeals.rotateIfDue(NOW + Duration.ofMinutes(130).toMillis());
+        assertEquals(CompletedDeals.Match.NONE, completedDeals.check("DT-1"));
+    }
+
+    /**
+     * Ensure a snapshot brings back both the exact set and the filter, and a filter sized
+     * differently is rebuilt from the exact set
+     */
+    @Test
+    public void testSnapshotRoundTrip(@TempDir Path directory) {
+        val file = directory.resolve("completed.bin");
+        val saved = completedDeals(file, 2);
+        IntStream.rangeClosed(1, 5).forEach(i -> saved.add("DT-" + i));
+        saved.save();
+
+        val loaded = completedDeals(file, 2);
+        assertEquals(CompletedDeals.Match.EXACT, loaded.check("DT-5"));
+        assertEquals(CompletedDeals.Match.PROBABLE, loaded.check("DT-1"));
+
+        val resized = completedDeals(file, 3);
+        assertEquals(CompletedDeals.Match.EXACT, resized.check("DT-4"));
+        assertEquals(CompletedDeals.Match.NONE, resized.check("DT-1"));
+    }
+
+    /**
+     * Ensure the filter stays near the false positive rate it was sized for when full
+     */
+    @Test
+    public void testFalsePositiveRate() {
+        val filter = new RotatingBloomFilter(4, 10_000, 0.01);
+        for (int generation = 0; generation < 4; generation++) {
+            for (int i = 0; i < 10_000; i++) {
+                filter.add("DT-" + generation + "-" + i);
+            }
+            filter.rotate();
+        }
+        // the rotation cleared one generation, refill it
+        IntStream.range(0, 10_000).forEach(i -> filter.add("DT-0-" + i));
+        assertTrue(filter.mightContain("DT-3-9999"));
+        val falsePositives = IntStream.range(0, 100_000).filter(i -> filter.mightContain("other-" + i)).count();
+        assertTrue(falsePositives < 2_000, "false positives " + falsePositives);
+    }
+}
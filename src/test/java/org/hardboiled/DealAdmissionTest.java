@@ -0,0 +1,55 @@
+package org.hardboiled;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.QuarkusTestProfile;
+import io.quarkus.test.junit.TestProfile;
+import jakarta.inject.Inject;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static io.restassured.RestAssured.given;
+
+@QuarkusTest
+@TestProfile(DealAdmissionTest.OneQuery.class)
+public class DealAdmissionTest {
+
+    public static class OneQuery implements QuarkusTestProfile {
+
+        @Override
+        public Map<String, String> getConfigOverrides() {
+            return Map.of("dealtracker.admission.query.initial-limit", "1",
+                    "dealtracker.admission.query.min-limit", "1",
+                    "dealtracker.admission.query.max-limit", "1",
+                    "dealtracker.admission.query.queue", "0");
+        }
+    }
+
+    @Inject
+    DealAdmission dealAdmission;
+
+    /**
+     * Ensure every query endpoint, the streams included, is turned away while the only query place
+     * is taken, and gives its place back once it has answered
+     */
+    @Test
+    public void testQueriesAreAdmitted() {
+        val paths = Stream.of("/dealtracker/summary", "/dealtracker/latencies", "/dealtracker/stuck",
+                "/dealtracker/archive", "/dealtracker/audit/AD-1", "/dealtracker/stream/all", "/dealtracker/feed");
+        val held = dealAdmission.acquire(DealAdmission.Workload.QUERY).join();
+        try {
+            paths.forEach(path -> given()
+                    .when().get(path)
+                    .then().statusCode(429));
+        } finally {
+            DealAdmission.release(held);
+        }
+
+        Stream.of("/dealtracker/summary", "/dealtracker/stuck", "/dealtracker/stream/all", "/dealtracker/summary")
+                .forEach(path -> given()
+                        .when().get(path)
+                        .then().statusCode(200));
+    }
+}
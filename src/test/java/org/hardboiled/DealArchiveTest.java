@@ -0,0 +1,127 @@
+package org.hardboiled;
+
+import jakarta.transaction.Status;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.hardboiled.TestDeals.deal;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DealArchiveTest {
+
+    private static final LocalDateTime START = LocalDateTime.of(2024, 6, 1, 9, 0);
+
+    private static DealTracker completed(final long id, final String chain, final LocalDateTime appCompleteTime) {
+        return deal(id, chain)
+                .chainNumber((int) id)
+                .arrivalTime(appCompleteTime.minusSeconds(30))
+                .sentTime(appCompleteTime.minusSeconds(20).plusNanos(123_000))
+                .vestCompleteTime(id % 2 == 0 ? null : appCompleteTime.minusSeconds(5))
+                .appCompleteTime(appCompleteTime)
+                .build();
+    }
+
+    private static DealArchive archive(final Path directory) throws Exception {
+        val dealArchive = new DealArchive();
+        dealArchive.directory = directory.toString();
+        dealArchive.partition = Duration.ofDays(1);
+        dealArchive.segmentRows = 3;
+        dealArchive.retain = Duration.ofDays(100_000);
+        dealArchive.queueCapacity = 10;
+        dealArchive.open();
+        return dealArchive;
+    }
+
+    /**
+     * Ensure every field comes back from a segment as written, nulls included
+     */
+    @Test
+    public void testSegmentRoundTrip(@TempDir Path directory) throws Exception {
+        val deals = List.of(
+                completed(4L, "chainB", START.plusMinutes(2)),
+                completed(3L, "chainA", START),
+                completed(5L, null, START.plusMinutes(1)));
+        val index = DealArchiveSegment.write(directory.resolve("1.arc"), deals);
+        assertEquals(3, index.rows());
+        assertEquals(List.of("chainA", "chainB"), index.chains());
+        assertEquals(DealRecordCodec.toMicros(START), index.minTime());
+
+        val read = DealArchiveSegment.read(index, Long.MIN_VALUE + 1, Long.MAX_VALUE, null, null, 10);
+        assertEquals(List.of(3L, 5L, 4L), read.stream().map(DealTracker::getId).toList());
+        val chainB = read.get(2);
+        assertEquals("ref::4", chainB.getDealReference());
+        assertEquals("chainB", chainB.getChain());
+        assertEquals(4, chainB.getChainNumber());
+        assertEquals(START.plusMinutes(2).minusSeconds(20).plusNanos(123_000), chainB.getSentTime());
+        assertNull(chainB.getVestCompleteTime());
+        assertEquals(Stage.APP_COMPLETE, chainB.getStage());
+        assertNull(read.get(1).getChain());
+
+        assertEquals(List.of(4L), DealArchiveSegment.read(index, Long.MIN_VALUE + 1, Long.MAX_VALUE, "chainB", null, 10)
+                .stream().map(DealTracker::getId).toList());
+        assertEquals(List.of(), DealArchiveSegment.read(index, Long.MIN_VALUE + 1, Long.MAX_VALUE, "chainC", null, 10));
+    }
+
+    /**
+     * Ensure queries across partitions filter by time, chain and reference and survive a reopen
+     */
+    @Test
+    public void testQueryAcrossPartitions(@TempDir Path directory) throws Exception {
+        val dealArchive = archive(directory);
+        for (long id = 1; id <= 8; id++) {
+            dealArchive.append(completed(id, id % 2 == 0 ? "chainA" : "chainB", START.plusHours(id * 6)));
+        }
+        dealArchive.flush();
+        dealArchive.stop();
+
+        val reopened = archive(directory);
+        assertEquals(dealArchive.getSegmentCount(), reopened.getSegmentCount());
+        assertEquals(8, reopened.query(null, null, null, null, 100).size());
+        assertEquals(List.of(2L, 4L, 6L, 8L), reopened.query(null, null, "chainA", null, 100)
+                .stream().map(DealTracker::getId).toList());
+        assertEquals(List.of(3L, 4L), reopened.query(START.plusHours(18), START.plusHours(25), null, null, 100)
+                .stream().map(DealTracker::getId).toList());
+        assertEquals(List.of(5L), reopened.query(null, null, null, "ref::5", 100)
+                .stream().map(DealTracker::getId).toList());
+        assertEquals(List.of(1L, 2L), reopened.query(null, null, null, null, 2)
+                .stream().map(DealTracker::getId).toList());
+        reopened.stop();
+    }
+
+    /**
+     * Ensure only completions that commit are archived, and that stopping writes out what's
+     * buffered without waiting for the flush interval
+     */
+    @Test
+    public void testArchivesCommittedCompletions(@TempDir Path directory) throws Exception {
+        val dealStore = new DealStore();
+        val dealArchive = archive(directory);
+        dealArchive.dealStore = dealStore;
+        dealArchive.flushInterval = Duration.ofHours(1);
+        dealArchive.startWriter();
+
+        for (long id = 1; id <= 2; id++) {
+            val deal = completed(id, "chainA", START);
+            dealStore.put(deal.toBuilder().appCompleteTime(null).build());
+            val transaction = new DealStoreTransaction(dealStore);
+            dealStore.complete(deal, transaction);
+            transaction.afterCompletion(id == 1 ? Status.STATUS_ROLLEDBACK : Status.STATUS_COMMITTED);
+        }
+        val stopping = System.nanoTime();
+        dealArchive.stop();
+        assertTrue(Duration.ofNanos(System.nanoTime() - stopping).compareTo(Duration.ofSeconds(5)) < 0);
+
+        val reopened = archive(directory);
+        assertEquals(List.of(2L), reopened.query(null, null, null, null, 100)
+                .stream().map(DealTracker::getId).toList());
+        reopened.stop();
+    }
+}
@@ -0,0 +1,121 @@
+package org.hardboiled;
+
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.hardboiled.TestDeals.deal;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DealAuditRingTest {
+
+    private static final LocalDateTime ARRIVAL = LocalDateTime.of(2024, 9, 4, 5, 6);
+
+    /**
+     * Ensure a deal's records are found whether or not they've been drained, and that what's
+     * written reads back the same
+     */
+    @Test
+    public void testFindAndWrite() throws Exception {
+        val ring = new DealAuditRing(8);
+        val dt1 = deal(1, "chainA").arrivalTime(ARRIVAL).build();
+        val sent = dt1.toBuilder().sentTime(ARRIVAL.plusMinutes(1)).build();
+        ring.record(1000, dt1, null, Stage.WAITING, ProcessOutcome.PERSISTED);
+        ring.record(2000, deal(2, "chainA").build(), null, Stage.WAITING, ProcessOutcome.PERSISTED);
+        ring.record(3000, sent, Stage.WAITING, Stage.SENT, ProcessOutcome.UPDATED);
+
+        val bytes = new ByteArrayOutputStream();
+        assertEquals(2, ring.drain(new DataOutputStream(bytes), 2));
+        ring.record(4000, sent, Stage.SENT, null, ProcessOutcome.DELETED);
+
+        val found = ring.find("ref::1", 10);
+        assertEquals(List.of(ProcessOutcome.PERSISTED, ProcessOutcome.UPDATED, ProcessOutcome.DELETED),
+                found.stream().map(DealAuditRing.Entry::outcome).toList());
+        assertEquals(List.of(0L, 2L, 3L), found.stream().map(DealAuditRing.Entry::sequence).toList());
+        assertEquals(Stage.SENT, found.get(1).newStage());
+        assertNull(found.get(2).newStage());
+        assertEquals(2, ring.find("ref::1", 2).size());
+
+        assertEquals(2, ring.drain(new DataOutputStream(bytes), 10));
+        assertEquals(3, ring.find("ref::1", 10).size());
+
+        val in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        val first = DealAuditRing.read(in);
+        assertEquals("ref::1", first.dealReference());
+        assertEquals(1L, first.id());
+        assertEquals(ARRIVAL, first.arrivalTime());
+        assertNull(first.sentTime());
+        assertEquals(1000, first.recordedAt().toEpochMilli());
+        assertEquals("ref::2", DealAuditRing.read(in).dealReference());
+        val third = DealAuditRing.read(in);
+        assertEquals(Stage.WAITING, third.oldStage());
+        assertEquals(ARRIVAL.plusMinutes(1), third.sentTime());
+    }
+
+    /**
+     * Ensure records are dropped rather than overwriting ones not yet drained, and that a deal's
+     * records are forgotten once overwritten
+     */
+    @Test
+    public void testFullAndOverwritten() throws Exception {
+        val ring = new DealAuditRing(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.record(i, deal(i, "chainA").build(), null, Stage.WAITING, ProcessOutcome.PERSISTED));
+        }
+        assertFalse(ring.record(4, deal(4, "chainA").build(), null, Stage.WAITING, ProcessOutcome.PERSISTED));
+        assertEquals(1, ring.getDropped());
+
+        assertEquals(4, ring.drain(null, 10));
+        for (int i = 4; i < 8; i++) {
+            assertTrue(ring.record(i, deal(i, "chainA").build(), null, Stage.WAITING, ProcessOutcome.PERSISTED));
+        }
+        ring.drain(null, 10);
+        assertEquals(List.of(), ring.find("ref::0", 10));
+        assertEquals(1, ring.find("ref::7", 10).size());
+        assertEquals(0, ring.getBacklog());
+    }
+
+    /**
+     * Ensure a drain whose write fails takes none of its records, so the next drain writes them
+     * all and each is indexed once
+     */
+    @Test
+    public void testFailedWrite() throws Exception {
+        val ring = new DealAuditRing(8);
+        for (int i = 0; i < 3; i++) {
+            ring.record(i, deal(1, "chainA").build(), null, Stage.WAITING, ProcessOutcome.PERSISTED);
+        }
+        val failing = new DataOutputStream(new OutputStream() {
+            private int written;
+
+            @Override
+            public void write(final int b) throws IOException {
+                if (++written > 100) {
+                    throw new IOException("disk full");
+                }
+            }
+        });
+        assertThrows(IOException.class, () -> ring.drain(failing, 10));
+        assertEquals(3, ring.getBacklog());
+
+        val bytes = new ByteArrayOutputStream();
+        assertEquals(3, ring.drain(new DataOutputStream(bytes), 10));
+        assertEquals(List.of(0L, 1L, 2L), ring.find("ref::1", 10).stream().map(DealAuditRing.Entry::sequence).toList());
+        val in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for (long sequence = 0; sequence < 3; sequence++) {
+            assertEquals(sequence, DealAuditRing.read(in).sequence());
+        }
+    }
+}
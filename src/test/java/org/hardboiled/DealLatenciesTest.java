@@ -0,0 +1,103 @@
+package org.hardboiled;
+
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DealLatenciesTest {
+
+    private static DealLatencies latencies() {
+        val dealLatencies = new DealLatencies();
+        dealLatencies.window = Duration.ofHours(1);
+        dealLatencies.sliceCount = 12;
+        dealLatencies.precision = 2;
+        return dealLatencies;
+    }
+
+    /**
+     * Ensure each stage's dwell time is recorded once, as the deal moves past it, and that a deal
+     * completing records its end to end time
+     */
+    @Test
+    public void testDwellTimesFollowTransitions() {
+        val dealLatencies = latencies();
+        val now = System.currentTimeMillis();
+        val arrival = LocalDateTime.of(2024, 9, 4, 5, 0);
+        for (int i = 0; i < 100; i++) {
+            val dealTracker = DealTracker.builder().id((long) i).dealReference("ref::" + i).chain("chainA")
+                    .arrivalTime(arrival).build();
+            dealTracker.stage = Stage.WAITING;
+            val sent = dealTracker.toBuilder().sentTime(arrival.plusSeconds(i + 1)).build();
+            sent.stage = Stage.SENT;
+            val complete = sent.toBuilder().vestCompleteTime(sent.sentTime.plusSeconds(10))
+                    .appCompleteTime(sent.sentTime.plusSeconds(20)).build();
+            complete.stage = Stage.APP_COMPLETE;
+
+            dealLatencies.record(DealTransition.of(null, dealTracker, false), now);
+            dealLatencies.record(DealTransition.of(dealTracker, sent, false), now);
+            // a repeat of the same stage doesn't count again
+            dealLatencies.record(DealTransition.of(sent, sent, false), now);
+            dealLatencies.record(DealTransition.of(sent, complete, true), now);
+        }
+
+        val report = dealLatencies.report("chainA", null);
+        val chainA = report.chains().get("chainA");
+        assertEquals(100, chainA.get(DealLatencies.Segment.ARRIVAL_TO_SENT).count());
+        val median = chainA.get(DealLatencies.Segment.ARRIVAL_TO_SENT).p50();
+        assertTrue(median >= 49_500 && median <= 51_000, "median was " + median);
+        assertEquals(10_000, chainA.get(DealLatencies.Segment.SENT_TO_VEST_COMPLETE).p99(), 100);
+        assertEquals(10_000, chainA.get(DealLatencies.Segment.VEST_COMPLETE_TO_APP_COMPLETE).p50(), 100);
+        assertEquals(100, report.all().get(DealLatencies.Segment.END_TO_END).count());
+        assertEquals(3600, report.windowSeconds());
+    }
+
+    /**
+     * Ensure times recorded before the window are left out
+     */
+    @Test
+    public void testOldSlicesDropOutOfTheWindow() {
+        val dealLatencies = latencies();
+        val arrival = LocalDateTime.of(2024, 9, 4, 5, 0);
+        val waiting = DealTracker.builder().id(1L).dealReference("ref::1").chain("chainB").arrivalTime(arrival).build();
+        waiting.stage = Stage.WAITING;
+        val sent = waiting.toBuilder().sentTime(arrival.plusMinutes(1)).build();
+        sent.stage = Stage.SENT;
+
+        val longAgo = System.currentTimeMillis() - Duration.ofHours(2).toMillis();
+        dealLatencies.record(DealTransition.of(waiting, sent, false), longAgo);
+        assertEquals(0, dealLatencies.report(null, null).all().get(DealLatencies.Segment.ARRIVAL_TO_SENT).count());
+
+        dealLatencies.record(DealTransition.of(waiting, sent, false), System.currentTimeMillis());
+        assertEquals(1, dealLatencies.report(null, Duration.ofMinutes(5)).all()
+                .get(DealLatencies.Segment.ARRIVAL_TO_SENT).count());
+    }
+
+    /**
+     * Ensure a chain is forgotten once everything recorded for it has left the window
+     */
+    @Test
+    public void testIdleChainsAreEvicted() {
+        val dealLatencies = latencies();
+        val arrival = LocalDateTime.of(2024, 9, 4, 5, 0);
+        val waiting = DealTracker.builder().id(1L).dealReference("ref::1").chain("chainB").arrivalTime(arrival).build();
+        waiting.stage = Stage.WAITING;
+        val sent = waiting.toBuilder().sentTime(arrival.plusMinutes(1)).build();
+        sent.stage = Stage.SENT;
+        val other = sent.toBuilder().chain("chainC").build();
+        other.stage = Stage.SENT;
+
+        val now = System.currentTimeMillis();
+        dealLatencies.record(DealTransition.of(waiting, sent, false), now - Duration.ofMinutes(50).toMillis());
+        dealLatencies.record(DealTransition.of(waiting, other, false), now - Duration.ofMinutes(45).toMillis());
+        assertEquals(Set.of("chainB", "chainC"), dealLatencies.report(null, null).chains().keySet());
+
+        dealLatencies.record(DealTransition.of(waiting, other, false), now + Duration.ofMinutes(20).toMillis());
+        assertEquals(Set.of("chainC"), dealLatencies.report(null, null).chains().keySet());
+    }
+}
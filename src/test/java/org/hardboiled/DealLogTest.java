@@ -0,0 +1,98 @@
+package org.hardboiled;
+
+import lombok.val;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DealLogTest {
+
+    @TempDir
+    Path directory;
+
+    private static DealLog.Replay into(final Map<Long, DealTracker> deals) {
+        return new DealLog.Replay() {
+            @Override
+            public void put(final DealTracker dealTracker) {
+                deals.put(dealTracker.getId(), dealTracker);
+            }
+
+            @Override
+            public void remove(final Long id) {
+                deals.remove(id);
+            }
+        };
+    }
+
+    private DealLog newLog(final long segmentSize) {
+        return new DealLog(directory, DealLog.FsyncPolicy.ALWAYS, Duration.ofMillis(10), segmentSize);
+    }
+
+    /**
+     * Ensure replaying the log rebuilds the deals as they were last written, across segments
+     */
+    @Test
+    public void testReplayRebuildsState() throws Exception {
+        val arrivalTime = LocalDateTime.of(2024, 9, 4, 5, 6, 7, 123_456_000);
+        try (val dealLog = newLog(256)) {
+            dealLog.open(into(new HashMap<>()));
+            for (long id = 1; id <= 20; id++) {
+                dealLog.appendPut(new DealTracker(id, "ref::" + id, "chainA", (int) id,
+                        arrivalTime, null, null, null, null, null));
+            }
+            dealLog.appendPut(new DealTracker(2L, "ref::2", "chainA", 2,
+                    arrivalTime, arrivalTime.plusSeconds(1), null, null, null, null));
+            dealLog.appendRemove(3L);
+            assertTrue(dealLog.segments().size() > 1);
+        }
+
+        val deals = new HashMap<Long, DealTracker>();
+        try (val dealLog = newLog(256)) {
+            assertEquals(22, dealLog.open(into(deals)));
+        }
+        assertEquals(19, deals.size());
+        assertNull(deals.get(3L));
+        assertEquals(arrivalTime, deals.get(1L).getArrivalTime());
+        assertEquals(arrivalTime.plusSeconds(1), deals.get(2L).getSentTime());
+        assertNull(deals.get(2L).getVestCompleteTime());
+        assertEquals("chainA", deals.get(20L).getChain());
+    }
+
+    /**
+     * Ensure a record torn by a crash is dropped and the log carries on from before it
+     */
+    @Test
+    public void testTornRecordIsDiscarded() throws Exception {
+        try (val dealLog = newLog(1 << 20)) {
+            dealLog.open(into(new HashMap<>()));
+            dealLog.appendPut(new DealTracker(1L, "ref::1", "chainA", 1, LocalDateTime.now(), null, null, null, null, null));
+            dealLog.appendPut(new DealTracker(2L, "ref::2", "chainA", 2, LocalDateTime.now(), null, null, null, null, null));
+        }
+        val segment = new DealLog(directory, DealLog.FsyncPolicy.NEVER, Duration.ZERO, 0).segmentPath(0);
+        try (val channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        val deals = new HashMap<Long, DealTracker>();
+        try (val dealLog = newLog(1 << 20)) {
+            assertEquals(1, dealLog.open(into(deals)));
+            dealLog.appendRemove(1L);
+        }
+        deals.clear();
+        try (val dealLog = newLog(1 << 20)) {
+            assertEquals(2, dealLog.open(into(deals)));
+        }
+        assertTrue(deals.isEmpty());
+    }
+}
@@ -0,0 +1,52 @@
+package org.hardboiled;
+
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hardboiled.TestDeals.deal;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DealShardsTest {
+
+    private static final List<String> MEMBERS = List.of("http://a:8080", "http://b:8080", "http://c:8080");
+
+    /**
+     * Ensure every instance agrees on owners whatever order the members are listed in, that keys
+     * spread across all the members, and that dropping one only moves that member's keys
+     */
+    @Test
+    public void testRingIsConsistent() {
+        val ring = new ShardRing(MEMBERS, 128);
+        val reordered = new ShardRing(List.of(MEMBERS.get(2), MEMBERS.get(0), MEMBERS.get(1)), 128);
+        val withoutC = new ShardRing(MEMBERS.subList(0, 2), 128);
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 3000; i++) {
+            val chain = "chain" + i;
+            val owner = ring.ownerOf(chain);
+            assertEquals(owner, reordered.ownerOf(chain));
+            counts.merge(owner, 1, Integer::sum);
+            if (!owner.equals(MEMBERS.get(2))) {
+                assertEquals(owner, withoutC.ownerOf(chain));
+            }
+        }
+        assertEquals(3, counts.size());
+        counts.values().forEach(count -> assertTrue(count > 600 && count < 1400, "uneven spread " + counts));
+    }
+
+    /**
+     * Ensure members' lists are merged back into chain order and cut at the limit
+     */
+    @Test
+    public void testMergeKeepsChainOrder() {
+        val merged = DealShards.merge(List.of(
+                List.of(deal(1, "chainA").build(), deal(2, "chainA").chainNumber(3).build(), deal(3, "chainC").build()),
+                List.of(),
+                List.of(deal(4, "chainA").chainNumber(2).build(), deal(5, "chainB").build())), 4);
+        assertEquals(List.of(1L, 4L, 2L, 5L), merged.stream().map(DealTracker::getId).toList());
+    }
+}
@@ -0,0 +1,114 @@
+package org.hardboiled;
+
+import lombok.val;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DealSnapshotsTest {
+
+    @TempDir
+    Path directory;
+
+    private static List<DealTracker> deals(final int count) {
+        val deals = new ArrayList<DealTracker>();
+        for (long id = 1; id <= count; id++) {
+            deals.add(new DealTracker(id, "ref::" + id, "chain" + (id % 3), (int) id,
+                    LocalDateTime.of(2024, 9, 4, 5, 6), null, null, null, null, null));
+        }
+        return deals;
+    }
+
+    /**
+     * Ensure the newest snapshot is loaded, and an older one is used if the newest is damaged
+     */
+    @Test
+    public void testLoadNewestFallsBack() throws Exception {
+        val dealSnapshots = new DealSnapshots(directory);
+        dealSnapshots.write(3, 10, deals(10));
+        dealSnapshots.write(7, 20, deals(20));
+        val newest = dealSnapshots.snapshotPath(7);
+        val bytes = Files.readAllBytes(newest);
+        bytes[bytes.length / 2] ^= 0x7f;
+        Files.write(newest, bytes);
+
+        val loaded = new HashMap<Long, DealTracker>();
+        val snapshot = dealSnapshots.loadNewest(dealTracker -> loaded.put(dealTracker.getId(), dealTracker), loaded::clear)
+                .orElseThrow();
+        assertEquals(3, snapshot.segment());
+        assertEquals(10, snapshot.lastId());
+        assertEquals(10, loaded.size());
+        assertEquals("chain1", loaded.get(1L).getChain());
+    }
+
+    /**
+     * Ensure only the newest snapshots are kept
+     */
+    @Test
+    public void testRetain() throws Exception {
+        val dealSnapshots = new DealSnapshots(directory);
+        for (long segment = 1; segment <= 4; segment++) {
+            dealSnapshots.write(segment, segment, deals(1));
+        }
+        assertEquals(3L, dealSnapshots.retain(2).orElseThrow());
+        assertEquals(List.of(3L, 4L), dealSnapshots.snapshots());
+    }
+
+    /**
+     * Ensure a snapshot plus the log segments after it rebuild the same deals as the whole log
+     */
+    @Test
+    public void testSnapshotPlusLogTail() throws Exception {
+        val dealSnapshots = new DealSnapshots(directory);
+        val store = new DealStore();
+        final long segment;
+        try (val dealLog = new DealLog(directory, DealLog.FsyncPolicy.NEVER, Duration.ofMillis(10), 1 << 20)) {
+            dealLog.open(replayInto(store));
+            for (DealTracker dealTracker : deals(100)) {
+                dealLog.appendPut(dealTracker);
+                store.put(dealTracker);
+            }
+            segment = dealLog.roll();
+            dealSnapshots.write(segment, 100, store.getAll());
+            dealLog.deleteSegmentsBefore(segment);
+
+            dealLog.appendRemove(1L);
+            val sent = deals(2).get(1);
+            sent.setSentTime(LocalDateTime.now());
+            dealLog.appendPut(sent);
+        }
+
+        val rebuilt = new DealStore();
+        val snapshot = dealSnapshots.loadNewest(rebuilt::put, rebuilt::clear).orElseThrow();
+        try (val dealLog = new DealLog(directory, DealLog.FsyncPolicy.NEVER, Duration.ofMillis(10), 1 << 20)) {
+            assertEquals(2, dealLog.open(replayInto(rebuilt), snapshot.segment()));
+        }
+        assertEquals(99, rebuilt.size());
+        assertTrue(rebuilt.findById(1L).isEmpty());
+        assertEquals(1, rebuilt.getInProcessing().size());
+    }
+
+    private static DealLog.Replay replayInto(final DealStore store) {
+        return new DealLog.Replay() {
+            @Override
+            public void put(final DealTracker dealTracker) {
+                store.put(dealTracker);
+            }
+
+            @Override
+            public void remove(final Long id) {
+                store.remove(id);
+            }
+        };
+    }
+}
@@ -0,0 +1,324 @@
+package org.hardboiled;
+
+import jakarta.transaction.Status;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import static org.hardboiled.TestDeals.deal;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DealStoreTest {
+
+    /**
+     * Ensure deals move between the waiting and in-processing sets as they are updated
+     */
+    @Test
+    public void testStageIndexesFollowUpdates() {
+        val dealStore = new DealStore();
+        val dt1 = deal(1L, "chainA").build();
+        dealStore.put(dt1);
+
+        assertEquals(1, dealStore.getWaiting().size());
+        assertEquals(0, dealStore.getInProcessing().size());
+
+        dt1.setSentTime(LocalDateTime.now());
+        // the store holds a copy so changing the entity alone doesn't move it
+        assertEquals(1, dealStore.getWaiting().size());
+
+        dealStore.put(dt1);
+        assertEquals(0, dealStore.getWaiting().size());
+        assertEquals(1, dealStore.getInProcessing().size());
+        assertTrue(dealStore.findByDealReference("ref::1").isPresent());
+
+        dealStore.remove(1L);
+        assertEquals(0, dealStore.getInProcessing().size());
+        assertTrue(dealStore.findByDealReference("ref::1").isEmpty());
+        assertTrue(dealStore.findById(1L).isEmpty());
+    }
+
+    /**
+     * Ensure the stage sets come back in chain, chainNumber, dealReference order
+     */
+    @Test
+    public void testWaitingIsSorted() {
+        val dealStore = new DealStore();
+        dealStore.put(deal(1L, "chainB").dealReference("ref::3").build());
+        dealStore.put(deal(2L, "chainA").chainNumber(2).build());
+        dealStore.put(deal(3L, "chainA").dealReference("ref::1").chainNumber(2).build());
+        dealStore.put(deal(4L, "chainA").build());
+
+        val waiting = dealStore.getWaiting().stream().map(DealTracker::getDealReference).toList();
+        assertEquals(List.of("ref::4", "ref::1", "ref::2", "ref::3"), waiting);
+    }
+
+    /**
+     * Ensure restore puts back what was there before a change, unless the deal has been changed
+     * again since
+     */
+    @Test
+    public void testRestore() {
+        val dealStore = new DealStore();
+        val previous = dealStore.put(deal(1L, "chainA").build());
+        assertNull(previous);
+        assertTrue(dealStore.restore(1L, dealStore.findById(1L).orElseThrow(), previous));
+        assertEquals(0, dealStore.size());
+        assertTrue(dealStore.findByDealReference("ref::1").isEmpty());
+
+        dealStore.put(deal(2L, "chainA").chainNumber(2).build());
+        val original = dealStore.findById(2L).orElseThrow();
+        val sent = original.toBuilder().sentTime(LocalDateTime.now()).build();
+        assertTrue(dealStore.replace(original, sent));
+        val changed = dealStore.findById(2L).orElseThrow();
+        val vested = changed.toBuilder().vestCompleteTime(LocalDateTime.now()).build();
+        assertTrue(dealStore.replace(changed, vested));
+
+        // the first change rolls back after the second has been made on top of it
+        assertFalse(dealStore.restore(2L, changed, original));
+        assertEquals(Stage.VEST_COMPLETE, dealStore.findById(2L).orElseThrow().stage);
+        assertEquals(1, dealStore.count(Stage.VEST_COMPLETE));
+    }
+
+    /**
+     * Ensure changes made in a transaction only reach the listeners once it commits, and that one
+     * rolled back is put back without them hearing of it
+     */
+    @Test
+    public void testTransactionHoldsBackTransitions() {
+        val dealStore = new DealStore();
+        val transitions = new ArrayList<DealTransition>();
+        dealStore.addListener(transitions::add);
+
+        val rolledBack = new DealStoreTransaction(dealStore);
+        dealStore.put(deal(1L, "chainA").build(), rolledBack);
+        assertTrue(dealStore.findById(1L).isPresent());
+        assertTrue(transitions.isEmpty());
+        rolledBack.afterCompletion(Status.STATUS_ROLLEDBACK);
+        assertEquals(0, dealStore.size());
+        assertTrue(transitions.isEmpty());
+
+        val committed = new DealStoreTransaction(dealStore);
+        dealStore.put(deal(2L, "chainA").chainNumber(2).build(), committed);
+        dealStore.remove(2L, committed);
+        assertTrue(transitions.isEmpty());
+        committed.afterCompletion(Status.STATUS_COMMITTED);
+        assertEquals(2, transitions.size());
+        assertNull(transitions.get(0).oldStage());
+        assertTrue(transitions.get(1).removed());
+    }
+
+    /**
+     * Ensure the summary counters follow deals between stages and chains, and a chain goes once its
+     * last deal does
+     */
+    @Test
+    public void testSummary() {
+        val dealStore = new DealStore();
+        val oldest = LocalDateTime.now().minusMinutes(5);
+        val dt1 = deal(1L, "chainA").build();
+        dt1.setArrivalTime(oldest);
+        dealStore.put(dt1);
+        dealStore.put(deal(2L, "chainA").chainNumber(2).build());
+        dealStore.put(deal(3L, "chainB").build());
+
+        var summary = dealStore.summary();
+        assertEquals(3, summary.waiting());
+        assertEquals(0, summary.inProcessing());
+        assertEquals(oldest, summary.oldestArrivalTime().get(Stage.WAITING));
+        assertEquals(2, summary.chains().get("chainA").waiting());
+
+        dt1.setSentTime(LocalDateTime.now());
+        dealStore.put(dt1);
+        dealStore.remove(3L);
+
+        summary = dealStore.summary();
+        assertEquals(1, summary.waiting());
+        assertEquals(1, summary.inProcessing());
+        assertEquals(1, summary.stages().get(Stage.SENT));
+        assertEquals(oldest, summary.oldestArrivalTime().get(Stage.SENT));
+        assertEquals(1, summary.chains().get("chainA").inProcessing());
+        assertFalse(summary.chains().containsKey("chainB"));
+        assertEquals(Set.of("chainA"), dealStore.getChains());
+        assertEquals(2, dealStore.count("chainA"));
+
+        dealStore.put(deal(4L, "chainB").build());
+        assertEquals(1, dealStore.summary().chains().get("chainB").waiting());
+    }
+
+    /**
+     * Ensure a replace only goes through against the copy the store still holds, so a writer working
+     * from a copy someone else has since replaced has to read it again
+     */
+    @Test
+    public void testReplace() {
+        val dealStore = new DealStore();
+        dealStore.put(deal(1L, "chainA").build());
+        val held = dealStore.findById(1L).orElseThrow();
+
+        val sent = held.toBuilder().sentTime(LocalDateTime.now()).build();
+        assertTrue(dealStore.replace(held, sent));
+        assertEquals(1, dealStore.getInProcessing().size());
+
+        val vestComplete = held.toBuilder().vestCompleteTime(LocalDateTime.now()).build();
+        assertFalse(dealStore.replace(held, vestComplete));
+        assertEquals(Stage.SENT, dealStore.findById(1L).orElseThrow().stage);
+
+        dealStore.remove(1L);
+        assertFalse(dealStore.replace(held, sent));
+        assertEquals(0, dealStore.size());
+    }
+
+    /**
+     * Ensure a bulk load indexes the deals the same way as putting them one at a time
+     */
+    @Test
+    public void testLoad() {
+        val sent = deal(2L, "chainA").chainNumber(2).build();
+        sent.setSentTime(LocalDateTime.now());
+        val dealStore = new DealStore();
+        dealStore.load(List.of(deal(1L, "chainB").dealReference("ref::3").build(), sent,
+                deal(3L, "chainA").dealReference("ref::1").build()));
+
+        assertEquals(List.of("ref::1", "ref::3"),
+                dealStore.getWaiting().stream().map(DealTracker::getDealReference).toList());
+        assertEquals(1, dealStore.getInProcessing().size());
+        assertEquals(1, dealStore.summary().chains().get("chainA").waiting());
+        assertTrue(dealStore.findByDealReference("ref::2").isPresent());
+    }
+
+    /**
+     * Ensure a query returns just the deals matching every filter, in the order asked for, up to
+     * the limit - from the chain index, the arrival index and the stage sets, and after updates
+     * have moved the deals between them
+     */
+    @Test
+    public void testQuery() {
+        val dealStore = new DealStore();
+        val start = LocalDateTime.of(2024, 9, 4, 5, 0);
+        for (int i = 0; i < 20; i++) {
+            val dealTracker = deal(i, i % 2 == 0 ? "chainA" : "chainB").chainNumber(i).build();
+            dealTracker.setArrivalTime(start.plusMinutes(20 - i));
+            if (i % 4 == 0) {
+                dealTracker.setSentTime(start.plusHours(1));
+            }
+            dealStore.put(dealTracker);
+        }
+
+        val chainWaiting = DealQuery.builder()
+                .chain("chainA").chainNumberFrom(2).chainNumberTo(12)
+                .stages(EnumSet.of(Stage.WAITING))
+                .limit(10)
+                .build();
+        assertEquals(List.of("ref::2", "ref::6", "ref::10"), references(dealStore.query(chainWaiting)));
+
+        val arrivedSorted = DealQuery.builder()
+                .arrived(new DealQuery.TimeRange(start.plusMinutes(5), start.plusMinutes(10)))
+                .sort(DealQuery.Sort.ARRIVAL)
+                .limit(3)
+                .build();
+        assertEquals(List.of("ref::15", "ref::14", "ref::13"), references(dealStore.query(arrivedSorted)));
+
+        // the chain index read in another order
+        val chainByLatest = DealQuery.builder()
+                .chain("chainB")
+                .sort(DealQuery.Sort.ARRIVAL_DESC)
+                .limit(2)
+                .build();
+        assertEquals(List.of("ref::1", "ref::3"), references(dealStore.query(chainByLatest)));
+
+        val sent = DealQuery.builder()
+                .sent(new DealQuery.TimeRange(start, null))
+                .limit(10)
+                .build();
+        assertEquals(List.of("ref::0", "ref::4", "ref::8", "ref::12", "ref::16"), references(dealStore.query(sent)));
+
+        val moved = dealStore.findById(6L).orElseThrow();
+        moved.setSentTime(start.plusHours(1));
+        dealStore.put(moved);
+        dealStore.remove(10L);
+        assertEquals(List.of("ref::2"), references(dealStore.query(chainWaiting)));
+        assertEquals(6, dealStore.query(sent).size());
+
+        dealStore.clear();
+        assertEquals(List.of(), dealStore.query(chainWaiting));
+    }
+
+    /**
+     * Ensure a store holding its deals in a MappedDealFile gives the same lookups, lists, pages,
+     * queries and stuck deals as one holding them itself, and frees a deal's record as it's removed
+     */
+    @Test
+    public void testHeldInFile(@TempDir Path directory) throws Exception {
+        try (val dealFile = new MappedDealFile(directory.resolve("deals.dat"), 16, 4)) {
+            val dealStore = new DealStore();
+            dealStore.holdIn(dealFile);
+            val heapStore = new DealStore();
+            val start = LocalDateTime.of(2024, 9, 4, 5, 0);
+            for (int i = 0; i < 20; i++) {
+                val dealTracker = deal(i, i % 2 == 0 ? "chainA" : "chainB").chainNumber(i % 6).build();
+                dealTracker.setArrivalTime(start.plusMinutes(20 - i));
+                if (i % 4 == 0) {
+                    dealTracker.setSentTime(start.plusHours(1).plusMinutes(i));
+                }
+                dealFile.insert(dealTracker);
+                dealStore.put(dealTracker);
+                heapStore.put(dealTracker);
+            }
+
+            assertEquals(20, dealStore.size());
+            assertEquals(5, dealStore.count(Stage.SENT));
+            assertEquals("chainB", dealStore.findByDealReference("ref::3").orElseThrow().chain);
+            assertEquals(references(heapStore.getWaiting()), references(dealStore.getWaiting()));
+            assertEquals(references(heapStore.getInProcessing()), references(dealStore.getInProcessing()));
+            val cursor = DealCursor.after(heapStore.getWaiting().get(4));
+            assertEquals(references(heapStore.page(StageFilter.ALL, cursor, 6)),
+                    references(dealStore.page(StageFilter.ALL, cursor, 6)));
+            val queries = List.of(
+                    DealQuery.builder().chain("chainA").chainNumberFrom(1).chainNumberTo(4).limit(10).build(),
+                    DealQuery.builder().arrived(new DealQuery.TimeRange(start.plusMinutes(5), start.plusMinutes(10)))
+                            .sort(DealQuery.Sort.ARRIVAL).limit(3).build(),
+                    DealQuery.builder().chain("chainB").sort(DealQuery.Sort.ARRIVAL_DESC).limit(2).build(),
+                    DealQuery.builder().sent(new DealQuery.TimeRange(start, null)).limit(10).build(),
+                    DealQuery.builder().chain("chainC").limit(10).build());
+            for (DealQuery query : queries) {
+                assertEquals(references(heapStore.query(query)), references(dealStore.query(query)));
+            }
+            val cutoff = start.plusHours(1).plusMinutes(9);
+            assertEquals(references(iterate(heapStore.enteredBefore(Stage.SENT, cutoff))),
+                    references(iterate(dealStore.enteredBefore(Stage.SENT, cutoff))));
+            assertEquals(heapStore.summary(), dealStore.summary());
+
+            val held = dealStore.findByDealReference("ref::1").orElseThrow();
+            assertTrue(dealStore.replace(held, held.toBuilder().sentTime(start.plusHours(2)).build()));
+            assertFalse(dealStore.replace(held, held.toBuilder().sentTime(start.plusHours(3)).build()));
+            assertEquals(start.plusHours(2), dealStore.findById(held.id).orElseThrow().sentTime);
+            assertEquals(6, dealStore.count(Stage.SENT));
+
+            assertEquals("ref::1", dealStore.remove(held.id).dealReference);
+            assertFalse(dealFile.contains(held.id));
+            assertEquals(19, dealStore.size());
+            assertEquals(5, dealStore.count(Stage.SENT));
+        }
+    }
+
+    private static List<DealTracker> iterate(final Iterator<DealTracker> deals) {
+        val list = new ArrayList<DealTracker>();
+        deals.forEachRemaining(list::add);
+        return list;
+    }
+
+    private static List<String> references(final List<DealTracker> deals) {
+        return deals.stream().map(DealTracker::getDealReference).toList();
+    }
+}
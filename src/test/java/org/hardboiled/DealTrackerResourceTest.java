@@ -1,19 +1,28 @@
 package org.hardboiled;
 
 import io.quarkus.test.junit.QuarkusTest;
+import jakarta.inject.Inject;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
 import org.hamcrest.Matchers;
 import org.junit.jupiter.api.Test;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.util.stream.Stream;
 import static io.restassured.RestAssured.given;
 import static org.hamcrest.Matchers.blankOrNullString;
 import static org.hamcrest.Matchers.notNullValue;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @Slf4j
 @QuarkusTest
 public class DealTrackerResourceTest {
 
+    @Inject
+    DealArchive dealArchive;
+
     @Test
     public void testCreate() {
 
@@ -96,6 +105,12 @@ public class DealTrackerResourceTest {
                 .when().get("/dealtracker/getDealsInProcessing")
                 .then().statusCode(200)
                 .body("", Matchers.hasSize(1));
+        given()
+                .when().get("/dealtracker/summary")
+                .then().statusCode(200)
+                .body("waiting", Matchers.is(0))
+                .body("inProcessing", Matchers.is(1))
+                .body("chains.Chain1.inProcessing", Matchers.is(1));
         // assert that second message is not waiting
         given()
                 .when().get("/dealtracker/getDealsWaiting")
@@ -106,4 +121,315 @@ public class DealTrackerResourceTest {
                 .when().delete("/dealtracker/delete/" + dt2.dealReference)
                 .then().statusCode(204);
     }
+
+    @Test
+    public void testProcessBatch() {
+
+        // newline delimited - a new deal, then the same deal sent, then a second new deal
+        val ndjson = """
+                {"dealReference":"DT3-1","chain":"Chain3","chainNumber":1,"arrivalTime":"2024-09-04T05:06:00"}
+                {"dealReference":"DT3-1","chain":"Chain3","chainNumber":1,"arrivalTime":"2024-09-04T05:06:00","sentTime":"2024-09-04T05:07:00"}
+                {"dealReference":"DT3-2","chain":"Chain3","chainNumber":2,"arrivalTime":"2024-09-04T05:08:00"}
+                """;
+        given().body(ndjson.getBytes(StandardCharsets.UTF_8)).contentType("application/x-ndjson")
+                .when().post("/dealtracker/processBatch")
+                .then().statusCode(200)
+                .body("outcome", Matchers.contains("PERSISTED", "UPDATED", "PERSISTED"));
+
+        // json array - complete both of them
+        val json = """
+                [{"dealReference":"DT3-1","chain":"Chain3","chainNumber":1,"appCompleteTime":"2024-09-04T05:09:00"},
+                 {"dealReference":"DT3-2","chain":"Chain3","chainNumber":2,"appCompleteTime":"2024-09-04T05:09:00"},
+                 {"id":-1,"dealReference":"DT3-3","chain":"Chain3","chainNumber":3}]
+                """;
+        given().body(json).contentType("application/json")
+                .when().post("/dealtracker/processBatch")
+                .then().statusCode(200)
+                .body("outcome", Matchers.contains("DELETED", "DELETED", "NOT_FOUND"));
+
+        // a late sent and a repeated completion for a completed deal don't bring it back
+        val late = """
+                {"dealReference":"DT3-1","chain":"Chain3","chainNumber":1,"sentTime":"2024-09-04T05:07:00"}
+                {"dealReference":"DT3-2","chain":"Chain3","chainNumber":2,"appCompleteTime":"2024-09-04T05:09:00"}
+                """;
+        given().body(late.getBytes(StandardCharsets.UTF_8)).contentType("application/x-ndjson")
+                .when().post("/dealtracker/processBatch")
+                .then().statusCode(200)
+                .body("outcome", Matchers.contains("DUPLICATE", "DUPLICATE"));
+
+        given()
+                .when().get("/dealtracker/audit/DT3-1")
+                .then().statusCode(200)
+                .body("outcome", Matchers.contains("PERSISTED", "UPDATED", "DELETED", "DUPLICATE"))
+                .body("newStage", Matchers.contains("WAITING", "SENT", "APP_COMPLETE", null));
+
+        given()
+                .when().get("/dealtracker/summary")
+                .then().statusCode(200)
+                .body("chains", Matchers.not(Matchers.hasKey("Chain3")));
+    }
+
+    @Test
+    public void testPagingAndStreaming() {
+
+        Stream.of("DT4-3", "DT4-1", "DT4-2").forEach(dealReference -> given()
+                .body(DealTracker.builder()
+                        .dealReference(dealReference)
+                        .chain("Chain4")
+                        .chainNumber(1)
+                        .arrivalTime(LocalDateTime.now())
+                        .build())
+                .contentType("application/json")
+                .when().post("/dealtracker/process")
+                .then().statusCode(204));
+
+        // first page of two, then carry on from the cursor for the last one
+        val cursor = given()
+                .when().get("/dealtracker/getDealsWaiting?limit=2")
+                .then().statusCode(200)
+                .body("dealReference", Matchers.contains("DT4-1", "DT4-2"))
+                .header("X-Next-Cursor", notNullValue())
+                .extract().header("X-Next-Cursor");
+        given()
+                .when().get("/dealtracker/getDealsWaiting?limit=2&cursor=" + cursor)
+                .then().statusCode(200)
+                .body("dealReference", Matchers.contains("DT4-3"))
+                .header("X-Next-Cursor", Matchers.nullValue());
+
+        given()
+                .when().get("/dealtracker/getDealsWaiting?limit=2&cursor=not-a-cursor")
+                .then().statusCode(400);
+
+        val lines = given()
+                .when().get("/dealtracker/stream/waiting")
+                .then().statusCode(200)
+                .extract().asString().lines().toList();
+        assertEquals(3, lines.size());
+        assertTrue(lines.getFirst().contains("DT4-1"));
+
+        Stream.of("DT4-1", "DT4-2", "DT4-3").forEach(dealReference -> given()
+                .when().delete("/dealtracker/delete/" + dealReference)
+                .then().statusCode(204));
+    }
+
+    /**
+     * Ensure the deal, endpoint and hibernate meters are exported, and a chain's gauges are taken
+     * away once it has no deals
+     */
+    @Test
+    public void testMetrics() {
+        val dt1 = DealTracker.builder()
+                .dealReference("DT7-1")
+                .chain("Chain7")
+                .chainNumber(1)
+                .arrivalTime(LocalDateTime.now())
+                .build();
+        given().body(dt1).contentType("application/json")
+                .when().post("/dealtracker/process")
+                .then().statusCode(204);
+        given().when().get("/dealtracker/getDealsWaiting").then().statusCode(200);
+
+        given()
+                .when().get("/q/metrics")
+                .then().statusCode(200)
+                .body(Matchers.containsString("dealtracker_process_seconds_count{outcome=\"persisted\"}"))
+                .body(Matchers.containsString("dealtracker_deals{stage=\"waiting\"}"))
+                .body(Matchers.containsString("dealtracker_chain_deals{chain=\"Chain7\",stage=\"waiting\"} 1.0"))
+                .body(Matchers.containsString("dealtracker_query_results_count{query=\"waiting\",source=\"store\"}"))
+                .body(Matchers.containsString("dealtracker_hibernate_seconds_bucket{phase=\"batch\""))
+                .body(Matchers.containsString("http_server_requests_seconds_bucket"))
+                .body(Matchers.containsString("hibernate_entities_loads_total"));
+
+        // the chain's gauges go with its last deal
+        given().when().delete("/dealtracker/delete/" + dt1.dealReference).then().statusCode(204);
+        given()
+                .when().get("/q/metrics")
+                .then().statusCode(200)
+                .body(Matchers.not(Matchers.containsString("dealtracker_chain_deals{chain=\"Chain7\"")));
+    }
+
+    /**
+     * Ensure a deal's dwell times are still reported once it has completed and been removed
+     */
+    @Test
+    public void testLatencies() {
+        val arrivalTime = LocalDateTime.now().minusMinutes(5);
+        val dt1 = DealTracker.builder()
+                .dealReference("DT8-1")
+                .chain("Chain8")
+                .chainNumber(1)
+                .arrivalTime(arrivalTime)
+                .build();
+        given().body(dt1).contentType("application/json")
+                .when().post("/dealtracker/process")
+                .then().statusCode(204);
+        dt1.setSentTime(arrivalTime.plusMinutes(1));
+        dt1.setVestCompleteTime(arrivalTime.plusMinutes(2));
+        dt1.setAppCompleteTime(arrivalTime.plusMinutes(3));
+        given().body(dt1).contentType("application/json")
+                .when().post("/dealtracker/process")
+                .then().statusCode(204);
+
+        given()
+                .when().get("/dealtracker/latencies?chain=Chain8&window=15m")
+                .then().statusCode(200)
+                .body("chains.Chain8.END_TO_END.count", Matchers.is(1))
+                .body("chains.Chain8.ARRIVAL_TO_SENT.p50", Matchers.allOf(
+                        Matchers.greaterThanOrEqualTo(59_000), Matchers.lessThanOrEqualTo(61_000)));
+        given()
+                .when().get("/dealtracker/latencies?window=soon")
+                .then().statusCode(400);
+    }
+
+    /**
+     * Ensure /query applies its filters and sort, and turns away a stage or sort it doesn't know
+     */
+    @Test
+    public void testQuery() {
+        val deals = Stream.of(1, 2, 3).map(i -> DealTracker.builder()
+                .dealReference("DT13-" + i)
+                .chain("Chain13")
+                .chainNumber(i)
+                .arrivalTime(LocalDateTime.now().minusMinutes(10 * i))
+                .sentTime(i == 3 ? LocalDateTime.now() : null)
+                .build()).toList();
+        deals.forEach(dealTracker -> given().body(dealTracker).contentType("application/json")
+                .when().post("/dealtracker/process")
+                .then().statusCode(204));
+
+        given()
+                .when().get("/dealtracker/query?chain=Chain13&chainNumberFrom=2&stage=Waiting,sent")
+                .then().statusCode(200)
+                .body("dealReference", Matchers.contains("DT13-2", "DT13-3"));
+        given()
+                .when().get("/dealtracker/query?chain=Chain13&stage=waiting&arrivedWithin=25m&sort=arrival-desc")
+                .then().statusCode(200)
+                .body("dealReference", Matchers.contains("DT13-1", "DT13-2"));
+        given()
+                .when().get("/dealtracker/query?chain=Chain13&sort=arrival&limit=1")
+                .then().statusCode(200)
+                .body("dealReference", Matchers.contains("DT13-3"));
+        given().when().get("/dealtracker/query?stage=lost").then().statusCode(400);
+        given().when().get("/dealtracker/query?sort=sideways").then().statusCode(400);
+
+        deals.forEach(dealTracker -> given()
+                .when().delete("/dealtracker/delete/" + dealTracker.dealReference)
+                .then().statusCode(204));
+    }
+
+    /**
+     * Ensure a deal that has sat at its stage too long is listed, and one that has just moved on isn't
+     */
+    @Test
+    public void testStuck() {
+        val dt1 = DealTracker.builder()
+                .dealReference("DT9-1")
+                .chain("Chain9")
+                .chainNumber(1)
+                .arrivalTime(LocalDateTime.now().minusHours(1))
+                .build();
+        val dt2 = DealTracker.builder()
+                .dealReference("DT9-2")
+                .chain("Chain9")
+                .chainNumber(2)
+                .arrivalTime(LocalDateTime.now().minusHours(1))
+                .sentTime(LocalDateTime.now())
+                .build();
+        Stream.of(dt1, dt2).forEach(dealTracker -> given().body(dealTracker).contentType("application/json")
+                .when().post("/dealtracker/process")
+                .then().statusCode(204));
+
+        given()
+                .when().get("/dealtracker/stuck?olderThan=30m&chain=Chain9")
+                .then().statusCode(200)
+                .body("dealReference", Matchers.contains("DT9-1"))
+                .body("stage", Matchers.contains("WAITING"));
+
+        Stream.of(dt1, dt2).forEach(dealTracker -> given()
+                .when().delete("/dealtracker/delete/" + dealTracker.dealReference)
+                .then().statusCode(204));
+    }
+
+    @Test
+    public void testArchive() throws InterruptedException {
+        val today = LocalDate.now();
+        val completed = today.atTime(4, 5, 6);
+        // the archive outlives the test run, so use a chain no earlier run has
+        val chain = "Chain10-" + System.currentTimeMillis();
+        val dt1 = DealTracker.builder()
+                .dealReference("DT10-1")
+                .chain(chain)
+                .chainNumber(1)
+                .arrivalTime(completed.minusMinutes(3))
+                .build();
+        given().body(dt1).contentType("application/json")
+                .when().post("/dealtracker/process")
+                .then().statusCode(204);
+        dt1.setSentTime(completed.minusMinutes(2));
+        dt1.setVestCompleteTime(completed.minusMinutes(1));
+        dt1.setAppCompleteTime(completed);
+        given().body(dt1).contentType("application/json")
+                .when().post("/dealtracker/process")
+                .then().statusCode(204);
+
+        // completions reach the archive from a background writer
+        for (int attempt = 0; attempt < 50 && dealArchive.query(null, null, chain, null, 1).isEmpty(); attempt++) {
+            Thread.sleep(100);
+            dealArchive.flush();
+        }
+
+        given()
+                .when().get("/dealtracker/archive?from=" + today.atStartOfDay() + "&to=" + today.plusDays(1).atStartOfDay()
+                        + "&chain=" + chain)
+                .then().statusCode(200)
+                .body("dealReference", Matchers.contains("DT10-1"))
+                .body("stage", Matchers.contains("APP_COMPLETE"))
+                .body("arrivalTime", Matchers.contains(today + "T04:02:06"));
+        given()
+                .when().get("/dealtracker/archive?from=" + today.plusDays(1).atStartOfDay() + "&chain=" + chain)
+                .then().statusCode(200)
+                .body("size()", Matchers.is(0));
+        given()
+                .when().get("/dealtracker/archive?limit=0")
+                .then().statusCode(400);
+    }
+
+    @Test
+    public void testQueryCacheEtags() {
+        val etag = given()
+                .when().get("/dealtracker/getDealsWaiting")
+                .then().statusCode(200)
+                .header("ETag", notNullValue())
+                .extract().header("ETag");
+
+        // nothing has changed, so the same tag gets a 304 with no body
+        given().header("If-None-Match", etag)
+                .when().get("/dealtracker/getDealsWaiting")
+                .then().statusCode(304)
+                .body(blankOrNullString());
+
+        val dt1 = DealTracker.builder()
+                .dealReference("DT11-1")
+                .chain("Chain11")
+                .chainNumber(1)
+                .arrivalTime(LocalDateTime.now())
+                .build();
+        given().body(dt1).contentType("application/json")
+                .when().post("/dealtracker/process")
+                .then().statusCode(204);
+
+        val changed = given().header("If-None-Match", etag)
+                .when().get("/dealtracker/getDealsWaiting")
+                .then().statusCode(200)
+                .body("dealReference", Matchers.hasItem("DT11-1"))
+                .extract().header("ETag");
+        assertTrue(!etag.equals(changed));
+        given().header("If-None-Match", changed)
+                .when().get("/dealtracker/summary")
+                .then().statusCode(304);
+
+        given()
+                .when().delete("/dealtracker/delete/" + dt1.dealReference)
+                .then().statusCode(204);
+    }
 }
@@ -0,0 +1,71 @@
+package org.hardboiled;
+
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+
+import static org.hardboiled.TestDeals.deal;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DealTransitionFeedTest {
+
+    private static DealTransitionFeed feed(final int bufferSize) {
+        val feed = new DealTransitionFeed();
+        feed.dealStore = new DealStore();
+        feed.bufferSize = bufferSize;
+        feed.onStart(null);
+        return feed;
+    }
+
+    /**
+     * Ensure a deal that moves several stages between drains is sent once, from its first stage to its last,
+     * and that changes to other chains or that don't change the stage are left out
+     */
+    @Test
+    public void testTransitionsCoalesce() {
+        val feed = feed(10);
+        val subscription = feed.subscribe("chainA");
+        val dt1 = deal(1L, "chainA").build();
+
+        feed.dealStore.put(dt1);
+        dt1.setArrivalTime(LocalDateTime.now());
+        feed.dealStore.put(dt1);
+        dt1.setSentTime(LocalDateTime.now());
+        feed.dealStore.put(dt1);
+        feed.dealStore.put(deal(2L, "chainB").build());
+
+        val transitions = subscription.drain();
+        assertEquals(1, transitions.size());
+        assertNull(transitions.getFirst().oldStage());
+        assertEquals(Stage.SENT, transitions.getFirst().newStage());
+        assertTrue(subscription.drain().isEmpty());
+
+        dt1.setVestCompleteTime(LocalDateTime.now());
+        dt1.setAppCompleteTime(LocalDateTime.now());
+        feed.dealStore.complete(dt1);
+        val completed = subscription.drain().getFirst();
+        assertEquals(Stage.SENT, completed.oldStage());
+        assertEquals(Stage.APP_COMPLETE, completed.newStage());
+        assertTrue(completed.removed());
+    }
+
+    /**
+     * Ensure a subscriber that falls further behind than its buffer is told to resync rather than
+     * silently missing changes
+     */
+    @Test
+    public void testOverflowAsksForResync() {
+        val feed = feed(2);
+        val subscription = feed.subscribe(null);
+        feed.dealStore.put(deal(1L, "chainA").build());
+        feed.dealStore.put(deal(2L, "chainA").build());
+        feed.dealStore.put(deal(3L, "chainB").build());
+
+        assertNull(subscription.drain());
+        feed.dealStore.put(deal(4L, "chainB").build());
+        assertEquals(1, subscription.drain().size());
+    }
+}
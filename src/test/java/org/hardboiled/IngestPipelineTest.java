@@ -0,0 +1,108 @@
+package org.hardboiled;
+
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class IngestPipelineTest {
+
+    /**
+     * Ensure every deal reaches the sink, in batches, with each deal's messages kept in order
+     */
+    @Test
+    public void testPipelineKeepsPerDealOrder() throws Exception {
+        val source = new InMemoryDealEventSource(100);
+        val seen = new ConcurrentHashMap<String, List<Integer>>();
+        val batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        val deals = 20;
+        val messagesPerDeal = 50;
+        val done = new CountDownLatch(deals * messagesPerDeal);
+
+        try (val pipeline = new IngestPipeline(source, batch -> {
+            batchSizes.add(batch.size());
+            batch.forEach(dealTracker -> {
+                seen.computeIfAbsent(dealTracker.getDealReference(), ref -> Collections.synchronizedList(new ArrayList<>()))
+                        .add(dealTracker.getChainNumber());
+                done.countDown();
+            });
+            return 0;
+        }, 4, 25, Duration.ofMillis(10), 16)) {
+            pipeline.start();
+            for (int message = 0; message < messagesPerDeal; message++) {
+                for (int deal = 0; deal < deals; deal++) {
+                    source.publish(DealTracker.builder().dealReference("ref::" + deal).chainNumber(message).build());
+                }
+            }
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+            assertEquals(deals * messagesPerDeal, pipeline.getProcessedCount());
+        }
+
+        for (Map.Entry<String, List<Integer>> deal : seen.entrySet()) {
+            val order = deal.getValue();
+            for (int i = 0; i < messagesPerDeal; i++) {
+                assertEquals(i, order.get(i), "out of order for " + deal.getKey());
+            }
+        }
+        assertTrue(batchSizes.stream().allMatch(size -> size <= 25));
+    }
+
+    /**
+     * Ensure deals the sink reports as failed are counted as failed rather than processed
+     */
+    @Test
+    public void testPipelineCountsFailedDeals() throws Exception {
+        val source = new InMemoryDealEventSource(100);
+        val done = new CountDownLatch(10);
+
+        try (val pipeline = new IngestPipeline(source, batch -> {
+            val failed = (int) batch.stream().filter(dealTracker -> dealTracker.getChainNumber() % 2 == 0).count();
+            batch.forEach(dealTracker -> done.countDown());
+            return failed;
+        }, 2, 5, Duration.ofMillis(10), 16)) {
+            pipeline.start();
+            for (int deal = 0; deal < 10; deal++) {
+                source.publish(DealTracker.builder().dealReference("ref::" + deal).chainNumber(deal).build());
+            }
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+            pipeline.close();
+            assertEquals(5, pipeline.getProcessedCount());
+            assertEquals(5, pipeline.getFailedCount());
+        }
+    }
+
+    /**
+     * Ensure closing while the reader waits for room on a full lane still processes the deal it
+     * has already taken from the source
+     */
+    @Test
+    public void testCloseProcessesEveryDealTaken() throws Exception {
+        val source = new InMemoryDealEventSource(100);
+        for (int deal = 0; deal < 10; deal++) {
+            source.publish(DealTracker.builder().dealReference("ref::" + deal).chainNumber(deal).build());
+        }
+        val pipeline = new IngestPipeline(source, batch -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return 0;
+        }, 1, 1, Duration.ofMillis(10), 1);
+        pipeline.start();
+        Thread.sleep(50);
+        pipeline.close();
+
+        assertEquals(10 - source.size(), pipeline.getProcessedCount());
+    }
+}
@@ -0,0 +1,163 @@
+package org.hardboiled;
+
+import lombok.val;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MappedDealFileTest {
+
+    private static final LocalDateTime ARRIVAL = LocalDateTime.of(2024, 9, 4, 5, 6, 7, 123_456_000);
+
+    /**
+     * Ensure a deal is found by id and dealReference, only has its times replaced against the ones
+     * it still has, and that its id doesn't find the deal reusing its record after it's removed
+     */
+    @Test
+    public void testInsertReplaceRemove(@TempDir Path directory) throws Exception {
+        try (val dealFile = new MappedDealFile(directory.resolve("deals.dat"), 16, 4)) {
+            val first = DealTracker.builder()
+                    .dealReference("DT-1")
+                    .chain("chainA")
+                    .arrivalTime(ARRIVAL)
+                    .build();
+            dealFile.insert(first);
+            val noChain = DealTracker.builder().arrivalTime(ARRIVAL).build();
+            dealFile.insert(noChain);
+
+            val held = dealFile.findById(first.id).orElseThrow();
+            assertEquals(Stage.WAITING, held.stage);
+            val sent = held.toBuilder().sentTime(ARRIVAL.plusMinutes(1)).build();
+            assertTrue(dealFile.replace(held, sent));
+            assertEquals(ARRIVAL.plusMinutes(1), dealFile.findById(first.id).orElseThrow().sentTime);
+            assertEquals(Stage.SENT, dealFile.findByDealReference("DT-1").orElseThrow().stage);
+            // the record no longer has held's times
+            assertFalse(dealFile.replace(held, held.toBuilder().vestCompleteTime(ARRIVAL).build()));
+            assertNull(dealFile.findById(first.id).orElseThrow().vestCompleteTime);
+            assertNull(dealFile.findById(noChain.id).orElseThrow().chain);
+
+            assertEquals(ARRIVAL.plusMinutes(1), dealFile.remove(first.id).sentTime);
+            assertNull(dealFile.remove(first.id));
+            assertFalse(dealFile.contains(first.id));
+            assertTrue(dealFile.findByDealReference("DT-1").isEmpty());
+
+            val second = first.toBuilder().id(null).dealReference("DT-2").build();
+            dealFile.insert(second);
+            assertNotEquals(first.id, second.id);
+            assertTrue(dealFile.findById(first.id).isEmpty());
+            assertFalse(dealFile.replace(sent, second));
+            assertEquals(2, dealFile.size());
+
+            val tooLong = second.toBuilder().id(null).dealReference("DT-far-too-long-for-16").build();
+            assertThrows(IllegalArgumentException.class, () -> dealFile.insert(tooLong));
+            assertThrows(IllegalArgumentException.class, () -> dealFile.checkReference("DT-far-too-long-for-16"));
+            dealFile.checkReference("DT-fits-in-16");
+        }
+    }
+
+    /**
+     * Ensure select gives the deals the filter passes in the same order as the store's comparators,
+     * up to the limit
+     */
+    @Test
+    public void testSelect(@TempDir Path directory) throws Exception {
+        try (val dealFile = new MappedDealFile(directory.resolve("deals.dat"), 16, 4)) {
+            val deals = new ArrayList<DealTracker>();
+            for (int i = 0; i < 50; i++) {
+                val dealTracker = DealTracker.builder()
+                        .dealReference(i % 10 == 9 ? null : "DT-" + (i % 13))
+                        .chain(i % 7 == 0 ? null : "chain" + (i % 3))
+                        .chainNumber(i % 5)
+                        .arrivalTime(i % 11 == 0 ? null : ARRIVAL.plusSeconds(i % 17))
+                        .sentTime(i % 2 == 0 ? ARRIVAL.plusMinutes(i % 4) : null)
+                        .build();
+                dealFile.insert(dealTracker);
+                dealTracker.stage = Stage.of(dealTracker);
+                deals.add(dealTracker);
+            }
+            assertEquals(ids(deals, DealStore.CHAIN_ORDER, 50),
+                    select(dealFile, MappedDealFile.Order.CHAIN, 50));
+            assertEquals(ids(deals, DealStore.ARRIVAL_ORDER, 7),
+                    select(dealFile, MappedDealFile.Order.ARRIVAL, 7));
+            assertEquals(ids(deals, DealStore.ARRIVAL_ORDER.reversed(), 12),
+                    select(dealFile, MappedDealFile.Order.ARRIVAL_DESC, 12));
+            assertEquals(ids(deals, DealStore.STAGE_TIME_ORDER, 30),
+                    select(dealFile, MappedDealFile.Order.STAGE_TIME, 30));
+
+            val waiting = Arrays.stream(dealFile.select(dealFile.atStages(EnumSet.of(Stage.WAITING)),
+                    MappedDealFile.Order.CHAIN, 50)).boxed().toList();
+            assertEquals(deals.stream().filter(dealTracker -> dealTracker.stage == Stage.WAITING)
+                    .sorted(DealStore.CHAIN_ORDER).map(DealTracker::getId).toList(), waiting);
+        }
+    }
+
+    private static List<Long> select(final MappedDealFile dealFile, final MappedDealFile.Order order, final int limit) {
+        return Arrays.stream(dealFile.select(record -> true, order, limit)).boxed().toList();
+    }
+
+    private static List<Long> ids(final List<DealTracker> deals, final Comparator<DealTracker> order, final int limit) {
+        return deals.stream().sorted(order).limit(limit).map(DealTracker::getId).toList();
+    }
+
+    /**
+     * Ensure the live deals, their ids and the chain dictionary come back on reopening, after
+     * enough inserts and deletes to grow the file and the dealReference table
+     */
+    @Test
+    public void testReopen(@TempDir Path directory) throws Exception {
+        val path = directory.resolve("deals.dat");
+        val expected = new HashMap<String, Long>();
+        try (val dealFile = new MappedDealFile(path, 16, 4)) {
+            for (int i = 0; i < 3000; i++) {
+                val dealTracker = DealTracker.builder()
+                        .dealReference("DT-" + i)
+                        .chain("chain" + (i % 7))
+                        .arrivalTime(ARRIVAL)
+                        .build();
+                dealFile.insert(dealTracker);
+                expected.put(dealTracker.dealReference, dealTracker.id);
+            }
+            for (int i = 0; i < 3000; i += 3) {
+                assertNotNull(dealFile.remove(expected.remove("DT-" + i)));
+            }
+            for (Map.Entry<String, Long> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dealFile.findByDealReference(entry.getKey()).orElseThrow().id);
+            }
+        }
+
+        try (val dealFile = new MappedDealFile(path, 16, 4)) {
+            assertEquals(expected.size(), dealFile.size());
+            val read = new ArrayList<DealTracker>();
+            dealFile.forEach(read::add);
+            assertEquals(expected.size(), read.size());
+            read.forEach(dealTracker -> assertEquals(expected.get(dealTracker.dealReference), dealTracker.id));
+            val dealTracker = dealFile.findByDealReference("DT-2999").orElseThrow();
+            assertEquals("chain" + (2999 % 7), dealTracker.chain);
+            assertEquals(ARRIVAL, dealTracker.arrivalTime);
+
+            // a freed record is reused rather than the file growing
+            val reused = DealTracker.builder().dealReference("DT-new").chain("chainNew").arrivalTime(ARRIVAL).build();
+            dealFile.insert(reused);
+            assertTrue((reused.id & 0xffffffffL) < 3000);
+        }
+        assertThrows(IOException.class, () -> new MappedDealFile(path, 24, 4));
+    }
+}
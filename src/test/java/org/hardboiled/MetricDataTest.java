@@ -6,11 +6,17 @@ import lombok.val;
 import org.junit.jupiter.api.Test;
 
 import jakarta.inject.Inject;
+import jakarta.transaction.Transactional;
 import java.time.LocalDateTime;
 import java.time.Month;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
 
 @Slf4j
 @QuarkusTest
@@ -19,6 +25,9 @@ public class MetricDataTest {
     @Inject
     DealTrackerManager dealTrackerManager;
 
+    @Inject
+    DealLanes dealLanes;
+
     /**
      * Ensure that the basic create works in the manager
      */
@@ -155,4 +164,163 @@ public class MetricDataTest {
         assertEquals(0, dealTrackerManager.getDealsWaiting().size());
     }
 
+    /**
+     * Ensure a second new message for a reference we already hold updates it rather than duplicating it
+     */
+    @Test
+    public void testMetricDataSameReferenceUpdates() {
+        val dt1 = new DealTracker("chain456::1", "chainABC", 1, LocalDateTime.now(), null, null, null);
+        dealTrackerManager.processDealTracker(dt1);
+        val dt1Again = new DealTracker("chain456::1", "chainABC", 1, dt1.getArrivalTime(), LocalDateTime.now(), null, null);
+        dealTrackerManager.processDealTracker(dt1Again);
+
+        assertEquals(dt1.getId(), dt1Again.getId());
+        assertEquals(1, dealTrackerManager.getDealsInProcessing().size());
+        assertEquals(0, dealTrackerManager.getDealsWaiting().size());
+
+        dealTrackerManager.deleteByTransactionRef("chain456::1");
+        assertEquals(0, dealTrackerManager.getDealsInProcessing().size());
+    }
+
+    /**
+     * Ensure the indexed stage queries in the database agree with the store
+     */
+    @Test
+    @Transactional
+    public void testMetricDataDatabaseStageQueries() {
+        val dt1 = dealTrackerManager.create("chain789::1", "chainB", 2, LocalDateTime.now(), null, null, null);
+        val dt2 = dealTrackerManager.create("chain789::2", "chainA", 7, LocalDateTime.now(), null, null, null);
+        val dt3 = dealTrackerManager.create("chain789::3", "chainA", 3, LocalDateTime.now(), LocalDateTime.now(), null, null);
+
+        assertEquals(List.of("chain789::2", "chain789::1"),
+                DealTracker.listWaiting().stream().map(DealTracker::getDealReference).toList());
+        assertEquals(List.of("chain789::3"),
+                DealTracker.listInProcessing().stream().map(DealTracker::getDealReference).toList());
+        assertEquals(Stage.SENT, DealTracker.<DealTracker>findById(dt3.getId()).getStage());
+
+        Stream.of(dt1, dt2, dt3).forEach(dealTracker -> dealTrackerManager.delete(dealTracker));
+    }
+
+    /**
+     * Ensure the keyset query carries on after the cursor in chain order
+     */
+    @Test
+    @Transactional
+    public void testMetricDataDatabaseKeysetPaging() {
+        val dt1 = dealTrackerManager.create("chain321::1", "chainA", 1, LocalDateTime.now(), null, null, null);
+        val dt2 = dealTrackerManager.create("chain321::2", "chainA", 2, LocalDateTime.now(), null, null, null);
+        val dt3 = dealTrackerManager.create("chain321::3", "chainB", 1, LocalDateTime.now(), LocalDateTime.now(), null, null);
+
+        val firstPage = DealTracker.findAfter(StageFilter.ALL, null).page(0, 2).list();
+        assertEquals(List.of("chain321::1", "chain321::2"), firstPage.stream().map(DealTracker::getDealReference).toList());
+        val secondPage = DealTracker.findAfter(StageFilter.ALL, DealCursor.after(firstPage.getLast())).page(0, 2).list();
+        assertEquals(List.of("chain321::3"), secondPage.stream().map(DealTracker::getDealReference).toList());
+        assertEquals(List.of("chain321::2"), DealTracker.findAfter(StageFilter.WAITING, DealCursor.after(dt1)).list()
+                .stream().map(DealTracker::getDealReference).toList());
+
+        Stream.of(dt1, dt2, dt3).forEach(dealTracker -> dealTrackerManager.delete(dealTracker));
+    }
+
+    /**
+     * Ensure deals without a chain come first and the keyset query carries on past them, as the store does
+     */
+    @Test
+    @Transactional
+    public void testMetricDataDatabaseKeysetPagingWithNulls() {
+        val dt1 = dealTrackerManager.create("chain654::1", null, 1, LocalDateTime.now(), null, null, null);
+        val dt2 = dealTrackerManager.create("chain654::2", null, 1, LocalDateTime.now(), null, null, null);
+        val dt3 = dealTrackerManager.create("chain654::3", "chainA", 1, LocalDateTime.now(), null, null, null);
+
+        val firstPage = DealTracker.findAfter(StageFilter.ALL, null).page(0, 1).list();
+        assertEquals(List.of("chain654::1"), firstPage.stream().map(DealTracker::getDealReference).toList());
+        assertEquals(List.of("chain654::2", "chain654::3"),
+                DealTracker.findAfter(StageFilter.ALL, DealCursor.after(firstPage.getLast())).list()
+                        .stream().map(DealTracker::getDealReference).toList());
+        assertEquals(List.of("chain654::1", "chain654::2", "chain654::3"),
+                DealTracker.findAfter(StageFilter.ALL, new DealCursor(null, 0, null)).list()
+                        .stream().map(DealTracker::getDealReference).toList());
+
+        Stream.of(dt1, dt2, dt3).forEach(dealTracker -> dealTrackerManager.delete(dealTracker));
+    }
+
+    /**
+     * Ensure a late message that's missing timestamps we already hold doesn't take the deal back a stage
+     */
+    @Test
+    public void testMetricDataLateMessageDoesNotClearTimes() {
+        // to the micro the database keeps, so it compares equal with the time read back from a row
+        val arrivalTime = LocalDateTime.now().truncatedTo(ChronoUnit.MICROS);
+        dealTrackerManager.processDealTracker(new DealTracker("chain654::1", "chainA", 1, arrivalTime, null, null, null));
+        dealTrackerManager.processDealTracker(new DealTracker("chain654::1", "chainA", 1, null, LocalDateTime.now(), null, null));
+        dealTrackerManager.processDealTracker(new DealTracker("chain654::1", "chainA", 1, arrivalTime, null, null, null));
+
+        val dealTracker = dealTrackerManager.getByTransactionRef("chain654::1").orElseThrow();
+        assertEquals(Stage.SENT, dealTracker.getStage());
+        assertEquals(arrivalTime, dealTracker.getArrivalTime());
+
+        dealTrackerManager.deleteByTransactionRef("chain654::1");
+    }
+
+    /**
+     * Ensure a time only moves forward - an earlier sentTime than the deal has is ignored, a later one is taken
+     */
+    @Test
+    public void testMetricDataTimesOnlyMoveForward() {
+        val arrivalTime = LocalDateTime.now().truncatedTo(ChronoUnit.MICROS);
+        val sentTime = arrivalTime.plusMinutes(5);
+        dealTrackerManager.processDealTracker(new DealTracker("chain655::1", "chainA", 1, arrivalTime, sentTime, null, null));
+        dealTrackerManager.processDealTracker(new DealTracker("chain655::1", "chainA", 1, null, arrivalTime, null, null));
+        assertEquals(sentTime, dealTrackerManager.getByTransactionRef("chain655::1").orElseThrow().getSentTime());
+
+        dealTrackerManager.processDealTracker(new DealTracker("chain655::1", "chainA", 1, null, sentTime.plusMinutes(1), null, null));
+        assertEquals(sentTime.plusMinutes(1), dealTrackerManager.getByTransactionRef("chain655::1").orElseThrow().getSentTime());
+
+        dealTrackerManager.deleteByTransactionRef("chain655::1");
+    }
+
+    /**
+     * Ensure sent and vestComplete messages for the same deals applied at the same time both stick
+     * without the lanes keeping them apart - the loser of each race merges into the winner's change
+     */
+    @Test
+    public void testMetricDataConcurrentUpdatesMerge() {
+        val deals = IntStream.range(0, 50).mapToObj(i -> "chain988::" + i).toList();
+        deals.forEach(ref -> dealTrackerManager.processDealTracker(
+                new DealTracker(ref, "chainA", 1, LocalDateTime.now(), null, null, null)));
+
+        val sent = CompletableFuture.runAsync(() -> deals.forEach(ref -> dealTrackerManager.processDealTracker(
+                new DealTracker(ref, "chainA", 1, null, LocalDateTime.now(), null, null))));
+        val vestComplete = CompletableFuture.runAsync(() -> deals.forEach(ref -> dealTrackerManager.processDealTracker(
+                new DealTracker(ref, "chainA", 1, null, null, LocalDateTime.now(), null))));
+        CompletableFuture.allOf(sent, vestComplete).join();
+
+        deals.forEach(ref -> {
+            val dealTracker = dealTrackerManager.getByTransactionRef(ref).orElseThrow();
+            assertEquals(Stage.VEST_COMPLETE, dealTracker.getStage());
+            assertNotNull(dealTracker.getSentTime());
+        });
+        deals.forEach(dealTrackerManager::deleteByTransactionRef);
+    }
+
+    /**
+     * Ensure sent and vestComplete messages for the same deals arriving at the same time both stick
+     */
+    @Test
+    public void testMetricDataLanesKeepEveryUpdate() {
+        val deals = IntStream.range(0, 50).mapToObj(i -> "chain987::" + i).toList();
+        deals.forEach(ref -> dealLanes.process(new DealTracker(ref, "chainA", 1, LocalDateTime.now(), null, null, null)));
+
+        val sent = CompletableFuture.runAsync(() -> deals.forEach(ref ->
+                dealLanes.process(new DealTracker(ref, "chainA", 1, null, LocalDateTime.now(), null, null))));
+        val vestComplete = CompletableFuture.runAsync(() -> deals.forEach(ref ->
+                dealLanes.process(new DealTracker(ref, "chainA", 1, null, null, LocalDateTime.now(), null))));
+        CompletableFuture.allOf(sent, vestComplete).join();
+
+        deals.forEach(ref -> assertEquals(Stage.VEST_COMPLETE,
+                dealTrackerManager.getByTransactionRef(ref).orElseThrow().getStage()));
+        deals.forEach(ref -> dealLanes.run(ref, () -> {
+            dealTrackerManager.deleteByTransactionRef(ref);
+            return null;
+        }));
+    }
 }
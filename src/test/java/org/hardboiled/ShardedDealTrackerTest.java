@@ -0,0 +1,216 @@
+package org.hardboiled;
+
+import com.sun.net.httpserver.HttpServer;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.QuarkusTestProfile;
+import io.quarkus.test.junit.TestProfile;
+import lombok.val;
+import org.hamcrest.Matchers;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.IntStream;
+
+import static io.restassured.RestAssured.given;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * This instance sharded with a stand-in for a second member, which records what it's sent and
+ * answers the list and summary queries with one deal of its own
+ */
+@QuarkusTest
+@TestProfile(ShardedDealTrackerTest.TwoShards.class)
+public class ShardedDealTrackerTest {
+
+    private static final String SELF = "http://localhost:8081";
+    private static final int OTHER_PORT = 18089;
+    private static final String OTHER = "http://localhost:" + OTHER_PORT;
+
+    public static class TwoShards implements QuarkusTestProfile {
+
+        @Override
+        public Map<String, String> getConfigOverrides() {
+            return Map.of("dealtracker.shard.members", SELF + "," + OTHER,
+                    "dealtracker.shard.self", SELF);
+        }
+    }
+
+    private static final List<String> received = new CopyOnWriteArrayList<>();
+    private static HttpServer other;
+
+    @BeforeAll
+    static void startOther() throws IOException {
+        other = HttpServer.create(new InetSocketAddress("localhost", OTHER_PORT), 0);
+        other.createContext("/dealtracker", exchange -> {
+            received.add(exchange.getRequestMethod() + " " + exchange.getRequestURI() + " "
+                    + exchange.getRequestHeaders().getFirst(DealShards.FORWARDED) + " "
+                    + new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+            val path = exchange.getRequestURI().getPath();
+            final String body;
+            if (path.equals("/dealtracker/getDealsWaiting")) {
+                body = "[{\"id\":900,\"dealReference\":\"SH-OTHER\",\"chain\":\"" + chainOwnedBy(OTHER)
+                        + "\",\"chainNumber\":1,\"arrivalTime\":\"2024-01-01T00:00:00\",\"stage\":\"WAITING\"}]";
+            } else if (path.equals("/dealtracker/summary")) {
+                body = "{\"waiting\":1,\"inProcessing\":0,\"stages\":{\"WAITING\":1},"
+                        + "\"oldestArrivalTime\":{\"WAITING\":\"2024-01-01T00:00:00\"},\"chains\":{}}";
+            } else if (path.equals("/dealtracker/stream/ALL")) {
+                body = "{\"id\":901,\"dealReference\":\"SH-STREAMED\",\"chain\":\"" + chainOwnedBy(OTHER)
+                        + "\",\"chainNumber\":1,\"stage\":\"WAITING\"}\n";
+            } else if (path.equals("/dealtracker/stuck")) {
+                body = "[{\"id\":902,\"dealReference\":\"SH-STUCK\",\"chain\":\"" + chainOwnedBy(OTHER)
+                        + "\",\"chainNumber\":1,\"stage\":\"WAITING\",\"since\":\"2024-01-01T00:00:00\","
+                        + "\"stuckSeconds\":100}]";
+            } else if (path.equals("/dealtracker/archive")) {
+                body = "[{\"id\":903,\"dealReference\":\"SH-ARCHIVED\",\"chain\":\"" + chainOwnedBy(OTHER)
+                        + "\",\"chainNumber\":1,\"appCompleteTime\":\"2024-01-01T00:00:00\"}]";
+            } else if (path.equals("/dealtracker/audit/SH-AUDITED")) {
+                body = "[{\"sequence\":0,\"recordedAt\":\"2024-01-01T00:00:00Z\",\"id\":904,"
+                        + "\"dealReference\":\"SH-AUDITED\",\"newStage\":\"WAITING\",\"outcome\":\"PERSISTED\"}]";
+            } else if (path.equals("/dealtracker/processBatch")) {
+                exchange.sendResponseHeaders(500, -1);
+                exchange.close();
+                return;
+            } else {
+                exchange.sendResponseHeaders(204, -1);
+                exchange.close();
+                return;
+            }
+            val bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, bytes.length);
+            exchange.getResponseBody().write(bytes);
+            exchange.close();
+        });
+        other.start();
+    }
+
+    @AfterAll
+    static void stopOther() {
+        other.stop(0);
+    }
+
+    @BeforeEach
+    void clearReceived() {
+        received.clear();
+    }
+
+    private static String chainOwnedBy(final String member) {
+        val ring = new ShardRing(List.of(SELF, OTHER), 128);
+        return IntStream.range(0, 1000).mapToObj(i -> "ShardChain" + i)
+                .filter(chain -> ring.ownerOf(chain).equals(member))
+                .findFirst().orElseThrow();
+    }
+
+    /**
+     * Ensure deals owned by the other member are forwarded to it, local ones are kept, and the
+     * lists and summary are merged from both
+     */
+    @Test
+    public void testRoutingAndGathering() {
+        val local = DealTracker.builder()
+                .dealReference("SH-LOCAL")
+                .chain(chainOwnedBy(SELF))
+                .chainNumber(1)
+                .arrivalTime(LocalDateTime.now())
+                .build();
+        val remote = DealTracker.builder()
+                .dealReference("SH-REMOTE")
+                .chain(chainOwnedBy(OTHER))
+                .chainNumber(2)
+                .arrivalTime(LocalDateTime.now())
+                .build();
+        for (DealTracker dealTracker : List.of(local, remote)) {
+            given().body(dealTracker).contentType("application/json")
+                    .when().post("/dealtracker/process")
+                    .then().statusCode(204);
+        }
+        assertEquals(1, received.size());
+        assertTrue(received.getFirst().startsWith("POST /dealtracker/process " + SELF + " "));
+        assertTrue(received.getFirst().contains("SH-REMOTE"));
+
+        given()
+                .when().get("/dealtracker/getDealsWaiting")
+                .then().statusCode(200)
+                .body("dealReference", Matchers.containsInAnyOrder("SH-LOCAL", "SH-OTHER"));
+        given()
+                .when().get("/dealtracker/summary")
+                .then().statusCode(200)
+                .body("waiting", Matchers.is(2))
+                .body("oldestArrivalTime.WAITING", Matchers.is("2024-01-01T00:00:00"));
+
+        // a forwarded request is answered from this instance's deals alone
+        given().header(DealShards.FORWARDED, OTHER)
+                .when().get("/dealtracker/getDealsWaiting")
+                .then().statusCode(200)
+                .body("dealReference", Matchers.contains("SH-LOCAL"));
+
+        given()
+                .when().delete("/dealtracker/delete/" + local.dealReference)
+                .then().statusCode(204);
+        assertTrue(received.getLast().startsWith("DELETE /dealtracker/delete/SH-LOCAL " + SELF));
+    }
+
+    /**
+     * Ensure a member that fails a batch fails just the deals sent to it, and the local ones are
+     * still processed
+     */
+    @Test
+    public void testFailedMemberFailsItsShare() {
+        val batch = String.join("\n",
+                "{\"dealReference\":\"SH-BATCH-1\",\"chain\":\"" + chainOwnedBy(SELF) + "\",\"chainNumber\":1}",
+                "{\"dealReference\":\"SH-BATCH-2\",\"chain\":\"" + chainOwnedBy(OTHER) + "\",\"chainNumber\":1}",
+                "{\"dealReference\":\"SH-BATCH-3\",\"chain\":\"" + chainOwnedBy(SELF) + "\",\"chainNumber\":2}");
+        given().body(batch.getBytes(StandardCharsets.UTF_8)).contentType(DealTrackerResource.NDJSON)
+                .when().post("/dealtracker/processBatch")
+                .then().statusCode(200)
+                .body("dealReference", Matchers.contains("SH-BATCH-1", "SH-BATCH-2", "SH-BATCH-3"))
+                .body("outcome", Matchers.contains("PERSISTED", "FAILED", "PERSISTED"));
+        assertTrue(received.getFirst().startsWith("POST /dealtracker/processBatch " + SELF + " "));
+    }
+
+    /**
+     * Ensure the stream, stuck deals, archive and audit take in the other member's too, and the
+     * feed and latencies, which can't be merged, are turned away unless asked of one member
+     */
+    @Test
+    public void testPerMemberViews() {
+        val streamed = given()
+                .when().get("/dealtracker/stream/all")
+                .then().statusCode(200)
+                .extract().asString();
+        assertTrue(streamed.contains("SH-STREAMED"));
+        given()
+                .when().get("/dealtracker/stuck?olderThan=1s")
+                .then().statusCode(200)
+                .body("dealReference", Matchers.hasItem("SH-STUCK"));
+        assertTrue(received.stream().anyMatch(request -> request.startsWith("GET /dealtracker/stuck?olderThan=1s ")));
+        given()
+                .when().get("/dealtracker/archive")
+                .then().statusCode(200)
+                .body("dealReference", Matchers.hasItem("SH-ARCHIVED"));
+        given()
+                .when().get("/dealtracker/audit/SH-AUDITED")
+                .then().statusCode(200)
+                .body("id", Matchers.contains(904));
+
+        given()
+                .when().get("/dealtracker/latencies")
+                .then().statusCode(501);
+        given().header(DealShards.FORWARDED, OTHER)
+                .when().get("/dealtracker/latencies")
+                .then().statusCode(200);
+        given()
+                .when().get("/dealtracker/feed")
+                .then().statusCode(501);
+    }
+}
@@ -0,0 +1,66 @@
+package org.hardboiled;
+
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Optional;
+
+import static org.hardboiled.TestDeals.deal;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class StuckDealsTest {
+
+    private static StuckDeals stuckDeals(final DealStore dealStore) {
+        val stuckDeals = new StuckDeals();
+        stuckDeals.dealStore = dealStore;
+        stuckDeals.threshold = Duration.ofMinutes(10);
+        stuckDeals.chainThresholdConfig = Optional.empty();
+        return stuckDeals;
+    }
+
+    /**
+     * Ensure deals are judged by when they reached their current stage, not when they arrived
+     */
+    @Test
+    public void testOlderThanUsesTheCurrentStage() {
+        val dealStore = new DealStore();
+        val now = LocalDateTime.now();
+        dealStore.put(deal(1L, "chainA").arrivalTime(now.minusMinutes(30)).build());
+        dealStore.put(deal(2L, "chainA").arrivalTime(now.minusMinutes(30)).sentTime(now.minusMinutes(1)).build());
+        dealStore.put(deal(3L, "chainB").arrivalTime(now.minusMinutes(40)).sentTime(now.minusMinutes(20)).build());
+        dealStore.put(deal(4L, "chainB").arrivalTime(now.minusMinutes(5)).build());
+
+        val stuck = stuckDeals(dealStore).olderThan(Duration.ofMinutes(10), null, 10);
+        assertEquals(2, stuck.size());
+        assertEquals("ref::1", stuck.get(0).dealReference());
+        assertEquals(Stage.WAITING, stuck.get(0).stage());
+        assertEquals("ref::3", stuck.get(1).dealReference());
+        assertEquals(Stage.SENT, stuck.get(1).stage());
+        assertTrue(stuck.get(1).stuckSeconds() >= 1200);
+
+        assertEquals(1, stuckDeals(dealStore).olderThan(Duration.ofMinutes(10), "chainB", 10).size());
+        assertEquals(1, stuckDeals(dealStore).olderThan(Duration.ofMinutes(10), null, 1).size());
+    }
+
+    /**
+     * Ensure a chain with its own threshold is held to it while the rest use the default
+     */
+    @Test
+    public void testChainThresholds() {
+        val dealStore = new DealStore();
+        val now = LocalDateTime.now();
+        dealStore.put(deal(1L, "chainA").arrivalTime(now.minusMinutes(3)).build());
+        dealStore.put(deal(2L, "chainB").arrivalTime(now.minusMinutes(3)).build());
+        dealStore.put(deal(3L, "chainB").arrivalTime(now.minusMinutes(15)).build());
+        val stuckDeals = stuckDeals(dealStore);
+        stuckDeals.addChainThreshold("chainA=2m");
+
+        val stuck = stuckDeals.pastThreshold(null, 10);
+        assertEquals(2, stuck.size());
+        assertEquals("ref::3", stuck.get(0).dealReference());
+        assertEquals("ref::1", stuck.get(1).dealReference());
+    }
+}
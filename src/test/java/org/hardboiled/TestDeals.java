@@ -0,0 +1,24 @@
+package org.hardboiled;
+
+import java.time.LocalDateTime;
+
+/**
+ * Deals for the unit tests, so each test only sets what it's about
+ */
+final class TestDeals {
+
+    private TestDeals() {
+    }
+
+    /**
+     * @return a deal with dealReference ref::id, first on the chain and arriving now - set anything else on the builder
+     */
+    static DealTracker.DealTrackerBuilder deal(final long id, final String chain) {
+        return DealTracker.builder()
+                .id(id)
+                .dealReference("ref::" + id)
+                .chain(chain)
+                .chainNumber(1)
+                .arrivalTime(LocalDateTime.now());
+    }
+}
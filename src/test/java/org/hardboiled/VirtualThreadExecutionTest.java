@@ -0,0 +1,62 @@
+package org.hardboiled;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.QuarkusTestProfile;
+import io.quarkus.test.junit.TestProfile;
+import jakarta.inject.Inject;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.Map;
+
+import static io.restassured.RestAssured.given;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@QuarkusTest
+@TestProfile(VirtualThreadExecutionTest.VirtualThreads.class)
+public class VirtualThreadExecutionTest {
+
+    public static class VirtualThreads implements QuarkusTestProfile {
+
+        @Override
+        public Map<String, String> getConfigOverrides() {
+            return Map.of("dealtracker.rest.execution", "virtual");
+        }
+    }
+
+    @Inject
+    DealExecution dealExecution;
+
+    /**
+     * Ensure the endpoints behave the same with their work on virtual threads
+     */
+    @Test
+    public void testProcessAndQueryOnVirtualThreads() {
+        assertEquals(DealExecution.Mode.VIRTUAL, dealExecution.getMode());
+        assertEquals(Boolean.TRUE, dealExecution.call(DealAdmission.Workload.QUERY,
+                () -> Thread.currentThread().isVirtual()).await().indefinitely());
+
+        val dt1 = DealTracker.builder()
+                .dealReference("VT1-1")
+                .chain("ChainVT")
+                .chainNumber(1)
+                .arrivalTime(LocalDateTime.now())
+                .build();
+        given().body(dt1).contentType("application/json")
+                .when().post("/dealtracker/process")
+                .then().statusCode(204);
+        given()
+                .when().get("/dealtracker/get/" + dt1.dealReference)
+                .then().statusCode(200)
+                .body("chain", is("ChainVT"));
+        given()
+                .when().get("/dealtracker/getDealsWaiting?limit=10")
+                .then().statusCode(200)
+                .body("size()", is(1));
+        given()
+                .when().delete("/dealtracker/delete/" + dt1.dealReference)
+                .then().statusCode(204);
+    }
+}